@@ -0,0 +1,681 @@
+/*
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *
+ */
+
+package org.apache.qpid.server.qmf2;
+
+// Misc Imports
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+// QMF2 Imports
+import org.apache.qpid.qmf2.agent.Agent;
+import org.apache.qpid.qmf2.agent.ObjectProvider;
+import org.apache.qpid.qmf2.agent.QmfAgentData;
+import org.apache.qpid.qmf2.common.ObjectId;
+import org.apache.qpid.server.qmf2.agentdata.StatisticsSource;
+
+// Java Broker model Imports
+import org.apache.qpid.server.model.Binding;
+import org.apache.qpid.server.model.Broker;
+import org.apache.qpid.server.model.ConfiguredObject;
+import org.apache.qpid.server.model.Connection;
+import org.apache.qpid.server.model.Consumer;
+import org.apache.qpid.server.model.Queue;
+import org.apache.qpid.server.model.Session;
+import org.apache.qpid.server.model.VirtualHost;
+import org.apache.qpid.server.model.VirtualHostNode;
+
+/**
+ * This class supplies the QMF2 connection, session, subscription and binding Management Objects on demand by
+ * walking the live broker model, rather than having the QmfManagementAgent mirror every one of these high churn
+ * ConfiguredObjects as a QmfAgentData. It is used when the Plugin's "lazyObjects" attribute is set.
+ * <p>
+ * Each class is registered with the Agent as an ObjectProvider. The QmfAgentData are built, populated with their
+ * current statistics and encoded only when a query or Subscription actually asks for their class, and are then
+ * discarded. Their ObjectIds are derived from the broker model (the connection address or the ConfiguredObject
+ * ID) so they are stable across queries and can be used for the reference properties without being stored.
+ * <p>
+ * The QmfManagementAgent tells this class as Connections, Sessions, Consumers and Bindings are added to and removed
+ * from the broker model, so it can keep an index of them by the object name of their ObjectId along with the
+ * parents needed for their reference properties. Looking up a single object by ObjectId, as the Agent does to
+ * resolve references, then builds just that object without walking the model, and listing the ObjectIds of a
+ * class, as an OBJECT_ID query does, doesn't build any objects at all.
+ * <p>
+ * As they only exist for a single query these objects don't have the moving average rate properties that the
+ * StatisticsSampler maintains for the mirrored Management Objects, see populate().
+ * <p>
+ * The exchangeRef and queueRef properties refer to the Exchange and Queue Management Objects, which are still
+ * mirrored by the QmfManagementAgent, and only objects relating to Queues that it has mirrored are supplied so
+ * that the QmfManagementAgent's own Queues, Bindings and Subscriptions remain "hidden" as they are normally.
+ */
+public final class ModelBackedObjects
+{
+    /**
+     * The prefix of the object names of the broker's Management Objects.
+     */
+    private static final String PACKAGE_NAME = "org.apache.qpid.broker:";
+
+    private final Broker<?> _broker;
+    private final String _defaultVirtualHost;
+    private final Map<ConfiguredObject, QmfAgentData> _objects;
+
+    // The Connections, Sessions, Consumers and Bindings in the broker model, keyed by object name and by object.
+    private final ConcurrentMap<String, Indexed> _index = new ConcurrentHashMap<String, Indexed>();
+    private final ConcurrentMap<ConfiguredObject, Indexed> _indexed =
+        new ConcurrentHashMap<ConfiguredObject, Indexed>();
+
+    // The Connection used by the QmfManagementAgent itself, which is hidden from Consoles.
+    private volatile Connection<?> _agentConnection = null;
+
+    /**
+     * A ConfiguredObject in the index, along with the parents needed to build its reference properties. The parent
+     * is the VirtualHost of a Connection, the Connection of a Session or the Queue of a Consumer, and a Consumer also
+     * records its Session, which it doesn't give access to itself. A Binding gives access to its Queue so needs
+     * neither.
+     */
+    private static final class Indexed
+    {
+        private final String _objectName;
+        private final ConfiguredObject _object;
+        private volatile ConfiguredObject _parent = null;
+        private volatile Session<?> _session = null;
+
+        public Indexed(final String objectName, final ConfiguredObject object)
+        {
+            _objectName = objectName;
+            _object = object;
+        }
+    }
+
+    /**
+     * This abstract ObjectProvider supplies the objects of one class. An ObjectId is looked up in the index and
+     * just that object is built, so resolving references, e.g. for the "_expand" query option, doesn't build or
+     * walk the whole class.
+     * <p>
+     * The objects carry live statistics, so their changes aren't tracked and queries for them aren't cached.
+     */
+    private abstract class ModelObjectProvider implements ObjectProvider
+    {
+        private final String _prefix;
+
+        public ModelObjectProvider(final String className)
+        {
+            _prefix = PACKAGE_NAME + className + ":";
+        }
+
+        public final QmfAgentData getObject(final ObjectId objectId)
+        {
+            String objectName = objectId.getObjectName();
+            if (objectName.startsWith(_prefix))
+            {
+                Indexed indexed = _index.get(objectName);
+                QmfAgentData object = (indexed == null) ? null : build(indexed);
+                if (object != null && object.getObjectId().equals(objectId))
+                {
+                    return object;
+                }
+            }
+            return null;
+        }
+
+        public final long getVersion()
+        {
+            return UNTRACKED;
+        }
+
+        /**
+         * Build the object of this class for an index entry.
+         * @param indexed the index entry of the object.
+         * @return the populated QmfAgentData, or null if the object is hidden from Consoles.
+         */
+        protected abstract QmfAgentData build(Indexed indexed);
+    }
+
+    /**
+     * Construct a ModelBackedObjects.
+     * @param broker the root Broker Management Object from which the other Management Objects may be obtained.
+     * @param objects the QmfManagementAgent's Map of mirrored QmfAgentData keyed by ConfiguredObject.
+     */
+    public ModelBackedObjects(final Broker<?> broker, final Map<ConfiguredObject, QmfAgentData> objects)
+    {
+        _broker = broker;
+        _defaultVirtualHost = broker.getDefaultVirtualHost();
+        _objects = objects;
+    }
+
+    /**
+     * Register the connection, session, subscription and binding ObjectProviders with the Agent.
+     * @param agent the Agent to register the ObjectProviders with.
+     */
+    public void register(final Agent agent)
+    {
+        agent.registerObjectProvider(org.apache.qpid.server.qmf2.agentdata.Connection.getSchema().getClassId(),
+            new ModelObjectProvider("connection")
+            {
+                public Collection<QmfAgentData> getObjects()
+                {
+                    List<QmfAgentData> results = new ArrayList<QmfAgentData>();
+                    for (VirtualHost<?,?,?> vhost : getVirtualHosts())
+                    {
+                        for (Connection<?> connection : vhost.getConnections())
+                        {
+                            if (connection != _agentConnection)
+                            {
+                                results.add(populate(createConnection(vhost, connection)));
+                            }
+                        }
+                    }
+                    return results;
+                }
+
+                public Collection<ObjectId> getObjectIds()
+                {
+                    List<ObjectId> results = new ArrayList<ObjectId>();
+                    for (VirtualHost<?,?,?> vhost : getVirtualHosts())
+                    {
+                        for (Connection<?> connection : vhost.getConnections())
+                        {
+                            if (connection != _agentConnection)
+                            {
+                                results.add(getConnectionId(vhost, connection));
+                            }
+                        }
+                    }
+                    return results;
+                }
+
+                protected QmfAgentData build(final Indexed indexed)
+                {
+                    Connection<?> connection = (Connection<?>)indexed._object;
+                    if (connection == _agentConnection)
+                    {
+                        return null;
+                    }
+                    return populate(createConnection((VirtualHost<?,?,?>)indexed._parent, connection));
+                }
+            });
+
+        agent.registerObjectProvider(org.apache.qpid.server.qmf2.agentdata.Session.getSchema().getClassId(),
+            new ModelObjectProvider("session")
+            {
+                public Collection<QmfAgentData> getObjects()
+                {
+                    List<QmfAgentData> results = new ArrayList<QmfAgentData>();
+                    for (VirtualHost<?,?,?> vhost : getVirtualHosts())
+                    {
+                        for (Connection<?> connection : vhost.getConnections())
+                        {
+                            if (connection != _agentConnection)
+                            {
+                                ObjectId connectionRef = getConnectionId(vhost, connection);
+                                for (Session<?> session : connection.getSessions())
+                                {
+                                    results.add(populate(createSession(session, connectionRef)));
+                                }
+                            }
+                        }
+                    }
+                    return results;
+                }
+
+                public Collection<ObjectId> getObjectIds()
+                {
+                    List<ObjectId> results = new ArrayList<ObjectId>();
+                    for (VirtualHost<?,?,?> vhost : getVirtualHosts())
+                    {
+                        for (Connection<?> connection : vhost.getConnections())
+                        {
+                            if (connection != _agentConnection)
+                            {
+                                for (Session<?> session : connection.getSessions())
+                                {
+                                    results.add(getSessionId(session));
+                                }
+                            }
+                        }
+                    }
+                    return results;
+                }
+
+                protected QmfAgentData build(final Indexed indexed)
+                {
+                    Connection<?> connection = (Connection<?>)indexed._parent;
+                    Indexed parent = (connection == null) ? null : _indexed.get(connection);
+                    if (parent == null || connection == _agentConnection)
+                    {
+                        return null;
+                    }
+                    ObjectId connectionRef = getConnectionId((VirtualHost<?,?,?>)parent._parent, connection);
+                    return populate(createSession((Session<?>)indexed._object, connectionRef));
+                }
+            });
+
+        agent.registerObjectProvider(org.apache.qpid.server.qmf2.agentdata.Subscription.getSchema().getClassId(),
+            new ModelObjectProvider("subscription")
+            {
+                public Collection<QmfAgentData> getObjects()
+                {
+                    List<QmfAgentData> results = new ArrayList<QmfAgentData>();
+                    for (VirtualHost<?,?,?> vhost : getVirtualHosts())
+                    {
+                        // The Consumer doesn't give access to its Session, so first find the sessionRef of each.
+                        Map<Consumer, ObjectId> sessionRefs = new HashMap<Consumer, ObjectId>();
+                        for (Connection<?> connection : vhost.getConnections())
+                        {
+                            for (Session<?> session : connection.getSessions())
+                            {
+                                if (session.getConsumers() != null)
+                                {
+                                    ObjectId sessionRef = getSessionId(session);
+                                    for (Consumer consumer : session.getConsumers())
+                                    {
+                                        sessionRefs.put(consumer, sessionRef);
+                                    }
+                                }
+                            }
+                        }
+
+                        for (Queue<?> queue : vhost.getQueues())
+                        {
+                            QmfAgentData queueData = _objects.get(queue);
+                            if (queueData != null)
+                            {
+                                for (Consumer consumer : queue.getChildren(Consumer.class))
+                                {
+                                    org.apache.qpid.server.qmf2.agentdata.Subscription subscription =
+                                        createSubscription(consumer);
+                                    subscription.setQueueRef(queueData.getObjectId(), queue);
+                                    ObjectId sessionRef = sessionRefs.get(consumer);
+                                    if (sessionRef != null)
+                                    {
+                                        subscription.setSessionRef(sessionRef);
+                                    }
+                                    results.add(populate(subscription));
+                                }
+                            }
+                        }
+                    }
+                    return results;
+                }
+
+                public Collection<ObjectId> getObjectIds()
+                {
+                    List<ObjectId> results = new ArrayList<ObjectId>();
+                    for (VirtualHost<?,?,?> vhost : getVirtualHosts())
+                    {
+                        for (Queue<?> queue : vhost.getQueues())
+                        {
+                            if (_objects.containsKey(queue))
+                            {
+                                for (Consumer consumer : queue.getChildren(Consumer.class))
+                                {
+                                    results.add(getSubscriptionId(consumer));
+                                }
+                            }
+                        }
+                    }
+                    return results;
+                }
+
+                protected QmfAgentData build(final Indexed indexed)
+                {
+                    Queue<?> queue = (Queue<?>)indexed._parent;
+                    QmfAgentData queueData = (queue == null) ? null : _objects.get(queue);
+                    if (queueData == null)
+                    {
+                        return null;
+                    }
+                    org.apache.qpid.server.qmf2.agentdata.Subscription subscription =
+                        createSubscription((Consumer)indexed._object);
+                    subscription.setQueueRef(queueData.getObjectId(), queue);
+                    Session<?> session = indexed._session;
+                    if (session != null)
+                    {
+                        subscription.setSessionRef(getSessionId(session));
+                    }
+                    return populate(subscription);
+                }
+            });
+
+        agent.registerObjectProvider(org.apache.qpid.server.qmf2.agentdata.Binding.getSchema().getClassId(),
+            new ModelObjectProvider("binding")
+            {
+                public Collection<QmfAgentData> getObjects()
+                {
+                    List<QmfAgentData> results = new ArrayList<QmfAgentData>();
+                    for (VirtualHost<?,?,?> vhost : getVirtualHosts())
+                    {
+                        for (Queue<?> queue : vhost.getQueues())
+                        {
+                            QmfAgentData queueData = _objects.get(queue);
+                            if (queueData != null)
+                            {
+                                for (Binding binding : queue.getBindings())
+                                {
+                                    results.add(populate(createBinding(binding, queueData)));
+                                }
+                            }
+                        }
+                    }
+                    return results;
+                }
+
+                public Collection<ObjectId> getObjectIds()
+                {
+                    List<ObjectId> results = new ArrayList<ObjectId>();
+                    for (VirtualHost<?,?,?> vhost : getVirtualHosts())
+                    {
+                        for (Queue<?> queue : vhost.getQueues())
+                        {
+                            if (_objects.containsKey(queue))
+                            {
+                                for (Binding binding : queue.getBindings())
+                                {
+                                    results.add(getBindingId(binding));
+                                }
+                            }
+                        }
+                    }
+                    return results;
+                }
+
+                protected QmfAgentData build(final Indexed indexed)
+                {
+                    Binding binding = (Binding)indexed._object;
+                    QmfAgentData queueData = _objects.get(binding.getQueue());
+                    return (queueData == null) ? null : populate(createBinding(binding, queueData));
+                }
+            });
+    }
+
+    /**
+     * Add a Connection, Session, Consumer or Binding that has been added to the broker model to the index. A
+     * Consumer is added as a child of both its Queue and its Session, so is indexed once and records each parent.
+     * @param parent the parent ConfiguredObject that the child was added to.
+     * @param child the Connection, Session, Consumer or Binding.
+     */
+    public void add(final ConfiguredObject parent, final ConfiguredObject child)
+    {
+        Indexed indexed = _indexed.get(child);
+        if (indexed == null)
+        {
+            String objectName;
+            if (child instanceof Connection)
+            {
+                objectName = getConnectionId((VirtualHost<?,?,?>)parent, (Connection<?>)child).getObjectName();
+            }
+            else if (child instanceof Session)
+            {
+                objectName = getSessionId((Session<?>)child).getObjectName();
+            }
+            else if (child instanceof Consumer)
+            {
+                objectName = getSubscriptionId((Consumer)child).getObjectName();
+            }
+            else if (child instanceof Binding)
+            {
+                objectName = getBindingId((Binding)child).getObjectName();
+            }
+            else
+            {
+                return;
+            }
+
+            indexed = new Indexed(objectName, child);
+            Indexed existing = _indexed.putIfAbsent(child, indexed);
+            if (existing == null)
+            {
+                _index.put(objectName, indexed);
+            }
+            else
+            {
+                indexed = existing;
+            }
+        }
+
+        if (child instanceof Consumer && parent instanceof Session)
+        {
+            indexed._session = (Session<?>)parent;
+        }
+        else if (!(child instanceof Binding))
+        {
+            indexed._parent = parent;
+        }
+    }
+
+    /**
+     * Remove a Connection, Session, Consumer or Binding that has been removed from the broker model from the index.
+     * @param child the Connection, Session, Consumer or Binding.
+     */
+    public void remove(final ConfiguredObject child)
+    {
+        Indexed indexed = _indexed.remove(child);
+        if (indexed != null)
+        {
+            _index.remove(indexed._objectName, indexed);
+        }
+    }
+
+    /**
+     * Set the Connection used by the QmfManagementAgent itself, which is hidden from Consoles.
+     * @param connection the Connection used by the QmfManagementAgent.
+     */
+    public void setAgentConnection(final Connection<?> connection)
+    {
+        _agentConnection = connection;
+    }
+
+    /**
+     * Returns whether a Connection is the one used by the QmfManagementAgent itself.
+     * @param connection the Connection to check.
+     * @return true if the Connection is the one used by the QmfManagementAgent.
+     */
+    public boolean isAgentConnection(final Connection<?> connection)
+    {
+        return connection == _agentConnection;
+    }
+
+    /**
+     * Create a QMF2 connection Management Object with its ObjectId set. This is also used to create the transient
+     * objects needed to create the clientConnect and clientDisconnect Events.
+     * @param vhost the parent VirtualHost ConfiguredObject from the broker model.
+     * @param connection the Connection ConfiguredObject from the broker model.
+     * @return the QMF2 connection Management Object.
+     */
+    public org.apache.qpid.server.qmf2.agentdata.Connection createConnection(final VirtualHost<?,?,?> vhost,
+                                                                             final Connection<?> connection)
+    {
+        org.apache.qpid.server.qmf2.agentdata.Connection data =
+            new org.apache.qpid.server.qmf2.agentdata.Connection(getVirtualHostArgument(vhost), connection);
+        data.setObjectId(getConnectionId(vhost, connection));
+        return data;
+    }
+
+    /**
+     * Create a QMF2 session Management Object with its ObjectId set.
+     * @param session the Session ConfiguredObject from the broker model.
+     * @param connectionRef the ObjectId of the Connection Object that is the parent of the Session.
+     * @return the QMF2 session Management Object.
+     */
+    public org.apache.qpid.server.qmf2.agentdata.Session createSession(final Session<?> session,
+                                                                       final ObjectId connectionRef)
+    {
+        org.apache.qpid.server.qmf2.agentdata.Session data =
+            new org.apache.qpid.server.qmf2.agentdata.Session(session, connectionRef);
+        data.setObjectId(getSessionId(session));
+        return data;
+    }
+
+    /**
+     * Create a QMF2 subscription Management Object with its ObjectId set. This is also used to create the
+     * transient objects needed to create the subscribe and unsubscribe Events.
+     * @param consumer the Consumer ConfiguredObject from the broker model.
+     * @return the QMF2 subscription Management Object.
+     */
+    public org.apache.qpid.server.qmf2.agentdata.Subscription createSubscription(final Consumer consumer)
+    {
+        org.apache.qpid.server.qmf2.agentdata.Subscription data =
+            new org.apache.qpid.server.qmf2.agentdata.Subscription(consumer);
+        data.setObjectId(getSubscriptionId(consumer));
+        return data;
+    }
+
+    /**
+     * Create a QMF2 binding Management Object with its ObjectId set. This is also used to create the transient
+     * objects needed to create the bind and unbind Events.
+     * @param binding the Binding ConfiguredObject from the broker model.
+     * @return the QMF2 binding Management Object.
+     */
+    public org.apache.qpid.server.qmf2.agentdata.Binding createBinding(final Binding binding)
+    {
+        org.apache.qpid.server.qmf2.agentdata.Binding data = new org.apache.qpid.server.qmf2.agentdata.Binding(binding);
+        data.setObjectId(getBindingId(binding));
+        return data;
+    }
+
+    /**
+     * Return the ObjectId of the QMF2 connection Management Object for a Connection.
+     * @param vhost the parent VirtualHost ConfiguredObject from the broker model.
+     * @param connection the Connection ConfiguredObject from the broker model.
+     * @return the ObjectId of the QMF2 connection Management Object.
+     */
+    private ObjectId getConnectionId(final VirtualHost<?,?,?> vhost, final Connection<?> connection)
+    {
+        return new ObjectId("", PACKAGE_NAME + "connection:" + getConnectionKey(vhost, connection), 0);
+    }
+
+    /**
+     * Return the part of the object name of the QMF2 connection Management Object for a Connection after the
+     * class prefix.
+     * @param vhost the parent VirtualHost ConfiguredObject from the broker model.
+     * @param connection the Connection ConfiguredObject from the broker model.
+     * @return the key of the QMF2 connection Management Object.
+     */
+    private String getConnectionKey(final VirtualHost<?,?,?> vhost, final Connection<?> connection)
+    {
+        VirtualHost<?,?,?> vhostArgument = getVirtualHostArgument(vhost);
+        String vhostName = (vhostArgument == null) ? "" : "vhost:" + vhostArgument.getName() + "/";
+        return vhostName + connection.getName();
+    }
+
+    /**
+     * Create a QMF2 binding Management Object with its ObjectId and references set.
+     * @param binding the Binding ConfiguredObject from the broker model.
+     * @param queueData the mirrored QmfAgentData of the Binding's Queue.
+     * @return the QMF2 binding Management Object.
+     */
+    private org.apache.qpid.server.qmf2.agentdata.Binding createBinding(final Binding binding,
+                                                                        final QmfAgentData queueData)
+    {
+        org.apache.qpid.server.qmf2.agentdata.Binding data = createBinding(binding);
+        data.setQueueRef(queueData.getObjectId());
+        QmfAgentData exchangeData = _objects.get(binding.getExchange());
+        if (exchangeData != null)
+        {
+            data.setExchangeRef(exchangeData.getObjectId());
+        }
+        return data;
+    }
+
+    /**
+     * Return the ObjectId of the QMF2 session Management Object for a Session.
+     * @param session the Session ConfiguredObject from the broker model.
+     * @return the ObjectId of the QMF2 session Management Object.
+     */
+    private ObjectId getSessionId(final Session<?> session)
+    {
+        return new ObjectId("", PACKAGE_NAME + "session:" + session.getId(), 0);
+    }
+
+    /**
+     * Return the ObjectId of the QMF2 subscription Management Object for a Consumer.
+     * @param consumer the Consumer ConfiguredObject from the broker model.
+     * @return the ObjectId of the QMF2 subscription Management Object.
+     */
+    private ObjectId getSubscriptionId(final Consumer consumer)
+    {
+        return new ObjectId("", PACKAGE_NAME + "subscription:" + consumer.getId(), 0);
+    }
+
+    /**
+     * Return the ObjectId of the QMF2 binding Management Object for a Binding.
+     * @param binding the Binding ConfiguredObject from the broker model.
+     * @return the ObjectId of the QMF2 binding Management Object.
+     */
+    private ObjectId getBindingId(final Binding binding)
+    {
+        return new ObjectId("", PACKAGE_NAME + "binding:" + binding.getId(), 0);
+    }
+
+    /**
+     * Return the VirtualHost to pass to the QmfAgentData constructors, which is null for the default VirtualHost.
+     * @param vhost the VirtualHost ConfiguredObject from the broker model.
+     * @return the VirtualHost to pass to the QmfAgentData constructors.
+     */
+    private VirtualHost<?,?,?> getVirtualHostArgument(final VirtualHost<?,?,?> vhost)
+    {
+        return (vhost == null || vhost.getName().equals(_defaultVirtualHost)) ? null : vhost;
+    }
+
+    /**
+     * Return the currently active VirtualHosts.
+     * @return the currently active VirtualHosts.
+     */
+    private List<VirtualHost<?,?,?>> getVirtualHosts()
+    {
+        List<VirtualHost<?,?,?>> vhosts = new ArrayList<VirtualHost<?,?,?>>();
+        for (VirtualHostNode<?> vhostNode : _broker.getVirtualHostNodes())
+        {
+            VirtualHost<?,?,?> vhost = vhostNode.getVirtualHost();
+            if (vhost != null)
+            {
+                vhosts.add(vhost);
+            }
+        }
+        return vhosts;
+    }
+
+    /**
+     * Populate the statistics of a newly created QmfAgentData.
+     * <p>
+     * The statistics are read directly rather than via the StatisticsSampler, as the sampler's moving average rates
+     * need the history of a long lived object and these objects only exist for a single query. Lazily supplied
+     * objects therefore don't have the counter rate properties, e.g. bytesFromClientRate10s.
+     * @param object the QmfAgentData to populate.
+     * @return the populated QmfAgentData.
+     */
+    private QmfAgentData populate(final QmfAgentData object)
+    {
+        if (object instanceof StatisticsSource)
+        {
+            StatisticsSource source = (StatisticsSource)object;
+            long[] statistics = new long[source.getStatisticsCount()];
+            source.sampleStatistics(statistics);
+            source.setStatistics(statistics);
+        }
+        return object;
+    }
+}
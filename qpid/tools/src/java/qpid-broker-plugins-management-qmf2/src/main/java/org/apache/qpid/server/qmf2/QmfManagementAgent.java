@@ -25,8 +25,24 @@ package org.apache.qpid.server.qmf2;
 
 import static org.apache.qpid.qmf2.common.WorkItem.WorkItemType.METHOD_CALL;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.Timer;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -36,6 +52,7 @@ import org.apache.qpid.qmf2.agent.MethodCallParams;
 import org.apache.qpid.qmf2.agent.MethodCallWorkItem;
 import org.apache.qpid.qmf2.agent.QmfAgentData;
 import org.apache.qpid.qmf2.common.ObjectId;
+import org.apache.qpid.qmf2.common.QmfEvent;
 import org.apache.qpid.qmf2.common.QmfEventListener;
 import org.apache.qpid.qmf2.common.QmfException;
 import org.apache.qpid.qmf2.common.WorkItem;
@@ -81,13 +98,121 @@ public class QmfManagementAgent implements ConfigurationChangeListener, QmfEvent
     // Set heartbeat interval to 10 seconds. TODO Should probably be config driven, but I *think* that this is
     // different than "heartbeat.delay" and "heartbeat.timeoutFactor" currently present in the config?
     private static final int HEARTBEAT_INTERVAL = 10;
+
+    // The maximum number of configuration changes processed, and thus events raised, as a single batch.
+    private static final int MAX_CHANGE_BATCH = 1000;
+
     private Agent _agent = null;
 
+    /**
+     * A record of a ConfiguredObject being added to or removed from its parent, queued by the
+     * ConfigurationChangeListener methods for processing by the ChangeProcessor thread.
+     */
+    private static final class ConfigurationChange
+    {
+        private final boolean _added;
+        private final ConfiguredObject _parent;
+        private final ConfiguredObject _child;
+
+        public ConfigurationChange(final boolean added, final ConfiguredObject parent, final ConfiguredObject child)
+        {
+            _added = added;
+            _parent = parent;
+            _child = child;
+        }
+    }
+
+    /**
+     * This Runnable processes the queued ConfigurationChanges in batches, creating or destroying the QmfAgentData
+     * for each change then adding, destroying and raising the Events collected from the whole batch together. This
+     * keeps QMF2 object creation and JMS I/O off the broker's configuration change threads, and means that a storm
+     * of Connections results in one data indication per Subscription per batch rather than one per Connection.
+     */
+    private final class ChangeProcessor implements Runnable
+    {
+        public void run()
+        {
+            List<ConfigurationChange> changes = new ArrayList<ConfigurationChange>();
+            List<QmfEvent> events = new ArrayList<QmfEvent>();
+            try
+            {
+                while (true)
+                {
+                    changes.add(_changes.take());
+                    _changes.drainTo(changes, MAX_CHANGE_BATCH - 1);
+                    for (ConfigurationChange change : changes)
+                    {
+                        try
+                        {
+                            if (change._added)
+                            {
+                                processChildAdded(change._parent, change._child, events);
+                            }
+                            else
+                            {
+                                processChildRemoved(change._parent, change._child, events);
+                            }
+                        }
+                        catch (Exception e) // Make sure one bad change doesn't stop the remainder being processed.
+                        {
+                            _log.error("Exception caught in QmfManagementAgent processing configuration change", e);
+                        }
+                    }
+
+                    flushObjects();
+                    if (events.size() > 0)
+                    {
+                        _agent.raiseEvents(events);
+                    }
+                    changes.clear();
+                    events.clear();
+                }
+            }
+            catch (InterruptedException ie)
+            {
+                _log.debug("QmfManagementAgent ChangeProcessor interrupted, exiting");
+            }
+        }
+    }
+
+    // Configuration changes queued by the ConfigurationChangeListener methods and the thread that processes them.
+    private final BlockingQueue<ConfigurationChange> _changes = new LinkedBlockingQueue<ConfigurationChange>();
+    private Thread _changeProcessor = null;
+
+    // The QmfAgentData created and removed by the current ChangeProcessor batch, keyed by the Agent that they belong
+    // to, and the set of created QmfAgentData not yet added. These are only accessed by the ChangeProcessor thread.
+    private final Map<Agent, List<QmfAgentData>> _pendingAdds = new LinkedHashMap<Agent, List<QmfAgentData>>();
+    private final Map<Agent, List<QmfAgentData>> _pendingDestroys = new LinkedHashMap<Agent, List<QmfAgentData>>();
+    private final Set<QmfAgentData> _pendingData =
+        Collections.newSetFromMap(new IdentityHashMap<QmfAgentData, Boolean>());
+
+    // When lazyObjects is configured this supplies the connection, session, subscription and binding Management
+    // Objects on demand from the broker model, otherwise it is null and they are mirrored in _objects.
+    private ModelBackedObjects _models = null;
+
+    // When lazyObjects is configured this records the Bindings that bind Events have been raised for, as the
+    // Binding child is added to both its Queue and its Exchange. Only accessed by the ChangeProcessor thread.
+    private final Set<ConfiguredObject> _announcedBindings = new HashSet<ConfiguredObject>();
+
+    // When agentPerVirtualHost is configured this holds the per Virtual Host Agent partitions that the Management
+    // Objects are added to, otherwise it is null and they are all added to _agent.
+    private VirtualHostPartitions _partitions = null;
+
+    // The AMQP Connection shared by the Agent partitions, including those of Virtual Hosts added after startup.
+    private javax.jms.Connection _partitionConnection = null;
+
+    // The Timer used to run the StatisticsSampler and the StatisticsSampler itself.
+    private Timer _timer = null;
+    private StatisticsSampler _sampler = null;
+
     // The first Connection Object relates to the QmfManagementAgent, we use this flag to avoid mapping that Connection
     // to a QMF Object thus hiding it from Consoles. This is done to provide consistency with the C++ Broker which
     // also "hides" its own private AMQP Connections, Queues & Bindings.
     private boolean agentConnection = true;
 
+    // The Connection found to be the QmfManagementAgent's own when the startup snapshot is built.
+    private Connection<?> _ownConnection = null;
+
     private final Broker<?> _broker;          // Passed in by Plugin bootstrapping.
     private final String _defaultVirtualHost; // Pulled from the broker attributes.
 
@@ -111,17 +236,34 @@ public class QmfManagementAgent implements ConfigurationChangeListener, QmfEvent
      */
     private Map<ConfiguredObject, QmfAgentData> _objects = new ConcurrentHashMap<ConfiguredObject, QmfAgentData>(100);
 
+    // The ConfiguredObjects that we've registered for changes to. A child added while the snapshot is being built
+    // is seen by both childAdded() and a SnapshotTask, and a Binding is added to both its Queue and its Exchange,
+    // so this is used to make sure that we register once, as registering twice would deliver every change twice.
+    private final Set<ConfiguredObject> _listening =
+        Collections.newSetFromMap(new ConcurrentHashMap<ConfiguredObject, Boolean>(100));
+
     /**
      * Constructor. Creates the AMQP Connection to the Broker and starts the QMF2 Agent.
      * @param url the Connection URL to be used to construct the AMQP Connection.
      * @param broker the root Broker Management Object from which the other Management Objects may be obtained.
+     * @param statisticsSampleInterval the interval in seconds between samples of the Management Object statistics.
+     * @param lazyObjects if true the connection, session, subscription and binding Management Objects are supplied
+     *        on demand from the broker model rather than being mirrored, see ModelBackedObjects.
+     * @param agentPerVirtualHost if true the Management Objects of each Virtual Host are held by a separate Agent
+     *        partition, with this Agent acting as a facade over them, see VirtualHostPartitions.
+     * @param queryCacheTTL the time in milliseconds for which object query responses are cached, see
+     *        Agent.setQueryCacheTTL().
+     * @param compressionThreshold the size in bytes from which responses are compressed for Consoles that accept
+     *        compression, see Agent.setCompressionThreshold().
      * to work without explicitly setting a Virtual Host, which I think is necessary because the C++ Broker and
      * the python command line tools aren't currently Virtual Host aware (are they?). The intention is to mark
      * queues and exchanges with {@literal [vhost:<vhost-name>/]<object-name>} in other words if we want to add things to
      * the non-default Virtual Host prefix their names with {@literal [vhost:<vhost-name>/]}. This approach *ought* to allow
      * non-Virtual Host aware command line tools the ability to add queues/exchanges to a particular vhost.
      */
-    public QmfManagementAgent(final String url, final Broker broker)
+    public QmfManagementAgent(final String url, final Broker broker, final int statisticsSampleInterval,
+                              final boolean lazyObjects, final boolean agentPerVirtualHost,
+                              final int queryCacheTTL, final int compressionThreshold)
     {
         _broker = broker;
         _defaultVirtualHost = broker.getDefaultVirtualHost();
@@ -141,35 +283,38 @@ public class QmfManagementAgent implements ConfigurationChangeListener, QmfEvent
                 // Vendor and Product are deliberately set to be the same as for the C++ broker.
                 _agent.setVendor("apache.org");
                 _agent.setProduct("qpidd");
+                _agent.setQueryCacheTTL(queryCacheTTL);
+                _agent.setCompressionThreshold(compressionThreshold);
                 _agent.setConnection(connection);
 
-                // Register the schema for the Management Objects. These don't have to be completely populated
-                // the minimum is to register package name and class name for the QmfAgentData.
-                _agent.registerObjectClass(org.apache.qpid.server.qmf2.agentdata.Broker.getSchema());
-                _agent.registerObjectClass(org.apache.qpid.server.qmf2.agentdata.Connection.getSchema());
-                _agent.registerEventClass(org.apache.qpid.server.qmf2.agentdata.Connection.getClientConnectSchema());
-                _agent.registerEventClass(org.apache.qpid.server.qmf2.agentdata.Connection.getClientDisconnectSchema());
+                registerSchema(_agent);
 
-                _agent.registerObjectClass(org.apache.qpid.server.qmf2.agentdata.Exchange.getSchema());
-                _agent.registerEventClass(org.apache.qpid.server.qmf2.agentdata.Exchange.getExchangeDeclareSchema());
-                _agent.registerEventClass(org.apache.qpid.server.qmf2.agentdata.Exchange.getExchangeDeleteSchema());
+                if (lazyObjects)
+                {
+                    _models = new ModelBackedObjects(_broker, _objects);
+                    _models.register(_agent);
+                }
 
-                _agent.registerObjectClass(org.apache.qpid.server.qmf2.agentdata.Queue.getSchema());
-                _agent.registerEventClass(org.apache.qpid.server.qmf2.agentdata.Queue.getQueueDeclareSchema());
-                _agent.registerEventClass(org.apache.qpid.server.qmf2.agentdata.Queue.getQueueDeleteSchema());
+                if (agentPerVirtualHost)
+                {
+                    createPartitions(connection);
+                }
 
-                _agent.registerObjectClass(org.apache.qpid.server.qmf2.agentdata.Binding.getSchema());
-                _agent.registerEventClass(org.apache.qpid.server.qmf2.agentdata.Binding.getBindSchema());
-                _agent.registerEventClass(org.apache.qpid.server.qmf2.agentdata.Binding.getUnbindSchema());
+                // The StatisticsSampler needs to exist before the QmfAgentData Objects are created as they
+                // are sampled once on creation.
+                int interval = Math.max(statisticsSampleInterval, 1);
+                _sampler = new StatisticsSampler(_objects.values(), interval);
 
-                _agent.registerObjectClass(org.apache.qpid.server.qmf2.agentdata.Subscription.getSchema());
-                _agent.registerEventClass(org.apache.qpid.server.qmf2.agentdata.Subscription.getSubscribeSchema());
-                _agent.registerEventClass(org.apache.qpid.server.qmf2.agentdata.Subscription.getUnsubscribeSchema());
+                // Initialise QmfAgentData Objects and track changes to the broker Management Objects. Changes
+                // are queued while the snapshot is built and processed once the ChangeProcessor is started.
+                registerConfigurationChangeListeners();
 
-                _agent.registerObjectClass(org.apache.qpid.server.qmf2.agentdata.Session.getSchema());
+                _changeProcessor = new Thread(new ChangeProcessor(), "QmfManagementAgent-ChangeProcessor");
+                _changeProcessor.setDaemon(true);
+                _changeProcessor.start();
 
-                // Initialise QmfAgentData Objects and track changes to the broker Management Objects.
-                registerConfigurationChangeListeners();
+                _timer = new Timer(true);
+                _timer.schedule(_sampler, interval*1000l, interval*1000l);
             }
         }
         catch (QmfException qmfe)
@@ -184,17 +329,145 @@ public class QmfManagementAgent implements ConfigurationChangeListener, QmfEvent
         }
     }
 
+    /**
+     * Register the schema for the Management Objects. These don't have to be completely populated the minimum is
+     * to register package name and class name for the QmfAgentData.
+     * @param agent the Agent to register the schema with.
+     */
+    private void registerSchema(final Agent agent)
+    {
+        agent.registerObjectClass(org.apache.qpid.server.qmf2.agentdata.Broker.getSchema());
+        agent.registerObjectClass(org.apache.qpid.server.qmf2.agentdata.Connection.getSchema());
+        agent.registerEventClass(org.apache.qpid.server.qmf2.agentdata.Connection.getClientConnectSchema());
+        agent.registerEventClass(org.apache.qpid.server.qmf2.agentdata.Connection.getClientDisconnectSchema());
+
+        agent.registerObjectClass(org.apache.qpid.server.qmf2.agentdata.Exchange.getSchema());
+        agent.registerEventClass(org.apache.qpid.server.qmf2.agentdata.Exchange.getExchangeDeclareSchema());
+        agent.registerEventClass(org.apache.qpid.server.qmf2.agentdata.Exchange.getExchangeDeleteSchema());
+
+        agent.registerObjectClass(org.apache.qpid.server.qmf2.agentdata.Queue.getSchema());
+        agent.registerEventClass(org.apache.qpid.server.qmf2.agentdata.Queue.getQueueDeclareSchema());
+        agent.registerEventClass(org.apache.qpid.server.qmf2.agentdata.Queue.getQueueDeleteSchema());
+
+        agent.registerObjectClass(org.apache.qpid.server.qmf2.agentdata.Binding.getSchema());
+        agent.registerEventClass(org.apache.qpid.server.qmf2.agentdata.Binding.getBindSchema());
+        agent.registerEventClass(org.apache.qpid.server.qmf2.agentdata.Binding.getUnbindSchema());
+
+        agent.registerObjectClass(org.apache.qpid.server.qmf2.agentdata.Subscription.getSchema());
+        agent.registerEventClass(org.apache.qpid.server.qmf2.agentdata.Subscription.getSubscribeSchema());
+        agent.registerEventClass(org.apache.qpid.server.qmf2.agentdata.Subscription.getUnsubscribeSchema());
+
+        agent.registerObjectClass(org.apache.qpid.server.qmf2.agentdata.Session.getSchema());
+
+        // Expose the Agent's own statistics so the cost of QMF2 management itself can be monitored.
+        agent.registerStatisticsClass();
+    }
+
     /**
      * Close the QmfManagementAgent clearing the QMF2 Agent and freeing its resources.
      */
     public void close()
     {
+        if (_partitions != null)
+        {
+            _partitions.destroy();
+        }
+
+        if (_changeProcessor != null)
+        {
+            _changeProcessor.interrupt();
+            _changeProcessor = null;
+        }
+
+        if (_timer != null)
+        {
+            _timer.cancel();
+            _timer = null;
+        }
+
         if (isConnected())
         {
             _agent.destroy();
         }
     }
 
+    /**
+     * Create an Agent partition for each Virtual Host and register ObjectProviders for the partitioned classes with
+     * the broker Agent. The partitions share the QmfManagementAgent's AMQP Connection, but each has its own Sessions
+     * and MessageProducer, and they are created before the snapshot so that their Queues are hidden like the broker
+     * Agent's own. Events are still raised by the broker Agent, as that's where Consoles expect to find them.
+     * Partitions for Virtual Hosts added or removed later are created and destroyed by the ChangeProcessor.
+     * @param connection the AMQP Connection used by the broker Agent.
+     */
+    private void createPartitions(final javax.jms.Connection connection) throws QmfException
+    {
+        _partitions = new VirtualHostPartitions();
+        _partitionConnection = connection;
+        for (VirtualHostNode<?> vhostNode : _broker.getVirtualHostNodes())
+        {
+            VirtualHost<?,?,?> vhost = vhostNode.getVirtualHost();
+            if (vhost != null)
+            {
+                createPartition(vhost);
+            }
+        }
+
+        _partitions.register(_agent, org.apache.qpid.server.qmf2.agentdata.Exchange.getSchema().getClassId());
+        _partitions.register(_agent, org.apache.qpid.server.qmf2.agentdata.Queue.getSchema().getClassId());
+        if (_models == null)
+        { // When lazyObjects is configured these classes are already supplied to the broker Agent on demand.
+            _partitions.register(_agent, org.apache.qpid.server.qmf2.agentdata.Connection.getSchema().getClassId());
+            _partitions.register(_agent, org.apache.qpid.server.qmf2.agentdata.Session.getSchema().getClassId());
+            _partitions.register(_agent, org.apache.qpid.server.qmf2.agentdata.Binding.getSchema().getClassId());
+            _partitions.register(_agent,
+                                 org.apache.qpid.server.qmf2.agentdata.Subscription.getSchema().getClassId());
+        }
+    }
+
+    /**
+     * Create the Agent partition for a Virtual Host.
+     * @param vhost the Virtual Host.
+     */
+    private void createPartition(final VirtualHost<?,?,?> vhost) throws QmfException
+    {
+        PartitionEventListener listener = new PartitionEventListener();
+        Agent partition = new Agent(listener, HEARTBEAT_INTERVAL);
+        listener._partition = partition;
+        partition.setVendor("apache.org");
+        partition.setProduct(VirtualHostPartitions.PRODUCT);
+        partition.setValue("vhost", vhost.getName());
+        partition.setQueryCacheTTL(_agent.getQueryCacheTTL());
+        partition.setCompressionThreshold(_agent.getCompressionThreshold());
+        registerSchema(partition);
+        partition.setConnection(_partitionConnection);
+        _partitions.addPartition(vhost, partition);
+    }
+
+    /**
+     * Return the Agent that the QmfAgentData of the children of a ConfiguredObject should be added to.
+     * @param object the parent ConfiguredObject.
+     * @return the partition Agent of the parent's Virtual Host if agentPerVirtualHost is configured, else the Agent.
+     */
+    private Agent getAgent(final ConfiguredObject object)
+    {
+        Agent partition = (_partitions == null) ? null : _partitions.getPartition(object);
+        return (partition == null) ? _agent : partition;
+    }
+
+    /**
+     * Record that a child ConfiguredObject's QmfAgentData is held in the same Agent partition as its parent, this
+     * is a no-op unless agentPerVirtualHost is configured.
+     * @param child the child ConfiguredObject.
+     * @param parent the parent ConfiguredObject.
+     */
+    private void setOwner(final ConfiguredObject child, final ConfiguredObject parent)
+    {
+        if (_partitions != null)
+        {
+            _partitions.setOwner(child, parent);
+        }
+    }
+
     /**
      * Returns whether the Agent is connected and running.
      * @return true if the Agent is connected and running otherwise return false.
@@ -205,26 +478,41 @@ public class QmfManagementAgent implements ConfigurationChangeListener, QmfEvent
     }
 
     /**
-     * This method initialises the initial set of QmfAgentData Objects and tracks changes to the Broker Management 
-     * Objects via the childAdded() method call.
+     * This method builds the initial set of QmfAgentData Objects from a snapshot of the Broker Management Objects
+     * and registers for changes to them, which are subsequently tracked via the childAdded() and childRemoved()
+     * method calls.
+     * <p>
+     * The snapshot is built in parallel by a SnapshotTask per Virtual Host and object type. This is done in three
+     * phases because Sessions reference Connections, Bindings reference Exchanges and Queues and Subscriptions
+     * reference Sessions and Queues, so the referenced QmfAgentData need to have been added to the Agent, and thus
+     * have their ObjectIds, first. Each phase's QmfAgentData are added to the Agent in bulk and no Events are raised
+     * for them as they represent objects that existed before the QmfManagementAgent started. The ChangeProcessor
+     * isn't started until the snapshot is complete, so any changes queued while it's being built are then applied
+     * on top of it.
      */
     private void registerConfigurationChangeListeners()
     {
-        childAdded(null, _broker);
+        long startTime = System.nanoTime();
 
         if (_log.isDebugEnabled())
         {
             _log.debug("Registering model listeners for broker " + _broker);
         }
 
+        listenTo(_broker);
+        int count = addSnapshot(_agent, Collections.<QmfAgentData>singletonList(
+                new org.apache.qpid.server.qmf2.agentdata.Broker(_broker)));
+
+        List<VirtualHost<?,?,?>> vhosts = new ArrayList<VirtualHost<?,?,?>>();
         for (VirtualHostNode<?> vhostNode : _broker.getVirtualHostNodes())
         {
-
             if (_log.isDebugEnabled())
             {
                 _log.debug("Considering virtualhostnode " + vhostNode);
             }
 
+            // Listen to the node so that we see Virtual Hosts being added to or removed from it.
+            listenTo(vhostNode);
             VirtualHost<?,?,?> vhost = vhostNode.getVirtualHost();
 
             // We don't add QmfAgentData VirtualHost objects. Possibly TODO, but it's a bit awkward at the moment
@@ -234,103 +522,420 @@ public class QmfManagementAgent implements ConfigurationChangeListener, QmfEvent
 
             if (vhost != null)
             {
-                vhost.addChangeListener(this);
+                listenTo(vhost);
+                vhosts.add(vhost);
+            }
+        }
 
-                addListenersForConnectionsAndChildren(vhost);
-                addListenersForExchangesAndChildren(vhost);
-                addListenersForQueuesAndChildren(vhost);
+        // The first Connection relates to the QmfManagementAgent, this needs to be found before the snapshot is
+        // built in parallel as the Connections of each Virtual Host are snapshotted independently.
+        for (VirtualHost<?,?,?> vhost : vhosts)
+        {
+            for (Connection<?> connection : vhost.getConnections())
+            {
+                _ownConnection = connection;
+                break;
+            }
+
+            if (_ownConnection != null)
+            {
+                agentConnection = false;
+                if (_models != null)
+                {
+                    _models.setAgentConnection(_ownConnection);
+                }
+                break;
             }
         }
 
+        int threads = Math.max(Math.min(Runtime.getRuntime().availableProcessors(), vhosts.size()*3), 1);
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try
+        {
+            List<SnapshotTask> tasks = new ArrayList<SnapshotTask>();
+            for (VirtualHost<?,?,?> vhost : vhosts)
+            {
+                tasks.add(new SnapshotTask(vhost, SnapshotType.CONNECTIONS));
+                tasks.add(new SnapshotTask(vhost, SnapshotType.EXCHANGES));
+                tasks.add(new SnapshotTask(vhost, SnapshotType.QUEUES));
+            }
+            count += invokeSnapshotTasks(executor, tasks);
+
+            tasks.clear();
+            for (VirtualHost<?,?,?> vhost : vhosts)
+            {
+                tasks.add(new SnapshotTask(vhost, SnapshotType.SESSIONS));
+                tasks.add(new SnapshotTask(vhost, SnapshotType.BINDINGS));
+            }
+            count += invokeSnapshotTasks(executor, tasks);
 
-        if (_log.isDebugEnabled())
+            tasks.clear();
+            for (VirtualHost<?,?,?> vhost : vhosts)
+            {
+                tasks.add(new SnapshotTask(vhost, SnapshotType.SUBSCRIPTIONS));
+            }
+            count += invokeSnapshotTasks(executor, tasks);
+        }
+        finally
         {
-            _log.debug("Registered model listeners");
+            executor.shutdown();
         }
 
+        _log.info("QmfManagementAgent snapshot of " + count + " Management Objects in " + vhosts.size() +
+                  " Virtual Hosts took " + ((System.nanoTime() - startTime)/1000000l) + " ms");
     }
 
-    private void addListenersForQueuesAndChildren(final VirtualHost<?, ?, ?> vhost)
+    /**
+     * Run a phase of SnapshotTasks to completion, adding the QmfAgentData created by each to the Agent (or Agent
+     * partition) for its Virtual Host.
+     * @param executor the ExecutorService used to run the SnapshotTasks.
+     * @param tasks the SnapshotTasks to run.
+     * @return the number of QmfAgentData created by all of the SnapshotTasks.
+     */
+    private int invokeSnapshotTasks(final ExecutorService executor, final List<SnapshotTask> tasks)
     {
-        for (Queue<?> queue : vhost.getQueues())
+        int count = 0;
+        try
         {
-            boolean agentQueue = false;
-            for (Binding binding : queue.getBindings())
+            List<Future<List<QmfAgentData>>> futures = executor.invokeAll(tasks);
+            for (int i = 0; i < futures.size(); i++)
             {
-                String key = binding.getName();
-                if (key.equals("broker") || key.equals("console.request.agent_locate") ||
-                    key.startsWith("apache.org:qpidd:"))
+                try
+                {
+                    count += addSnapshot(getAgent(tasks.get(i)._vhost), futures.get(i).get());
+                }
+                catch (ExecutionException ee)
                 {
-                    agentQueue = true;
-                    break;
+                    _log.error("Exception caught in QmfManagementAgent building snapshot", ee.getCause());
                 }
             }
+        }
+        catch (InterruptedException ie)
+        {
+            Thread.currentThread().interrupt();
+        }
+        return count;
+    }
+
+    /**
+     * Add part of the snapshot to an Agent in bulk.
+     * @param agent the Agent to add the QmfAgentData to.
+     * @param snapshot the QmfAgentData to add.
+     * @return the number of QmfAgentData in the snapshot.
+     */
+    private int addSnapshot(final Agent agent, final List<QmfAgentData> snapshot)
+    {
+        try
+        {
+            agent.addObjects(snapshot);
+        }
+        catch (QmfException qmfe)
+        {
+            _log.error("QmfException caught in QmfManagementAgent.addObjects()", qmfe);
+        }
+        return snapshot.size();
+    }
+
+    /**
+     * The types of object snapshotted by a SnapshotTask.
+     */
+    private static enum SnapshotType
+    {
+        CONNECTIONS, SESSIONS, EXCHANGES, QUEUES, BINDINGS, SUBSCRIPTIONS
+    }
+
+    /**
+     * This Callable snapshots one type of Broker Management Object in one Virtual Host, registering for changes
+     * to each object and returning the QmfAgentData created for them, with their statistics sampled, ready to be
+     * added to the Agent. Each object (including Bindings and Consumers, which have two parents) is only visited
+     * by a single SnapshotTask, so they don't need any coordination other than via the concurrent _objects Map.
+     */
+    private final class SnapshotTask implements Callable<List<QmfAgentData>>
+    {
+        private final VirtualHost<?,?,?> _vhost;
+        private final SnapshotType _type;
+
+        public SnapshotTask(final VirtualHost<?,?,?> vhost, final SnapshotType type)
+        {
+            _vhost = vhost;
+            _type = type;
+        }
+
+        public List<QmfAgentData> call()
+        {
+            List<QmfAgentData> snapshot = new ArrayList<QmfAgentData>();
+            switch (_type)
+            {
+                case CONNECTIONS:   snapshotConnections(_vhost, snapshot);
+                                    break;
+                case SESSIONS:      snapshotSessions(_vhost, snapshot);
+                                    break;
+                case EXCHANGES:     snapshotExchanges(_vhost, snapshot);
+                                    break;
+                case QUEUES:        snapshotQueues(_vhost, snapshot);
+                                    break;
+                case BINDINGS:      snapshotBindings(_vhost, snapshot);
+                                    break;
+                case SUBSCRIPTIONS: snapshotSubscriptions(_vhost, snapshot);
+                                    break;
+            }
 
-            // Don't add QMF related bindings or Queues in registerConfigurationChangeListeners as those will
-            // relate to the Agent itself and we want to "hide" those to be consistent with the C++ Broker.
-            if (!agentQueue)
+            for (QmfAgentData data : snapshot)
             {
-                childAdded(vhost, queue);
+                _sampler.sample(data);
+            }
+            return snapshot;
+        }
+    }
 
-                for (Binding binding : queue.getBindings())
+    /**
+     * Returns the VirtualHost that should be passed to the QmfAgentData of objects in a Virtual Host.
+     * @param vhost the VirtualHost of the object.
+     * @return null if vhost is the default Virtual Host so that the QmfAgentData ignores it, otherwise vhost.
+     */
+    private VirtualHost<?,?,?> qmfVirtualHost(final VirtualHost<?,?,?> vhost)
+    {
+        return vhost.getName().equals(_defaultVirtualHost) ? null : vhost;
+    }
+
+    /**
+     * Returns whether a Queue relates to the QmfManagementAgent itself, which we want to "hide" to be consistent
+     * with the C++ Broker.
+     * @param queue the Queue to check.
+     * @return true if the Queue has a QMF related Binding.
+     */
+    private boolean isAgentQueue(final Queue<?> queue)
+    {
+        for (Binding binding : queue.getBindings())
+        {
+            String key = binding.getName();
+            if (key.equals("broker") || key.equals("console.request.agent_locate") ||
+                key.startsWith("apache.org:qpidd:") ||
+                key.startsWith("apache.org:" + VirtualHostPartitions.PRODUCT + ":"))
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void snapshotConnections(final VirtualHost<?,?,?> vhost, final List<QmfAgentData> snapshot)
+    {
+        for (Connection<?> connection : vhost.getConnections())
+        {
+            listenTo(connection);
+            if (_models != null)
+            {
+                _models.add(vhost, connection);
+            }
+            else if (connection != _ownConnection)
+            {
+                QmfAgentData data =
+                    new org.apache.qpid.server.qmf2.agentdata.Connection(qmfVirtualHost(vhost), connection);
+                _objects.put(connection, data);
+                setOwner(connection, vhost);
+                snapshot.add(data);
+            }
+        }
+    }
+
+    private void snapshotSessions(final VirtualHost<?,?,?> vhost, final List<QmfAgentData> snapshot)
+    {
+        for (Connection<?> connection : vhost.getConnections())
+        {
+            QmfAgentData ref = _objects.get(connection); // Get the Connection QmfAgentData so we can get connectionRef.
+            for (Session<?> session : connection.getSessions())
+            {
+                listenTo(session);
+                if (_models != null)
                 {
-                    childAdded(queue, binding);
+                    _models.add(connection, session);
                 }
-
-                for (Consumer subscription : queue.getChildren(Consumer.class))
+                else if (ref != null)
                 {
-                    childAdded(queue, subscription);
+                    QmfAgentData data = new org.apache.qpid.server.qmf2.agentdata.Session(session, ref.getObjectId());
+                    _objects.put(session, data);
+                    setOwner(session, connection);
+                    snapshot.add(data);
                 }
             }
         }
     }
 
-    private void addListenersForExchangesAndChildren(final VirtualHost<?, ?, ?> vhost)
+    private void snapshotExchanges(final VirtualHost<?,?,?> vhost, final List<QmfAgentData> snapshot)
     {
-        // The code blocks for adding Bindings (and adding Queues) contain checks to see if what is being added
-        // relates to Queues or Bindings for the QmfManagementAgent. If they are QmfManagementAgent related
-        // we avoid registering the Object as a QMF Object, in other words we "hide" QmfManagementAgent QMF Objects.
-        // This is done to be consistent with the C++ broker which also "hides" its own Connection, Queue & Binding.
         for (Exchange<?> exchange : vhost.getExchanges())
         {
-            childAdded(vhost, exchange);
+            listenTo(exchange);
+            QmfAgentData data = new org.apache.qpid.server.qmf2.agentdata.Exchange(qmfVirtualHost(vhost), exchange);
+            _objects.put(exchange, data);
+            setOwner(exchange, vhost);
+            snapshot.add(data);
+        }
+    }
+
+    private void snapshotQueues(final VirtualHost<?,?,?> vhost, final List<QmfAgentData> snapshot)
+    {
+        for (Queue<?> queue : vhost.getQueues())
+        {
+            // Don't add QMF related Queues as those relate to the Agent itself.
+            if (!isAgentQueue(queue))
+            {
+                listenTo(queue);
+                QmfAgentData data = new org.apache.qpid.server.qmf2.agentdata.Queue(qmfVirtualHost(vhost), queue);
+                _objects.put(queue, data);
+                setOwner(queue, vhost);
+                snapshot.add(data);
+            }
+        }
+    }
 
+    private void snapshotBindings(final VirtualHost<?,?,?> vhost, final List<QmfAgentData> snapshot)
+    {
+        Set<Binding> visited = new HashSet<Binding>();
+        for (Exchange<?> exchange : vhost.getExchanges())
+        {
+            QmfAgentData ref = _objects.get(exchange);
             for (Binding binding : exchange.getBindings())
             {
                 String key = binding.getName();
                 if (key.equals("broker") || key.equals("console.request.agent_locate") ||
-                    key.startsWith("apache.org:qpidd:") || key.startsWith("TempQueue"))
-                { // Don't add QMF related Bindings in registerConfigurationChangeListeners as those will relate
-                } // to the Agent and we want to "hide" those.
-                else
+                    key.startsWith("apache.org:qpidd:") || key.startsWith("TempQueue") ||
+                    key.startsWith("apache.org:" + VirtualHostPartitions.PRODUCT + ":"))
+                { // Don't add QMF related Bindings as those relate to the Agent and we want to "hide" those.
+                    continue;
+                }
+
+                org.apache.qpid.server.qmf2.agentdata.Binding data = snapshotBinding(binding, visited, snapshot);
+                if (data != null && ref != null)
                 {
-                    childAdded(exchange, binding);
+                    data.setExchangeRef(ref.getObjectId());
+                }
+            }
+        }
+
+        for (Queue<?> queue : vhost.getQueues())
+        {
+            QmfAgentData ref = _objects.get(queue);
+            if (ref != null) // Queues with no QmfAgentData are QMF related Queues, so hide their Bindings too.
+            {
+                for (Binding binding : queue.getBindings())
+                {
+                    org.apache.qpid.server.qmf2.agentdata.Binding data = snapshotBinding(binding, visited, snapshot);
+                    if (data != null)
+                    {
+                        data.setQueueRef(ref.getObjectId());
+                    }
                 }
             }
         }
     }
 
-    private void addListenersForConnectionsAndChildren(final VirtualHost<?, ?, ?> vhost)
+    /**
+     * Register for changes to a Binding the first time it's visited and create or retrieve its QmfAgentData.
+     * @param binding the Binding being snapshotted.
+     * @param visited the Bindings already visited by the calling SnapshotTask.
+     * @param snapshot the List that newly created QmfAgentData are added to.
+     * @return the QmfAgentData for the Binding, or null if lazyObjects is configured.
+     */
+    private org.apache.qpid.server.qmf2.agentdata.Binding snapshotBinding(final Binding binding,
+                                                                          final Set<Binding> visited,
+                                                                          final List<QmfAgentData> snapshot)
     {
-        for (Connection<?> connection : vhost.getConnections())
+        if (visited.add(binding))
         {
-            childAdded(vhost, connection);
+            listenTo(binding);
+            if (_models != null)
+            {
+                _models.add(binding.getQueue(), binding);
+                synchronized (_announcedBindings)
+                {
+                    _announcedBindings.add(binding);
+                }
+            }
+            else
+            {
+                QmfAgentData data = new org.apache.qpid.server.qmf2.agentdata.Binding(binding);
+                _objects.put(binding, data);
+                snapshot.add(data);
+            }
+        }
+        return (org.apache.qpid.server.qmf2.agentdata.Binding)_objects.get(binding);
+    }
 
+    private void snapshotSubscriptions(final VirtualHost<?,?,?> vhost, final List<QmfAgentData> snapshot)
+    {
+        Set<Consumer> visited = new HashSet<Consumer>();
+        for (Connection<?> connection : vhost.getConnections())
+        {
             for (Session<?> session : connection.getSessions())
             {
-                childAdded(connection, session);
-
+                QmfAgentData ref = _objects.get(session);
                 if (session.getConsumers() != null)
                 {
-                    for (Consumer subscription : session.getConsumers())
+                    for (Consumer consumer : session.getConsumers())
+                    {
+                        if (_models != null)
+                        {
+                            _models.add(session, consumer);
+                        }
+                        org.apache.qpid.server.qmf2.agentdata.Subscription data =
+                            snapshotSubscription(consumer, visited, snapshot);
+                        if (data != null && ref != null)
+                        {
+                            data.setSessionRef(ref.getObjectId());
+                        }
+                    }
+                }
+            }
+        }
+
+        for (Queue<?> queue : vhost.getQueues())
+        {
+            QmfAgentData ref = _objects.get(queue);
+            if (ref != null) // Queues with no QmfAgentData are QMF related Queues, so hide their Consumers too.
+            {
+                for (Consumer consumer : queue.getChildren(Consumer.class))
+                {
+                    if (_models != null)
                     {
-                        childAdded(session, subscription);
+                        _models.add(queue, consumer);
+                    }
+                    org.apache.qpid.server.qmf2.agentdata.Subscription data =
+                        snapshotSubscription(consumer, visited, snapshot);
+                    if (data != null)
+                    {
+                        data.setQueueRef(ref.getObjectId(), queue);
                     }
                 }
             }
         }
     }
 
+    /**
+     * Register for changes to a Consumer the first time it's visited and create or retrieve its QmfAgentData.
+     * @param consumer the Consumer being snapshotted.
+     * @param visited the Consumers already visited by the calling SnapshotTask.
+     * @param snapshot the List that newly created QmfAgentData are added to.
+     * @return the QmfAgentData for the Consumer, or null if lazyObjects is configured.
+     */
+    private org.apache.qpid.server.qmf2.agentdata.Subscription snapshotSubscription(final Consumer consumer,
+                                                                                    final Set<Consumer> visited,
+                                                                                    final List<QmfAgentData> snapshot)
+    {
+        if (visited.add(consumer))
+        {
+            listenTo(consumer);
+            if (_models == null)
+            {
+                QmfAgentData data = new org.apache.qpid.server.qmf2.agentdata.Subscription(consumer);
+                _objects.put(consumer, data);
+                snapshot.add(data);
+            }
+        }
+        return (org.apache.qpid.server.qmf2.agentdata.Subscription)_objects.get(consumer);
+    }
+
 
     // ************************* ConfigurationChangeListener implementation methods *************************
 
@@ -360,21 +965,61 @@ public class QmfManagementAgent implements ConfigurationChangeListener, QmfEvent
         // no-op
     }
 
+    /**
+     * Register for changes to a ConfiguredObject unless we've already done so.
+     * @param object the ConfiguredObject to register for changes to.
+     */
+    private void listenTo(final ConfiguredObject object)
+    {
+        if (_listening.add(object))
+        {
+            object.addChangeListener(this);
+        }
+    }
+
+    /**
+     * Deregister for changes to a ConfiguredObject registered via listenTo().
+     * @param object the ConfiguredObject to deregister for changes to.
+     */
+    private void stopListening(final ConfiguredObject object)
+    {
+        if (_listening.remove(object))
+        {
+            object.removeChangeListener(this);
+        }
+    }
+
     /**
      * ConfigurationChangeListener method called when a child ConfiguredObject is added.
      * <p>
+     * This method registers for changes to the child then queues the change for the ChangeProcessor thread, so
+     * the broker's configuration change thread isn't held up by QMF2 object creation or by raising Events.
+     * @param object the parent object that the child is being added to.
+     * @param child the child object being added.
+     */
+    @Override
+    public void childAdded(final ConfiguredObject object, final ConfiguredObject child)
+    {
+        listenTo(child);
+        _changes.add(new ConfigurationChange(true, object, child));
+    }
+
+    /**
+     * Process a child ConfiguredObject having been added, called by the ChangeProcessor thread.
+     * <p>
      * This method checks the type of the child ConfiguredObject that has been added and creates the equivalent
      * QMF2 Management Object if one doesn't already exist. In most cases it's a one-to-one mapping, but for
      * Binding for example the Binding child is added to both Queue and Exchange so we only create the Binding
      * QMF2 Management Object once and add the queueRef and exchangeRef reference properties referencing the Queue
      * and Exchange parent Objects respectively, Similarly for Consumer (AKA Subscription).
      * <p>
-     * This method is also responsible for raising the appropriate QMF2 Events when Management Objects are created.
+     * This method is also responsible for creating the appropriate QMF2 Events when Management Objects are created.
      * @param object the parent object that the child is being added to.
      * @param child the child object being added.
+     * @param events the List of QMF2 Events that any Events should be added to for raising later.
      */
-    @Override
-    public void childAdded(final ConfiguredObject object, final ConfiguredObject child)
+    private void processChildAdded(final ConfiguredObject object, final ConfiguredObject child,
+                                   final List<QmfEvent> events)
     {
 
         if (_log.isDebugEnabled())
@@ -382,15 +1027,33 @@ public class QmfManagementAgent implements ConfigurationChangeListener, QmfEvent
             _log.debug("childAdded: " + child.getClass().getSimpleName() + "." + child.getName());
         }
 
+        if (_models != null && isModelBacked(child))
+        {
+            processModelBackedChildAdded(object, child, events);
+            return;
+        }
+
         QmfAgentData data = null;
 
-        // We current don't listen for new virtualhostnodes or new virtualhosts, so any new instances
-        // of these objects wont be seen through QMF until the Broker is restarted.
+        // New virtualhostnodes are registered for changes by childAdded(), so we see their virtualhosts being added.
 
         if (child instanceof Broker)
         {
             data = new org.apache.qpid.server.qmf2.agentdata.Broker((Broker)child);
         }
+        else if (child instanceof VirtualHostNode)
+        {
+            VirtualHost<?,?,?> vhost = ((VirtualHostNode<?>)child).getVirtualHost();
+            if (vhost != null)
+            { // The Virtual Host was added before we registered for changes to its node.
+                listenTo(vhost);
+                processVirtualHostAdded(vhost, events);
+            }
+        }
+        else if (child instanceof VirtualHost)
+        {
+            processVirtualHostAdded((VirtualHost<?,?,?>)child, events);
+        }
         else if (child instanceof Connection)
         {
             if (!agentConnection && !_objects.containsKey(child))
@@ -401,7 +1064,7 @@ public class QmfManagementAgent implements ConfigurationChangeListener, QmfEvent
                 _objects.put(child, data);
 
                 // Raise a Client Connect Event.
-                _agent.raiseEvent(((org.apache.qpid.server.qmf2.agentdata.Connection)data).createClientConnectEvent());
+                events.add(((org.apache.qpid.server.qmf2.agentdata.Connection)data).createClientConnectEvent());
             }
             agentConnection = false; // Only ignore the first Connection, which is the one from the Agent. 
         }
@@ -427,7 +1090,7 @@ public class QmfManagementAgent implements ConfigurationChangeListener, QmfEvent
                 _objects.put(child, data);
 
                 // Raise an Exchange Declare Event.
-                _agent.raiseEvent(((org.apache.qpid.server.qmf2.agentdata.Exchange)data).createExchangeDeclareEvent());
+                events.add(((org.apache.qpid.server.qmf2.agentdata.Exchange)data).createExchangeDeclareEvent());
 
             }
         }
@@ -441,7 +1104,7 @@ public class QmfManagementAgent implements ConfigurationChangeListener, QmfEvent
                 _objects.put(child, data);
 
                 // Raise a Queue Declare Event.
-                _agent.raiseEvent(((org.apache.qpid.server.qmf2.agentdata.Queue)data).createQueueDeclareEvent());
+                events.add(((org.apache.qpid.server.qmf2.agentdata.Queue)data).createQueueDeclareEvent());
             }
         }
         else if (child instanceof Binding)
@@ -459,7 +1122,7 @@ public class QmfManagementAgent implements ConfigurationChangeListener, QmfEvent
                 if (!eName.equals("<<default>>")) // Don't send Event for Binding to default direct.
                 {
                     // Raise a Bind Event.
-                    _agent.raiseEvent(((org.apache.qpid.server.qmf2.agentdata.Binding)data).createBindEvent());
+                    events.add(((org.apache.qpid.server.qmf2.agentdata.Binding)data).createBindEvent());
                 }
             }
 
@@ -501,7 +1164,7 @@ public class QmfManagementAgent implements ConfigurationChangeListener, QmfEvent
                 {
                     subscription.setQueueRef(ref.getObjectId(), (Queue)object);
                     // Raise a Subscribe Event - N.B. Need to do it *after* we've set the queueRef.
-                    _agent.raiseEvent(subscription.createSubscribeEvent());
+                    events.add(subscription.createSubscribeEvent());
                 }
                 else if (object instanceof Session)
                 {
@@ -510,43 +1173,182 @@ public class QmfManagementAgent implements ConfigurationChangeListener, QmfEvent
             }
         }
 
-        try
+        // If we've created new QmfAgentData we populate its statistics and queue it to be registered with the Agent,
+        // or with the Agent partition of its Virtual Host if agentPerVirtualHost is configured, at the end of the
+        // batch. Its ObjectId is assigned now so that the objects created later in the batch can refer to it.
+        if (data != null)
+        {
+            _sampler.sample(data);
+            setOwner(child, object);
+            Agent agent = getAgent(object);
+            agent.assignObjectId(data);
+            addPending(_pendingAdds, agent, data);
+            _pendingData.add(data);
+        }
+    }
+
+    /**
+     * Process a Virtual Host having been added after startup, called by the ChangeProcessor thread. This creates its
+     * Agent partition if agentPerVirtualHost is configured, then processes any Exchanges and Queues that it already
+     * has as if they had just been added, as they may have been created before we registered for changes to it.
+     * @param vhost the Virtual Host that has been added.
+     * @param events the List of QMF2 Events that any Events should be added to for raising later.
+     */
+    private void processVirtualHostAdded(final VirtualHost<?,?,?> vhost, final List<QmfEvent> events)
+    {
+        if (_partitions != null && _partitions.getPartition(vhost) == null)
         {
-            // If we've created new QmfAgentData we register it with the Agent.
-            if (data != null)
+            try
+            {
+                createPartition(vhost);
+            }
+            catch (QmfException qmfe)
             {
-                _agent.addObject(data);
+                _log.error("QmfException caught in QmfManagementAgent creating partition for " + vhost.getName(),
+                           qmfe);
             }
         }
-        catch (QmfException qmfe)
+
+        for (Exchange<?> exchange : vhost.getExchanges())
         {
-            _log.error("QmfException caught in QmfManagementAgent.addObject()", qmfe);
+            listenTo(exchange);
+            processChildAdded(vhost, exchange, events);
         }
 
-        child.addChangeListener(this);
+        for (Queue<?> queue : vhost.getQueues())
+        {
+            if (!isAgentQueue(queue))
+            {
+                listenTo(queue);
+                processChildAdded(vhost, queue, events);
+            }
+        }
+    }
+
+    /**
+     * Process a Virtual Host having been removed, called by the ChangeProcessor thread. If agentPerVirtualHost is
+     * configured its Agent partition is destroyed along with the QmfAgentData of the objects that it held.
+     * @param vhost the Virtual Host that has been removed.
+     */
+    private void processVirtualHostRemoved(final VirtualHost<?,?,?> vhost)
+    {
+        Agent partition = (_partitions == null) ? null : _partitions.getPartition(vhost);
+        if (partition != null)
+        {
+            // Apply the changes queued for the partition so far, as it can't be used once destroyed.
+            flushObjects();
+            for (Iterator<Map.Entry<ConfiguredObject, QmfAgentData>> i = _objects.entrySet().iterator(); i.hasNext();)
+            {
+                Map.Entry<ConfiguredObject, QmfAgentData> entry = i.next();
+                if (_partitions.getPartition(entry.getKey()) == partition)
+                {
+                    entry.getValue().destroy();
+                    i.remove();
+                }
+            }
+            _partitions.removePartition(vhost);
+        }
+    }
+
+    /**
+     * Queue QmfAgentData to be added to or destroyed by an Agent when the current batch is flushed.
+     * @param pending _pendingAdds or _pendingDestroys.
+     * @param agent the Agent that the QmfAgentData belongs to.
+     * @param data the QmfAgentData.
+     */
+    private static void addPending(final Map<Agent, List<QmfAgentData>> pending, final Agent agent,
+                                   final QmfAgentData data)
+    {
+        List<QmfAgentData> objects = pending.get(agent);
+        if (objects == null)
+        {
+            objects = new ArrayList<QmfAgentData>();
+            pending.put(agent, objects);
+        }
+        objects.add(data);
+    }
+
+    /**
+     * Destroy then add the QmfAgentData queued by the current ChangeProcessor batch, with one destroyObjects() and
+     * one addObjects() call per Agent. Destroys go first so that an object re-created with the same well known
+     * ObjectId, such as a Queue that has been deleted and re-declared, doesn't clash with its predecessor.
+     */
+    private void flushObjects()
+    {
+        for (Map.Entry<Agent, List<QmfAgentData>> entry : _pendingDestroys.entrySet())
+        {
+            entry.getKey().destroyObjects(entry.getValue());
+        }
+        _pendingDestroys.clear();
+
+        for (Map.Entry<Agent, List<QmfAgentData>> entry : _pendingAdds.entrySet())
+        {
+            try
+            {
+                entry.getKey().addObjects(entry.getValue());
+            }
+            catch (QmfException qmfe)
+            {
+                _log.error("QmfException caught in QmfManagementAgent.addObjects()", qmfe);
+            }
+        }
+        _pendingAdds.clear();
+        _pendingData.clear();
     }
 
 
     /**
      * ConfigurationChangeListener method called when a child ConfiguredObject is removed.
      * <p>
-     * This method checks the type of the child ConfiguredObject that has been removed and raises the appropriate
-     * QMF2 Events, it then destroys the QMF2 Management Object and removes the mapping between child and the QMF Object.
-     *
+     * This method deregisters for changes to the child then queues the change for the ChangeProcessor thread.
      * @param object the parent object that the child is being removed from.
      * @param child the child object being removed.
      */
     @Override
     public void childRemoved(final ConfiguredObject object, final ConfiguredObject child)
     {
+        stopListening(child);
+        _changes.add(new ConfigurationChange(false, object, child));
+    }
 
-
+    /**
+     * Process a child ConfiguredObject having been removed, called by the ChangeProcessor thread.
+     * <p>
+     * This method checks the type of the child ConfiguredObject that has been removed and raises the appropriate
+     * QMF2 Events, it then destroys the QMF2 Management Object and removes the mapping between child and the QMF Object.
+     *
+     * @param object the parent object that the child is being removed from.
+     * @param child the child object being removed.
+     * @param events the List of QMF2 Events that any Events should be added to for raising later.
+     */
+    private void processChildRemoved(final ConfiguredObject object, final ConfiguredObject child,
+                                     final List<QmfEvent> events)
+    {
         if (_log.isDebugEnabled())
         {
             _log.debug("childRemoved: " + child.getClass().getSimpleName() + "." + child.getName());
         }
 
-        child.removeChangeListener(this);
+        if (_models != null && isModelBacked(child))
+        {
+            processModelBackedChildRemoved(object, child, events);
+            return;
+        }
+
+        if (child instanceof VirtualHostNode)
+        {
+            VirtualHost<?,?,?> vhost = ((VirtualHostNode<?>)child).getVirtualHost();
+            if (vhost != null)
+            {
+                processVirtualHostRemoved(vhost);
+            }
+            return;
+        }
+        else if (child instanceof VirtualHost)
+        {
+            processVirtualHostRemoved((VirtualHost<?,?,?>)child);
+            return;
+        }
 
         // Look up the associated QmfAgentData and mark it for deletion by the Agent.
         QmfAgentData data = _objects.get(child);
@@ -556,7 +1358,7 @@ public class QmfManagementAgent implements ConfigurationChangeListener, QmfEvent
             if (child instanceof Connection)
             {
                 // Raise a Client Disconnect Event.
-                _agent.raiseEvent(((org.apache.qpid.server.qmf2.agentdata.Connection)data).createClientDisconnectEvent());
+                events.add(((org.apache.qpid.server.qmf2.agentdata.Connection)data).createClientDisconnectEvent());
             }
             else if (child instanceof Session)
             {
@@ -565,12 +1367,12 @@ public class QmfManagementAgent implements ConfigurationChangeListener, QmfEvent
             else if (child instanceof Exchange)
             {
                 // Raise an Exchange Delete Event.
-                _agent.raiseEvent(((org.apache.qpid.server.qmf2.agentdata.Exchange)data).createExchangeDeleteEvent());
+                events.add(((org.apache.qpid.server.qmf2.agentdata.Exchange)data).createExchangeDeleteEvent());
             }
             else if (child instanceof Queue)
             {
                 // Raise a Queue Delete Event.
-                _agent.raiseEvent(((org.apache.qpid.server.qmf2.agentdata.Queue)data).createQueueDeleteEvent());
+                events.add(((org.apache.qpid.server.qmf2.agentdata.Queue)data).createQueueDeleteEvent());
             }
             else if (child instanceof Binding)
             {
@@ -578,20 +1380,123 @@ public class QmfManagementAgent implements ConfigurationChangeListener, QmfEvent
                 if (!eName.equals("<<default>>")) // Don't send Event for Unbinding from default direct.
                 {
                     // Raise an Unbind Event.
-                    _agent.raiseEvent(((org.apache.qpid.server.qmf2.agentdata.Binding)data).createUnbindEvent());
+                    events.add(((org.apache.qpid.server.qmf2.agentdata.Binding)data).createUnbindEvent());
                 }
             }
             else if (child instanceof Consumer)
             {
                 // Raise an Unsubscribe Event.
-                _agent.raiseEvent(((org.apache.qpid.server.qmf2.agentdata.Subscription)data).createUnsubscribeEvent());
+                events.add(((org.apache.qpid.server.qmf2.agentdata.Subscription)data).createUnsubscribeEvent());
             }
 
-            data.destroy();
+            if (_pendingData.contains(data))
+            {
+                // The QmfAgentData was created earlier in this batch, so it needs adding before it can be destroyed.
+                flushObjects();
+            }
+            addPending(_pendingDestroys, getAgent(child), data);
         }
 
         // Remove the mapping from the internal ConfiguredObject->QmfAgentData Map.
         _objects.remove(child);
+        if (_partitions != null)
+        {
+            _partitions.removeOwner(child);
+        }
+    }
+
+    /**
+     * Returns whether a ConfiguredObject is of a type supplied on demand by ModelBackedObjects when lazyObjects
+     * is configured.
+     * @param child the ConfiguredObject to check.
+     * @return true if the ConfiguredObject is a Connection, Session, Consumer or Binding.
+     */
+    private boolean isModelBacked(final ConfiguredObject child)
+    {
+        return child instanceof Connection || child instanceof Session ||
+               child instanceof Consumer || child instanceof Binding;
+    }
+
+    /**
+     * Process a Connection, Session, Consumer or Binding having been added when lazyObjects is configured. No
+     * QmfAgentData is retained, transient QmfAgentData are only created in order to create the relevant Events.
+     * @param object the parent object that the child is being added to.
+     * @param child the child object being added.
+     * @param events the List of QMF2 Events that any Events should be added to for raising later.
+     */
+    private void processModelBackedChildAdded(final ConfiguredObject object, final ConfiguredObject child,
+                                              final List<QmfEvent> events)
+    {
+        _models.add(object, child);
+        if (child instanceof Connection)
+        {
+            if (agentConnection)
+            { // Only ignore the first Connection, which is the one from the Agent.
+                _models.setAgentConnection((Connection)child);
+                agentConnection = false;
+            }
+            else
+            {
+                // Raise a Client Connect Event.
+                events.add(_models.createConnection((VirtualHost)object, (Connection)child).createClientConnectEvent());
+            }
+        }
+        else if (child instanceof Binding)
+        {
+            String eName = ((Binding)child).getExchange().getName();
+            if (_announcedBindings.add(child) && !eName.equals("<<default>>")) // No Event for default direct.
+            {
+                // Raise a Bind Event.
+                events.add(_models.createBinding((Binding)child).createBindEvent());
+            }
+        }
+        else if (child instanceof Consumer && object instanceof Queue) // AKA Subscription
+        {
+            QmfAgentData ref = _objects.get(object);
+            if (ref != null)
+            {
+                org.apache.qpid.server.qmf2.agentdata.Subscription subscription =
+                    _models.createSubscription((Consumer)child);
+                subscription.setQueueRef(ref.getObjectId(), (Queue)object);
+                // Raise a Subscribe Event - N.B. Need to do it *after* we've set the queueRef.
+                events.add(subscription.createSubscribeEvent());
+            }
+        }
+    }
+
+    /**
+     * Process a Connection, Session, Consumer or Binding having been removed when lazyObjects is configured.
+     * @param object the parent object that the child is being removed from.
+     * @param child the child object being removed.
+     * @param events the List of QMF2 Events that any Events should be added to for raising later.
+     */
+    private void processModelBackedChildRemoved(final ConfiguredObject object, final ConfiguredObject child,
+                                                final List<QmfEvent> events)
+    {
+        _models.remove(child);
+        if (child instanceof Connection)
+        {
+            if (!_models.isAgentConnection((Connection)child))
+            {
+                // Raise a Client Disconnect Event.
+                events.add(_models.createConnection((VirtualHost)object, (Connection)child)
+                                  .createClientDisconnectEvent());
+            }
+        }
+        else if (child instanceof Binding)
+        {
+            String eName = ((Binding)child).getExchange().getName();
+            if (_announcedBindings.remove(child) && !eName.equals("<<default>>")) // No Event for default direct.
+            {
+                // Raise an Unbind Event.
+                events.add(_models.createBinding((Binding)child).createUnbindEvent());
+            }
+        }
+        else if (child instanceof Consumer && object instanceof Queue)
+        {
+            // Raise an Unsubscribe Event.
+            events.add(_models.createSubscription((Consumer)child).createUnsubscribeEvent());
+        }
     }
 
     // ******************************* QmfEventListener implementation method *******************************
@@ -604,6 +1509,30 @@ public class QmfManagementAgent implements ConfigurationChangeListener, QmfEvent
      */
     @Override
     public void onEvent(final WorkItem wi)
+    {
+        onEvent(_agent, wi);
+    }
+
+    /**
+     * The QmfEventListener of an Agent partition, which handles WorkItems in the same way as the broker Agent but
+     * responds via the partition that received them.
+     */
+    private final class PartitionEventListener implements QmfEventListener
+    {
+        private Agent _partition;
+
+        public void onEvent(final WorkItem wi)
+        {
+            QmfManagementAgent.this.onEvent(_partition, wi);
+        }
+    }
+
+    /**
+     * Handle a WorkItem from the broker Agent or from one of its partitions.
+     * @param agent the Agent that the WorkItem was received by, which is used to respond.
+     * @param wi the WorkItem that has been passed by the QMF2 Agent to be processed here (mainly METHOD_CALL).
+     */
+    private void onEvent(final Agent agent, final WorkItem wi)
     {
         if (wi.getType() == METHOD_CALL)
         {
@@ -614,10 +1543,10 @@ public class QmfManagementAgent implements ConfigurationChangeListener, QmfEvent
             ObjectId objectId = methodCallParams.getObjectId();
 
             // Look up QmfAgentData by ObjectId from the Agent's internal Object store.
-            QmfAgentData object = _agent.getObject(objectId);
+            QmfAgentData object = agent.getObject(objectId);
             if (object == null)
             {
-                _agent.raiseException(item.getHandle(), "No object found with ID=" + objectId);
+                agent.raiseException(item.getHandle(), "No object found with ID=" + objectId);
             }
             else
             {
@@ -628,18 +1557,18 @@ public class QmfManagementAgent implements ConfigurationChangeListener, QmfEvent
                 {
                     org.apache.qpid.server.qmf2.agentdata.Broker broker = 
                         (org.apache.qpid.server.qmf2.agentdata.Broker) object;
-                    broker.invokeMethod(_agent, item.getHandle(), methodName, methodCallParams.getArgs());
+                    broker.invokeMethod(agent, item.getHandle(), methodName, methodCallParams.getArgs());
                 }
                 else if (object instanceof org.apache.qpid.server.qmf2.agentdata.Queue)
                 {
                     org.apache.qpid.server.qmf2.agentdata.Queue queue = 
                         (org.apache.qpid.server.qmf2.agentdata.Queue) object;
-                    queue.invokeMethod(_agent, item.getHandle(), methodName, methodCallParams.getArgs());
+                    queue.invokeMethod(agent, item.getHandle(), methodName, methodCallParams.getArgs());
                 }
                 else
                 {
-                    _agent.raiseException(item.getHandle(), "Unknown Method " + methodName + " on " + 
-                                          object.getClass().getSimpleName());
+                    agent.raiseException(item.getHandle(), "Unknown Method " + methodName + " on " + 
+                                         object.getClass().getSimpleName());
                 }
             }
         }
@@ -30,7 +30,27 @@ public interface QmfManagementPlugin<X extends QmfManagementPlugin<X>> extends P
 
     // attributes
     String CONNECTION_URL = "connectionURL";
+    String STATISTICS_SAMPLE_INTERVAL = "statisticsSampleInterval";
+    String LAZY_OBJECTS = "lazyObjects";
+    String AGENT_PER_VIRTUAL_HOST = "agentPerVirtualHost";
+    String QUERY_CACHE_TTL = "queryCacheTTL";
+    String COMPRESSION_THRESHOLD = "compressionThreshold";
 
     @ManagedAttribute(defaultValue = "amqp://guest:guest@/?brokerlist='tcp://0.0.0.0:5672'")
     String getConnectionURL();
+
+    @ManagedAttribute(defaultValue = "1")
+    int getStatisticsSampleInterval();
+
+    @ManagedAttribute(defaultValue = "false")
+    boolean getLazyObjects();
+
+    @ManagedAttribute(defaultValue = "false")
+    boolean getAgentPerVirtualHost();
+
+    @ManagedAttribute(defaultValue = "0")
+    int getQueryCacheTTL();
+
+    @ManagedAttribute(defaultValue = "65536")
+    int getCompressionThreshold();
 }
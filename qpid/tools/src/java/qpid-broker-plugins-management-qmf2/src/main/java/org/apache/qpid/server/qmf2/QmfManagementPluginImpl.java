@@ -80,6 +80,16 @@ import org.apache.qpid.server.model.adapter.AbstractPluginAdapter;
  *    "connectionURL" : "amqp://guest:guest@/?brokerlist='tcp://0.0.0.0:5672'"
  * }]
  * </pre>
+ * The optional "statisticsSampleInterval" attribute sets the interval in seconds at which the statistics of the
+ * Management Objects are sampled (default 1) and setting the optional "lazyObjects" attribute to true causes the
+ * connection, session, subscription and binding Management Objects to be built on demand from the broker model
+ * rather than being mirrored, which greatly reduces the footprint of brokers with very many connections. Setting
+ * the optional "agentPerVirtualHost" attribute to true gives each Virtual Host its own QMF2 Agent partition, with
+ * the "broker" Agent acting as a facade over them, so that management traffic for one Virtual Host doesn't contend
+ * with that for the others. The optional "queryCacheTTL" attribute sets the time in milliseconds for which the
+ * response to an object query may be reused for identical queries from other Consoles (default 0, no caching).
+ * The optional "compressionThreshold" attribute sets the size in bytes from which query responses and
+ * subscription indications are compressed for Consoles that accept compression (default 65536, 0 disables it).
  * @author Fraser Adams
  */
 public class QmfManagementPluginImpl extends AbstractPluginAdapter<QmfManagementPluginImpl> implements QmfManagementPlugin<QmfManagementPluginImpl>
@@ -102,6 +112,21 @@ public class QmfManagementPluginImpl extends AbstractPluginAdapter<QmfManagement
 
     @ManagedAttributeField
     private String _connectionURL;      // Pulled from the Plugin config.
+
+    @ManagedAttributeField
+    private int _statisticsSampleInterval; // Pulled from the Plugin config, in seconds.
+
+    @ManagedAttributeField
+    private boolean _lazyObjects; // Pulled from the Plugin config.
+
+    @ManagedAttributeField
+    private boolean _agentPerVirtualHost; // Pulled from the Plugin config.
+
+    @ManagedAttributeField
+    private int _queryCacheTTL; // Pulled from the Plugin config, in milliseconds.
+
+    @ManagedAttributeField
+    private int _compressionThreshold; // Pulled from the Plugin config, in bytes.
     private QmfManagementAgent _agent;
 
     /**
@@ -181,7 +206,9 @@ public class QmfManagementPluginImpl extends AbstractPluginAdapter<QmfManagement
                     }
 
                     // Now create the *real* Agent which maps Broker Management Objects to QmdAgentData Objects.
-                    _agent = new QmfManagementAgent(_connectionURL, _broker);
+                    _agent = new QmfManagementAgent(_connectionURL, _broker, _statisticsSampleInterval,
+                                                    _lazyObjects, _agentPerVirtualHost, _queryCacheTTL,
+                                                    _compressionThreshold);
                 }
 
 
@@ -239,4 +266,49 @@ public class QmfManagementPluginImpl extends AbstractPluginAdapter<QmfManagement
     {
         return _connectionURL;
     }
+
+    /**
+     * Accessor to retrieve the statisticsSampleInterval attribute.
+     * @return the interval in seconds between samples of the Management Object statistics.
+     */
+    public int getStatisticsSampleInterval()
+    {
+        return _statisticsSampleInterval;
+    }
+
+    /**
+     * Accessor to retrieve the lazyObjects attribute.
+     * @return true if connection, session, subscription and binding Management Objects are built on demand.
+     */
+    public boolean getLazyObjects()
+    {
+        return _lazyObjects;
+    }
+
+    /**
+     * Accessor to retrieve the agentPerVirtualHost attribute.
+     * @return true if each Virtual Host's Management Objects are held by a separate QMF2 Agent partition.
+     */
+    public boolean getAgentPerVirtualHost()
+    {
+        return _agentPerVirtualHost;
+    }
+
+    /**
+     * Accessor to retrieve the queryCacheTTL attribute.
+     * @return the time in milliseconds for which object query responses are cached, zero if they aren't.
+     */
+    public int getQueryCacheTTL()
+    {
+        return _queryCacheTTL;
+    }
+
+    /**
+     * Accessor to retrieve the compressionThreshold attribute.
+     * @return the size in bytes from which responses are compressed, zero if they aren't.
+     */
+    public int getCompressionThreshold()
+    {
+        return _compressionThreshold;
+    }
 }
@@ -0,0 +1,302 @@
+/*
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *
+ */
+
+package org.apache.qpid.server.qmf2;
+
+// Misc Imports
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+// Simple Logging Facade 4 Java
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+// QMF2 Imports
+import org.apache.qpid.qmf2.agent.QmfAgentData;
+import org.apache.qpid.qmf2.common.QmfException;
+import org.apache.qpid.qmf2.common.QmfType;
+import org.apache.qpid.qmf2.common.SchemaObjectClass;
+import org.apache.qpid.qmf2.common.SchemaProperty;
+import org.apache.qpid.server.qmf2.agentdata.StatisticsSource;
+
+/**
+ * This TimerTask periodically snapshots the statistics of the QmfAgentData managed by the QmfManagementAgent.
+ * <p>
+ * Each QmfAgentData that implements StatisticsSource has its statistics read from the broker model into a long[]
+ * which is compared with the snapshot taken on the previous run. Only if a value has actually changed are the
+ * QMF2 properties set and update() called, so QMF2 Subscriptions don't republish objects whose statistics are
+ * unchanged and serialising a QmfAgentData doesn't need to call any broker model getters.
+ * <p>
+ * Two arrays are retained per object, the latest snapshot and a spare which gets reused for the next sample, so
+ * in the steady state sampling doesn't allocate. Each Snapshot is locked independently so that different objects
+ * may be sampled concurrently, as happens when the QmfManagementAgent builds its startup snapshot in parallel.
+ * <p>
+ * For the statistics that are cumulative counters (see StatisticsSource.getCounterNames()) exponentially weighted
+ * moving average rates per second over 10 and 60 seconds are also maintained and published as additional
+ * properties named after the counter, e.g. msgTotalEnqueuesRate10s and msgTotalEnqueuesRate60s, so Consoles can
+ * display rates from a single sample rather than differencing two. A moving average over a window shorter than
+ * the sample interval would just be the rate between the last two samples, so those windows aren't published,
+ * which is why the rate properties that addRateProperties() declares in the schemas are optional. The published
+ * rates are rounded to two decimal places, so an object whose counters have stopped changing stops being
+ * republished once its rates have decayed to zero.
+ */
+public final class StatisticsSampler extends TimerTask
+{
+    private static final Logger _log = LoggerFactory.getLogger(StatisticsSampler.class);
+
+    // The time constants in seconds of the moving average rates and the suffixes of their property names.
+    private static final double[] RATE_WINDOWS = {10.0, 60.0};
+    private static final String[] RATE_SUFFIXES = {"Rate10s", "Rate60s"};
+
+    /**
+     * Holds the latest statistics snapshot for a QmfAgentData and a spare array to sample into, along with the
+     * moving average rates of its counters, both exact and as last published, indexed by counter then window.
+     */
+    private static final class Snapshot
+    {
+        private long[] _current;
+        private long[] _spare;
+        private boolean _sampled = false;
+        private long _sampleTime;
+        private final String[] _counterNames;
+        private final double[] _rates;
+        private final double[] _publishedRates;
+
+        public Snapshot(final int count, final String[] counterNames)
+        {
+            _current = new long[count];
+            _spare = new long[count];
+            _counterNames = counterNames;
+            _rates = new double[count*RATE_WINDOWS.length];
+            _publishedRates = new double[count*RATE_WINDOWS.length];
+        }
+    }
+
+    private final Collection<QmfAgentData> _objects;
+    private final int _firstWindow;
+    private final ConcurrentMap<QmfAgentData, Snapshot> _snapshots =
+        new ConcurrentHashMap<QmfAgentData, Snapshot>(100);
+
+    /**
+     * Construct a StatisticsSampler.
+     * @param objects a live view of the QmfAgentData whose statistics should be sampled.
+     * @param sampleInterval the interval in seconds between runs, windows shorter than this aren't published.
+     */
+    public StatisticsSampler(final Collection<QmfAgentData> objects, final int sampleInterval)
+    {
+        _objects = objects;
+
+        int firstWindow = 0;
+        while (firstWindow < RATE_WINDOWS.length && RATE_WINDOWS[firstWindow] < sampleInterval)
+        {
+            firstWindow++;
+        }
+        _firstWindow = firstWindow;
+    }
+
+    /**
+     * Declare the moving average rate properties of a StatisticsSource's counters in its schema. The properties
+     * are optional as the rates for windows shorter than the sample interval aren't published.
+     * @param schema the SchemaObjectClass of the StatisticsSource.
+     * @param counterNames the names of the counters, as returned by StatisticsSource.getCounterNames().
+     */
+    public static void addRateProperties(final SchemaObjectClass schema, final String[] counterNames)
+    {
+        try
+        {
+            for (String counterName : counterNames)
+            {
+                if (counterName != null)
+                {
+                    for (int w = 0; w < RATE_WINDOWS.length; w++)
+                    {
+                        SchemaProperty property = new SchemaProperty(counterName + RATE_SUFFIXES[w],
+                                                                     QmfType.TYPE_FLOAT);
+                        property.setValue("_unit", "per second");
+                        property.setValue("_desc", "Moving average rate of " + counterName + " over " +
+                                                   (int)RATE_WINDOWS[w] + " seconds");
+                        property.setValue("_optional", true);
+                        schema.addProperty(property);
+                    }
+                }
+            }
+        }
+        catch (QmfException qmfe)
+        {
+            _log.error("QmfException caught in StatisticsSampler.addRateProperties()", qmfe);
+        }
+    }
+
+    /**
+     * Sample the statistics of a single QmfAgentData, setting its statistics properties and calling update() if
+     * they have changed since the previous sample. This is called for each object on each run, but is also called
+     * by the QmfManagementAgent when a QmfAgentData is created so that it's fully populated before being added.
+     * @param object the QmfAgentData to sample.
+     */
+    public void sample(final QmfAgentData object)
+    {
+        if (!(object instanceof StatisticsSource) || object.isDeleted())
+        {
+            return;
+        }
+
+        StatisticsSource source = (StatisticsSource)object;
+        Snapshot snapshot = _snapshots.get(object);
+        if (snapshot == null)
+        {
+            snapshot = new Snapshot(source.getStatisticsCount(), source.getCounterNames());
+            Snapshot existing = _snapshots.putIfAbsent(object, snapshot);
+            if (existing != null)
+            {
+                snapshot = existing;
+            }
+        }
+
+        synchronized (snapshot)
+        {
+            long[] statistics = snapshot._spare;
+            source.sampleStatistics(statistics);
+            boolean firstSample = !snapshot._sampled;
+            boolean statisticsChanged = firstSample || !Arrays.equals(statistics, snapshot._current);
+            boolean ratesChanged = updateRates(snapshot, statistics, System.nanoTime());
+            if (statisticsChanged)
+            {
+                snapshot._sampled = true;
+                snapshot._spare = snapshot._current;
+                snapshot._current = statistics;
+            }
+
+            // Set the properties and commit them with update() whilst holding the object's lock, so that Consoles
+            // never see a Version of the object with only part of a sample applied.
+            synchronized (object)
+            {
+                if (statisticsChanged)
+                {
+                    source.setStatistics(statistics);
+                }
+
+                if (firstSample || ratesChanged)
+                {
+                    setRates(object, snapshot);
+                }
+
+                if (statisticsChanged || ratesChanged)
+                {
+                    object.update();
+                }
+            }
+        }
+    }
+
+    /**
+     * Update the moving average rates of a Snapshot's counters from a new sample, which must be called before the
+     * new sample replaces the Snapshot's current statistics.
+     * @param snapshot the Snapshot of the object being sampled.
+     * @param statistics the new sample.
+     * @param sampleTime the time of the new sample from System.nanoTime().
+     * @return true if any of the rates to be published have changed.
+     */
+    private boolean updateRates(final Snapshot snapshot, final long[] statistics, final long sampleTime)
+    {
+        double elapsed = (sampleTime - snapshot._sampleTime)/1000000000.0;
+        boolean firstSample = !snapshot._sampled;
+        snapshot._sampleTime = sampleTime;
+        if (firstSample || elapsed <= 0.0)
+        {
+            return false;
+        }
+
+        boolean changed = false;
+        String[] counterNames = snapshot._counterNames;
+        for (int i = 0; i < counterNames.length; i++)
+        {
+            if (counterNames[i] != null)
+            {
+                double rate = Math.max(statistics[i] - snapshot._current[i], 0)/elapsed;
+                for (int w = _firstWindow; w < RATE_WINDOWS.length; w++)
+                {
+                    int index = i*RATE_WINDOWS.length + w;
+                    double alpha = 1.0 - Math.exp(-elapsed/RATE_WINDOWS[w]);
+                    snapshot._rates[index] += alpha*(rate - snapshot._rates[index]);
+
+                    double published = Math.round(snapshot._rates[index]*100.0)/100.0;
+                    if (published != snapshot._publishedRates[index])
+                    {
+                        snapshot._publishedRates[index] = published;
+                        changed = true;
+                    }
+                }
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * Set the rate properties of an object from the published rates of its Snapshot.
+     * @param object the QmfAgentData to set the rate properties on.
+     * @param snapshot the Snapshot of the object.
+     */
+    private void setRates(final QmfAgentData object, final Snapshot snapshot)
+    {
+        String[] counterNames = snapshot._counterNames;
+        for (int i = 0; i < counterNames.length; i++)
+        {
+            if (counterNames[i] != null)
+            {
+                for (int w = _firstWindow; w < RATE_WINDOWS.length; w++)
+                {
+                    object.setValue(counterNames[i] + RATE_SUFFIXES[w],
+                                    snapshot._publishedRates[i*RATE_WINDOWS.length + w]);
+                }
+            }
+        }
+    }
+
+    /**
+     * Sample the statistics of all of the QmfAgentData and discard the snapshots of any that have been deleted.
+     */
+    public void run()
+    {
+        try
+        {
+            for (QmfAgentData object : _objects)
+            {
+                sample(object);
+            }
+
+            for (Iterator<QmfAgentData> i = _snapshots.keySet().iterator(); i.hasNext();)
+            {
+                if (i.next().isDeleted())
+                {
+                    i.remove();
+                }
+            }
+        }
+        catch (Exception e) // Make sure that a broker model failure doesn't cancel the Timer.
+        {
+            _log.info("Exception {} caught in StatisticsSampler.run()", e.getMessage());
+        }
+    }
+}
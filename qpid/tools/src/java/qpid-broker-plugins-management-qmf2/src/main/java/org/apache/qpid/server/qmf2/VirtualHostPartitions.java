@@ -0,0 +1,323 @@
+/*
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *
+ */
+
+package org.apache.qpid.server.qmf2;
+
+// Misc Imports
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+// QMF2 Imports
+import org.apache.qpid.qmf2.agent.Agent;
+import org.apache.qpid.qmf2.agent.ObjectProvider;
+import org.apache.qpid.qmf2.agent.QmfAgentData;
+import org.apache.qpid.qmf2.common.ObjectId;
+import org.apache.qpid.qmf2.common.QmfQuery;
+import org.apache.qpid.qmf2.common.QmfQueryTarget;
+import org.apache.qpid.qmf2.common.SchemaClassId;
+
+// Java Broker model Imports
+import org.apache.qpid.server.model.ConfiguredObject;
+import org.apache.qpid.server.model.VirtualHost;
+
+/**
+ * This class holds the per Virtual Host QMF2 Agent partitions used when the Plugin's "agentPerVirtualHost"
+ * attribute is set.
+ * <p>
+ * Each partition is a separate Agent with its own object store, JMS Sessions and MessageProducer holding the
+ * Management Objects of a single Virtual Host, so Consoles querying or subscribing to one Virtual Host don't contend
+ * with the traffic for any other. The partition Agents use the product name PRODUCT, so they don't bind the "broker"
+ * alias address, and carry a "vhost" value in their heartbeats so that Virtual Host aware Consoles can find them.
+ * <p>
+ * The QmfManagementAgent's own Agent remains the "broker" Agent and acts as a facade over the partitions by having
+ * an ObjectProvider registered for each partitioned class, so tools such as qpid-config see the same objects, with
+ * the same {@literal vhost:<vhost-name>/} naming, as they do when the broker has a single Agent.
+ * <p>
+ * Each partition returns its objects in compare key order, so the facade merges them rather than sorting them
+ * again. As with any other provided objects, Subscriptions made via the facade can't track changes so publish every
+ * partitioned object matching them on each publish interval. Consoles subscribing to partitioned classes should
+ * therefore subscribe to the partition Agents, whose Subscriptions only publish the objects that have changed.
+ */
+public final class VirtualHostPartitions
+{
+    /**
+     * The product name of the partition Agents.
+     */
+    public static final String PRODUCT = "qpidd-vhost";
+
+    /**
+     * Orders QmfAgentData by compare key then ObjectId, as the Agent orders the objects of a class, when merging the
+     * objects supplied by several partitions. QmfAgentData's own compareTo() isn't used as it doesn't cope with
+     * objects that aren't sortable.
+     */
+    private static final Comparator<QmfAgentData> COMPARE_KEY_ORDER = new Comparator<QmfAgentData>()
+    {
+        public int compare(final QmfAgentData lhs, final QmfAgentData rhs)
+        {
+            String lhsKey = (lhs.getCompareKey() == null) ? "" : lhs.getCompareKey();
+            String rhsKey = (rhs.getCompareKey() == null) ? "" : rhs.getCompareKey();
+            int result = lhsKey.compareTo(rhsKey);
+            return (result == 0) ? lhs.getObjectId().toString().compareTo(rhs.getObjectId().toString()) : result;
+        }
+    };
+
+    /**
+     * A position in the ordered objects of one partition whilst they're being merged.
+     */
+    private static final class Cursor
+    {
+        private final Iterator<QmfAgentData> _iterator;
+        private QmfAgentData _head;
+
+        public Cursor(final Iterator<QmfAgentData> iterator)
+        {
+            _iterator = iterator;
+            _head = iterator.next();
+        }
+
+        public boolean advance()
+        {
+            _head = _iterator.hasNext() ? _iterator.next() : null;
+            return _head != null;
+        }
+    }
+
+    /**
+     * Orders Cursors by their current object.
+     */
+    private static final Comparator<Cursor> CURSOR_ORDER = new Comparator<Cursor>()
+    {
+        public int compare(final Cursor lhs, final Cursor rhs)
+        {
+            return COMPARE_KEY_ORDER.compare(lhs._head, rhs._head);
+        }
+    };
+
+    private final Map<VirtualHost<?,?,?>, Agent> _partitions = new ConcurrentHashMap<VirtualHost<?,?,?>, Agent>();
+
+    // The partition Agent that each Management Object's QmfAgentData has been added to, keyed by ConfiguredObject.
+    private final ConcurrentMap<ConfiguredObject, Agent> _owners = new ConcurrentHashMap<ConfiguredObject, Agent>(100);
+
+    // The ObjectProviders registered with the facade Agent.
+    private final List<PartitionProvider> _providers = new CopyOnWriteArrayList<PartitionProvider>();
+
+    /**
+     * This ObjectProvider supplies the objects of one class from all of the partitions.
+     */
+    private final class PartitionProvider implements ObjectProvider
+    {
+        private final Agent _facade;
+        private final SchemaClassId _classId;
+        private final QmfQuery _query;
+
+        public PartitionProvider(final Agent facade, final SchemaClassId classId)
+        {
+            _facade = facade;
+            _classId = classId;
+            _query = new QmfQuery(QmfQueryTarget.OBJECT, classId);
+        }
+
+        public Collection<QmfAgentData> getObjects()
+        {
+            // Each partition's objects are already in order, so merge them by repeatedly taking the lowest head.
+            int size = 0;
+            PriorityQueue<Cursor> cursors = new PriorityQueue<Cursor>(Math.max(_partitions.size(), 1), CURSOR_ORDER);
+            List<QmfAgentData> only = Collections.emptyList();
+            for (Agent partition : _partitions.values())
+            {
+                List<QmfAgentData> objects = partition.evaluateQuery(_query);
+                if (!objects.isEmpty())
+                {
+                    size += objects.size();
+                    only = objects;
+                    cursors.add(new Cursor(objects.iterator()));
+                }
+            }
+
+            if (cursors.size() < 2)
+            {
+                return only;
+            }
+
+            List<QmfAgentData> merged = new ArrayList<QmfAgentData>(size);
+            while (!cursors.isEmpty())
+            {
+                Cursor cursor = cursors.poll();
+                merged.add(cursor._head);
+                if (cursor.advance())
+                {
+                    cursors.add(cursor);
+                }
+            }
+            return merged;
+        }
+
+        public Collection<ObjectId> getObjectIds()
+        {
+            List<ObjectId> objectIds = new ArrayList<ObjectId>();
+            for (Agent partition : _partitions.values())
+            {
+                for (QmfAgentData object : partition.evaluateQuery(_query))
+                { // These are the QmfAgentData held by the partition, so nothing is built.
+                    objectIds.add(object.getObjectId());
+                }
+            }
+            return objectIds;
+        }
+
+        public QmfAgentData getObject(final ObjectId objectId)
+        {
+            for (Agent partition : _partitions.values())
+            {
+                QmfAgentData object = partition.getObject(objectId);
+                if (object != null)
+                {
+                    return object;
+                }
+            }
+            return null;
+        }
+
+        public long getVersion()
+        {
+            long version = 0;
+            for (Agent partition : _partitions.values())
+            {
+                version = Math.max(version, partition.getVersion(_classId));
+            }
+            return version;
+        }
+
+        /**
+         * Tell the facade that a partition has gone, as its objects no longer count towards getVersion().
+         */
+        public void partitionRemoved()
+        {
+            _facade.providedObjectsChanged(_classId);
+        }
+    }
+
+    /**
+     * Add the partition Agent for a Virtual Host.
+     * @param vhost the Virtual Host.
+     * @param partition the Agent that will hold the Virtual Host's Management Objects.
+     */
+    public void addPartition(final VirtualHost<?,?,?> vhost, final Agent partition)
+    {
+        _partitions.put(vhost, partition);
+    }
+
+    /**
+     * Remove and destroy the partition Agent of a Virtual Host that has been removed.
+     * @param vhost the Virtual Host.
+     */
+    public void removePartition(final VirtualHost<?,?,?> vhost)
+    {
+        Agent partition = _partitions.remove(vhost);
+        if (partition != null)
+        {
+            _owners.values().removeAll(Collections.singleton(partition));
+            partition.destroy();
+            for (PartitionProvider provider : _providers)
+            {
+                provider.partitionRemoved();
+            }
+        }
+    }
+
+    /**
+     * Register an ObjectProvider for a partitioned class with the facade Agent.
+     * @param facade the Agent that supplies the objects of all of the partitions.
+     * @param classId the SchemaClassId of the partitioned class.
+     */
+    public void register(final Agent facade, final SchemaClassId classId)
+    {
+        PartitionProvider provider = new PartitionProvider(facade, classId);
+        _providers.add(provider);
+        facade.registerObjectProvider(classId, provider);
+    }
+
+    /**
+     * Return the partition Agent that the children of a ConfiguredObject should be added to.
+     * @param object a VirtualHost, or a ConfiguredObject previously passed to setOwner().
+     * @return the partition Agent, or null if object isn't in a partition.
+     */
+    public Agent getPartition(final ConfiguredObject object)
+    {
+        if (object == null)
+        {
+            return null;
+        }
+        else if (object instanceof VirtualHost)
+        {
+            return _partitions.get(object);
+        }
+        else
+        {
+            return _owners.get(object);
+        }
+    }
+
+    /**
+     * Record that a child ConfiguredObject's QmfAgentData is held in the same partition as its parent.
+     * @param child the child ConfiguredObject.
+     * @param parent the parent ConfiguredObject.
+     */
+    public void setOwner(final ConfiguredObject child, final ConfiguredObject parent)
+    {
+        Agent partition = getPartition(parent);
+        if (partition != null)
+        {
+            _owners.put(child, partition);
+        }
+    }
+
+    /**
+     * Forget the partition of a ConfiguredObject that has been removed.
+     * @param child the ConfiguredObject that has been removed.
+     */
+    public void removeOwner(final ConfiguredObject child)
+    {
+        _owners.remove(child);
+    }
+
+    /**
+     * Destroy all of the partition Agents.
+     */
+    public void destroy()
+    {
+        for (Agent partition : _partitions.values())
+        {
+            partition.destroy();
+        }
+        _partitions.clear();
+        _owners.clear();
+    }
+}
@@ -38,6 +38,7 @@ import org.apache.qpid.qmf2.common.SchemaEventClass;
 //import org.apache.qpid.qmf2.common.SchemaMethod;
 import org.apache.qpid.qmf2.common.SchemaObjectClass;
 //import org.apache.qpid.qmf2.common.SchemaProperty;
+import org.apache.qpid.server.qmf2.StatisticsSampler;
 
 /**
  * This class provides a concrete implementation of QmfAgentData for the Binding Management Object.
@@ -46,14 +47,20 @@ import org.apache.qpid.qmf2.common.SchemaObjectClass;
  * to sub-class as we need to map between the properties/statistics as specified in the Java Broker
  * management model and those specified in qpid/spec/management-schema.xml which is what the C++ broker 
  * uses. This class retains a reference to its peer org.apache.qpid.server.model.Binding and does the
- * necessary mapping when its mapEncode() method is called (which is used to serialise the QmfAgentData).
+ * necessary mapping of its statistics when they are periodically sampled by the StatisticsSampler.
  *
  * @author Fraser Adams
  */
-public class Binding extends QmfAgentData
+public class Binding extends QmfAgentData implements StatisticsSource
 {
     private static final Logger _log = LoggerFactory.getLogger(Binding.class);
 
+    // The names of the cumulative counters among the sampled statistics, null where a statistic isn't a counter.
+    private static final String[] _counterNames =
+    {
+        "msgMatched"
+    };
+
     /**
      * This static initialiser block initialises the QMF2 Schema information needed by the Agent to find
      * QmfAgentData and QmfEvent Objects of a given type.
@@ -97,6 +104,9 @@ public class Binding extends QmfAgentData
         // TODO
         //_schema.addProperty(new SchemaProperty("whatHappened", QmfType.TYPE_STRING));
 
+        // Declare the moving average rates that the StatisticsSampler publishes for the counters.
+        StatisticsSampler.addRateProperties(_schema, _counterNames);
+
         // Declare the schema for the QMF2 bind Event class.
         _bindSchema = new SchemaEventClass("org.apache.qpid.broker", "bind");
 
@@ -115,7 +125,7 @@ public class Binding extends QmfAgentData
     public Binding(final org.apache.qpid.server.model.Binding binding)
     {
         super(getSchema());
-        _binding = binding; // Will eventually be used in mapEncode() to retrieve statistics.
+        _binding = binding; // Used by sampleStatistics() to retrieve statistics.
         setValue("bindingKey", binding.getName());
 
         Map<String, Object> arguments = binding.getArguments();
@@ -186,19 +196,44 @@ public class Binding extends QmfAgentData
     }
 
     /**
-     * This method maps the org.apache.qpid.server.model.Binding to QMF2 broker properties where possible then
-     * serialises into the underlying Map for transmission via AMQP. This method is called by handleQueryRequest()
-     * in the org.apache.qpid.qmf2.agent.Agent class implementing the main QMF2 Agent behaviour.
-     * 
-     * @return the underlying map. 
+     * Returns the number of statistics sampled from the org.apache.qpid.server.model.Binding.
+     * @return the number of statistics sampled from the org.apache.qpid.server.model.Binding.
+     */
+    @Override
+    public int getStatisticsCount()
+    {
+        return 1;
+    }
+
+    /**
+     * Returns the names of the cumulative counters among the statistics sampled from the
+     * org.apache.qpid.server.model.Binding.
+     * @return the counter names, indexed in the same way as the sampled statistics.
+     */
+    @Override
+    public String[] getCounterNames()
+    {
+        return _counterNames;
+    }
+
+    /**
+     * Snapshot the org.apache.qpid.server.model.Binding statistics, called periodically by the StatisticsSampler.
+     * @param statistics the array to populate with the current statistics.
      */
     @Override
-    public Map<String, Object> mapEncode()
+    public void sampleStatistics(final long[] statistics)
     {
-        // Statistics 
-        setValue("msgMatched", _binding.getMatches());
+        statistics[0] = _binding.getMatches();
+    }
 
-        update(); // TODO only set update if a statistic has actually changed value.
-        return super.mapEncode();
+    /**
+     * Maps a snapshot of org.apache.qpid.server.model.Binding statistics to QMF2 binding properties, called by
+     * the StatisticsSampler when the statistics have changed since the previous snapshot.
+     * @param statistics the snapshot of statistics to set.
+     */
+    @Override
+    public void setStatistics(final long[] statistics)
+    {
+        setValue("msgMatched", statistics[0]);
     }
 }
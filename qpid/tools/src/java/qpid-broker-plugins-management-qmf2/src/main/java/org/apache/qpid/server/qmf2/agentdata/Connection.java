@@ -22,7 +22,6 @@
 package org.apache.qpid.server.qmf2.agentdata;
 
 // Misc Imports
-import java.util.Map;
 
 // Simple Logging Facade 4 Java
 import org.slf4j.Logger;
@@ -35,6 +34,7 @@ import org.apache.qpid.qmf2.common.SchemaEventClass;
 //import org.apache.qpid.qmf2.common.SchemaMethod;
 import org.apache.qpid.qmf2.common.SchemaObjectClass;
 //import org.apache.qpid.qmf2.common.SchemaProperty;
+import org.apache.qpid.server.qmf2.StatisticsSampler;
 
 /**
  * This class provides a concrete implementation of QmfAgentData for the Connection Management Object.
@@ -43,14 +43,20 @@ import org.apache.qpid.qmf2.common.SchemaObjectClass;
  * to sub-class as we need to map between the properties/statistics as specified in the Java Broker
  * management model and those specified in qpid/spec/management-schema.xml which is what the C++ broker 
  * uses. This class retains a reference to its peer org.apache.qpid.server.model.Connection and does the
- * necessary mapping when its mapEncode() method is called (which is used to serialise the QmfAgentData).
+ * necessary mapping of its statistics when they are periodically sampled by the StatisticsSampler.
  *
  * @author Fraser Adams
  */
-public class Connection extends QmfAgentData
+public class Connection extends QmfAgentData implements StatisticsSource
 {
     private static final Logger _log = LoggerFactory.getLogger(Connection.class);
 
+    // The names of the cumulative counters among the sampled statistics, null where a statistic isn't a counter.
+    private static final String[] _counterNames =
+    {
+        "bytesFromClient", "bytesToClient", "msgsFromClient", "msgsToClient"
+    };
+
     /**
      * This static initialiser block initialises the QMF2 Schema information needed by the Agent to find
      * QmfAgentData and QmfEvent Objects of a given type.
@@ -94,6 +100,9 @@ public class Connection extends QmfAgentData
         // TODO
         //_schema.addProperty(new SchemaProperty("whatHappened", QmfType.TYPE_STRING));
 
+        // Declare the moving average rates that the StatisticsSampler publishes for the counters.
+        StatisticsSampler.addRateProperties(_schema, _counterNames);
+
         // Declare the schema for the QMF2 clientConnect Event class.
         _clientConnectSchema = new SchemaEventClass("org.apache.qpid.broker", "clientConnect");
 
@@ -113,7 +122,7 @@ public class Connection extends QmfAgentData
                       final org.apache.qpid.server.model.Connection connection)
     {
         super(getSchema());
-        _connection = connection; // Will eventually be used to retrieve statistics (when useful ones get populated).
+        _connection = connection; // Used by sampleStatistics() to retrieve statistics.
         String vhostName = (vhost == null) ? "" : "vhost:" + vhost.getName() + "/";
         String address = vhostName + _connection.getName();
 
@@ -137,6 +146,10 @@ public class Connection extends QmfAgentData
         // saslMechanism Not implemented in Java Broker
         // saslSsf Not implemented in Java Broker
         // protocol Not implemented in Java Broker
+
+        // closing Not implemented in Java Broker
+        setValue("framesFromClient", 0); // framesFromClient Not implemented in Java Broker
+        setValue("framesToClient", 0); // framesToClient Not implemented in Java Broker
     }
 
     /**
@@ -168,25 +181,50 @@ public class Connection extends QmfAgentData
     }
 
     /**
-     * This method maps the org.apache.qpid.server.model.Connection to QMF2 connection properties where possible then
-     * serialises into the underlying Map for transmission via AMQP. This method is called by handleQueryRequest()
-     * in the org.apache.qpid.qmf2.agent.Agent class implementing the main QMF2 Agent behaviour.
-     * 
-     * @return the underlying map. 
+     * Returns the number of statistics sampled from the org.apache.qpid.server.model.Connection.
+     * @return the number of statistics sampled from the org.apache.qpid.server.model.Connection.
      */
     @Override
-    public Map<String, Object> mapEncode()
+    public int getStatisticsCount()
     {
-        // Statistics
-        // closing Not implemented in Java Broker
-        setValue("framesFromClient", 0); // framesFromClient Not implemented in Java Broker
-        setValue("framesToClient", 0); // framesToClient Not implemented in Java Broker
-        setValue("bytesFromClient", _connection.getBytesIn());
-        setValue("bytesToClient", _connection.getBytesOut()); 
-        setValue("msgsFromClient", _connection.getMessagesIn());
-        setValue("msgsToClient", _connection.getMessagesOut());
+        return 4;
+    }
 
-        update(); // TODO only set update if statistics change.
-        return super.mapEncode();
+    /**
+     * Returns the names of the cumulative counters among the statistics sampled from the
+     * org.apache.qpid.server.model.Connection.
+     * @return the counter names, indexed in the same way as the sampled statistics.
+     */
+    @Override
+    public String[] getCounterNames()
+    {
+        return _counterNames;
+    }
+
+    /**
+     * Snapshot the org.apache.qpid.server.model.Connection statistics, called periodically by the StatisticsSampler.
+     * @param statistics the array to populate with the current statistics.
+     */
+    @Override
+    public void sampleStatistics(final long[] statistics)
+    {
+        statistics[0] = _connection.getBytesIn();
+        statistics[1] = _connection.getBytesOut();
+        statistics[2] = _connection.getMessagesIn();
+        statistics[3] = _connection.getMessagesOut();
+    }
+
+    /**
+     * Maps a snapshot of org.apache.qpid.server.model.Connection statistics to QMF2 connection properties, called
+     * by the StatisticsSampler when the statistics have changed since the previous snapshot.
+     * @param statistics the snapshot of statistics to set.
+     */
+    @Override
+    public void setStatistics(final long[] statistics)
+    {
+        setValue("bytesFromClient", statistics[0]);
+        setValue("bytesToClient", statistics[1]);
+        setValue("msgsFromClient", statistics[2]);
+        setValue("msgsToClient", statistics[3]);
     }
 }
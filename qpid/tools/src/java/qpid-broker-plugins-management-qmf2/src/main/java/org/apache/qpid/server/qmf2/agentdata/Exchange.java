@@ -23,7 +23,6 @@ package org.apache.qpid.server.qmf2.agentdata;
 
 // Misc Imports
 import java.util.Collections;
-import java.util.Map;
 
 // Simple Logging Facade 4 Java
 import org.slf4j.Logger;
@@ -37,6 +36,7 @@ import org.apache.qpid.qmf2.common.SchemaEventClass;
 //import org.apache.qpid.qmf2.common.SchemaMethod;
 import org.apache.qpid.qmf2.common.SchemaObjectClass;
 //import org.apache.qpid.qmf2.common.SchemaProperty;
+import org.apache.qpid.server.qmf2.StatisticsSampler;
 
 import org.apache.qpid.server.model.LifetimePolicy;
 
@@ -47,14 +47,20 @@ import org.apache.qpid.server.model.LifetimePolicy;
  * to sub-class as we need to map between the properties/statistics as specified in the Java Broker
  * management model and those specified in qpid/spec/management-schema.xml which is what the C++ broker 
  * uses. This class retains a reference to its peer org.apache.qpid.server.model.Exchange and does the
- * necessary mapping when its mapEncode() method is called (which is used to serialise the QmfAgentData).
+ * necessary mapping of its statistics when they are periodically sampled by the StatisticsSampler.
  *
  * @author Fraser Adams
  */
-public class Exchange extends QmfAgentData
+public class Exchange extends QmfAgentData implements StatisticsSource
 {
     private static final Logger _log = LoggerFactory.getLogger(Exchange.class);
 
+    // The names of the cumulative counters among the sampled statistics, null where a statistic isn't a counter.
+    private static final String[] _counterNames =
+    {
+        null, null, "msgReceives", "msgDrops", "byteReceives", "byteDrops"
+    };
+
     /**
      * This static initialiser block initialises the QMF2 Schema information needed by the Agent to find
      * QmfAgentData and QmfEvent Objects of a given type.
@@ -98,6 +104,9 @@ public class Exchange extends QmfAgentData
         // TODO
         //_schema.addProperty(new SchemaProperty("whatHappened", QmfType.TYPE_STRING));
 
+        // Declare the moving average rates that the StatisticsSampler publishes for the counters.
+        StatisticsSampler.addRateProperties(_schema, _counterNames);
+
         // Declare the schema for the QMF2 exchangeDeclare Event class.
         _exchangeDeclareSchema = new SchemaEventClass("org.apache.qpid.broker", "exchangeDeclare");
 
@@ -205,30 +214,63 @@ public class Exchange extends QmfAgentData
     }
 
     /**
-     * This method maps the org.apache.qpid.server.model.Exchange to QMF2 broker properties where possible then
-     * serialises into the underlying Map for transmission via AMQP. This method is called by handleQueryRequest()
-     * in the org.apache.qpid.qmf2.agent.Agent class implementing the main QMF2 Agent behaviour.
-     * 
-     * @return the underlying map. 
+     * Returns the number of statistics sampled from the org.apache.qpid.server.model.Exchange.
+     * @return the number of statistics sampled from the org.apache.qpid.server.model.Exchange.
+     */
+    @Override
+    public int getStatisticsCount()
+    {
+        return 6;
+    }
+
+    /**
+     * Returns the names of the cumulative counters among the statistics sampled from the
+     * org.apache.qpid.server.model.Exchange.
+     * @return the counter names, indexed in the same way as the sampled statistics.
+     */
+    @Override
+    public String[] getCounterNames()
+    {
+        return _counterNames;
+    }
+
+    /**
+     * Snapshot the org.apache.qpid.server.model.Exchange statistics, called periodically by the StatisticsSampler.
+     * @param statistics the array to populate with the current statistics.
      */
     @Override
-    public Map<String, Object> mapEncode()
+    public void sampleStatistics(final long[] statistics)
     {
-        // Statistics
-        long msgReceives = _exchange.getMessagesIn();
-        long msgDrops = _exchange.getMessagesDropped();
+        statistics[0] = _exchange.getPublishers().size();
+        statistics[1] = _exchange.getBindingCount();
+        statistics[2] = _exchange.getMessagesIn();
+        statistics[3] = _exchange.getMessagesDropped();
+        statistics[4] = _exchange.getBytesIn();
+        statistics[5] = _exchange.getBytesDropped();
+    }
+
+    /**
+     * Maps a snapshot of org.apache.qpid.server.model.Exchange statistics to QMF2 exchange properties, called by
+     * the StatisticsSampler when the statistics have changed since the previous snapshot.
+     * @param statistics the snapshot of statistics to set.
+     */
+    @Override
+    public void setStatistics(final long[] statistics)
+    {
+        long msgReceives = statistics[2];
+        long msgDrops = statistics[3];
         long msgRoutes = msgReceives - msgDrops;
 
-        long byteReceives = _exchange.getBytesIn();
-        long byteDrops = _exchange.getBytesDropped();
+        long byteReceives = statistics[4];
+        long byteDrops = statistics[5];
         long byteRoutes = byteReceives - byteDrops;
 
-        setValue("producerCount", _exchange.getPublishers().size());
+        setValue("producerCount", (int)statistics[0]);
 
         // We have to modify the value of bindingCount for Exchange because the QmfManagementAgent "hides" the
         // QMF Objects that relate to its own AMQP Connection/Queues/Bindings so the bindingCount for default direct
         // qmf.default.direct and qmf.default.topic is different to the actual number of QMF bindings.
-        long bindingCount = _exchange.getBindingCount();
+        long bindingCount = statistics[1];
         if (_name.equals(""))
         {
             bindingCount -= 3;
@@ -249,8 +291,5 @@ public class Exchange extends QmfAgentData
         setValue("byteReceives", byteReceives);
         setValue("byteDrops", byteDrops);
         setValue("byteRoutes", byteRoutes);
-
-        update(); // TODO only set update if a statistic has actually changed value.
-        return super.mapEncode();
     }
 }
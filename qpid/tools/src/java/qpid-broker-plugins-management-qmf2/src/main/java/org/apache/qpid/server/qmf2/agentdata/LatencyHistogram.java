@@ -0,0 +1,205 @@
+/*
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *
+ */
+
+package org.apache.qpid.server.qmf2.agentdata;
+
+/**
+ * A fixed memory histogram of latencies in nanoseconds using logarithmic buckets.
+ * <p>
+ * Each power of two range is split into SUB_BUCKETS linear sub-buckets, so the bucket that a value falls in is at
+ * most 25% wider than the value itself whatever its magnitude, and the whole range of positive long values fits in
+ * BUCKET_COUNT buckets. Recording a value is a few shifts and an array increment, and the min, max, count and sum
+ * are maintained exactly so that the C++ broker style min/max/average statistics aren't subject to bucket error.
+ */
+public final class LatencyHistogram
+{
+    private static final int SUB_BUCKET_BITS = 2;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    /**
+     * The number of buckets needed to hold any non-negative long value.
+     */
+    public static final int BUCKET_COUNT = (64 - SUB_BUCKET_BITS)*SUB_BUCKETS;
+
+    private final long[] _buckets = new long[BUCKET_COUNT];
+    private long _count = 0;
+    private long _sum = 0;
+    private long _min = 0;
+    private long _max = 0;
+
+    /**
+     * Return the index of the bucket that a value falls into.
+     * @param value the (non-negative) value.
+     * @return the index of the bucket that the value falls into.
+     */
+    public static int getBucketIndex(final long value)
+    {
+        if (value < SUB_BUCKETS)
+        {
+            return (int)Math.max(value, 0);
+        }
+
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int subBucket = (int)(value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS + 1)*SUB_BUCKETS + subBucket;
+    }
+
+    /**
+     * Return the smallest value that falls into a bucket.
+     * @param index the index of the bucket.
+     * @return the smallest value that falls into the bucket.
+     */
+    public static long getBucketLowerBound(final int index)
+    {
+        if (index < SUB_BUCKETS)
+        {
+            return index;
+        }
+
+        int exponent = index/SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        long subBucket = index & (SUB_BUCKETS - 1);
+        return (1l << exponent) + (subBucket << (exponent - SUB_BUCKET_BITS));
+    }
+
+    /**
+     * Return the largest value that falls into a bucket.
+     * @param index the index of the bucket.
+     * @return the largest value that falls into the bucket.
+     */
+    public static long getBucketUpperBound(final int index)
+    {
+        return (index == BUCKET_COUNT - 1) ? Long.MAX_VALUE : getBucketLowerBound(index + 1) - 1;
+    }
+
+    /**
+     * Record a number of occurrences of a latency.
+     * @param value the latency in nanoseconds, negative values are treated as zero.
+     * @param count the number of occurrences of the latency.
+     */
+    public synchronized void record(long value, final long count)
+    {
+        if (count <= 0)
+        {
+            return;
+        }
+
+        value = Math.max(value, 0);
+        _buckets[getBucketIndex(value)] += count;
+        if (_count == 0 || value < _min)
+        {
+            _min = value;
+        }
+        if (value > _max)
+        {
+            _max = value;
+        }
+        _count += count;
+        _sum += value*count;
+    }
+
+    /**
+     * Discard all recorded latencies.
+     */
+    public synchronized void reset()
+    {
+        for (int i = 0; i < BUCKET_COUNT; i++)
+        {
+            _buckets[i] = 0;
+        }
+        _count = 0;
+        _sum = 0;
+        _min = 0;
+        _max = 0;
+    }
+
+    /**
+     * Return the number of latencies recorded since the last reset.
+     * @return the number of latencies recorded since the last reset.
+     */
+    public synchronized long getCount()
+    {
+        return _count;
+    }
+
+    /**
+     * Return the smallest latency recorded since the last reset.
+     * @return the smallest latency recorded since the last reset, or zero if none have been recorded.
+     */
+    public synchronized long getMin()
+    {
+        return _min;
+    }
+
+    /**
+     * Return the largest latency recorded since the last reset.
+     * @return the largest latency recorded since the last reset, or zero if none have been recorded.
+     */
+    public synchronized long getMax()
+    {
+        return _max;
+    }
+
+    /**
+     * Return the mean latency recorded since the last reset.
+     * @return the mean latency recorded since the last reset, or zero if none have been recorded.
+     */
+    public synchronized long getAverage()
+    {
+        return (_count == 0) ? 0 : _sum/_count;
+    }
+
+    /**
+     * Return an estimate of a percentile of the recorded latencies. The estimate is the upper bound of the bucket
+     * containing the percentile, clamped to the recorded min and max.
+     * @param percentile the percentile to return, between 0 and 100.
+     * @return an estimate of the percentile, or zero if no latencies have been recorded.
+     */
+    public synchronized long getPercentile(final double percentile)
+    {
+        if (_count == 0)
+        {
+            return 0;
+        }
+
+        long rank = (long)Math.ceil(_count*Math.min(Math.max(percentile, 0.0), 100.0)/100.0);
+        rank = Math.max(rank, 1);
+        long cumulative = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++)
+        {
+            cumulative += _buckets[i];
+            if (cumulative >= rank)
+            {
+                return Math.min(Math.max(getBucketUpperBound(i), _min), _max);
+            }
+        }
+        return _max;
+    }
+
+    /**
+     * Return a copy of the bucket counts, the bounds of each bucket are given by getBucketLowerBound() and
+     * getBucketUpperBound().
+     * @return a copy of the bucket counts.
+     */
+    public synchronized long[] getBuckets()
+    {
+        return _buckets.clone();
+    }
+}
@@ -22,7 +22,9 @@
 package org.apache.qpid.server.qmf2.agentdata;
 
 // Misc Imports
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.List;
 import java.util.Map;
 
 // Simple Logging Facade 4 Java
@@ -36,10 +38,13 @@ import org.apache.qpid.qmf2.common.QmfEvent;
 import org.apache.qpid.qmf2.common.Handle;
 import org.apache.qpid.qmf2.common.ObjectId;
 import org.apache.qpid.qmf2.common.QmfData;
+import org.apache.qpid.qmf2.common.QmfException;
+import org.apache.qpid.qmf2.common.QmfType;
 import org.apache.qpid.qmf2.common.SchemaEventClass;
-//import org.apache.qpid.qmf2.common.SchemaMethod;
+import org.apache.qpid.qmf2.common.SchemaMethod;
 import org.apache.qpid.qmf2.common.SchemaObjectClass;
-//import org.apache.qpid.qmf2.common.SchemaProperty;
+import org.apache.qpid.qmf2.common.SchemaProperty;
+import org.apache.qpid.server.qmf2.StatisticsSampler;
 
 import org.apache.qpid.server.model.Exchange;
 import org.apache.qpid.server.model.ExclusivityPolicy;
@@ -52,14 +57,22 @@ import org.apache.qpid.server.model.LifetimePolicy;
  * to sub-class as we need to map between the properties/statistics as specified in the Java Broker
  * management model and those specified in qpid/spec/management-schema.xml which is what the C++ broker 
  * uses. This class retains a reference to its peer org.apache.qpid.server.model.Queue and does the
- * necessary mapping when its mapEncode() method is called (which is used to serialise the QmfAgentData).
+ * necessary mapping of its statistics when they are periodically sampled by the StatisticsSampler.
  *
  * @author Fraser Adams
  */
-public class Queue extends QmfAgentData
+public class Queue extends QmfAgentData implements StatisticsSource
 {
     private static final Logger _log = LoggerFactory.getLogger(Queue.class);
 
+    // The names of the cumulative counters among the sampled statistics, null where a statistic isn't a counter.
+    private static final String[] _counterNames =
+    {
+        "msgTotalEnqueues", "msgTotalDequeues", "msgPersistEnqueues", "msgPersistDequeues", null, null,
+        "byteTotalEnqueues", "byteTotalDequeues", "bytePersistEnqueues", "bytePersistDequeues", null, null, null,
+        null
+    };
+
     /**
      * This static initialiser block initialises the QMF2 Schema information needed by the Agent to find
      * QmfAgentData and QmfEvent Objects of a given type.
@@ -103,6 +116,42 @@ public class Queue extends QmfAgentData
         // TODO
         //_schema.addProperty(new SchemaProperty("whatHappened", QmfType.TYPE_STRING));
 
+        // Declare the moving average rates that the StatisticsSampler publishes for the counters.
+        StatisticsSampler.addRateProperties(_schema, _counterNames);
+
+        // Declare the oldest message age statistics and the methods that reset and return their histogram.
+        try
+        {
+            addAgeProperty("oldestMessageAge", "Age of the oldest message on the queue when last sampled");
+            addAgeProperty("oldestMessageAgeMin", "Smallest sampled oldestMessageAge");
+            addAgeProperty("oldestMessageAgeMax", "Largest sampled oldestMessageAge");
+            addAgeProperty("oldestMessageAgeAverage", "Mean sampled oldestMessageAge");
+            addAgeProperty("oldestMessageAgeP50", "Median sampled oldestMessageAge");
+            addAgeProperty("oldestMessageAgeP95", "95th percentile of sampled oldestMessageAge");
+            addAgeProperty("oldestMessageAgeP99", "99th percentile of sampled oldestMessageAge");
+            SchemaProperty samples = new SchemaProperty("oldestMessageAgeSamples", QmfType.TYPE_INT);
+            samples.setValue("_desc", "Number of oldestMessageAge samples taken whilst the queue wasn't empty");
+            samples.setValue("_optional", true);
+            _schema.addProperty(samples);
+
+            _schema.addMethod(new SchemaMethod("resetOldestMessageAge", "Discard the sampled oldestMessageAge"));
+
+            SchemaMethod histogram = new SchemaMethod("getOldestMessageAgeHistogram",
+                                                      "Return the histogram of sampled oldestMessageAge");
+            histogram.addArgument(new SchemaProperty("count", QmfType.TYPE_INT, "{dir:OUT}"));
+            histogram.addArgument(new SchemaProperty("min", QmfType.TYPE_INT, "{dir:OUT,unit:nanosecond}"));
+            histogram.addArgument(new SchemaProperty("max", QmfType.TYPE_INT, "{dir:OUT,unit:nanosecond}"));
+            histogram.addArgument(new SchemaProperty("average", QmfType.TYPE_INT, "{dir:OUT,unit:nanosecond}"));
+            histogram.addArgument(new SchemaProperty("buckets", QmfType.TYPE_LIST, "{dir:OUT}"));
+            histogram.addArgument(new SchemaProperty("bucketLowerBounds", QmfType.TYPE_LIST,
+                                                     "{dir:OUT,unit:nanosecond}"));
+            _schema.addMethod(histogram);
+        }
+        catch (QmfException qmfe)
+        {
+            _log.error("QmfException caught in Queue static initialiser", qmfe);
+        }
+
         // Declare the schema for the QMF2 queueDeclare Event class.
         _queueDeclareSchema = new SchemaEventClass("org.apache.qpid.broker", "queueDeclare");
 
@@ -111,11 +160,33 @@ public class Queue extends QmfAgentData
     }
     // End of static initialiser.
 
+    /**
+     * Declare an optional oldest message age statistic, in nanoseconds, in the queue schema.
+     * @param name the name of the property.
+     * @param description the description of the property.
+     */
+    private static void addAgeProperty(final String name, final String description) throws QmfException
+    {
+        SchemaProperty property = new SchemaProperty(name, QmfType.TYPE_INT);
+        property.setValue("_unit", "nanosecond");
+        property.setValue("_desc", description);
+        property.setValue("_optional", true);
+        _schema.addProperty(property);
+    }
+
     private final org.apache.qpid.server.model.Queue _queue;
     private String _vhostName = "";
     private ObjectId _alternateExchange = null;
     private String _alternateExchangeName = "";
 
+    /**
+     * The Java Broker model doesn't expose per-message enqueue and dequeue times, so the C++ broker's messageLatency
+     * can't be measured. What it does expose is the age of the oldest message on the Queue, which is how long the
+     * message at the head has waited so far, so that is sampled each statistics interval whilst the Queue isn't
+     * empty and the samples are recorded in this histogram. Its percentiles are of the samples, not of messages.
+     */
+    private final LatencyHistogram _oldestMessageAge = new LatencyHistogram();
+
     /**
      * Constructor.
      * @param vhost the parent VirtualHost ConfiguredObject from the broker model.
@@ -167,6 +238,11 @@ public class Queue extends QmfAgentData
         // Set to empty Map for now to be consistent with C++ broker.
         setValue("arguments", Collections.EMPTY_MAP);
 
+        setOldestMessageAge(0);
+        // messageLatency not implemented in Java Broker, see _oldestMessageAge
+        // flowStopped not implemented in Java Broker
+        // flowStoppedCount not implemented in Java Broker
+
         // ObjectId needs to be set here in Queue because the QMF2 version of qpid-config uses a hardcoded
         // _object_name as below in the _object_id that it sets in the getQueue() call and in queueRef.
         // It *shouldn't* do this and should really use the _object_id of the queue object returned by
@@ -176,12 +252,78 @@ public class Queue extends QmfAgentData
     }
 
     /**
-     * TODO
-     * 
+     * Returns the histogram of sampled oldest message ages for this Queue.
+     * @return the histogram of sampled oldest message ages for this Queue.
+     */
+    public LatencyHistogram getOldestMessageAge()
+    {
+        return _oldestMessageAge;
+    }
+
+    /**
+     * Set oldestMessageAge and the statistics of its histogram, oldestMessageAgeSamples, oldestMessageAgeMin,
+     * oldestMessageAgeMax, oldestMessageAgeAverage, oldestMessageAgeP50, oldestMessageAgeP95 and
+     * oldestMessageAgeP99 (all times in nanoseconds).
+     * @param age the age of the oldest message on the Queue in nanoseconds.
+     */
+    private void setOldestMessageAge(final long age)
+    {
+        setValue("oldestMessageAge", age);
+        setValue("oldestMessageAgeSamples", _oldestMessageAge.getCount());
+        setValue("oldestMessageAgeMin", _oldestMessageAge.getMin());
+        setValue("oldestMessageAgeMax", _oldestMessageAge.getMax());
+        setValue("oldestMessageAgeAverage", _oldestMessageAge.getAverage());
+        setValue("oldestMessageAgeP50", _oldestMessageAge.getPercentile(50));
+        setValue("oldestMessageAgeP95", _oldestMessageAge.getPercentile(95));
+        setValue("oldestMessageAgeP99", _oldestMessageAge.getPercentile(99));
+    }
+
+    /**
+     * This method acts as a single entry point for QMF methods invoked on the Queue Object.
+     * <p>
+     * The resetOldestMessageAge method discards the sampled oldest message ages and getOldestMessageAgeHistogram
+     * returns their count, min, max and average along with the full histogram as the "buckets" list of counts and
+     * the "bucketLowerBounds" list giving the smallest age in nanoseconds that falls into each bucket. Both methods
+     * are declared in the queue schema.
+     *
+     * @param agent the org.apache.qpid.qmf2.agent.Agent instance that we call methodResponse() and raiseException() on.
+     * @param handle the reply handle used by methodResponse() and raiseException().
+     * @param methodName the name of the QMF method being invoked.
+     * @param inArgs a Map of input arguments wrapped in a QmfData Object.
      */
     public void invokeMethod(Agent agent, Handle handle, String methodName, QmfData inArgs)
     {
-        /*if (methodName.equals("purge"))
+        if (methodName.equals("resetOldestMessageAge"))
+        {
+            synchronized (this)
+            {
+                _oldestMessageAge.reset();
+                setOldestMessageAge(getLongValue("oldestMessageAge"));
+                update();
+            }
+            agent.methodResponse(methodName, handle, new QmfData(), null);
+        }
+        else if (methodName.equals("getOldestMessageAgeHistogram"))
+        {
+            long[] buckets = _oldestMessageAge.getBuckets();
+            List<Long> counts = new ArrayList<Long>(buckets.length);
+            List<Long> lowerBounds = new ArrayList<Long>(buckets.length);
+            for (int i = 0; i < buckets.length; i++)
+            {
+                counts.add(buckets[i]);
+                lowerBounds.add(LatencyHistogram.getBucketLowerBound(i));
+            }
+
+            QmfData outArgs = new QmfData();
+            outArgs.setValue("count", _oldestMessageAge.getCount());
+            outArgs.setValue("min", _oldestMessageAge.getMin());
+            outArgs.setValue("max", _oldestMessageAge.getMax());
+            outArgs.setValue("average", _oldestMessageAge.getAverage());
+            outArgs.setValue("buckets", counts);
+            outArgs.setValue("bucketLowerBounds", lowerBounds);
+            agent.methodResponse(methodName, handle, outArgs, null);
+        }
+        else /*if (methodName.equals("purge"))
         {
             //broker.create(inArgs);
         }
@@ -257,21 +399,75 @@ public class Queue extends QmfAgentData
             }
         }
 
-        // Statistics
-        setValue("msgTotalEnqueues", _queue.getTotalEnqueuedMessages());
-        setValue("msgTotalDequeues", _queue.getTotalDequeuedMessages());
+        return super.mapEncode();
+    }
+
+    /**
+     * Returns the number of statistics sampled from the org.apache.qpid.server.model.Queue.
+     * @return the number of statistics sampled from the org.apache.qpid.server.model.Queue.
+     */
+    @Override
+    public int getStatisticsCount()
+    {
+        return 14;
+    }
+
+    /**
+     * Returns the names of the cumulative counters among the statistics sampled from the
+     * org.apache.qpid.server.model.Queue.
+     * @return the counter names, indexed in the same way as the sampled statistics.
+     */
+    @Override
+    public String[] getCounterNames()
+    {
+        return _counterNames;
+    }
+
+    /**
+     * Snapshot the org.apache.qpid.server.model.Queue statistics, called periodically by the StatisticsSampler.
+     * @param statistics the array to populate with the current statistics.
+     */
+    @Override
+    public void sampleStatistics(final long[] statistics)
+    {
+        statistics[0] = _queue.getTotalEnqueuedMessages();
+        statistics[1] = _queue.getTotalDequeuedMessages();
+        statistics[2] = _queue.getPersistentEnqueuedMessages();
+        statistics[3] = _queue.getPersistentDequeuedMessages();
+        statistics[4] = _queue.getQueueDepthMessages();
+        statistics[5] = _queue.getQueueDepthBytes();
+        statistics[6] = _queue.getTotalEnqueuedBytes();
+        statistics[7] = _queue.getTotalDequeuedBytes();
+        statistics[8] = _queue.getPersistentEnqueuedBytes();
+        statistics[9] = _queue.getPersistentDequeuedBytes();
+        statistics[10] = _queue.getConsumerCount();
+        statistics[11] = _queue.getBindingCount();
+        statistics[12] = _queue.getUnacknowledgedMessages();
+        statistics[13] = _queue.getOldestMessageAge();
+    }
+
+    /**
+     * Maps a snapshot of org.apache.qpid.server.model.Queue statistics to QMF2 queue properties, called by the
+     * StatisticsSampler when the statistics have changed since the previous snapshot.
+     * @param statistics the snapshot of statistics to set.
+     */
+    @Override
+    public void setStatistics(final long[] statistics)
+    {
+        setValue("msgTotalEnqueues", statistics[0]);
+        setValue("msgTotalDequeues", statistics[1]);
         // msgTxnEnqueues not implemented in Java Broker
         // msgTxnDequeues not implemented in Java Broker
-        setValue("msgPersistEnqueues", _queue.getPersistentEnqueuedMessages());
-        setValue("msgPersistDequeues", _queue.getPersistentDequeuedMessages());
-        setValue("msgDepth", _queue.getQueueDepthMessages());
-        setValue("byteDepth", _queue.getQueueDepthBytes());
-        setValue("byteTotalEnqueues", _queue.getTotalEnqueuedBytes());
-        setValue("byteTotalDequeues", _queue.getTotalDequeuedBytes());
+        setValue("msgPersistEnqueues", statistics[2]);
+        setValue("msgPersistDequeues", statistics[3]);
+        setValue("msgDepth", (int)statistics[4]);
+        setValue("byteDepth", statistics[5]);
+        setValue("byteTotalEnqueues", statistics[6]);
+        setValue("byteTotalDequeues", statistics[7]);
         // byteTxnEnqueues not implemented in Java Broker
         // byteTxnDequeues not implemented in Java Broker
-        setValue("bytePersistEnqueues", _queue.getPersistentEnqueuedBytes());
-        setValue("bytePersistDequeues", _queue.getPersistentDequeuedBytes());
+        setValue("bytePersistEnqueues", statistics[8]);
+        setValue("bytePersistDequeues", statistics[9]);
 
         // Flow-to-disk Statistics not implemented in Java Broker
         // releases & acquires not implemented in Java Broker
@@ -283,15 +479,16 @@ public class Queue extends QmfAgentData
         // discardsPurge not implemented in Java Broker
         // reroutes not implemented in Java Broker
 
-        setValue("consumerCount", _queue.getConsumerCount());
-        setValue("bindingCount", _queue.getBindingCount());
-        setValue("unackedMessages", _queue.getUnacknowledgedMessages());
-
-        setValue("messageLatency", "Not yet implemented");
-        // flowStopped not implemented in Java Broker
-        // flowStoppedCount not implemented in Java Broker
+        setValue("consumerCount", (int)statistics[10]);
+        setValue("bindingCount", (int)statistics[11]);
+        setValue("unackedMessages", statistics[12]);
 
-        update(); // TODO only update if statistics have actually changed.
-        return super.mapEncode();
+        // The broker gives the oldest message age in milliseconds, it's zero when the Queue is empty.
+        long age = (statistics[4] > 0) ? statistics[13]*1000000l : 0;
+        if (statistics[4] > 0)
+        {
+            _oldestMessageAge.record(age, 1);
+        }
+        setOldestMessageAge(age);
     }
 }
@@ -23,7 +23,6 @@ package org.apache.qpid.server.qmf2.agentdata;
 
 // Misc Imports
 import java.util.Collections;
-import java.util.Map;
 
 // Simple Logging Facade 4 Java
 import org.slf4j.Logger;
@@ -36,6 +35,7 @@ import org.apache.qpid.qmf2.common.ObjectId;
 //import org.apache.qpid.qmf2.common.SchemaMethod;
 import org.apache.qpid.qmf2.common.SchemaObjectClass;
 //import org.apache.qpid.qmf2.common.SchemaProperty;
+import org.apache.qpid.server.qmf2.StatisticsSampler;
 
 /**
  * This class provides a concrete implementation of QmfAgentData for the Session Management Object.
@@ -44,14 +44,20 @@ import org.apache.qpid.qmf2.common.SchemaObjectClass;
  * to sub-class as we need to map between the properties/statistics as specified in the Java Broker
  * management model and those specified in qpid/spec/management-schema.xml which is what the C++ broker 
  * uses. This class retains a reference to its peer org.apache.qpid.server.model.Consumer and does the
- * necessary mapping when its mapEncode() method is called (which is used to serialise the QmfAgentData).
+ * necessary mapping of its statistics when they are periodically sampled by the StatisticsSampler.
  *
  * @author Fraser Adams
  */
-public class Session extends QmfAgentData
+public class Session extends QmfAgentData implements StatisticsSource
 {
     private static final Logger _log = LoggerFactory.getLogger(Session.class);
 
+    // The names of the cumulative counters among the sampled statistics, null where a statistic isn't a counter.
+    private static final String[] _counterNames =
+    {
+        null, "TxnStarts", "TxnRejects"
+    };
+
     /**
      * This static initialiser block initialises the QMF2 Schema information needed by the Agent to find
      * QmfAgentData and QmfEvent Objects of a given type.
@@ -74,6 +80,9 @@ public class Session extends QmfAgentData
 
         // TODO
         //_schema.addProperty(new SchemaProperty("whatHappened", QmfType.TYPE_STRING));
+
+        // Declare the moving average rates that the StatisticsSampler publishes for the counters.
+        StatisticsSampler.addRateProperties(_schema, _counterNames);
     }
     // End of static initialiser.
 
@@ -95,22 +104,48 @@ public class Session extends QmfAgentData
     }
 
     /**
-     * This method maps the org.apache.qpid.server.model.Session to QMF2 subscribe properties where possible then
-     * serialises into the underlying Map for transmission via AMQP. This method is called by handleQueryRequest()
-     * in the org.apache.qpid.qmf2.agent.Agent class implementing the main QMF2 Agent behaviour.
-     * 
-     * @return the underlying map. 
+     * Returns the number of statistics sampled from the org.apache.qpid.server.model.Session.
+     * @return the number of statistics sampled from the org.apache.qpid.server.model.Session.
      */
     @Override
-    public Map<String, Object> mapEncode()
+    public int getStatisticsCount()
     {
-        // Statistics
-        setValue("unackedMessages", _session.getUnacknowledgedMessages());
-        setValue("TxnStarts", _session.getLocalTransactionBegins());
-        setValue("TxnRejects", _session.getLocalTransactionRollbacks());
+        return 3;
+    }
 
-        update(); // TODO Only Update if statistics have changes.
+    /**
+     * Returns the names of the cumulative counters among the statistics sampled from the
+     * org.apache.qpid.server.model.Session.
+     * @return the counter names, indexed in the same way as the sampled statistics.
+     */
+    @Override
+    public String[] getCounterNames()
+    {
+        return _counterNames;
+    }
 
-        return super.mapEncode();
+    /**
+     * Snapshot the org.apache.qpid.server.model.Session statistics, called periodically by the StatisticsSampler.
+     * @param statistics the array to populate with the current statistics.
+     */
+    @Override
+    public void sampleStatistics(final long[] statistics)
+    {
+        statistics[0] = _session.getUnacknowledgedMessages();
+        statistics[1] = _session.getLocalTransactionBegins();
+        statistics[2] = _session.getLocalTransactionRollbacks();
+    }
+
+    /**
+     * Maps a snapshot of org.apache.qpid.server.model.Session statistics to QMF2 session properties, called by
+     * the StatisticsSampler when the statistics have changed since the previous snapshot.
+     * @param statistics the snapshot of statistics to set.
+     */
+    @Override
+    public void setStatistics(final long[] statistics)
+    {
+        setValue("unackedMessages", statistics[0]);
+        setValue("TxnStarts", statistics[1]);
+        setValue("TxnRejects", statistics[2]);
     }
 }
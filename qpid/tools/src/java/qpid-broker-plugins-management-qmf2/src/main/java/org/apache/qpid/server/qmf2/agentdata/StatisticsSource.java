@@ -0,0 +1,59 @@
+/*
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *
+ */
+
+package org.apache.qpid.server.qmf2.agentdata;
+
+/**
+ * This interface is implemented by the QmfAgentData subclasses whose statistics are read from their peer
+ * org.apache.qpid.server.model ConfiguredObject. Rather than reading the statistics each time the object is
+ * serialised the StatisticsSampler periodically snapshots them into a long[] via sampleStatistics() and only
+ * calls setStatistics() (and update()) if the snapshot differs from the previous one, so objects whose statistics
+ * haven't changed aren't republished to subscribers.
+ */
+public interface StatisticsSource
+{
+    /**
+     * Return the number of statistics sampled by this object, which is the length of the array that must be
+     * passed to sampleStatistics() and setStatistics().
+     * @return the number of statistics sampled by this object.
+     */
+    public int getStatisticsCount();
+
+    /**
+     * Return the QMF2 property names of the statistics that are cumulative counters, for which the StatisticsSampler
+     * maintains rate properties. The array is indexed in the same way as the sampled statistics and has null entries
+     * for statistics that aren't cumulative counters, such as depths and counts of current objects.
+     * @return the names of the cumulative counters.
+     */
+    public String[] getCounterNames();
+
+    /**
+     * Read the current statistics from the peer ConfiguredObject into the supplied array.
+     * @param statistics the array to populate, of length getStatisticsCount().
+     */
+    public void sampleStatistics(long[] statistics);
+
+    /**
+     * Map a snapshot previously taken by sampleStatistics() to the QMF2 properties of this object.
+     * @param statistics the snapshot of statistics to set.
+     */
+    public void setStatistics(long[] statistics);
+}
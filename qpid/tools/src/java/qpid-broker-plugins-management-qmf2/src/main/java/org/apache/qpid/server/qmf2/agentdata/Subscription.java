@@ -23,7 +23,6 @@ package org.apache.qpid.server.qmf2.agentdata;
 
 // Misc Imports
 import java.util.Collections;
-import java.util.Map;
 
 // Simple Logging Facade 4 Java
 import org.slf4j.Logger;
@@ -38,6 +37,7 @@ import org.apache.qpid.qmf2.common.SchemaEventClass;
 //import org.apache.qpid.qmf2.common.SchemaMethod;
 import org.apache.qpid.qmf2.common.SchemaObjectClass;
 //import org.apache.qpid.qmf2.common.SchemaProperty;
+import org.apache.qpid.server.qmf2.StatisticsSampler;
 
 import org.apache.qpid.server.model.ExclusivityPolicy;
 import org.apache.qpid.server.model.Queue;
@@ -49,14 +49,20 @@ import org.apache.qpid.server.model.Queue;
  * to sub-class as we need to map between the properties/statistics as specified in the Java Broker
  * management model and those specified in qpid/spec/management-schema.xml which is what the C++ broker 
  * uses. This class retains a reference to its peer org.apache.qpid.server.model.Consumer and does the
- * necessary mapping when its mapEncode() method is called (which is used to serialise the QmfAgentData).
+ * necessary mapping of its statistics when they are periodically sampled by the StatisticsSampler.
  *
  * @author Fraser Adams
  */
-public class Subscription extends QmfAgentData
+public class Subscription extends QmfAgentData implements StatisticsSource
 {
     private static final Logger _log = LoggerFactory.getLogger(Subscription.class);
 
+    // The names of the cumulative counters among the sampled statistics, null where a statistic isn't a counter.
+    private static final String[] _counterNames =
+    {
+        "delivered"
+    };
+
     /**
      * This static initialiser block initialises the QMF2 Schema information needed by the Agent to find
      * QmfAgentData and QmfEvent Objects of a given type.
@@ -100,6 +106,9 @@ public class Subscription extends QmfAgentData
         // TODO
         //_schema.addProperty(new SchemaProperty("whatHappened", QmfType.TYPE_STRING));
 
+        // Declare the moving average rates that the StatisticsSampler publishes for the counters.
+        StatisticsSampler.addRateProperties(_schema, _counterNames);
+
         // Declare the schema for the QMF2 subscribe Event class.
         _subscribeSchema = new SchemaEventClass("org.apache.qpid.broker", "subscribe");
 
@@ -120,12 +129,13 @@ public class Subscription extends QmfAgentData
     public Subscription(final org.apache.qpid.server.model.Consumer subscription)
     {
         super(getSchema());
-        _subscription = subscription; // Will eventually be used in mapEncode() to retrieve statistics.
+        _subscription = subscription; // Used by sampleStatistics() to retrieve statistics.
 
         setValue("name", subscription.getName());
         setValue("browsing", false);      // TODO not supported in Java Broker.
         setValue("acknowledged", true);   // TODO not supported in Java Broker.
         setValue("creditMode", "WINDOW"); // TODO not supported in Java Broker.
+        setValue("exclusive", _exclusive);
     }
 
     /**
@@ -155,6 +165,7 @@ public class Subscription extends QmfAgentData
         // TODO The C++ and Java Brokers should really return consistent information.
         ExclusivityPolicy exclusivityPolicy = queue.getExclusive();
         _exclusive = (exclusivityPolicy != ExclusivityPolicy.NONE) ? true : false;
+        setValue("exclusive", _exclusive);
     }
 
     /**
@@ -191,21 +202,44 @@ public class Subscription extends QmfAgentData
     }
 
     /**
-     * This method maps the org.apache.qpid.server.model.Consumer to QMF2 subscribe properties where possible then
-     * serialises into the underlying Map for transmission via AMQP. This method is called by handleQueryRequest()
-     * in the org.apache.qpid.qmf2.agent.Agent class implementing the main QMF2 Agent behaviour.
-     * 
-     * @return the underlying map. 
+     * Returns the number of statistics sampled from the org.apache.qpid.server.model.Consumer.
+     * @return the number of statistics sampled from the org.apache.qpid.server.model.Consumer.
      */
     @Override
-    public Map<String, Object> mapEncode()
+    public int getStatisticsCount()
     {
-        // Statistics 
-        setValue("delivered", _subscription.getMessagesOut());
+        return 1;
+    }
 
-        setValue("exclusive", _exclusive);
+    /**
+     * Returns the names of the cumulative counters among the statistics sampled from the
+     * org.apache.qpid.server.model.Consumer.
+     * @return the counter names, indexed in the same way as the sampled statistics.
+     */
+    @Override
+    public String[] getCounterNames()
+    {
+        return _counterNames;
+    }
 
-        update(); // TODO Only Update if statistics have changes.
-        return super.mapEncode();
+    /**
+     * Snapshot the org.apache.qpid.server.model.Consumer statistics, called periodically by the StatisticsSampler.
+     * @param statistics the array to populate with the current statistics.
+     */
+    @Override
+    public void sampleStatistics(final long[] statistics)
+    {
+        statistics[0] = _subscription.getMessagesOut();
+    }
+
+    /**
+     * Maps a snapshot of org.apache.qpid.server.model.Consumer statistics to QMF2 subscription properties, called
+     * by the StatisticsSampler when the statistics have changed since the previous snapshot.
+     * @param statistics the snapshot of statistics to set.
+     */
+    @Override
+    public void setStatistics(final long[] statistics)
+    {
+        setValue("delivered", statistics[0]);
     }
 }
@@ -0,0 +1,147 @@
+/*
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *
+ */
+package org.apache.qpid.qmf2.test;
+
+import javax.jms.Connection;
+
+// Misc Imports
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// QMF2 Imports
+import org.apache.qpid.qmf2.common.ObjectId;
+import org.apache.qpid.qmf2.common.QmfData;
+import org.apache.qpid.qmf2.common.QmfEventListener;
+import org.apache.qpid.qmf2.common.QmfException;
+import org.apache.qpid.qmf2.common.WorkItem;
+import org.apache.qpid.qmf2.console.Console;
+import org.apache.qpid.qmf2.console.QmfConsoleData;
+import org.apache.qpid.qmf2.util.ConnectionHelper;
+
+/**
+ * This class checks that properties that a broker ManagementAgent object refreshes in its mapEncode() just before
+ * an object is encoded are current in query results, rather than lagging one query behind. It checks that the
+ * broker's uptime matches the update and create timestamps of the same response and that a queue created with an
+ * alternate exchange has its altExchange reference set in the first query that returns it.
+ */
+public final class QueryConsistencyTest implements QmfEventListener
+{
+    private static final String QUEUE_NAME = "query-consistency-test";
+
+    private Console _console;
+
+    public QueryConsistencyTest(String url)
+    {
+        try
+        {
+            System.out.println("*** Starting QueryConsistencyTest ***");
+
+            Connection connection = ConnectionHelper.createConnection(url, "{reconnect: true}");
+            _console = new Console(this);
+            _console.addConnection(connection);
+
+            boolean passed = true;
+            for (int i = 0; i < 3; i++)
+            {
+                QmfConsoleData broker = getBroker();
+                long uptime = broker.getLongValue("uptime");
+                long expected = broker.getUpdateTime() - broker.getCreateTime();
+                if (uptime != expected)
+                {
+                    System.out.println("Broker uptime " + uptime + " is stale, expected " + expected);
+                    passed = false;
+                }
+                Thread.sleep(1000);
+            }
+
+            QmfData arguments = new QmfData();
+            arguments.setValue("type", "queue");
+            arguments.setValue("name", QUEUE_NAME);
+            Map<String, Object> properties = new HashMap<String, Object>();
+            properties.put("alternate-exchange", "amq.fanout");
+            arguments.setValue("properties", properties);
+            getBroker().invokeMethod("create", arguments);
+
+            List<QmfConsoleData> queues = _console.getObjects("org.apache.qpid.broker", "queue");
+            boolean found = false;
+            for (QmfConsoleData queue : queues)
+            {
+                if (queue.getStringValue("name").equals(QUEUE_NAME))
+                {
+                    found = true;
+                    ObjectId altExchange = queue.getRefValue("altExchange");
+                    if (altExchange == null)
+                    {
+                        System.out.println("Queue " + QUEUE_NAME + " has no altExchange in its first query result");
+                        passed = false;
+                    }
+                }
+            }
+
+            if (!found)
+            {
+                System.out.println("Queue " + QUEUE_NAME + " was not returned by the query");
+                passed = false;
+            }
+
+            arguments = new QmfData();
+            arguments.setValue("type", "queue");
+            arguments.setValue("name", QUEUE_NAME);
+            getBroker().invokeMethod("delete", arguments);
+
+            System.out.println(passed ? "QueryConsistencyTest passed" : "QueryConsistencyTest failed");
+            System.exit(passed ? 0 : 1);
+        }
+        catch (InterruptedException ie)
+        {
+            System.err.println("InterruptedException: QueryConsistencyTest failed");
+            System.exit(1);
+        }
+        catch (QmfException qmfe)
+        {
+            System.err.println("QmfException " + qmfe.getMessage() + ": QueryConsistencyTest failed");
+            System.exit(1);
+        }
+    }
+
+    private QmfConsoleData getBroker() throws QmfException
+    {
+        List<QmfConsoleData> brokers = _console.getObjects("org.apache.qpid.broker", "broker");
+        if (brokers.isEmpty())
+        {
+            throw new QmfException("No broker QmfConsoleData returned");
+        }
+        return brokers.get(0);
+    }
+
+    public void onEvent(WorkItem wi)
+    {
+    }
+
+    public static void main(String[] args)
+    {
+        System.setProperty("amqj.logging.level", "FATAL");
+
+        String url = (args.length == 1) ? args[0] : "localhost";
+        new QueryConsistencyTest(url);
+    }
+}
@@ -30,6 +30,7 @@ import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.InputStreamReader;
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.Date;
 import java.util.HashSet;
 import java.util.List;
@@ -45,6 +46,9 @@ import org.apache.qpid.qmf2.common.ObjectId;
 import org.apache.qpid.qmf2.common.QmfEvent;
 import org.apache.qpid.qmf2.common.QmfEventListener;
 import org.apache.qpid.qmf2.common.QmfException;
+import org.apache.qpid.qmf2.common.QmfQuery;
+import org.apache.qpid.qmf2.common.QmfQueryTarget;
+import org.apache.qpid.qmf2.common.SchemaClassId;
 import org.apache.qpid.qmf2.common.WorkItem;
 import org.apache.qpid.qmf2.console.Agent;
 import org.apache.qpid.qmf2.console.AgentRestartedWorkItem;
@@ -179,12 +183,16 @@ public final class ConnectionAudit implements QmfEventListener
     private void checkExistingSubscriptions()
     {
         readWhitelist();
-        List<QmfConsoleData> subscriptions = _console.getObjects("org.apache.qpid.broker", "subscription");
+        // Ask the broker to inline each subscription's queue, session and connection in the response.
+        SchemaClassId classId = new SchemaClassId("org.apache.qpid.broker", "subscription");
+        QmfQuery query = new QmfQuery(QmfQueryTarget.OBJECT, classId);
+        query.setExpand("queueRef", "sessionRef.connectionRef");
+        List<QmfConsoleData> subscriptions = _console.getObjects(query);
         for (QmfConsoleData subscription : subscriptions)
         {
-            QmfConsoleData queue = dereference(subscription.getRefValue("queueRef"));
-            QmfConsoleData session = dereference(subscription.getRefValue("sessionRef"));
-            QmfConsoleData connection = dereference(session.getRefValue("connectionRef"));
+            QmfConsoleData queue = dereference(subscription, "queueRef");
+            QmfConsoleData session = dereference(subscription, "sessionRef");
+            QmfConsoleData connection = dereference(session, "connectionRef");
             
             String queueName = queue.getStringValue("name");
             String address = connection.getStringValue("address");
@@ -193,6 +201,19 @@ public final class ConnectionAudit implements QmfEventListener
         }
     }
 
+    /**
+     * Dereferences a reference property returning a QmfConsoleData, using the object inlined by the broker if the
+     * query had an "_expand" option and otherwise retrieving it from the broker.
+     * @param data the object holding the reference property.
+     * @param name the name of the reference property.
+     * @return the dereferenced QmfConsoleData object or null if the object can't be found.
+     */
+    private QmfConsoleData dereference(final QmfConsoleData data, final String name)
+    {
+        QmfConsoleData expanded = data.getExpandedValue(name);
+        return (expanded == null) ? dereference(data.getRefValue(name)) : expanded;
+    }
+
     /**
      * Dereferences an ObjectId returning a QmfConsoleData.
      * @param ref the ObjectId to be dereferenced.
@@ -255,7 +276,18 @@ public final class ConnectionAudit implements QmfEventListener
     private void validateQueue(final String queueName, final String address, final String timestamp)
     {
         ObjectId queueId = null;
-        List<QmfConsoleData> queues = _console.getObjects("org.apache.qpid.broker", "queue");
+        List<QmfConsoleData> queues = null;
+        try
+        { // Send the name predicate with the query so the broker only returns the queue called queueName.
+            List<Object> predicate = Arrays.asList((Object)"eq", "name", Arrays.asList("quote", queueName));
+            SchemaClassId classId = new SchemaClassId("org.apache.qpid.broker", "queue");
+            queues = _console.getObjects(new QmfQuery(QmfQueryTarget.OBJECT, classId, predicate));
+        }
+        catch (QmfException qmfe)
+        {
+            queues = _console.getObjects("org.apache.qpid.broker", "queue");
+        }
+
         for (QmfConsoleData queue : queues)
         { // We first have to find the ObjectId of the queue called queueName.
             if (queue.getStringValue("name").equals(queueName))
@@ -272,13 +304,16 @@ public final class ConnectionAudit implements QmfEventListener
         }
         else
         { // If we've got the queue's ObjectId we then find the binding that references it.
-            List<QmfConsoleData> bindings = _console.getObjects("org.apache.qpid.broker", "binding");
+            SchemaClassId classId = new SchemaClassId("org.apache.qpid.broker", "binding");
+            QmfQuery query = new QmfQuery(QmfQueryTarget.OBJECT, classId);
+            query.setExpand("exchangeRef");
+            List<QmfConsoleData> bindings = _console.getObjects(query);
             for (QmfConsoleData binding : bindings)
             {
                 ObjectId queueRef = binding.getRefValue("queueRef");
                 if (queueRef.equals(queueId))
                 { // We've found a binding that matches queue queueName so look up the associated exchange and validate.
-                    QmfConsoleData exchange = dereference(binding.getRefValue("exchangeRef"));
+                    QmfConsoleData exchange = dereference(binding, "exchangeRef");
                     String exchangeName = exchange.getStringValue("name");
                     validateQueue(queueName, exchangeName, binding, address, timestamp);
                 }
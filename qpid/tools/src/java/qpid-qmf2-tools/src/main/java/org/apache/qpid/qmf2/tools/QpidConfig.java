@@ -44,6 +44,9 @@ import java.util.concurrent.atomic.AtomicInteger;
 import org.apache.qpid.qmf2.common.ObjectId;
 import org.apache.qpid.qmf2.common.QmfData;
 import org.apache.qpid.qmf2.common.QmfException;
+import org.apache.qpid.qmf2.common.QmfQuery;
+import org.apache.qpid.qmf2.common.QmfQueryTarget;
+import org.apache.qpid.qmf2.common.SchemaClassId;
 import org.apache.qpid.qmf2.console.Console;
 import org.apache.qpid.qmf2.console.QmfConsoleData;
 import org.apache.qpid.qmf2.util.ConnectionHelper;
@@ -423,6 +426,37 @@ public final class QpidConfig
         return null;
     }
 
+    /**
+     * Retrieve the bindings from the broker indexed by the ObjectId of the exchange or queue that they reference,
+     * so that the bindings of each exchange or queue can be found without scanning every binding.
+     *
+     * The broker is asked to inline the object referenced by the other reference property of each binding, which
+     * saves retrieving every exchange or queue in order to look them up.
+     *
+     * @param indexRef the reference property to index the bindings by, "exchangeRef" or "queueRef".
+     * @param expandRef the reference property to ask the broker to inline.
+     * @return the bindings indexed by the ObjectId referenced by indexRef.
+     */
+    private Map<ObjectId, List<QmfConsoleData>> getBindings(final String indexRef, final String expandRef)
+    {
+        QmfQuery query = new QmfQuery(QmfQueryTarget.OBJECT, new SchemaClassId("org.apache.qpid.broker", "binding"));
+        query.setExpand(expandRef);
+
+        Map<ObjectId, List<QmfConsoleData>> index = new HashMap<ObjectId, List<QmfConsoleData>>();
+        for (QmfConsoleData binding : _console.getObjects(query))
+        {
+            ObjectId ref = binding.getRefValue(indexRef);
+            List<QmfConsoleData> bindings = index.get(ref);
+            if (bindings == null)
+            {
+                bindings = new ArrayList<QmfConsoleData>();
+                index.put(ref, bindings);
+            }
+            bindings.add(binding);
+        }
+        return index;
+    }
+
     /**
      * Provide a basic overview of the number and type of queues and exchanges.
      */
@@ -556,8 +590,8 @@ public final class QpidConfig
     private void exchangeListRecurse(final String filter)
     {
         List<QmfConsoleData> exchanges = _console.getObjects("org.apache.qpid.broker", "exchange");
-        List<QmfConsoleData> bindings = _console.getObjects("org.apache.qpid.broker", "binding");
-        List<QmfConsoleData> queues = _console.getObjects("org.apache.qpid.broker", "queue");
+        Map<ObjectId, List<QmfConsoleData>> bindings = getBindings("exchangeRef", "queueRef");
+        List<QmfConsoleData> queues = null;
 
         for (QmfConsoleData exchange : exchanges)
         {
@@ -567,14 +601,20 @@ public final class QpidConfig
             if (filter.equals("") || filter.equals(name))
             {
                 System.out.printf("Exchange '%s' (%s)\n", name, exchange.getStringValue("type"));
-                for (QmfConsoleData binding : bindings)
+                List<QmfConsoleData> exchangeBindings = bindings.get(exchangeId);
+                if (exchangeBindings != null)
                 {
-                    ObjectId exchangeRef = binding.getRefValue("exchangeRef");
-
-                    if (exchangeRef.equals(exchangeId))
+                    for (QmfConsoleData binding : exchangeBindings)
                     {
-                        ObjectId queueRef = binding.getRefValue("queueRef");
-                        QmfConsoleData queue = findById(queues, queueRef);
+                        QmfConsoleData queue = binding.getExpandedValue("queueRef");
+                        if (queue == null)
+                        { // The broker didn't inline the queue so fall back to looking it up.
+                            if (queues == null)
+                            {
+                                queues = _console.getObjects("org.apache.qpid.broker", "queue");
+                            }
+                            queue = findById(queues, binding.getRefValue("queueRef"));
+                        }
 
                         String queueName = "<unknown>";
                         if (queue != null)
@@ -603,6 +643,31 @@ public final class QpidConfig
         }
     }
 
+    /**
+     * Retrieve the queues from the broker. If a queue name is specified the name predicate is sent with the query
+     * so that only the matching queue is returned by the broker rather than every queue.
+     *
+     * @param name the name of the queue to retrieve, if set to "" retrieves every queue.
+     * @return the List of matching queues.
+     */
+    private List<QmfConsoleData> getQueues(final String name)
+    {
+        if (!name.equals(""))
+        {
+            try
+            {
+                List<Object> predicate = Arrays.asList((Object)"eq", "name", Arrays.asList("quote", name));
+                SchemaClassId classId = new SchemaClassId("org.apache.qpid.broker", "queue");
+                return _console.getObjects(new QmfQuery(QmfQueryTarget.OBJECT, classId, predicate));
+            }
+            catch (QmfException e)
+            {
+                System.err.println(e.toString());
+            }
+        }
+        return _console.getObjects("org.apache.qpid.broker", "queue");
+    }
+
     /**
      * For every queue list detailed info (equivalent of qpid-config queues).
      *
@@ -612,7 +677,7 @@ public final class QpidConfig
      */
     private void queueList(final String filter)
     {
-        List<QmfConsoleData> queues = _console.getObjects("org.apache.qpid.broker", "queue");
+        List<QmfConsoleData> queues = getQueues(filter);
 
         String caption = "Queue Name";
         int maxNameLen = caption.length();
@@ -755,8 +820,8 @@ for (Map.Entry<String, Object> entry  : args.entrySet()) {
     private void queueListRecurse(final String filter)
     {
         List<QmfConsoleData> queues = _console.getObjects("org.apache.qpid.broker", "queue");
-        List<QmfConsoleData> bindings = _console.getObjects("org.apache.qpid.broker", "binding");
-        List<QmfConsoleData> exchanges = _console.getObjects("org.apache.qpid.broker", "exchange");
+        Map<ObjectId, List<QmfConsoleData>> bindings = getBindings("queueRef", "exchangeRef");
+        List<QmfConsoleData> exchanges = null;
 
         for (QmfConsoleData queue : queues)
         {
@@ -767,14 +832,20 @@ for (Map.Entry<String, Object> entry  : args.entrySet()) {
             {
                 System.out.printf("Queue '%s'\n", name);
 
-                for (QmfConsoleData binding : bindings)
+                List<QmfConsoleData> queueBindings = bindings.get(queueId);
+                if (queueBindings != null)
                 {
-                    ObjectId queueRef = binding.getRefValue("queueRef");
-
-                    if (queueRef.equals(queueId))
+                    for (QmfConsoleData binding : queueBindings)
                     {
-                        ObjectId exchangeRef = binding.getRefValue("exchangeRef");
-                        QmfConsoleData exchange = findById(exchanges, exchangeRef);
+                        QmfConsoleData exchange = binding.getExpandedValue("exchangeRef");
+                        if (exchange == null)
+                        { // The broker didn't inline the exchange so fall back to looking it up.
+                            if (exchanges == null)
+                            {
+                                exchanges = _console.getObjects("org.apache.qpid.broker", "exchange");
+                            }
+                            exchange = findById(exchanges, binding.getRefValue("exchangeRef"));
+                        }
 
                         String exchangeName = "<unknown>";
                         if (exchange != null)
@@ -37,18 +37,26 @@ import org.slf4j.LoggerFactory;
 
 // Misc Imports
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
-import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Queue;
 import java.util.Timer;
 import java.util.TimerTask;
 import java.util.UUID;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 // QMF2 Imports
 import org.apache.qpid.qmf2.common.AMQPMessage;
+import org.apache.qpid.qmf2.common.ColumnarResults;
 import org.apache.qpid.qmf2.common.Handle;
 import org.apache.qpid.qmf2.common.Notifier;
 import org.apache.qpid.qmf2.common.NotifierWrapper;
@@ -61,10 +69,12 @@ import org.apache.qpid.qmf2.common.QmfEventListener;
 import org.apache.qpid.qmf2.common.QmfException;
 import org.apache.qpid.qmf2.common.QmfQuery;
 import org.apache.qpid.qmf2.common.QmfQueryTarget;
+import org.apache.qpid.qmf2.common.QmfType;
 import org.apache.qpid.qmf2.common.SchemaClass;
 import org.apache.qpid.qmf2.common.SchemaClassId;
 import org.apache.qpid.qmf2.common.SchemaEventClass;
 import org.apache.qpid.qmf2.common.SchemaObjectClass;
+import org.apache.qpid.qmf2.common.SchemaProperty;
 import org.apache.qpid.qmf2.common.WorkItem;
 import org.apache.qpid.qmf2.common.WorkQueue;
 
@@ -174,6 +184,42 @@ public class Agent extends QmfData implements MessageListener, SubscribableAgent
 {
     private static final Logger _log = LoggerFactory.getLogger(Agent.class);
 
+    /**
+     * The default size in bytes from which responses are compressed for Consoles that accept compression.
+     */
+    public static final int DEFAULT_COMPRESSION_THRESHOLD = 64*1024;
+
+    /**
+     * The schema of the agentStats class used to expose the Agent's AgentStatistics.
+     */
+    private static final SchemaObjectClass _statisticsSchema;
+
+    static
+    {
+        _statisticsSchema = new SchemaObjectClass("org.apache.qpid.qmf2", "agentStats");
+        _statisticsSchema.setIdNames("agentName");
+        try
+        {
+            _statisticsSchema.addProperty(new SchemaProperty("agentName", QmfType.TYPE_STRING));
+            _statisticsSchema.addProperty(new SchemaProperty("requests", QmfType.TYPE_MAP));
+            _statisticsSchema.addProperty(new SchemaProperty("encodes", QmfType.TYPE_INT));
+            _statisticsSchema.addProperty(new SchemaProperty("encodeTime", QmfType.TYPE_INT, "{unit:nanosecond}"));
+            _statisticsSchema.addProperty(new SchemaProperty("encodeBytes", QmfType.TYPE_INT, "{unit:octet}"));
+            _statisticsSchema.addProperty(new SchemaProperty("msgsSent", QmfType.TYPE_INT));
+            _statisticsSchema.addProperty(new SchemaProperty("bytesSent", QmfType.TYPE_INT, "{unit:octet}"));
+            _statisticsSchema.addProperty(new SchemaProperty("eventsRaised", QmfType.TYPE_INT));
+            _statisticsSchema.addProperty(new SchemaProperty("eventsDropped", QmfType.TYPE_INT));
+            _statisticsSchema.addProperty(new SchemaProperty("queryCacheHits", QmfType.TYPE_INT));
+            _statisticsSchema.addProperty(new SchemaProperty("subscriptions", QmfType.TYPE_INT));
+            _statisticsSchema.addProperty(new SchemaProperty("objects", QmfType.TYPE_MAP));
+            _statisticsSchema.addProperty(new SchemaProperty("tombstones", QmfType.TYPE_INT));
+        }
+        catch (QmfException qmfe)
+        { // Only thrown for invalid options, which the above aren't.
+            _log.info("QmfException {} caught creating agentStats schema", qmfe.getMessage());
+        }
+    }
+
     /** 
      * This TimerTask causes the Agent to sent a Hearbeat when it gets scheduled
      */
@@ -201,27 +247,75 @@ public class Agent extends QmfData implements MessageListener, SubscribableAgent
                 // to prevent stale heartbeats from getting to the consoles.
                 _producer.send(_topicAddress, response, Message.DEFAULT_DELIVERY_MODE,
                                Message.DEFAULT_PRIORITY, _heartbeatInterval*2000);
+                _statistics.messageSent(0);
             }
             catch (JMSException jmse)
             {
                 _log.info("JMSException {} caught in sendHeartbeat()", jmse.getMessage());
             }
 
-            // Reap any QmfAgentData Objects that have been marked as Deleted
-            // Use the iterator approach rather than foreach as we may want to call iterator.remove() to zap an entry
-            Iterator<QmfAgentData> i = _objectIndex.values().iterator();
-            while (i.hasNext())
-            {
-                QmfAgentData object = i.next();
-                if (object.isDeleted())
-                {
-                    _log.debug("Removing deleted QmfAgentData Object from store");
-                    i.remove();
-                }
-            }
+            // Reap any QmfAgentData Objects that have been marked as Deleted for longer than the grace period.
+            reapTombstones();
         }
     }
 
+    /**
+     * The key used to order QmfAgentData objects within the per class sorted views held in the _classIndex.
+     * Objects are ordered by their compare key (if they are sortable) and then by ObjectId, so the key is unique.
+     */
+    private static final class SortKey implements Comparable<SortKey>
+    {
+        private final String _compareKey;
+        private final String _objectId;
+
+        public SortKey(final QmfAgentData object)
+        {
+            String compareKey = object.getCompareKey();
+            _compareKey = (compareKey == null) ? "" : compareKey;
+            _objectId = object.getObjectId().toString();
+        }
+
+        public int compareTo(final SortKey rhs)
+        {
+            int result = _compareKey.compareTo(rhs._compareKey);
+            return (result == 0) ? _objectId.compareTo(rhs._objectId) : result;
+        }
+    }
+
+    /**
+     * A QmfAgentData as it was encoded in the snapshot that a query is being evaluated in. The properties are
+     * those of the encoded Version, so predicates, "_top" and "_aggregate" options see the same state of the object
+     * that is sent to the Console rather than its live properties.
+     */
+    private static final class Snapshot extends QmfData
+    {
+        private final QmfAgentData _object;
+        private final Map<String, Object> _encoded;
+
+        public Snapshot(final QmfAgentData object)
+        {
+            this(object, object.mapEncode());
+        }
+
+        private Snapshot(final QmfAgentData object, final Map<String, Object> encoded)
+        {
+            super(encoded);
+            _object = object;
+            _encoded = encoded;
+        }
+    }
+
+    /**
+     * Orders Snapshots in the same way as the QmfAgentData they were taken from.
+     */
+    private static final Comparator<Snapshot> SNAPSHOT_ORDER = new Comparator<Snapshot>()
+    {
+        public int compare(final Snapshot lhs, final Snapshot rhs)
+        {
+            return lhs._object.compareTo(rhs._object);
+        }
+    };
+
     //                                             Attributes
     // ********************************************************************************************************
 
@@ -242,18 +336,84 @@ public class Agent extends QmfData implements MessageListener, SubscribableAgent
      * _objectIndex is the global index of QmfAgentData objects registered with this Agent.
      * The capacity of 100 is pretty arbitrary but the default of 16 seems too low for most Agents.
      */
-    private Map<ObjectId, QmfAgentData> _objectIndex = new ConcurrentHashMap<ObjectId, QmfAgentData>(100);
+    private ConcurrentMap<ObjectId, QmfAgentData> _objectIndex = new ConcurrentHashMap<ObjectId, QmfAgentData>(100);
+
+    /**
+     * _objectNumber allocates the names of objects whose schema has no idNames. The ObjectId also holds the Agent
+     * name and epoch so a per Agent sequence is sufficient, and is much cheaper than a randomUUID.
+     */
+    private AtomicLong _objectNumber = new AtomicLong();
+
+    /**
+     * _namePrefixes caches the "package:class:" prefix of the object names of each class.
+     */
+    private ConcurrentMap<SchemaClassId, String> _namePrefixes = new ConcurrentHashMap<SchemaClassId, String>();
+
+    /**
+     * _classIndex holds a view of the QmfAgentData in the _objectIndex for each SchemaClassId, maintained in
+     * compare key order as objects are added and destroyed. This allows queries to iterate only the classes they
+     * target and to return sortable QmfAgentData in order without sorting the results of every query.
+     */
+    private ConcurrentMap<SchemaClassId, ConcurrentSkipListMap<SortKey, QmfAgentData>> _classIndex =
+        new ConcurrentHashMap<SchemaClassId, ConcurrentSkipListMap<SortKey, QmfAgentData>>();
+
+    /**
+     * _classVersions holds the latest version of each class in the _classIndex, advanced as objects of the class
+     * are added, modified and destroyed. This allows the _queryCache to tell whether a response is out of date.
+     */
+    private ConcurrentMap<SchemaClassId, AtomicLong> _classVersions =
+        new ConcurrentHashMap<SchemaClassId, AtomicLong>();
+
+    /**
+     * _queryCache holds recent OBJECT query responses if setQueryCacheTTL() has been called, otherwise it is null.
+     */
+    private volatile QueryCache _queryCache = null;
+    private int _queryCacheTTL = 0;
+
+    /**
+     * Query responses and subscription indications at least this many bytes long are deflate compressed if the
+     * Console accepts it, see AMQPMessage. Zero disables compression.
+     */
+    private int _compressionThreshold = DEFAULT_COMPRESSION_THRESHOLD;
+
+    /**
+     * _tombstones holds QmfAgentData objects that have been destroyed but not yet removed from the _objectIndex.
+     * QmfAgentData.destroy() appends to this queue, so it is ordered by delete time and the reaper only needs to
+     * drain its head rather than scan every live object in the _objectIndex.
+     */
+    private Queue<QmfAgentData> _tombstones = new ConcurrentLinkedQueue<QmfAgentData>();
+
+    /**
+     * The time (in seconds) that a destroyed QmfAgentData is retained in the _objectIndex before it gets reaped.
+     */
+    private int _reapGracePeriod = 0;
 
     /**
      * This Map is used to look up Subscriptions by SubscriptionId
      */
     private Map<String, Subscription> _subscriptions = new ConcurrentHashMap<String, Subscription>();
 
+    /**
+     * Indexes the active Subscriptions by query target so addObject() only needs to evaluate candidate Subscriptions.
+     */
+    private SubscriptionIndex _subscriptionIndex = new SubscriptionIndex();
+
+    /**
+     * The ObjectProviders that supply the QmfAgentData of a schema class on demand, keyed by SchemaClassId.
+     */
+    private ConcurrentMap<SchemaClassId, ObjectProvider> _providers =
+        new ConcurrentHashMap<SchemaClassId, ObjectProvider>();
+
     /**
      * Used to implement a thread safe queue of WorkItem objects used to implement the Notifier API
      */
     private WorkQueue _workQueue = new WorkQueue();
 
+    /**
+     * The low overhead counters of the Agent's own activity, exposed by registerStatisticsClass().
+     */
+    private final AgentStatistics _statistics = new AgentStatistics();
+
     /**
      * If a name is supplied, it must be unique across all attached to the AMQP bus under the given domain.
      * The name must comprise three parts separated by colons: <vendor>:<product>[:<instance>], where the
@@ -336,6 +496,17 @@ public class Agent extends QmfData implements MessageListener, SubscribableAgent
      * @param message the JMS Message to be sent.
      */
     private final void sendResponse(final Handle handle, final Message message) throws JMSException
+    {
+        sendResponse(handle, message, 0);
+    }
+
+    /**
+     * Send a response whose body size is known, see sendResponse(Handle, Message).
+     * @param handle the reply handle that contains the replyTo Address.
+     * @param message the JMS Message to be sent.
+     * @param bytes the size of the message body, used for the AgentStatistics.
+     */
+    private final void sendResponse(final Handle handle, final Message message, final int bytes) throws JMSException
     {
         // Just in case the replyTo issues still exist check if the replyTo starts
         // with qmf.default.topic or qmf.default.direct and if so send to the
@@ -354,6 +525,54 @@ public class Agent extends QmfData implements MessageListener, SubscribableAgent
         {
             _producer.send(handle.getReplyTo(), message);
         }
+        _statistics.messageSent(bytes);
+    }
+
+    /**
+     * Encode a List on an amqp/list message via AMQPMessage.writeList(), recording the encode time and size.
+     * @param message the amqp/list encoded JMS Message.
+     * @param list the List to encode into the Message.
+     * @return the size in bytes of the encoded List.
+     */
+    private final int setList(final Message message, final List list) throws JMSException
+    {
+        long startTime = System.nanoTime();
+        int bytes = AMQPMessage.writeList(message, list);
+        _statistics.listEncoded(System.nanoTime() - startTime, bytes);
+        return bytes;
+    }
+
+    /**
+     * Encode a List on an amqp/list response message, compressing it if the Console that sent the request accepts
+     * compression and the encoded List reaches the compression threshold.
+     * @param handle the reply handle of the request being responded to.
+     * @param message the amqp/list encoded JMS Message.
+     * @param list the List to encode into the Message.
+     * @return the size in bytes of the message body.
+     */
+    private final int setList(final Handle handle, final Message message, final List list) throws JMSException
+    {
+        int threshold = getCompressionThreshold(handle);
+        if (threshold == 0)
+        {
+            return setList(message, list);
+        }
+
+        long startTime = System.nanoTime();
+        byte[] body = AMQPMessage.encodeList(list);
+        int bytes = AMQPMessage.setEncodedList(message, body, threshold);
+        _statistics.listEncoded(System.nanoTime() - startTime, bytes);
+        return bytes;
+    }
+
+    /**
+     * Return the size from which a response is compressed.
+     * @param handle the reply handle of the request being responded to.
+     * @return the compression threshold if the Console that sent the request accepts compression, otherwise zero.
+     */
+    private final int getCompressionThreshold(final Handle handle)
+    {
+        return AMQPMessage.DEFLATE.equals(handle.getCompression()) ? _compressionThreshold : 0;
     }
 
     /**
@@ -420,6 +639,14 @@ public class Agent extends QmfData implements MessageListener, SubscribableAgent
             {
                 results.add(objectId.mapEncode());
             }
+
+            for (ObjectProvider provider : _providers.values())
+            {
+                for (ObjectId objectId : provider.getObjectIds())
+                {
+                    results.add(objectId.mapEncode());
+                }
+            }
             queryResponse(handle, results, "_object_id"); // Send the response back to the Console.
         }
         else if (target == QmfQueryTarget.OBJECT)
@@ -431,85 +658,278 @@ public class Agent extends QmfData implements MessageListener, SubscribableAgent
                 return;
             }
             else
-            { // If not implementing the AgentExternal model we handle the Query ourself.
-                //qmfContentType = "_data";
-                if (query.getObjectId() != null)
+            { // If not implementing the AgentExternal model we handle the Query ourself, reading the objects in a
+              // snapshot of the store so that the results describe the objects at a single point in time.
+                long snapshot = QmfAgentData.beginSnapshot();
+                try
                 {
-                    List<Map> results = new ArrayList<Map>(1);
-                    // Look up a QmfAgentData object by the ObjectId obtained from the query
-                    ObjectId objectId = query.getObjectId();
-                    QmfAgentData object = _objectIndex.get(objectId);
-                    if (object != null && !object.isDeleted())
-                    {
-                        results.add(object.mapEncode());
-                    }
-                    queryResponse(handle, results, "_data"); // Send the response back to the Console.
+                    handleObjectQuery(handle, query);
                 }
-                else
+                finally
+                {
+                    QmfAgentData.endSnapshot(snapshot);
+                }
+            }
+        }
+        else
+        {
+            raiseException(handle, "Query for _what => '" + target + "' not supported");
+            return;
+        }
+    } // end of handleQueryRequest()
+
+    /**
+     * Send the response to an OBJECT query back to the Console, from the _queryCache if it is enabled and holds a
+     * response to the same query that is still valid.
+     * @param handle the reply handle that contains the replyTo Address.
+     * @param query the inbound query from the Console.
+     */
+    private final void handleObjectQuery(final Handle handle, final QmfQuery query)
+    {
+        //qmfContentType = "_data";
+        QueryCache cache = _queryCache;
+        if (cache == null)
+        {
+            queryResponse(handle, encodeResults(query, evaluateObjectQuery(query)), "_data");
+            return;
+        }
+
+        long version = getQueryVersion(query);
+        if (version == ObjectProvider.UNTRACKED)
+        { // The query might match provided objects that can't tell whether they've changed, so can't be cached.
+            queryResponse(handle, encodeResults(query, evaluateObjectQuery(query)), "_data");
+            return;
+        }
+
+        Object key = QueryCache.getKey(query);
+        QueryCache.Entry entry = cache.get(key, version);
+        if (entry == null)
+        {
+            List<Map> results = encodeResults(query, evaluateObjectQuery(query));
+            long startTime = System.nanoTime();
+            byte[] body = AMQPMessage.encodeList(results);
+            _statistics.listEncoded(System.nanoTime() - startTime, body.length);
+            entry = cache.put(key, QmfAgentData.getSnapshotVersion(), body);
+        }
+        else
+        {
+            _statistics.queryCacheHit();
+        }
+        queryResponse(handle, entry, "_data"); // Send the response back to the Console.
+    }
+
+    /**
+     * Convert the results of a query into the form that the Console asked for.
+     * @param query the inbound query from the Console.
+     * @param results the list of mapEncoded query results.
+     * @return the results in columnar form if the query asked for it, otherwise results.
+     */
+    static List<Map> encodeResults(final QmfQuery query, final List<Map> results)
+    {
+        return query.isColumnar() ? ColumnarResults.encode(results) : results;
+    }
+
+    /**
+     * Evaluate an OBJECT query over the Agent's own store.
+     * @param query the inbound query from the Console.
+     * @return the list of mapEncoded query results.
+     */
+    private final List<Map> evaluateObjectQuery(final QmfQuery query)
+    {
+        if (query.getObjectId() != null)
+        {
+            List<Map> results = new ArrayList<Map>(1);
+            // Look up a QmfAgentData object by the ObjectId obtained from the query
+            ObjectId objectId = query.getObjectId();
+            QmfAgentData object = getObject(objectId);
+            if (object != null && !object.isDeleted())
+            {
+                results.add(object.mapEncode());
+            }
+            return expandReferences(query, results);
+        }
+
+        // Look up QmfAgentData objects by evaluating the query over the per class views that it might
+        // match. This allows searches with only the className specified and for ID queries only the
+        // views of the targetted classes need to be searched. Each view is maintained in compare key
+        // order so sortable QmfAgentData come out already sorted unless the results span several classes.
+        List<Snapshot> objects = new ArrayList<Snapshot>();
+        // A "_top" option is applied while scanning, so only the objects that will be returned are retained.
+        QmfQuery.TopSelector<Snapshot> top = query.isAggregate() ? null : query.<Snapshot>createTopSelector();
+        // It's unlikely that evaluating this query will return a mixture of sortable and notSortable
+        // QmfAgentData objects, but it's best to check if that has occurred as sorting a mixture
+        // wouldn't make much sense.
+        boolean sortable = false;
+        boolean notSortable = false;
+        int classCount = 0;
+        for (Collection<QmfAgentData> view : getClassViews(query))
+        {
+            boolean matched = false;
+            for (QmfAgentData object : view)
+            {
+                Snapshot snapshot = evaluate(query, object);
+                if (snapshot != null)
                 {
-                    // Look up QmfAgentData objects by the SchemaClassId obtained from the query
-                    // This is implemented by a linear search and allows searches with only the className specified.
-                    // Linear searches clearly don't scale brilliantly, but the number of QmfAgentData objects managed
-                    // by an Agent is generally fairly small, so it should be OK. Note that this is the same approach
-                    // taken by the C++ broker ManagementAgent, so if it's a problem here........
-
-                    // N.B. the results list declared here is a generic List of Objects. We *must* only pass a List of
-                    // Map to queryResponse(), but conversely if the response items are sortable we need to sort them
-                    // before doing mapEncode(). Unfortunately we don't know if the items are sortable a priori so
-                    // we either add a Map or we add a QmfAgentData, then sort then mapEncode() each item. I'm not
-                    // sure of a more elegant way to do this without creating two lists, which might not be so bad
-                    // but we don't know the size of the list a priori either.
-                    List results = new ArrayList(_objectIndex.size());
-                    // It's unlikely that evaluating this query will return a mixture of sortable and notSortable 
-                    // QmfAgentData objects, but it's best to check if that has occurred as accidentally passing a
-                    // List of QmfAgentData instead of a List of Map to queryResponse() will break things.
-                    boolean sortable = false;
-                    boolean notSortable = false;
-                    for (QmfAgentData object : _objectIndex.values())
+                    matched = true;
+                    if (top == null)
                     {
-                        if (!object.isDeleted() && query.evaluate(object))
-                        {
-                            if (object.isSortable())
-                            { // If QmfAgentData is marked sortable we add the QmfAgentData object to the List
-                              // so we can sort first before mapEncoding.
-                                results.add(object);
-                                sortable = true;
-                            }
-                            else
-                            { // If QmfAgentData is not marked sortable we mapEncode immediately and add the Map to List.
-                                results.add(object.mapEncode());
-                                notSortable = true;
-                            }
-                        }
+                        objects.add(snapshot);
+                    }
+                    else
+                    {
+                        top.add(snapshot);
                     }
 
-                    // If both flags have been set something has gone a bit weird, so we log an error and clear the
-                    // results List to avoid sending unconvertable data. Hopefully this condition should never occur.
-                    if (sortable && notSortable)
+                    if (object.isSortable())
                     {
-                        _log.info("Query resulted in inconsistent mixture of sortable and non-sortable data.");
-                        results.clear();
+                        sortable = true;
                     }
-                    else if (sortable)
+                    else
                     {
-                        Collections.sort(results);
-                        int length = results.size();
-                        for (int i = 0; i < length; i++)
-                        {
-                            QmfAgentData object = (QmfAgentData)results.get(i);
-                            results.set(i, object.mapEncode());
-                        }
+                        notSortable = true;
                     }
-                    queryResponse(handle, results, "_data"); // Send the response back to the Console.
                 }
             }
+
+            if (matched)
+            {
+                classCount++;
+            }
         }
-        else
+
+        // If both flags have been set something has gone a bit weird, so we log an error and clear the
+        // results List to avoid sending inconsistent data. Hopefully this condition should never occur.
+        if (sortable && notSortable)
         {
-            raiseException(handle, "Query for _what => '" + target + "' not supported");
-            return;
+            _log.info("Query resulted in inconsistent mixture of sortable and non-sortable data.");
+            objects.clear();
+        }
+        else if (query.isAggregate())
+        { // Send summary rows rather than the objects themselves.
+            return query.aggregate(objects);
+        }
+        else if (top != null)
+        {
+            objects = top.getResults();
+        }
+        else if (sortable && classCount > 1)
+        { // The views are only ordered within a class, so results spanning several classes need merging.
+            Collections.sort(objects, SNAPSHOT_ORDER);
+        }
+
+        List<Map> results = new ArrayList<Map>(objects.size());
+        for (Snapshot object : objects)
+        {
+            results.add(object._encoded);
+        }
+        return expandReferences(query, results);
+    }
+
+    /**
+     * Inline the objects referenced by the results of a query that has an "_expand" option, see QmfQuery. Each
+     * reference is resolved by a single lookup in the _objectIndex, in the same snapshot as the results.
+     * @param query the QmfQuery being evaluated.
+     * @param results the list of mapEncoded query results.
+     * @return the results with an "_expanded" Map added to those that have references to expand.
+     */
+    private final List<Map> expandReferences(final QmfQuery query, final List<Map> results)
+    {
+        List<String> paths = query.getExpand();
+        if (paths == null || paths.size() == 0)
+        {
+            return results;
+        }
+
+        // Build a tree of the reference property names so that a common prefix of several paths is resolved once.
+        Map<String, Map> tree = new HashMap<String, Map>();
+        for (String path : paths)
+        {
+            Map<String, Map> node = tree;
+            for (String name : path.split("\\."))
+            {
+                Map<String, Map> child = node.get(name);
+                if (child == null)
+                {
+                    child = new HashMap<String, Map>();
+                    node.put(name, child);
+                }
+                node = child;
+            }
+        }
+
+        List<Map> expanded = new ArrayList<Map>(results.size());
+        for (Map result : results)
+        {
+            expanded.add(expandReferences(result, tree));
+        }
+        return expanded;
+    }
+
+    /**
+     * Inline the objects referenced by a mapEncoded object.
+     * @param encoded the mapEncoded object, which is shared so is copied rather than modified.
+     * @param tree the reference property names to expand, each mapped to the names to expand in the referenced
+     *        object.
+     * @return the object with an "_expanded" Map added, or the original object if none of its references resolve.
+     */
+    @SuppressWarnings("unchecked")
+    private final Map expandReferences(final Map encoded, final Map<String, Map> tree)
+    {
+        Map values = (Map)encoded.get("_values");
+        if (values == null)
+        { // Rows of "_aggregate" queries have no references.
+            return encoded;
+        }
+
+        Map<String, Object> expansions = new HashMap<String, Object>(tree.size());
+        for (Map.Entry<String, Map> entry : tree.entrySet())
+        {
+            Object ref = values.get(entry.getKey());
+            if (ref instanceof Map)
+            {
+                QmfAgentData object = getObject(new ObjectId((Map)ref));
+                if (object != null && !object.isDeleted())
+                {
+                    Map<String, Map> subtree = entry.getValue();
+                    Map referenced = object.mapEncode();
+                    expansions.put(entry.getKey(), subtree.isEmpty() ? referenced :
+                                                   expandReferences(referenced, subtree));
+                }
+            }
+        }
+
+        if (expansions.isEmpty())
+        {
+            return encoded;
+        }
+
+        Map<String, Object> copy = new HashMap<String, Object>(encoded);
+        copy.put("_expanded", expansions);
+        return copy;
+    }
+
+    /**
+     * Evaluate a query against a QmfAgentData that isn't deleted. Predicates are evaluated against the Version of
+     * the object in the current snapshot rather than its live properties, which may be part way through changing.
+     * @param query the QmfQuery being evaluated.
+     * @param object the QmfAgentData being checked.
+     * @return the Snapshot of the object if it matches the query, otherwise null.
+     */
+    private static Snapshot evaluate(final QmfQuery query, final QmfAgentData object)
+    {
+        if (object.isDeleted())
+        {
+            return null;
         }
-    } // end of handleQueryRequest()
+
+        if (query.getPredicate() == null)
+        {
+            return query.evaluate(object) ? new Snapshot(object) : null;
+        }
+
+        Snapshot snapshot = new Snapshot(object);
+        return query.evaluate(snapshot) ? snapshot : null;
+    }
 
     /**
      * Return a QmfAgentData from the internal Object store given its ObjectId.
@@ -523,10 +943,55 @@ public class Agent extends QmfData implements MessageListener, SubscribableAgent
      * </pre>
      * to identify the method name and Object instance it seems odd not to have a public API method to look up
      * said Object by ObjectId. Clearly a separate Map could be maintained in client code but that seems pointless.
+     * <p>
+     * If the object isn't in the internal Object store any registered ObjectProviders are asked for it.
      */
     public final QmfAgentData getObject(ObjectId objectId)
     {
-        return _objectIndex.get(objectId);
+        QmfAgentData object = _objectIndex.get(objectId);
+        if (object == null)
+        {
+            for (ObjectProvider provider : _providers.values())
+            {
+                object = provider.getObject(objectId);
+                if (object != null)
+                {
+                    break;
+                }
+            }
+        }
+        return object;
+    }
+
+    /**
+     * Called by QmfAgentData.destroy() to queue a newly deleted object for removal from the _objectIndex.
+     * @param object the QmfAgentData that has just been marked as deleted.
+     */
+    final void addTombstone(final QmfAgentData object)
+    {
+        removeFromClassIndex(object);
+        _tombstones.add(object);
+    }
+
+    /**
+     * Remove deleted QmfAgentData objects whose grace period has expired from the _objectIndex.
+     * <p>
+     * Only the _tombstones queue is examined, live objects are never scanned. As tombstones are queued in delete
+     * time order we can stop at the first one that is still within its grace period.
+     */
+    private final void reapTombstones()
+    {
+        long expiry = (System.currentTimeMillis() - _reapGracePeriod*1000l)*1000000l;
+        QmfAgentData object;
+        while ((object = _tombstones.peek()) != null && object.getDeleteTime() <= expiry)
+        {
+            _tombstones.poll();
+            // Only remove the entry if it still refers to the tombstoned object, the ObjectId may have been reused.
+            if (_objectIndex.remove(object.getObjectId(), object))
+            {
+                _log.debug("Removing deleted QmfAgentData Object from store");
+            }
+        }
     }
 
     /**
@@ -561,7 +1026,8 @@ public class Agent extends QmfData implements MessageListener, SubscribableAgent
     // ********************************************************************************************************
 
     /**
-     * Send a list of updated subscribed data to the Console.
+     * Send a list of updated subscribed data to the Console. As with queryResponse() any cached encoded forms
+     * of the results are spliced into the indication rather than being re-encoded.
      *
      * @param handle the console reply handle.
      * @param results a list of subscribed data in Map encoded form.
@@ -578,8 +1044,8 @@ public class Agent extends QmfData implements MessageListener, SubscribableAgent
             response.setStringProperty("qmf.content", "_data");
             response.setStringProperty("qmf.agent", _name);
             response.setStringProperty("qpid.subject", handle.getRoutingKey());
-            AMQPMessage.setList(response, results);
-            sendResponse(handle, response);
+            int bytes = setList(handle, response, results);
+            sendResponse(handle, response, bytes);
         }
         catch (JMSException jmse)
         {
@@ -603,25 +1069,177 @@ public class Agent extends QmfData implements MessageListener, SubscribableAgent
             {
                 // Look up a QmfAgentData object by the ObjectId obtained from the query
                 ObjectId objectId = query.getObjectId();
-                QmfAgentData object = _objectIndex.get(objectId);
+                QmfAgentData object = getObject(objectId);
                 if (object != null && !object.isDeleted())
                 {
                     results.add(object);
                 }
             }
-            else
+            else
+            {
+                // Look up QmfAgentData objects evaluating the query over the class views that it might match,
+                // in a snapshot of the store unless the caller has already started one.
+                long snapshot = QmfAgentData.beginSnapshot();
+                try
+                {
+                    for (Collection<QmfAgentData> view : getClassViews(query))
+                    {
+                        for (QmfAgentData object : view)
+                        {
+                            if (evaluate(query, object) != null)
+                            {
+                                results.add(object);
+                            }
+                        }
+                    }
+                }
+                finally
+                {
+                    QmfAgentData.endSnapshot(snapshot);
+                }
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Return the sorted per class views of QmfAgentData that the specified query might match. For a query with a
+     * SchemaClassId, with or without a predicate, this is just the views of matching classes, for other queries it
+     * is every view. The objects currently
+     * supplied by any matching ObjectProviders are included as additional views.
+     * @param query the QmfQuery being evaluated.
+     * @return a List of views, each of which iterates its QmfAgentData in compare key order.
+     */
+    private final List<Collection<QmfAgentData>> getClassViews(final QmfQuery query)
+    {
+        boolean classQuery = query.getObjectId() == null && query.getSchemaClassId() != null;
+        List<Collection<QmfAgentData>> views = new ArrayList<Collection<QmfAgentData>>();
+        for (Map.Entry<SchemaClassId, ConcurrentSkipListMap<SortKey, QmfAgentData>> entry : _classIndex.entrySet())
+        {
+            if (!classQuery || query.matchesSchemaClassId(entry.getKey()))
+            {
+                views.add(entry.getValue().values());
+            }
+        }
+
+        for (Map.Entry<SchemaClassId, ObjectProvider> entry : _providers.entrySet())
+        {
+            if (!classQuery || query.matchesSchemaClassId(entry.getKey()))
+            {
+                views.add(entry.getValue().getObjects());
+            }
+        }
+        return views;
+    }
+
+    /**
+     * Add a QmfAgentData to the sorted view of its class.
+     * @param object the QmfAgentData being added.
+     */
+    private final void addToClassIndex(final QmfAgentData object)
+    {
+        SchemaClassId classId = object.getSchemaClassId();
+        ConcurrentSkipListMap<SortKey, QmfAgentData> view = _classIndex.get(classId);
+        if (view == null)
+        {
+            view = new ConcurrentSkipListMap<SortKey, QmfAgentData>();
+            ConcurrentSkipListMap<SortKey, QmfAgentData> existing = _classIndex.putIfAbsent(classId, view);
+            if (existing != null)
+            {
+                view = existing;
+            }
+        }
+        view.put(new SortKey(object), object);
+        QmfAgentData.advanceVersion(getClassVersion(classId), QmfAgentData.nextVersion());
+    }
+
+    /**
+     * Remove a QmfAgentData from the sorted view of its class.
+     * @param object the QmfAgentData being removed.
+     */
+    private final void removeFromClassIndex(final QmfAgentData object)
+    {
+        ConcurrentSkipListMap<SortKey, QmfAgentData> view = _classIndex.get(object.getSchemaClassId());
+        if (view != null)
+        {
+            view.remove(new SortKey(object), object);
+        }
+        QmfAgentData.advanceVersion(getClassVersion(object.getSchemaClassId()), QmfAgentData.nextVersion());
+    }
+
+    /**
+     * Return the latest version marker of a class, which QmfAgentData of the class advance when they are mutated.
+     * @param classId the SchemaClassId of the class.
+     * @return the version marker of the class.
+     */
+    final AtomicLong getClassVersion(final SchemaClassId classId)
+    {
+        AtomicLong version = _classVersions.get(classId);
+        if (version == null)
+        {
+            version = new AtomicLong();
+            AtomicLong existing = _classVersions.putIfAbsent(classId, version);
+            if (existing != null)
+            {
+                version = existing;
+            }
+        }
+        return version;
+    }
+
+    /**
+     * Return the latest version of the classes that a query might match, using the same selection of classes as
+     * getClassViews(), including those supplied by an ObjectProvider. A cached response to the query evaluated at
+     * or after this version is still valid.
+     * @param query the QmfQuery being evaluated.
+     * @return the latest version of the classes that the query might match, or ObjectProvider.UNTRACKED if it
+     *         might match provided objects whose changes aren't tracked.
+     */
+    private final long getQueryVersion(final QmfQuery query)
+    {
+        // The classes of objects inlined by an "_expand" option aren't known in advance, so any change counts.
+        boolean classQuery = query.getObjectId() == null && query.getSchemaClassId() != null &&
+                             query.getExpand() == null;
+        long version = 0;
+        for (Map.Entry<SchemaClassId, AtomicLong> entry : _classVersions.entrySet())
+        {
+            if (!classQuery || query.matchesSchemaClassId(entry.getKey()))
+            {
+                version = Math.max(version, entry.getValue().get());
+            }
+        }
+        for (Map.Entry<SchemaClassId, ObjectProvider> entry : _providers.entrySet())
+        {
+            if (!classQuery || query.matchesSchemaClassId(entry.getKey()))
             {
-                // Look up QmfAgentData objects evaluating the query
-                for (QmfAgentData object : _objectIndex.values())
-                {
-                    if (!object.isDeleted() && query.evaluate(object))
-                    {
-                        results.add(object);
-                    }
-                }
+                version = Math.max(version, entry.getValue().getVersion());
             }
         }
-        return results;
+        return version;
+    }
+
+    /**
+     * Return the latest version of the objects of a class held by this Agent, which is advanced as they are added,
+     * modified and destroyed. This allows an ObjectProvider supplying objects held by other Agents to implement
+     * ObjectProvider.getVersion().
+     * @param classId the SchemaClassId of the class.
+     * @return the latest version of the objects of the class, zero if there have never been any.
+     */
+    public final long getVersion(final SchemaClassId classId)
+    {
+        AtomicLong version = _classVersions.get(classId);
+        return (version == null) ? 0 : version.get();
+    }
+
+    /**
+     * Record that the objects supplied by the ObjectProvider of a class have changed other than by their QmfAgentData
+     * being mutated, for example because some of them have gone, so that cached query responses including them are
+     * no longer used.
+     * @param classId the SchemaClassId of the provided class.
+     */
+    public final void providedObjectsChanged(final SchemaClassId classId)
+    {
+        QmfAgentData.advanceVersion(getClassVersion(classId), QmfAgentData.nextVersion());
     }
 
     /**
@@ -632,6 +1250,7 @@ public class Agent extends QmfData implements MessageListener, SubscribableAgent
     public final void removeSubscription(final Subscription subscription)
     {
         _subscriptions.remove(subscription.getSubscriptionId());
+        _subscriptionIndex.remove(subscription);
     }
 
     //                                          MessageListener
@@ -644,11 +1263,13 @@ public class Agent extends QmfData implements MessageListener, SubscribableAgent
      */
     public final void onMessage(final Message message)
     {
+        long startTime = System.nanoTime();
+        String opcode = null;
         try
         {
             String agentName = QmfData.getString(message.getObjectProperty("qmf.agent"));
             String content = QmfData.getString(message.getObjectProperty("qmf.content"));
-            String opcode = QmfData.getString(message.getObjectProperty("qmf.opcode"));
+            opcode = QmfData.getString(message.getObjectProperty("qmf.opcode"));
             //String routingKey = ((javax.jms.Topic)message.getJMSDestination()).getTopicName();
             //String contentType = ((org.apache.qpid.client.message.AbstractJMSMessage)message).getContentType();
 
@@ -659,7 +1280,8 @@ public class Agent extends QmfData implements MessageListener, SubscribableAgent
 //System.out.println("routingKey = " + routingKey);
 //System.out.println("contentType = " + contentType);
 
-            Handle handle = new Handle(message.getJMSCorrelationID(), message.getJMSReplyTo());
+            Handle handle = new Handle(message.getJMSCorrelationID(), message.getJMSReplyTo(),
+                                       message.getStringProperty(AMQPMessage.ACCEPT_COMPRESSION));
 
             if (opcode.equals("_agent_locate_request"))
             {
@@ -715,6 +1337,7 @@ public class Agent extends QmfData implements MessageListener, SubscribableAgent
                             Subscription subscription = new Subscription(this, subscriptionParams);
                             String subscriptionId = subscription.getSubscriptionId();
                             _subscriptions.put(subscriptionId, subscription);
+                            _subscriptionIndex.add(subscription);
                             _timer.schedule(subscription, 0, subscriptionParams.getPublishInterval());
                             subscriptionResponse(handle, subscription.getConsoleHandle(), subscriptionId, 
                                                  subscription.getDuration(), subscription.getInterval(), null);
@@ -786,6 +1409,11 @@ public class Agent extends QmfData implements MessageListener, SubscribableAgent
         {
             _log.info("JMSException {} caught in onMessage()", jmse.getMessage());
         }
+
+        if (opcode != null)
+        {
+            _statistics.requestHandled(opcode, System.nanoTime() - startTime);
+        }
     } // end of onMessage()
 
     //                                          QMF API Methods
@@ -953,6 +1581,74 @@ public class Agent extends QmfData implements MessageListener, SubscribableAgent
         _epoch = epoch;
     }
 
+    /**
+     * Set the time that destroyed QmfAgentData objects are retained before being reaped from the Agent's store.
+     * <p>
+     * Reaping happens when the Agent sends its Heartbeat, so a deleted object actually gets removed at the first
+     * Heartbeat after the grace period has expired. The default grace period is zero.
+     * @param gracePeriod the reap grace period in seconds.
+     */
+    public final void setReapGracePeriod(final int gracePeriod)
+    {
+        _reapGracePeriod = (gracePeriod < 0) ? 0 : gracePeriod;
+    }
+
+    /**
+     * Returns the time that destroyed QmfAgentData objects are retained before being reaped from the Agent's store.
+     * @return the reap grace period in seconds.
+     */
+    public final int getReapGracePeriod()
+    {
+        return _reapGracePeriod;
+    }
+
+    /**
+     * Enable or disable the caching of OBJECT query responses, see QueryCache.
+     * <p>
+     * When enabled the encoded response to each query is reused for identical queries received within the TTL,
+     * unless an object of a class that the query might match has been added, modified or destroyed in the meantime.
+     * This saves evaluating and encoding the same query for several Consoles polling the Agent at once. Caching is
+     * disabled by default.
+     * @param ttl the time in milliseconds for which a response may be reused, zero or less disables the cache.
+     */
+    public final void setQueryCacheTTL(final int ttl)
+    {
+        _queryCacheTTL = (ttl < 0) ? 0 : ttl;
+        _queryCache = (ttl > 0) ? new QueryCache(ttl) : null;
+    }
+
+    /**
+     * Returns the time for which OBJECT query responses are cached.
+     * @return the query cache TTL in milliseconds, zero if the cache is disabled.
+     */
+    public final int getQueryCacheTTL()
+    {
+        return _queryCacheTTL;
+    }
+
+    /**
+     * Set the size from which query responses and subscription indications are compressed.
+     * <p>
+     * Responses are only compressed for Consoles that advertise that they accept compression in their requests,
+     * so large responses can be compressed without breaking Consoles that don't support it. Compression is
+     * enabled for responses of DEFAULT_COMPRESSION_THRESHOLD bytes or more by default. The Agent only advertises
+     * that it supports compression if it is enabled when setConnection() is called.
+     * @param threshold the size in bytes from which responses are compressed, zero or less disables compression.
+     */
+    public final void setCompressionThreshold(final int threshold)
+    {
+        _compressionThreshold = (threshold < 0) ? 0 : threshold;
+    }
+
+    /**
+     * Returns the size from which query responses and subscription indications are compressed.
+     * @return the compression threshold in bytes, zero if compression is disabled.
+     */
+    public final int getCompressionThreshold()
+    {
+        return _compressionThreshold;
+    }
+
     /**
      * Releases Agent's resources.
      */
@@ -1019,6 +1715,10 @@ public class Agent extends QmfData implements MessageListener, SubscribableAgent
         setValue("_product", _product);
         setValue("_vendor", _vendor);
         setValue("_instance", _instance);
+        if (_compressionThreshold > 0)
+        {
+            setValue("_compression", AMQPMessage.DEFLATE);
+        }
 
         try
         {
@@ -1131,6 +1831,86 @@ public class Agent extends QmfData implements MessageListener, SubscribableAgent
         _schemaCache.put(classId, schema);
     }
 
+    /**
+     * Register an ObjectProvider to supply the QmfAgentData of an object class on demand.
+     * <p>
+     * The schema for the class should still be registered with registerObjectClass(). QmfAgentData of a class
+     * with a registered ObjectProvider shouldn't also be added via addObject().
+     *
+     * @param classId the SchemaClassId of the QmfAgentData supplied by the ObjectProvider.
+     * @param provider the ObjectProvider.
+     */
+    public final void registerObjectProvider(final SchemaClassId classId, final ObjectProvider provider)
+    {
+        _providers.put(classId, provider);
+    }
+
+    /**
+     * Register the agentStats class, whose single instance reports the AgentStatistics of this Agent along with
+     * the number of active Subscriptions, the number of objects of each class and the number of tombstones waiting
+     * to be reaped. The instance is built on demand by an ObjectProvider, so it costs nothing until it's queried.
+     * <p>
+     * The counters themselves are always maintained, this just makes them visible to Consoles.
+     */
+    public final void registerStatisticsClass()
+    {
+        registerObjectClass(_statisticsSchema);
+        registerObjectProvider(_statisticsSchema.getClassId(), new ObjectProvider()
+        {
+            public Collection<QmfAgentData> getObjects()
+            {
+                return Collections.singletonList(getStatisticsObject());
+            }
+
+            public Collection<ObjectId> getObjectIds()
+            {
+                return Collections.singletonList(getStatisticsObjectId());
+            }
+
+            public QmfAgentData getObject(final ObjectId objectId)
+            {
+                return getStatisticsObjectId().equals(objectId) ? getStatisticsObject() : null;
+            }
+
+            public long getVersion()
+            {
+                return UNTRACKED;
+            }
+        });
+    }
+
+    /**
+     * Return the ObjectId of the agentStats QmfAgentData.
+     * @return the ObjectId of the agentStats QmfAgentData.
+     */
+    private final ObjectId getStatisticsObjectId()
+    {
+        return new ObjectId(_name, "org.apache.qpid.qmf2:agentStats:" + _name, _epoch);
+    }
+
+    /**
+     * Build the agentStats QmfAgentData reporting the current AgentStatistics.
+     * @return the agentStats QmfAgentData.
+     */
+    private final QmfAgentData getStatisticsObject()
+    {
+        QmfAgentData statistics = new QmfAgentData(_statisticsSchema);
+        statistics.setObjectId(getStatisticsObjectId());
+        statistics.setValue("agentName", _name);
+        _statistics.populate(statistics);
+        statistics.setValue("subscriptions", _subscriptions.size());
+
+        Map<String, Object> objects = new HashMap<String, Object>();
+        for (Map.Entry<SchemaClassId, ConcurrentSkipListMap<SortKey, QmfAgentData>> entry : _classIndex.entrySet())
+        {
+            SchemaClassId classId = entry.getKey();
+            objects.put(classId.getPackageName() + ":" + classId.getClassName(), entry.getValue().size());
+        }
+        statistics.setValue("objects", objects);
+        statistics.setValue("tombstones", _tombstones.size());
+        return statistics;
+    }
+
     /**
      * Cause the agent to raise the given event.
      *
@@ -1138,18 +1918,59 @@ public class Agent extends QmfData implements MessageListener, SubscribableAgent
      */
     public final void raiseEvent(final QmfEvent event)
     {
-        try
+        raiseEvents(Collections.singletonList(event));
+    }
+
+    /**
+     * Cause the agent to raise the given events in order.
+     * <p>
+     * The subject of an event indication depends on the event's class and severity, so consecutive events that
+     * share a subject are sent together in a single list message rather than one message per event.
+     *
+     * @param events the QmfEvents to be raised
+     */
+    public final void raiseEvents(final List<QmfEvent> events)
+    {
+        String vendorKey = _vendor.replace(".", "_");
+        String productKey = _product.replace(".", "_");
+        String instanceKey = _instance.replace(".", "_");
+
+        String batchSubject = null;
+        List<Map> results = new ArrayList<Map>();
+        for (QmfEvent event : events)
         {
             String packageKey = event.getSchemaClassId().getPackageName().replace(".", "_");
             String nameKey = event.getSchemaClassId().getClassName().replace(".", "_");
             String severity = event.getSeverity();
-            String vendorKey = _vendor.replace(".", "_");
-            String productKey = _product.replace(".", "_");
-            String instanceKey = _instance.replace(".", "_");
 
             String subject = "agent.ind.event." + packageKey + "." + nameKey + "." + severity + "." + vendorKey + "." + 
                               productKey + "." + instanceKey;
 
+            if (batchSubject != null && !subject.equals(batchSubject))
+            {
+                sendEventIndication(batchSubject, results);
+                results = new ArrayList<Map>();
+            }
+            batchSubject = subject;
+            results.add(event.mapEncode());
+        }
+
+        if (results.size() > 0)
+        {
+            sendEventIndication(batchSubject, results);
+        }
+    }
+
+    /**
+     * Send a list of mapEncoded events that share the same subject to the topic address.
+     *
+     * @param subject the subject of the event indication.
+     * @param results the list of mapEncoded events.
+     */
+    private final void sendEventIndication(final String subject, final List<Map> results)
+    {
+        try
+        {
             Message response = AMQPMessage.createListMessage(_syncSession);
             response.setStringProperty("x-amqp-0-10.app-id", "qmf2");
             response.setStringProperty("method", "indication");
@@ -1157,14 +1978,14 @@ public class Agent extends QmfData implements MessageListener, SubscribableAgent
             response.setStringProperty("qmf.content", "_event");
             response.setStringProperty("qmf.agent", _name);
             response.setStringProperty("qpid.subject", subject);
-
-            List<Map> results = new ArrayList<Map>();
-            results.add(event.mapEncode());
-            AMQPMessage.setList(response, results);
+            int bytes = setList(response, results);
             _producer.send(_topicAddress, response);
+            _statistics.messageSent(bytes);
+            _statistics.eventsRaised(results.size());
         }
         catch (JMSException jmse)
         {
+            _statistics.eventsDropped(results.size());
             _log.info("JMSException {} caught in raiseEvent()", jmse.getMessage());
         }
     }
@@ -1179,10 +2000,87 @@ public class Agent extends QmfData implements MessageListener, SubscribableAgent
      * <p>
      * If an associated schema exists we look for the set of property names that have been
      * specified as idNames. If idNames exists we look for their values within the object and use that
-     * to create the objectName. If we can't create a sensible name we use a randomUUID.
+     * to create the objectName. If we can't create a sensible name we use a sequence number.
      * @param object the QmfAgentData object to be added
      */
     public void addObject(final QmfAgentData object) throws QmfException
+    {
+        indexObject(object);
+        if (matchSubscriptions(object, null))
+        {
+            object.publish();
+        }
+    } // end of addObject()
+
+    /**
+     * Passes references to a number of managed QMF objects to the Agent, for example when populating the Agent
+     * from a snapshot of an existing model or when a burst of Connections arrives.
+     * <p>
+     * Each object is named and indexed as if by addObject(), but the Subscriptions matching the new objects are
+     * found in a single pass and each Subscription is sent a single data indication holding all of the new objects
+     * that it matches, rather than one indication per object. An object that can't be added doesn't prevent the
+     * remaining objects from being added, the first QmfException is rethrown once all of the other objects have
+     * been added.
+     * @param objects the QmfAgentData objects to be added.
+     */
+    public void addObjects(final Collection<? extends QmfAgentData> objects) throws QmfException
+    {
+        QmfException failure = null;
+        Map<Subscription, List<QmfAgentData>> batches = new LinkedHashMap<Subscription, List<QmfAgentData>>();
+        for (QmfAgentData object : objects)
+        {
+            try
+            {
+                indexObject(object);
+                if (matchSubscriptions(object, batches))
+                {
+                    object.update();
+                }
+            }
+            catch (QmfException qmfe)
+            {
+                if (failure == null)
+                {
+                    failure = qmfe;
+                }
+            }
+        }
+
+        publishBatches(batches);
+        if (failure != null)
+        {
+            throw failure;
+        }
+    }
+
+    /**
+     * Destroy a number of managed QMF objects, for example when a burst of Connections closes.
+     * <p>
+     * Each object is marked as deleted and placed on the tombstone queue as if by QmfAgentData.destroy(), but
+     * each Subscription is sent a single data indication holding all of the deleted objects that it was
+     * attached to, rather than one indication per object.
+     * @param objects the QmfAgentData objects to be destroyed.
+     */
+    public final void destroyObjects(final Collection<? extends QmfAgentData> objects)
+    {
+        Map<Subscription, List<QmfAgentData>> batches = new LinkedHashMap<Subscription, List<QmfAgentData>>();
+        for (QmfAgentData object : objects)
+        {
+            for (Subscription subscription : object.markDestroyed())
+            {
+                addToBatch(batches, subscription, object);
+            }
+        }
+        publishBatches(batches);
+    }
+
+    /**
+     * Create the ObjectId of a QmfAgentData ahead of it being added via addObject() or addObjects(), so that other
+     * objects may refer to it before it has been added. The ObjectId is created as described in addObject().
+     * @param object the QmfAgentData object that will be added.
+     * @return the object's ObjectId, which is unchanged if the object already had one.
+     */
+    public final ObjectId assignObjectId(final QmfAgentData object)
     {
         // There are some cases where a QmfAgentData Object might have already set its ObjectId, for example where
         // it may need to have a "well known" ObjectId. This is the case with the Java Broker Management Agent
@@ -1190,37 +2088,72 @@ public class Agent extends QmfData implements MessageListener, SubscribableAgent
         ObjectId addr = object.getObjectId();
         if (addr == null)
         {
-            SchemaClassId classId = object.getSchemaClassId();
-            SchemaClass schema = _schemaCache.get(classId);
+            // Now we've got a good name for the object we create its ObjectId and add that to the object
+            addr = allocateObjectId(object);
+            object.setObjectId(addr);
+        }
+        return addr;
+    }
 
-            // Try to create an objectName using the property names that have been specified as idNames in the schema
-            StringBuilder buf = new StringBuilder();
-            // Initialise idNames as an empty array as we want to check if a key has been used to construct the name.
-            String[] idNames = {}; 
-            if (schema != null && schema instanceof SchemaObjectClass)
+    /**
+     * Allocate the ObjectId of a QmfAgentData that hasn't set its own.
+     * @param object the QmfAgentData object being added.
+     * @return the new ObjectId.
+     */
+    private ObjectId allocateObjectId(final QmfAgentData object)
+    {
+        SchemaClassId classId = object.getSchemaClassId();
+        SchemaClass schema = _schemaCache.get(classId);
+
+        // Try to create an objectName using the property names that have been specified as idNames in the schema.
+        // Initialise idNames as an empty array as we want to check if a key has been used to construct the name.
+        String[] idNames = {};
+        String objectName = "";
+        if (schema != null && schema instanceof SchemaObjectClass)
+        {
+            idNames = ((SchemaObjectClass)schema).getIdNames();
+            if (idNames.length == 1)
+            {
+                objectName = String.valueOf(object.getStringValue(idNames[0]));
+            }
+            else if (idNames.length > 1)
             {
-                idNames = ((SchemaObjectClass)schema).getIdNames();
+                StringBuilder buf = new StringBuilder();
                 for (String property : idNames)
                 {
                     buf.append(object.getStringValue(property));
                 }
+                objectName = buf.toString();
             }
-            String objectName = buf.toString();
-
-            // If the schema hasn't given any help we use a UUID. Note that we check the length of idNames too
-            // as a given named key property might legitimately be an empty string (e.g. the default direct
-            // exchange has name == "")
-            if (objectName.length() == 0 && idNames.length == 0) objectName = UUID.randomUUID().toString();
-
-            // Finish up the name by incorporating package and class names
-            objectName = classId.getPackageName() + ":" + classId.getClassName() + ":" + objectName;
+        }
 
-            // Now we've got a good name for the object we create its ObjectId and add that to the object
-            addr = new ObjectId(_name, objectName, _epoch);
+        // If the schema hasn't given any help we use a sequence number. Note that we check the length of idNames
+        // too as a given named key property might legitimately be an empty string (e.g. the default direct
+        // exchange has name == "")
+        if (objectName.length() == 0 && idNames.length == 0)
+        {
+            objectName = Long.toString(_objectNumber.incrementAndGet());
+        }
 
-            object.setObjectId(addr);
+        // Finish up the name by incorporating package and class names
+        String prefix = _namePrefixes.get(classId);
+        if (prefix == null)
+        {
+            prefix = classId.getPackageName() + ":" + classId.getClassName() + ":";
+            _namePrefixes.put(classId, prefix);
         }
 
+        return new ObjectId(_name, prefix + objectName, _epoch);
+    }
+
+    /**
+     * Name the QmfAgentData if necessary and add it to the _objectIndex and _classIndex.
+     * @param object the QmfAgentData object being added.
+     * @throws QmfException if a live object with the same ObjectId has already been added.
+     */
+    private void indexObject(final QmfAgentData object) throws QmfException
+    {
+        ObjectId addr = assignObjectId(object);
         QmfAgentData foundObject = _objectIndex.get(addr);
         if (foundObject != null)
         {
@@ -1232,26 +2165,71 @@ public class Agent extends QmfData implements MessageListener, SubscribableAgent
         }
 
         _objectIndex.put(addr, object);
+        object.setAgent(this);
+        if (!object.isDeleted())
+        {
+            addToClassIndex(object);
+        }
+    }
 
-        // Does the new object match any Subscriptions? If so add a reference to the matching Subscription and publish.
-        for (Subscription subscription : _subscriptions.values())
+    /**
+     * Find the Subscriptions that a new object matches and add a reference to each of them to the object.
+     * Only the Subscriptions that the _subscriptionIndex reports as candidates for this object need checking.
+     * @param object the QmfAgentData object being added.
+     * @param batches if not null the object is added to the batch of each matching Subscription.
+     * @return true if the object matches any Subscription.
+     */
+    private boolean matchSubscriptions(final QmfAgentData object,
+                                       final Map<Subscription, List<QmfAgentData>> batches)
+    {
+        boolean matched = false;
+        for (Subscription subscription : _subscriptionIndex.getCandidates(object))
         {
             QmfQuery query = subscription.getQuery();
-            if (query.getObjectId() != null)
+            boolean match = (query.getObjectId() != null) ? query.getObjectId().equals(object.getObjectId()) :
+                                                            query.evaluate(object);
+            if (match)
             {
-                if (query.getObjectId().equals(addr))
+                object.addSubscription(subscription.getSubscriptionId(), subscription);
+                matched = true;
+                if (batches != null)
                 {
-                    object.addSubscription(subscription.getSubscriptionId(), subscription);
-                    object.publish();
+                    addToBatch(batches, subscription, object);
                 }
             }
-            else if (query.evaluate(object))
-            {
-                object.addSubscription(subscription.getSubscriptionId(), subscription);
-                object.publish();
-            }
         }
-    } // end of addObject()
+        return matched;
+    }
+
+    /**
+     * Add an object to the batch of objects to be published to a Subscription.
+     * @param batches the batches of objects keyed by Subscription.
+     * @param subscription the Subscription that the object is to be published to.
+     * @param object the QmfAgentData object to be published.
+     */
+    private static void addToBatch(final Map<Subscription, List<QmfAgentData>> batches,
+                                   final Subscription subscription, final QmfAgentData object)
+    {
+        List<QmfAgentData> batch = batches.get(subscription);
+        if (batch == null)
+        {
+            batch = new ArrayList<QmfAgentData>();
+            batches.put(subscription, batch);
+        }
+        batch.add(object);
+    }
+
+    /**
+     * Send each Subscription a single data indication holding its batch of objects.
+     * @param batches the batches of objects keyed by Subscription.
+     */
+    private static void publishBatches(final Map<Subscription, List<QmfAgentData>> batches)
+    {
+        for (Map.Entry<Subscription, List<QmfAgentData>> entry : batches.entrySet())
+        {
+            entry.getKey().publish(entry.getValue());
+        }
+    }
 
     /**
      * Returns the count of pending WorkItems that can be retrieved.
@@ -1338,6 +2316,10 @@ public class Agent extends QmfData implements MessageListener, SubscribableAgent
      * Indicate to the Agent that the application has completed processing a method request.
      * <p>
      * See the description of the METHOD_CALL WorkItem.
+     * <p>
+     * If the Console that invoked the method accepts compression and the encoded output arguments reach the
+     * compression threshold they are sent as a deflate compressed amqp/list holding the single Map that would
+     * otherwise be the body of the amqp/map response, see compressMethodResponse().
      * @param methodName the method's name.
      * @param handle the reply handle from WorkItem.
      * @param outArgs the output argument map.
@@ -1348,6 +2330,11 @@ public class Agent extends QmfData implements MessageListener, SubscribableAgent
     {
         try
         {
+            if (error == null && outArgs != null && compressMethodResponse(handle, outArgs))
+            {
+                return;
+            }
+
             MapMessage response = _syncSession.createMapMessage();
             response.setJMSCorrelationID(handle.getCorrelationId());
             response.setStringProperty("x-amqp-0-10.app-id", "qmf2");
@@ -1383,8 +2370,55 @@ public class Agent extends QmfData implements MessageListener, SubscribableAgent
         }
     }
 
+    /**
+     * Send a _method_response whose output arguments are large enough to be worth compressing as a deflate
+     * compressed amqp/list, whose single entry is the Map holding "_arguments" and "_subtypes" that an uncompressed
+     * response carries as its amqp/map body. Console.invokeMethod() decodes either form.
+     * @param handle the reply handle from WorkItem.
+     * @param outArgs the output argument map.
+     * @return true if the response was sent, false if it should be sent uncompressed.
+     */
+    private final boolean compressMethodResponse(final Handle handle, final QmfData outArgs) throws JMSException
+    {
+        int threshold = getCompressionThreshold(handle);
+        if (threshold == 0)
+        {
+            return false;
+        }
+
+        Map<String, Object> body = new HashMap<String, Object>();
+        body.put("_arguments", outArgs.mapEncode());
+        if (outArgs.getSubtypes() != null)
+        {
+            body.put("_subtypes", outArgs.getSubtypes());
+        }
+
+        long startTime = System.nanoTime();
+        byte[] encoded = AMQPMessage.encodeList(Collections.singletonList(body));
+        byte[] compressed = (encoded.length >= threshold) ? AMQPMessage.deflateList(encoded) : null;
+        if (compressed == null)
+        {
+            return false;
+        }
+
+        Message response = AMQPMessage.createListMessage(_syncSession);
+        response.setJMSCorrelationID(handle.getCorrelationId());
+        response.setStringProperty("x-amqp-0-10.app-id", "qmf2");
+        response.setStringProperty("method", "response");
+        response.setStringProperty("qmf.opcode", "_method_response");
+        response.setStringProperty("qmf.agent", _name);
+        response.setStringProperty("qpid.subject", handle.getRoutingKey());
+        int bytes = AMQPMessage.setDeflatedList(response, compressed);
+        _statistics.listEncoded(System.nanoTime() - startTime, bytes);
+        sendResponse(handle, response, bytes);
+        return true;
+    }
+
     /**
      * Send the query response back to the Console.
+     * <p>
+     * The results returned by QmfAgentData mapEncode() cache their own encoded form, so AMQPMessage.setList()
+     * splices those bytes into the response rather than re-encoding each object.
      * @param handle the reply handle that contains the replyTo Address.
      * @param results the list of mapEncoded query results.
      * @param qmfContentType the value to be passed to the qmf.content Header.
@@ -1393,16 +2427,34 @@ public class Agent extends QmfData implements MessageListener, SubscribableAgent
     {
         try
         {
-            Message response = AMQPMessage.createListMessage(_syncSession);
-            response.setJMSCorrelationID(handle.getCorrelationId());
-            response.setStringProperty("x-amqp-0-10.app-id", "qmf2");
-            response.setStringProperty("method", "response");
-            response.setStringProperty("qmf.opcode", "_query_response");
-            response.setStringProperty("qmf.agent", _name);
-            response.setStringProperty("qmf.content", qmfContentType);
-            response.setStringProperty("qpid.subject", handle.getRoutingKey());
-            AMQPMessage.setList(response, results);
-            sendResponse(handle, response);
+            Message response = createQueryResponse(handle, qmfContentType);
+            int bytes = setList(handle, response, results);
+            sendResponse(handle, response, bytes);
+        }
+        catch (JMSException jmse)
+        {
+            _log.info("JMSException {} caught in queryResponse()", jmse.getMessage());
+        }
+    }
+
+    /**
+     * Send a query response from the QueryCache back to the Console, using the entry's compressed body if the
+     * Console accepts compression and the body reaches the compression threshold.
+     * @param handle the reply handle that contains the replyTo Address.
+     * @param entry the cached response.
+     * @param qmfContentType the value to be passed to the qmf.content Header.
+     */
+    private final void queryResponse(final Handle handle, final QueryCache.Entry entry, final String qmfContentType)
+    {
+        try
+        {
+            Message response = createQueryResponse(handle, qmfContentType);
+            int threshold = getCompressionThreshold(handle);
+            byte[] body = entry.getBody();
+            byte[] compressed = (threshold > 0 && body.length >= threshold) ? entry.getCompressed() : null;
+            int bytes = (compressed == null) ? AMQPMessage.setEncodedList(response, body) :
+                                               AMQPMessage.setDeflatedList(response, compressed);
+            sendResponse(handle, response, bytes);
         }
         catch (JMSException jmse)
         {
@@ -1410,6 +2462,25 @@ public class Agent extends QmfData implements MessageListener, SubscribableAgent
         }
     }
 
+    /**
+     * Create an empty _query_response message.
+     * @param handle the reply handle that contains the correlation ID and routing key of the query.
+     * @param qmfContentType the value to be passed to the qmf.content Header.
+     * @return the amqp/list encoded JMS Message.
+     */
+    private final Message createQueryResponse(final Handle handle, final String qmfContentType) throws JMSException
+    {
+        Message response = AMQPMessage.createListMessage(_syncSession);
+        response.setJMSCorrelationID(handle.getCorrelationId());
+        response.setStringProperty("x-amqp-0-10.app-id", "qmf2");
+        response.setStringProperty("method", "response");
+        response.setStringProperty("qmf.opcode", "_query_response");
+        response.setStringProperty("qmf.agent", _name);
+        response.setStringProperty("qmf.content", qmfContentType);
+        response.setStringProperty("qpid.subject", handle.getRoutingKey());
+        return response;
+    }
+
     /**
      * If the subscription request is successful, the Agent application must provide a unique subscriptionId.
      * <p>
@@ -22,6 +22,7 @@ package org.apache.qpid.qmf2.agent;
 
 // Misc Imports
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -137,6 +138,16 @@ public final class AgentExternal extends Agent
         throw new QmfException("Cannot call addObject() on AgentExternal as this method is used to populate the internal object store");
     }
 
+    /**
+     * We override the base Class addObjects() to throw an Exception as addObjects() is used to populate the
+     * <b>internal</b> store.
+     */
+    @Override
+    public void addObjects(final Collection<? extends QmfAgentData> objects) throws QmfException
+    {
+        throw new QmfException("Cannot call addObjects() on AgentExternal as this method is used to populate the internal object store");
+    }
+
     /**
      * Indicate to QMF that the named object is available to be managed. Once this method returns, the agent will
      * service requests from consoles referencing this data.
@@ -0,0 +1,212 @@
+/*
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *
+ */
+package org.apache.qpid.qmf2.agent;
+
+// Misc Imports
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * The counters that an Agent keeps about its own activity, which are exposed as an instance of the agentStats class
+ * when Agent.registerStatisticsClass() is called.
+ * <p>
+ * The counters are updated on the Agent's message handling and sending paths so they are deliberately cheap, each
+ * being an atomic add with no locking or allocation. Request handling times are recorded in power of two buckets
+ * per opcode, so the percentiles are only accurate to within a factor of two, but that's plenty to spot a
+ * request type that has become slow.
+ * <p>
+ * bytesSent only includes the amqp/list bodies encoded by the Agent (query responses, data indications and
+ * events), as the size of the MapMessages used for the other responses isn't known to the Agent.
+ */
+public final class AgentStatistics
+{
+    /**
+     * The request opcodes that are counted separately, anything else is counted as "other".
+     */
+    private static final String[] OPCODES =
+    {
+        "_agent_locate_request",
+        "_method_request",
+        "_query_request",
+        "_subscribe_request",
+        "_subscribe_refresh_indication",
+        "_subscribe_cancel_indication",
+        "other"
+    };
+
+    private static final int BUCKETS = 64;
+
+    private final AtomicLongArray _requests = new AtomicLongArray(OPCODES.length);
+    private final AtomicLongArray _requestTime = new AtomicLongArray(OPCODES.length);
+    private final AtomicLongArray _requestBuckets = new AtomicLongArray(OPCODES.length*BUCKETS);
+
+    private final AtomicLong _encodes = new AtomicLong();
+    private final AtomicLong _encodeTime = new AtomicLong();
+    private final AtomicLong _encodeBytes = new AtomicLong();
+    private final AtomicLong _msgsSent = new AtomicLong();
+    private final AtomicLong _bytesSent = new AtomicLong();
+    private final AtomicLong _eventsRaised = new AtomicLong();
+    private final AtomicLong _eventsDropped = new AtomicLong();
+    private final AtomicLong _queryCacheHits = new AtomicLong();
+
+    /**
+     * Return the index of an opcode in OPCODES.
+     * @param opcode the request opcode.
+     * @return the index of the opcode, or the index of "other" if it isn't one that is counted separately.
+     */
+    private static int getOpcodeIndex(final String opcode)
+    {
+        for (int i = 0; i < OPCODES.length - 1; i++)
+        {
+            if (OPCODES[i].equals(opcode))
+            {
+                return i;
+            }
+        }
+        return OPCODES.length - 1;
+    }
+
+    /**
+     * Record a request having been handled.
+     * @param opcode the request's qmf.opcode.
+     * @param nanos the time taken to handle the request in nanoseconds.
+     */
+    void requestHandled(final String opcode, final long nanos)
+    {
+        int index = getOpcodeIndex(opcode);
+        long time = Math.max(nanos, 0);
+        _requests.incrementAndGet(index);
+        _requestTime.addAndGet(index, time);
+        _requestBuckets.incrementAndGet(index*BUCKETS + (63 - Long.numberOfLeadingZeros(time | 1)));
+    }
+
+    /**
+     * Record an amqp/list body having been encoded.
+     * @param nanos the time taken to encode the body in nanoseconds.
+     * @param bytes the size of the encoded body.
+     */
+    void listEncoded(final long nanos, final int bytes)
+    {
+        _encodes.incrementAndGet();
+        _encodeTime.addAndGet(nanos);
+        _encodeBytes.addAndGet(bytes);
+    }
+
+    /**
+     * Record a message having been sent.
+     * @param bytes the size of the message body if known, otherwise zero.
+     */
+    void messageSent(final int bytes)
+    {
+        _msgsSent.incrementAndGet();
+        if (bytes > 0)
+        {
+            _bytesSent.addAndGet(bytes);
+        }
+    }
+
+    /**
+     * Record events having been raised.
+     * @param count the number of events sent.
+     */
+    void eventsRaised(final int count)
+    {
+        _eventsRaised.addAndGet(count);
+    }
+
+    /**
+     * Record events having been dropped because they couldn't be sent.
+     * @param count the number of events dropped.
+     */
+    void eventsDropped(final int count)
+    {
+        _eventsDropped.addAndGet(count);
+    }
+
+    /**
+     * Record a query having been answered from the QueryCache.
+     */
+    void queryCacheHit()
+    {
+        _queryCacheHits.incrementAndGet();
+    }
+
+    /**
+     * Return an estimate of a percentile of the handling times of an opcode, the upper bound of the power of two
+     * bucket that the percentile falls in.
+     * @param index the index of the opcode.
+     * @param count the number of requests recorded for the opcode.
+     * @param percentile the percentile to return, between 0 and 100.
+     * @return the estimated percentile in nanoseconds.
+     */
+    private long getPercentile(final int index, final long count, final double percentile)
+    {
+        long rank = Math.max((long)Math.ceil(count*percentile/100.0), 1);
+        long cumulative = 0;
+        for (int i = 0; i < BUCKETS; i++)
+        {
+            cumulative += _requestBuckets.get(index*BUCKETS + i);
+            if (cumulative >= rank)
+            {
+                return (i == BUCKETS - 1) ? Long.MAX_VALUE : (1l << (i + 1)) - 1;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Set the counter values on a QmfAgentData of the agentStats class.
+     * <p>
+     * The "requests" property is a Map keyed by opcode whose values are Maps of the request count and the mean,
+     * 50th, 95th and 99th percentile handling times in nanoseconds. Opcodes with no requests are omitted.
+     * @param data the QmfAgentData to populate.
+     */
+    void populate(final QmfAgentData data)
+    {
+        Map<String, Object> requests = new HashMap<String, Object>();
+        for (int i = 0; i < OPCODES.length; i++)
+        {
+            long count = _requests.get(i);
+            if (count > 0)
+            {
+                Map<String, Object> opcode = new HashMap<String, Object>();
+                opcode.put("count", count);
+                opcode.put("timeAverage", _requestTime.get(i)/count);
+                opcode.put("timeP50", getPercentile(i, count, 50.0));
+                opcode.put("timeP95", getPercentile(i, count, 95.0));
+                opcode.put("timeP99", getPercentile(i, count, 99.0));
+                requests.put(OPCODES[i], opcode);
+            }
+        }
+
+        data.setValue("requests", requests);
+        data.setValue("encodes", _encodes.get());
+        data.setValue("encodeTime", _encodeTime.get());
+        data.setValue("encodeBytes", _encodeBytes.get());
+        data.setValue("msgsSent", _msgsSent.get());
+        data.setValue("bytesSent", _bytesSent.get());
+        data.setValue("eventsRaised", _eventsRaised.get());
+        data.setValue("eventsDropped", _eventsDropped.get());
+        data.setValue("queryCacheHits", _queryCacheHits.get());
+    }
+}
@@ -0,0 +1,79 @@
+/*
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *
+ */
+package org.apache.qpid.qmf2.agent;
+
+// Misc Imports
+import java.util.Collection;
+
+// QMF2 Imports
+import org.apache.qpid.qmf2.common.ObjectId;
+
+/**
+ * An ObjectProvider supplies the QmfAgentData of a schema class on demand rather than having them stored in the
+ * Agent via addObject(). This allows an Agent to expose objects that are cheap to build from an underlying model
+ * but expensive to keep mirrored, in a similar way to AgentExternal but for just some classes of object.
+ * <p>
+ * ObjectProviders are registered with Agent.registerObjectProvider() and are consulted whenever the Agent evaluates
+ * a query or a Subscription against the registered class. The QmfAgentData returned must have their ObjectId set and
+ * the ObjectId of a given underlying object should be stable across calls, as Consoles use it to refer to the object.
+ * <p>
+ * As provided objects are transient they cannot be tracked by Subscriptions, so a Subscription whose query matches
+ * provided objects will publish them on each publish interval. The Agent sorts query results by compare key only
+ * within a class, so if the objects are sortable they should be returned in compare key order.
+ * <p>
+ * Responses to queries that might match provided objects are only cached by the Agent's QueryCache if the
+ * ObjectProvider can say when its objects last changed, see getVersion().
+ */
+public interface ObjectProvider
+{
+    /**
+     * The version of provided objects whose changes aren't tracked, so that responses including them aren't cached.
+     */
+    public static final long UNTRACKED = Long.MAX_VALUE;
+
+    /**
+     * Return the QmfAgentData currently provided.
+     * @return the QmfAgentData currently provided.
+     */
+    public Collection<QmfAgentData> getObjects();
+
+    /**
+     * Return the ObjectIds of the QmfAgentData currently provided, as for an OBJECT_ID query, ideally without
+     * building the objects themselves.
+     * @return the ObjectIds of the QmfAgentData currently provided.
+     */
+    public Collection<ObjectId> getObjectIds();
+
+    /**
+     * Return the provided QmfAgentData with the given ObjectId.
+     * @param objectId the ObjectId of the QmfAgentData being looked up.
+     * @return the QmfAgentData with the given ObjectId, or null if this ObjectProvider doesn't provide it.
+     */
+    public QmfAgentData getObject(ObjectId objectId);
+
+    /**
+     * Return the latest version of the provided objects, a value of the version sequence shared by all QmfAgentData
+     * (see QmfAgentData.getVersion()) at or after which none of them has changed. ObjectProviders that build their
+     * objects afresh from a model that they can't track should return UNTRACKED.
+     * @return the latest version of the provided objects, or UNTRACKED if it isn't known.
+     */
+    public long getVersion();
+}
@@ -22,13 +22,18 @@ package org.apache.qpid.qmf2.agent;
 
 // Misc Imports
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 // QMF2 Imports
+import org.apache.qpid.qmf2.common.AMQPMessage;
 import org.apache.qpid.qmf2.common.ObjectId;
 import org.apache.qpid.qmf2.common.QmfException;
 import org.apache.qpid.qmf2.common.QmfManaged;
@@ -65,15 +70,111 @@ import org.apache.qpid.qmf2.common.SchemaObjectClass;
  * possible that an update indication could get sent part way through setting an object's overall state.
  * Similarly calling the publish() method directly from setValue() would force an update indication on partial changes
  * of state, which is generally not the desired behaviour.
+ * <p>
+ * <b>Versions</b>
+ * <p>
+ * Every mutation of a QmfAgentData takes the next value of a single version sequence shared by all QmfAgentData,
+ * so the sequence acts as a clock for the whole object store. Once an object has been added to an Agent each change
+ * is published by the thread making it as an immutable Version of the object, a copy of its properties taken whilst
+ * holding its lock, and mapEncode() returns the encoded form of a Version rather than the live property Map, so
+ * encoding an object never races with application threads modifying it. A single mutator call is published as soon
+ * as it completes, whereas changes made in a block synchronized on the object are published together when update()
+ * is called, so applications wishing several properties to change atomically should set them and call update() in
+ * such a block.
+ * <p>
+ * The Agent evaluates each query, and each Subscription publish, inside a snapshot taken from the version
+ * sequence when it starts. Within a snapshot mapEncode() returns the latest Version of the object published at or
+ * before the start of the snapshot, so an object that changes whilst a large query is being encoded doesn't appear
+ * in the results at a later point in time than the others. Each object keeps a chain of its Versions back to the
+ * one that the oldest active snapshot needs, older Versions being trimmed as new ones are published. A thread always
+ * sees its own changes though. Readers never take an object's lock, other than to publish changes that the reading
+ * thread itself has made, so writers never wait for a query.
  * @author Fraser Adams
  */
 public class QmfAgentData extends QmfManaged implements Comparable<QmfAgentData>
 {
+    /**
+     * An immutable committed version of a QmfAgentData, which is also its cached encoded form.
+     */
+    private static final class Version
+    {
+        private final long _version;
+        private final long _writer;
+        private final Map<String, Object> _map;
+
+        // The Version published before this one, null once no active snapshot can need it.
+        private volatile Version _previous;
+
+        public Version(final long version, final Map<String, Object> map, final Version previous)
+        {
+            _version = version;
+            _writer = Thread.currentThread().getId();
+            _map = map;
+            _previous = previous;
+        }
+    }
+
+    /**
+     * The version sequence shared by all QmfAgentData.
+     */
+    private static final AtomicLong _versions = new AtomicLong();
+
+    /**
+     * The snapshot, a value of the version sequence, in which the current thread is reading objects.
+     */
+    private static final ThreadLocal<AtomicLong> _snapshot = new ThreadLocal<AtomicLong>()
+    {
+        @Override
+        protected AtomicLong initialValue()
+        {
+            return new AtomicLong(Long.MAX_VALUE);
+        }
+    };
+
+    /**
+     * The snapshots of the threads currently reading objects in a snapshot, used to decide which Versions to keep.
+     */
+    private static final Set<AtomicLong> _activeSnapshots =
+        Collections.newSetFromMap(new ConcurrentHashMap<AtomicLong, Boolean>());
+
+    /**
+     * The version of the last mutation of this QmfAgentData.
+     */
+    private volatile long _version = 0;
+
+    /**
+     * The version of the first mutation not included in _committed, or zero if there is none.
+     */
+    private volatile long _dirtySince = 0;
+
+    /**
+     * The id of the thread that made the mutations not included in _committed, zero if there are none or
+     * SEVERAL_WRITERS if they were made by more than one thread.
+     */
+    private volatile long _dirtyWriter = 0;
+    private static final long SEVERAL_WRITERS = -1;
+
+    /**
+     * The latest committed Version, the head of the chain of Versions that active snapshots may still need.
+     */
+    private volatile Version _committed = null;
+
     private long _updateTimestamp;
     private long _createTimestamp;
     private long _deleteTimestamp;
     private String _compareKey = null;
 
+    /**
+     * The Agent that this object has been added to, used by destroy() to queue the object for reaping.
+     */
+    private Agent _agent = null;
+
+    /**
+     * The latest version of this object's class in the Agent that it has been added to, advanced whenever this
+     * object is mutated so that the Agent's QueryCache can tell which cached responses are out of date.
+     */
+    private volatile AtomicLong _classVersion = null;
+
     /**
      * This Map is used to look up Subscriptions that are interested in this data by SubscriptionId
      */
@@ -135,14 +236,54 @@ public class QmfAgentData extends QmfManaged implements Comparable<QmfAgentData>
      * This method alse publishes the deleted object to any listening Subscription then removes references to the
      * Subscription.
      * <p>
-     * When this method returns the object should be ready for reaping.
+     * When this method returns the object should be ready for reaping, it is placed on the owning Agent's tombstone
+     * queue and will be removed from the Agent's store once the Agent's reap grace period has expired.
      */
     public final void destroy()
     {
-        _deleteTimestamp = System.currentTimeMillis()*1000000l;
-        _updateTimestamp = System.currentTimeMillis()*1000000l;
+        synchronized (this)
+        {
+            _deleteTimestamp = System.currentTimeMillis()*1000000l;
+            _updateTimestamp = System.currentTimeMillis()*1000000l;
+            valueChanged();
+            commit();
+        }
         publish();
+        retire();
+    }
+
+    /**
+     * Mark the object as deleted as destroy() does, but without publishing it. This is used by
+     * Agent.destroyObjects() to publish a batch of deleted objects in a single data indication per Subscription.
+     * @return the Subscriptions that the deleted object was attached to and should be published to.
+     */
+    final Collection<Subscription> markDestroyed()
+    {
+        synchronized (this)
+        {
+            _deleteTimestamp = System.currentTimeMillis()*1000000l;
+            update();
+        }
+        Collection<Subscription> subscriptions = new ArrayList<Subscription>(_subscriptions.values());
+        retire();
+        return subscriptions;
+    }
+
+    /**
+     * Detach a deleted object from its Subscriptions and place it on the owning Agent's tombstone queue.
+     */
+    private void retire()
+    {
+        for (Subscription subscription : _subscriptions.values())
+        {
+            subscription.removeObject(this);
+        }
         _subscriptions.clear();
+
+        if (_agent != null)
+        {
+            _agent.addTombstone(this);
+        }
     }
 
     /**
@@ -151,11 +292,19 @@ public class QmfAgentData extends QmfManaged implements Comparable<QmfAgentData>
      * @param name the name of the property being modified.
      * @param delta the value being added to the property.
      */
-    public final synchronized void incValue(final String name, final long delta)
+    public final void incValue(final String name, final long delta)
     {
-        long value = getLongValue(name);
-        value += delta;
-        setValue(name, value);
+        boolean batched = Thread.holdsLock(this);
+        synchronized (this)
+        {
+            long value = getLongValue(name);
+            value += delta;
+            setValue(name, value);
+            if (!batched)
+            {
+                changeComplete();
+            }
+        }
     }
 
     /**
@@ -164,11 +313,19 @@ public class QmfAgentData extends QmfManaged implements Comparable<QmfAgentData>
      * @param name the name of the property being modified.
      * @param delta the value being added to the property.
      */
-    public final synchronized void incValue(final String name, final double delta)
+    public final void incValue(final String name, final double delta)
     {
-        double value = getDoubleValue(name);
-        value += delta;
-        setValue(name, value);
+        boolean batched = Thread.holdsLock(this);
+        synchronized (this)
+        {
+            double value = getDoubleValue(name);
+            value += delta;
+            setValue(name, value);
+            if (!batched)
+            {
+                changeComplete();
+            }
+        }
     }
 
     /**
@@ -177,11 +334,19 @@ public class QmfAgentData extends QmfManaged implements Comparable<QmfAgentData>
      * @param name the name of the property being modified.
      * @param delta the value being subtracted from the property.
      */
-    public final synchronized void decValue(final String name, final long delta)
+    public final void decValue(final String name, final long delta)
     {
-        long value = getLongValue(name);
-        value -= delta;
-        setValue(name, value);
+        boolean batched = Thread.holdsLock(this);
+        synchronized (this)
+        {
+            long value = getLongValue(name);
+            value -= delta;
+            setValue(name, value);
+            if (!batched)
+            {
+                changeComplete();
+            }
+        }
     }
 
     /**
@@ -190,11 +355,19 @@ public class QmfAgentData extends QmfManaged implements Comparable<QmfAgentData>
      * @param name the name of the property being modified.
      * @param delta the value being subtracted from the property.
      */
-    public final synchronized void decValue(final String name, final double delta)
+    public final void decValue(final String name, final double delta)
     {
-        double value = getDoubleValue(name);
-        value -= delta;
-        setValue(name, value);
+        boolean batched = Thread.holdsLock(this);
+        synchronized (this)
+        {
+            double value = getDoubleValue(name);
+            value -= delta;
+            setValue(name, value);
+            if (!batched)
+            {
+                changeComplete();
+            }
+        }
     }
 
     // The following methods aren't in the QMF2 API per se, but they are used to manage the association between
@@ -217,6 +390,7 @@ public class QmfAgentData extends QmfManaged implements Comparable<QmfAgentData>
     public final void addSubscription(final String subscriptionId, final Subscription subscription)
     {
         _subscriptions.put(subscriptionId, subscription);
+        subscription.addObject(this);
     }
 
     /**
@@ -225,10 +399,38 @@ public class QmfAgentData extends QmfManaged implements Comparable<QmfAgentData>
      */
     public final void removeSubscription(final String subscriptionId)
     {
-        _subscriptions.remove(subscriptionId);
+        Subscription subscription = _subscriptions.remove(subscriptionId);
+        if (subscription != null)
+        {
+            subscription.removeObject(this);
+        }
     }
 
 
+    /**
+     * Set the Agent that this object has been added to. This is called by Agent.addObject().
+     * @param agent the Agent that manages this object.
+     */
+    final void setAgent(final Agent agent)
+    {
+        synchronized (this)
+        { // Publish the state that the object was added in, later changes are published by the threads making them.
+            _agent = agent;
+            _classVersion = agent.getClassVersion(getSchemaClassId());
+            commit();
+        }
+    }
+
+    /**
+     * Returns whether this object has been added to an Agent, objects supplied on demand by an ObjectProvider
+     * haven't been and so can't be tracked by Subscriptions.
+     * @return true if this object has been added to an Agent via Agent.addObject().
+     */
+    final boolean isAdded()
+    {
+        return _agent != null;
+    }
+
     /**
      * Set the _updateTimestamp to indicate (particularly to subscriptions) that the managed object has changed.
      * <p>
@@ -244,7 +446,202 @@ public class QmfAgentData extends QmfManaged implements Comparable<QmfAgentData>
      */
     public final void update()
     {
-        _updateTimestamp = System.currentTimeMillis()*1000000l;
+        synchronized (this)
+        {
+            _updateTimestamp = System.currentTimeMillis()*1000000l;
+            valueChanged();
+            commit();
+        }
+    }
+
+    /**
+     * Return the current version of this QmfAgentData. The version changes whenever the object is mutated via
+     * its mutator methods or update() is called, so it may be used to tell whether a previously encoded form of
+     * the object is still valid. Versions are taken from a sequence shared by all QmfAgentData, so a later
+     * mutation of any object always has a higher version.
+     * @return the current version of this QmfAgentData.
+     */
+    public final long getVersion()
+    {
+        return _version;
+    }
+
+    /**
+     * Return the latest value of the version sequence shared by all QmfAgentData, any change to any object in
+     * the store results in a higher value.
+     * @return the latest value of the version sequence.
+     */
+    public static long getLatestVersion()
+    {
+        return _versions.get();
+    }
+
+    /**
+     * Return the snapshot in which the current thread is reading objects.
+     * @return the value of the version sequence at which the current snapshot started, or Long.MAX_VALUE if the
+     * current thread isn't in a snapshot.
+     */
+    static long getSnapshotVersion()
+    {
+        return _snapshot.get().get();
+    }
+
+    /**
+     * Take the next value of the version sequence, for changes to the store that aren't mutations of an object.
+     * @return the new value of the version sequence.
+     */
+    static long nextVersion()
+    {
+        return _versions.incrementAndGet();
+    }
+
+    /**
+     * Advance a version marker to a version, unless it has already been advanced past it by another thread.
+     * @param marker the version marker.
+     * @param version the new version.
+     */
+    static void advanceVersion(final AtomicLong marker, final long version)
+    {
+        long current = marker.get();
+        while (current < version && !marker.compareAndSet(current, version))
+        {
+            current = marker.get();
+        }
+    }
+
+    /**
+     * Start reading objects in a snapshot of the store on the current thread, until endSnapshot() is called.
+     * Snapshots may be nested, in which case the outermost one applies.
+     * @return the snapshot that was previously in force, to be passed to endSnapshot().
+     */
+    static long beginSnapshot()
+    {
+        AtomicLong snapshot = _snapshot.get();
+        long previous = snapshot.get();
+        if (previous == Long.MAX_VALUE)
+        {
+            // Register the snapshot pinning every Version before reading the version sequence, so that a Version
+            // published concurrently can't trim the Version that this snapshot needs.
+            snapshot.set(0);
+            _activeSnapshots.add(snapshot);
+            snapshot.set(_versions.get());
+        }
+        return previous;
+    }
+
+    /**
+     * Finish reading objects in the snapshot started by the matching beginSnapshot().
+     * @param previous the value returned by beginSnapshot().
+     */
+    static void endSnapshot(final long previous)
+    {
+        AtomicLong snapshot = _snapshot.get();
+        snapshot.set(previous);
+        if (previous == Long.MAX_VALUE)
+        {
+            _activeSnapshots.remove(snapshot);
+        }
+    }
+
+    /**
+     * Return the oldest snapshot that any thread may be reading objects in.
+     * @return the oldest active snapshot, or the latest value of the version sequence if there are none.
+     */
+    private static long getOldestSnapshot()
+    {
+        long oldest = _versions.get();
+        for (AtomicLong snapshot : _activeSnapshots)
+        {
+            oldest = Math.min(oldest, snapshot.get());
+        }
+        return oldest;
+    }
+
+    /**
+     * Take the next version for a mutation of this QmfAgentData, invalidating its committed Version.
+     */
+    @Override
+    protected final void valueChanged()
+    {
+        long version = _versions.incrementAndGet();
+        long writer = Thread.currentThread().getId();
+        if (_dirtySince == 0)
+        {
+            _dirtySince = version;
+            _dirtyWriter = writer;
+        }
+        else if (_dirtyWriter != writer)
+        {
+            _dirtyWriter = SEVERAL_WRITERS;
+        }
+        _version = version;
+
+        AtomicLong classVersion = _classVersion;
+        if (classVersion != null)
+        {
+            advanceVersion(classVersion, version);
+        }
+    }
+
+    /**
+     * Publish a completed change once this object has been added to an Agent, see QmfData.changeComplete().
+     */
+    @Override
+    protected final void changeComplete()
+    {
+        if (_agent != null)
+        {
+            commit();
+        }
+    }
+
+    /**
+     * Commit a new immutable Version of this QmfAgentData if it has been modified since the last commit, trimming
+     * the Versions that no active snapshot can need any more.
+     * @return the latest committed Version.
+     */
+    private synchronized Version commit()
+    {
+        Version committed = _committed;
+        if (committed != null && _dirtySince == 0)
+        {
+            return committed;
+        }
+
+        Map<String, Object> map = new HashMap<String, Object>();
+        map.put("_values", Collections.unmodifiableMap(new HashMap<String, Object>(super.mapEncode())));
+        if (_subtypes != null)
+        {
+            map.put("_subtypes", Collections.unmodifiableMap(new HashMap<String, String>(_subtypes)));
+        }
+        map.put("_schema_id", Collections.unmodifiableMap(getSchemaClassId().mapEncode()));
+        if (getObjectId() != null)
+        { // The ObjectId is only allocated when the object is added to an Agent.
+            map.put("_object_id", Collections.unmodifiableMap(getObjectId().mapEncode()));
+        }
+        map.put("_update_ts", _updateTimestamp);
+        map.put("_create_ts", _createTimestamp);
+        map.put("_delete_ts", _deleteTimestamp);
+
+        // The EncodedMap is immutable as it is shared by every reader of this Version, and it caches its amqp/list
+        // encoding so list responses can splice it in without re-encoding.
+        Version version = new Version(_version, new AMQPMessage.EncodedMap(map), committed);
+        _committed = version;
+        _dirtySince = 0;
+        _dirtyWriter = 0;
+
+        // Every snapshot resolves to the newest Version at or before it, so those older than the newest Version
+        // at or before the oldest active snapshot aren't needed.
+        long oldest = getOldestSnapshot();
+        for (Version v = version; v != null; v = v._previous)
+        {
+            if (v._version <= oldest)
+            {
+                v._previous = null;
+                break;
+            }
+        }
+        return version;
     }
 
     /**
@@ -273,7 +670,7 @@ public class QmfAgentData extends QmfManaged implements Comparable<QmfAgentData>
         for (Map.Entry<String, Subscription> entry : _subscriptions.entrySet())
         {
             Subscription subscription = entry.getValue();
-            subscription.publish(results);
+            subscription.publish(this, results);
         }
     }
 
@@ -285,24 +682,43 @@ public class QmfAgentData extends QmfManaged implements Comparable<QmfAgentData>
      * setting the underlying Map properties via setValue() etc. when the object needs to be "serialised". This would
      * most obviously be done by extending the mapEncode() method (noting that it's important to call QmfAgentData's
      * mapEncode() first via super.mapEncode(); as this will set the state of the underlying QmfData).
+     * <p>
+     * The encoded Map is that of an immutable committed Version and the same instance is returned to every caller
+     * until this QmfAgentData is next modified, so it is read-only, attempting to modify it throws
+     * UnsupportedOperationException. Inside a snapshot an earlier Version may be returned, see the class
+     * description. Changes made by other threads in a block synchronized on the object aren't returned until
+     * update() is called. Note that properties that are themselves mutable
+     * containers (Maps or Lists) should be replaced via setValue() rather than modified in place.
      *
      * @return the underlying map. 
      */
     @Override
     public Map<String, Object> mapEncode()
     {
-        Map<String, Object> map = new HashMap<String, Object>();
-        map.put("_values", super.mapEncode());
-        if (_subtypes != null)
+        // The object's own state is published by a thread that has changed it without the change having been
+        // published yet, for example by a subclass mapEncode() that refreshes some properties in a block synchronized
+        // on the object before calling super.mapEncode(), as a thread always sees its own changes. An object that
+        // hasn't yet been added to an Agent isn't shared, so is simply committed on demand.
+        long me = Thread.currentThread().getId();
+        Version committed = _committed;
+        if (committed == null || (_dirtySince != 0 &&
+            (_agent == null || _dirtyWriter == me || Thread.holdsLock(this))))
         {
-            map.put("_subtypes", _subtypes);
+            return commit()._map;
         }
-        map.put("_schema_id", getSchemaClassId().mapEncode());
-        map.put("_object_id", getObjectId().mapEncode());
-        map.put("_update_ts", _updateTimestamp);
-        map.put("_create_ts", _createTimestamp);
-        map.put("_delete_ts", _deleteTimestamp);
-        return map;
+
+        long snapshot = _snapshot.get().get();
+        for (Version version = committed; version != null; version = version._previous)
+        {
+            // A thread always sees its own commits, such as one made by a subclass mapEncode() calling update().
+            if (version._version <= snapshot || version._writer == me)
+            {
+                return version._map;
+            }
+        }
+
+        // The object was added to the Agent after the snapshot started.
+        return committed._map;
     }
 
     /**
@@ -324,6 +740,9 @@ public class QmfAgentData extends QmfManaged implements Comparable<QmfAgentData>
     /**
      * Set the key String to be used for comparing two QmfAgentData instances. This is primarily used by the Agent
      * to allow it to order Query results (e.g. for getObjects()).
+     * <p>
+     * The Agent maintains its sorted views using the compare key, so it must be set before the QmfAgentData is
+     * passed to Agent.addObject() and must not be changed afterwards.
      * @param compareKey the String that we wish to use as a compare key.
      */
     public void setCompareKey(String compareKey)
@@ -331,6 +750,15 @@ public class QmfAgentData extends QmfManaged implements Comparable<QmfAgentData>
         _compareKey = compareKey;
     }
 
+    /**
+     * Return the key String used for comparing two QmfAgentData instances.
+     * @return the compare key, or null if the QmfAgentData is not sortable.
+     */
+    public String getCompareKey()
+    {
+        return _compareKey;
+    }
+
     /**
      * If a compare key has been set then the QmfAgentData is sortable.
      * @return true if a compare key has been set and the QmfAgentData is sortable otherwise return false.
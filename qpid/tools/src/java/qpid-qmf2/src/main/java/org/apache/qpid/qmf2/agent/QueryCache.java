@@ -0,0 +1,217 @@
+/*
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *
+ */
+package org.apache.qpid.qmf2.agent;
+
+// Misc Imports
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+// QMF2 Imports
+import org.apache.qpid.qmf2.common.AMQPMessage;
+import org.apache.qpid.qmf2.common.QmfData;
+import org.apache.qpid.qmf2.common.QmfQuery;
+
+/**
+ * A short lived cache of the encoded bodies of OBJECT _query_response messages, enabled by
+ * Agent.setQueryCacheTTL().
+ * <p>
+ * Tools such as qpid-config, the REST UI and monitoring scrapers often send the same query, for example for all
+ * objects of the queue class, within a second or so of each other. The cache allows each of them to be sent the
+ * same encoded response rather than the Agent evaluating and encoding the query again for each one.
+ * <p>
+ * Entries are keyed by the normalised Map encoding of the QmfQuery and record the version of the Agent's store
+ * that the response was evaluated at. An entry is used until its TTL expires or until any class that the query
+ * targets has changed since it was evaluated, the Agent tracking the latest version of each class as objects are
+ * added, modified and destroyed. Objects supplied by an ObjectProvider are tracked through its getVersion(),
+ * while queries that might match provided objects whose changes aren't tracked aren't cached at all.
+ * <p>
+ * Each entry also holds the deflate compressed form of its body once it has first been sent compressed, so that
+ * repeated responses to Consoles that accept compression aren't compressed again every time.
+ */
+public final class QueryCache
+{
+    /**
+     * The maximum number of queries cached, when this is reached expired entries are purged and if that doesn't
+     * free any space the cache is cleared. Consoles tend to repeat a handful of queries so this is plenty.
+     */
+    private static final int MAX_ENTRIES = 256;
+
+    /**
+     * The encoded body of a query response.
+     */
+    static final class Entry
+    {
+        private final long _version;
+        private final long _expiry;
+        private final byte[] _body;
+
+        // The compressed body once it has been needed, which is _body itself if compressing doesn't make it smaller.
+        private volatile byte[] _compressed = null;
+
+        public Entry(final long version, final long expiry, final byte[] body)
+        {
+            _version = version;
+            _expiry = expiry;
+            _body = body;
+        }
+
+        /**
+         * Return the amqp/list encoded response body.
+         * @return the encoded response body.
+         */
+        public byte[] getBody()
+        {
+            return _body;
+        }
+
+        /**
+         * Return the deflate compressed response body, compressing it on the first call.
+         * @return the compressed response body, or null if compressing doesn't make it any smaller.
+         */
+        public byte[] getCompressed()
+        {
+            byte[] compressed = _compressed;
+            if (compressed == null)
+            {
+                compressed = AMQPMessage.deflateList(_body);
+                if (compressed == null)
+                {
+                    compressed = _body;
+                }
+                _compressed = compressed;
+            }
+            return (compressed == _body) ? null : compressed;
+        }
+    }
+
+    private final long _ttl;
+    private final ConcurrentMap<Object, Entry> _entries = new ConcurrentHashMap<Object, Entry>();
+
+    /**
+     * Construct a QueryCache.
+     * @param ttl the time in milliseconds for which a response may be reused.
+     */
+    QueryCache(final long ttl)
+    {
+        _ttl = ttl*1000000l;
+    }
+
+    /**
+     * Return the key that a query's response is cached under, the query's Map encoding with any binary Strings
+     * converted to Strings so that equivalent queries from different Consoles have equal keys.
+     * @param query the QmfQuery.
+     * @return the cache key.
+     */
+    static Object getKey(final QmfQuery query)
+    {
+        return normalise(query.mapEncode());
+    }
+
+    /**
+     * Recursively copy a value from a query's Map encoding, converting byte[] to String.
+     * @param value the value to copy.
+     * @return the normalised copy.
+     */
+    private static Object normalise(final Object value)
+    {
+        if (value instanceof Map)
+        {
+            Map<String, Object> map = new HashMap<String, Object>();
+            for (Object entry : ((Map)value).entrySet())
+            {
+                Map.Entry e = (Map.Entry)entry;
+                map.put(QmfData.getString(e.getKey()), normalise(e.getValue()));
+            }
+            return map;
+        }
+        else if (value instanceof List)
+        {
+            List<Object> list = new ArrayList<Object>(((List)value).size());
+            for (Object entry : (List)value)
+            {
+                list.add(normalise(entry));
+            }
+            return list;
+        }
+        else if (value instanceof byte[])
+        {
+            return QmfData.getString(value);
+        }
+        return value;
+    }
+
+    /**
+     * Return the cached response body for a query if it is still valid.
+     * @param key the key returned by getKey().
+     * @param version the latest version of the classes that the query targets.
+     * @return the cached response, or null if there is no valid cached response.
+     */
+    Entry get(final Object key, final long version)
+    {
+        Entry entry = _entries.get(key);
+        if (entry == null)
+        {
+            return null;
+        }
+
+        if (entry._version < version || System.nanoTime() - entry._expiry > 0)
+        {
+            _entries.remove(key, entry);
+            return null;
+        }
+        return entry;
+    }
+
+    /**
+     * Cache the response body for a query.
+     * @param key the key returned by getKey().
+     * @param version the version of the store that the query was evaluated at.
+     * @param body the encoded response body.
+     * @return the cached response.
+     */
+    Entry put(final Object key, final long version, final byte[] body)
+    {
+        long now = System.nanoTime();
+        if (_entries.size() >= MAX_ENTRIES)
+        {
+            for (Iterator<Entry> i = _entries.values().iterator(); i.hasNext();)
+            {
+                if (now - i.next()._expiry > 0)
+                {
+                    i.remove();
+                }
+            }
+
+            if (_entries.size() >= MAX_ENTRIES)
+            {
+                _entries.clear();
+            }
+        }
+        Entry entry = new Entry(version, now + _ttl, body);
+        _entries.put(key, entry);
+        return entry;
+    }
+}
@@ -24,6 +24,8 @@ import java.util.Map;
 
 // QMF2 Imports
 import org.apache.qpid.qmf2.common.QmfData;
+import org.apache.qpid.qmf2.common.QmfException;
+import org.apache.qpid.qmf2.common.SubscriptionFilter;
 
 /**
  * Holds the information contained in a resubscription request made by a Console to an Agent
@@ -64,6 +66,16 @@ public final class ResubscribeParams extends QmfData
         return getLongValue("_duration");
     }
 
+    /**
+     * Return the SubscriptionFilter described by any new "_deadband" and "_threshold" values of the request.
+     * @return the SubscriptionFilter, or null if the request has neither a "_deadband" nor a "_threshold", in which
+     * case the Subscription keeps its existing filter.
+     */
+    public SubscriptionFilter getFilter() throws QmfException
+    {
+        return SubscriptionFilter.create(this, "_deadband", "_threshold");
+    }
+
     /**
      * Return authenticated user id of caller if present, else null.
      * @return authenticated user id of caller if present, else null.
@@ -25,16 +25,23 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.TimerTask;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
 
 // QMF2 Imports
 import org.apache.qpid.qmf2.common.Handle;
+import org.apache.qpid.qmf2.common.ObjectId;
+import org.apache.qpid.qmf2.common.QmfData;
 import org.apache.qpid.qmf2.common.QmfException;
 import org.apache.qpid.qmf2.common.QmfQuery;
 import org.apache.qpid.qmf2.common.QmfQueryTarget;
+import org.apache.qpid.qmf2.common.SubscriptionFilter;
 
 /** 
  * This TimerTask represents a running Subscription on the Agent.
@@ -43,6 +50,9 @@ import org.apache.qpid.qmf2.common.QmfQueryTarget;
  * the _subscriptions Map when the Subscription expires. The timer also causes QmfAgenData that have been updated
  * since the last interval to be published.
  * <p>
+ * If the subscription request had a "_deadband" or "_threshold" the changed objects are passed through a
+ * SubscriptionFilter and only those with significant changes are published.
+ * <p>
  * The following diagram illustrates the Subscription relationships with the Agent and QmfAgentData.
  * <p>
  * <img alt="" src="doc-files/Subscriptions.png">
@@ -69,6 +79,14 @@ public final class Subscription extends TimerTask
     private QmfQuery _query;
     private long _duration = 0;
     private long _interval = 0;
+    private volatile SubscriptionFilter _filter;
+
+    /**
+     * The QmfAgentData objects currently attached to this Subscription. This allows the Subscription to detach
+     * itself from its objects on cancel() without having to re-evaluate its query over the Agent's whole store.
+     */
+    private final Set<QmfAgentData> _objects =
+        Collections.newSetFromMap(new ConcurrentHashMap<QmfAgentData, Boolean>());
 
     /**
      * Tells the SubscribableAgent to send the results to the Console via a subscription indicate message.
@@ -78,10 +96,57 @@ public final class Subscription extends TimerTask
      */
     protected void publish(List<Map> results)
     {
-        _agent.sendSubscriptionIndicate(_consoleHandle, results);
+        _agent.sendSubscriptionIndicate(_consoleHandle, Agent.encodeResults(_query, results));
         _lastUpdate = System.currentTimeMillis()*1000000l;
     }
 
+    /**
+     * Publish a single object immediately, if it passes this Subscription's SubscriptionFilter. Called by
+     * QmfAgentData.publish().
+     * @param object the QmfAgentData being published.
+     * @param results a List holding the mapEncoded object.
+     */
+    void publish(final QmfAgentData object, final List<Map> results)
+    {
+        if (accept(object))
+        {
+            publish(results);
+        }
+    }
+
+    /**
+     * Publish a batch of objects immediately in a single data indication, omitting any that don't pass this
+     * Subscription's SubscriptionFilter. Called by Agent.addObjects() and Agent.destroyObjects().
+     * @param objects the QmfAgentData being published.
+     */
+    void publish(final Collection<? extends QmfAgentData> objects)
+    {
+        List<Map> results = new ArrayList<Map>(objects.size());
+        for (QmfAgentData object : objects)
+        {
+            if (accept(object))
+            {
+                results.add(object.mapEncode());
+            }
+        }
+
+        if (results.size() > 0)
+        {
+            publish(results);
+        }
+    }
+
+    /**
+     * Check whether a changed object passes this Subscription's SubscriptionFilter, if it has one.
+     * @param object the changed QmfAgentData.
+     * @return true if the object should be published.
+     */
+    private boolean accept(final QmfAgentData object)
+    {
+        return _filter == null ||
+               _filter.accept(object.getObjectId(), new QmfData(object.mapEncode()), object.isDeleted());
+    }
+
     /**
      * Construct a new Subscription.
      * @param agent the SubscribableAgent to which this Subscription is associated.
@@ -93,6 +158,7 @@ public final class Subscription extends TimerTask
         _subscriptionId = UUID.randomUUID().toString();
         _consoleHandle = params.getConsoleHandle();
         _query = params.getQuery();
+        _filter = params.getFilter();
         setDuration(params.getLifetime());
         setInterval(params.getPublishInterval());
 
@@ -118,33 +184,77 @@ public final class Subscription extends TimerTask
         }
         else
         {
-            List<QmfAgentData> objects = _agent.evaluateQuery(_query);
-            List<Map> results = new ArrayList<Map>(objects.size());
-            for (QmfAgentData object : objects)
+            // Evaluate and encode the objects in a single snapshot of the store, so they are published as they
+            // were at the same point in time.
+            long snapshot = QmfAgentData.beginSnapshot();
+            try
+            {
+                publishChanges();
+            }
+            finally
             {
-                if (object.getSubscription(_subscriptionId) == null)
+                QmfAgentData.endSnapshot(snapshot);
+            }
+        }
+    }
+
+    /**
+     * Evaluate the Query against all registered objects and publish any that match which are new to the
+     * Subscription or have changed since the last update.
+     */
+    private void publishChanges()
+    {
+        List<QmfAgentData> objects = _agent.evaluateQuery(_query);
+        List<Map> results = new ArrayList<Map>(objects.size());
+        for (QmfAgentData object : objects)
+        {
+            if (!object.isAdded())
+            {
+                // The object was supplied on demand by an ObjectProvider so its changes can't be tracked, it
+                // gets published on every publish interval unless the SubscriptionFilter says otherwise.
+                if (accept(object))
                 {
-                    // The object is new to this Subscription so publish it
-                    object.addSubscription(_subscriptionId, this);
                     results.add(object.mapEncode());
                 }
-                else
+            }
+            else if (object.getSubscription(_subscriptionId) == null)
+            {
+                // The object is new to this Subscription so publish it
+                object.addSubscription(_subscriptionId, this);
+                if (accept(object))
                 {
-                    // If the object has had update() called since last Subscription update publish it.
-                    // Note that in many cases an Agent might call publish() on a managed object rather than
-                    // update() which immediately forces a data indication to be sent to the subscriber on
-                    // the Console.
-                    if (object.getUpdateTime() > _lastUpdate)
-                    {
-                        results.add(object.mapEncode());
-                    }
+                    results.add(object.mapEncode());
                 }
             }
+            else
+            {
+                // If the object has had update() called since last Subscription update publish it.
+                // Note that in many cases an Agent might call publish() on a managed object rather than
+                // update() which immediately forces a data indication to be sent to the subscriber on
+                // the Console.
+                if (object.getUpdateTime() > _lastUpdate && accept(object))
+                {
+                    results.add(object.mapEncode());
+                }
+            }
+        }
 
-            if (results.size() > 0)
+        if (results.size() > 0)
+        {
+            publish(results);
+        }
+
+        // The query has just been evaluated against every object, so drop the filter state of any object that
+        // no longer matches it, such as objects that were removed from the Agent without being destroyed.
+        SubscriptionFilter filter = _filter;
+        if (filter != null)
+        {
+            List<ObjectId> objectIds = new ArrayList<ObjectId>(objects.size());
+            for (QmfAgentData object : objects)
             {
-                publish(results);
+                objectIds.add(object.getObjectId());
             }
+            filter.retainAll(objectIds);
         }
     }
 
@@ -152,13 +262,25 @@ public final class Subscription extends TimerTask
      * Refresh the subscription by zeroing its elapsed time.
      *
      * @param resubscribeParams the ResubscribeParams passed by the Console potentially containing new duration
-     * information.
+     * information and a new deadband or threshold.
      */
     public void refresh(ResubscribeParams resubscribeParams)
     {
         _log.debug("Refreshing Subscription {}", _subscriptionId);
         _startTime = System.currentTimeMillis();
         setDuration(resubscribeParams.getLifetime());
+        try
+        {
+            SubscriptionFilter filter = resubscribeParams.getFilter();
+            if (filter != null)
+            {
+                _filter = filter;
+            }
+        }
+        catch (QmfException qmfe)
+        {
+            _log.info("Invalid threshold in refresh of Subscription {}: {}", _subscriptionId, qmfe.getMessage());
+        }
     }
 
     /**
@@ -169,16 +291,36 @@ public final class Subscription extends TimerTask
     {
         _log.debug("Cancelling Subscription {}", _subscriptionId);
         // This Subscription is about to be deleted, remove it from any Objects that may be referencing it.
-        List<QmfAgentData> objects = _agent.evaluateQuery(_query);
-        for (QmfAgentData object : objects)
+        for (QmfAgentData object : _objects)
         {
             object.removeSubscription(_subscriptionId);
         }
+        _objects.clear();
 
         _agent.removeSubscription(this);
         return super.cancel(); // Cancel the TimerTask
     }
 
+    /**
+     * Record that a QmfAgentData object has been attached to this Subscription. Called by
+     * QmfAgentData.addSubscription().
+     * @param object the QmfAgentData that now references this Subscription.
+     */
+    void addObject(final QmfAgentData object)
+    {
+        _objects.add(object);
+    }
+
+    /**
+     * Record that a QmfAgentData object has been detached from this Subscription. Called by
+     * QmfAgentData.removeSubscription() and QmfAgentData.destroy().
+     * @param object the QmfAgentData that no longer references this Subscription.
+     */
+    void removeObject(final QmfAgentData object)
+    {
+        _objects.remove(object);
+    }
+
     /**
      * Return the SubscriptionId of this subscription.
      * @return the SubscriptionId of this subscription.
@@ -0,0 +1,163 @@
+/*
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *
+ */
+package org.apache.qpid.qmf2.agent;
+
+// Misc Imports
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+// QMF2 Imports
+import org.apache.qpid.qmf2.common.ObjectId;
+import org.apache.qpid.qmf2.common.QmfQuery;
+import org.apache.qpid.qmf2.common.SchemaClassId;
+
+/**
+ * Indexes the Agent's active Subscriptions by the target of their QmfQuery so that when a new QmfAgentData gets
+ * added to the Agent only the Subscriptions that could possibly match it need to have their query evaluated.
+ * <p>
+ * ID queries for a specific ObjectId are indexed by ObjectId and ID queries for a SchemaClassId with a non-empty
+ * class name are indexed by class name. Everything else (PREDICATE queries and package-only wildcard queries)
+ * is held in an unindexed set that is always returned as candidates.
+ * <p>
+ * Lookups are lock free, whereas add() and remove() are synchronized so that empty index entries may be
+ * removed safely.
+ */
+final class SubscriptionIndex
+{
+    private final Map<ObjectId, Map<String, Subscription>> _byObjectId =
+        new ConcurrentHashMap<ObjectId, Map<String, Subscription>>();
+    private final Map<String, Map<String, Subscription>> _byClassName =
+        new ConcurrentHashMap<String, Map<String, Subscription>>();
+    private final Map<String, Subscription> _unindexed = new ConcurrentHashMap<String, Subscription>();
+
+    /**
+     * Add a Subscription to the index.
+     * @param subscription the Subscription to be added.
+     */
+    public synchronized void add(final Subscription subscription)
+    {
+        QmfQuery query = subscription.getQuery();
+        if (isObjectIdQuery(query))
+        {
+            add(_byObjectId, query.getObjectId(), subscription);
+        }
+        else if (isClassQuery(query))
+        {
+            add(_byClassName, query.getSchemaClassId().getClassName(), subscription);
+        }
+        else
+        {
+            _unindexed.put(subscription.getSubscriptionId(), subscription);
+        }
+    }
+
+    /**
+     * Remove a Subscription from the index.
+     * @param subscription the Subscription to be removed.
+     */
+    public synchronized void remove(final Subscription subscription)
+    {
+        QmfQuery query = subscription.getQuery();
+        if (isObjectIdQuery(query))
+        {
+            remove(_byObjectId, query.getObjectId(), subscription);
+        }
+        else if (isClassQuery(query))
+        {
+            remove(_byClassName, query.getSchemaClassId().getClassName(), subscription);
+        }
+        else
+        {
+            _unindexed.remove(subscription.getSubscriptionId());
+        }
+    }
+
+    /**
+     * Return the Subscriptions whose query might match the specified QmfAgentData. The caller still needs to
+     * evaluate the query of each candidate, but only these Subscriptions need to be checked.
+     * @param object the QmfAgentData that we want to find candidate Subscriptions for.
+     * @return the List of candidate Subscriptions.
+     */
+    public List<Subscription> getCandidates(final QmfAgentData object)
+    {
+        List<Subscription> candidates = new ArrayList<Subscription>(_unindexed.values());
+
+        Map<String, Subscription> subscriptions = _byObjectId.get(object.getObjectId());
+        if (subscriptions != null)
+        {
+            candidates.addAll(subscriptions.values());
+        }
+
+        subscriptions = _byClassName.get(object.getSchemaClassId().getClassName());
+        if (subscriptions != null)
+        {
+            candidates.addAll(subscriptions.values());
+        }
+        return candidates;
+    }
+
+    /**
+     * An ObjectId query with no predicate and no SchemaClassId only ever matches a single object.
+     */
+    private static boolean isObjectIdQuery(final QmfQuery query)
+    {
+        return query.getPredicate() == null && query.getObjectId() != null && query.getSchemaClassId() == null;
+    }
+
+    /**
+     * A SchemaClassId query with no predicate and a non-empty class name only matches objects of that class.
+     * If the class name is empty the query wildcards the class name so it can't be indexed by class.
+     */
+    private static boolean isClassQuery(final QmfQuery query)
+    {
+        SchemaClassId classId = query.getSchemaClassId();
+        return query.getPredicate() == null && query.getObjectId() == null &&
+               classId != null && classId.getClassName().length() > 0;
+    }
+
+    private static <K> void add(final Map<K, Map<String, Subscription>> index, final K key,
+                                final Subscription subscription)
+    {
+        Map<String, Subscription> subscriptions = index.get(key);
+        if (subscriptions == null)
+        {
+            subscriptions = new ConcurrentHashMap<String, Subscription>();
+            index.put(key, subscriptions);
+        }
+        subscriptions.put(subscription.getSubscriptionId(), subscription);
+    }
+
+    private static <K> void remove(final Map<K, Map<String, Subscription>> index, final K key,
+                                   final Subscription subscription)
+    {
+        Map<String, Subscription> subscriptions = index.get(key);
+        if (subscriptions != null)
+        {
+            subscriptions.remove(subscription.getSubscriptionId());
+            if (subscriptions.isEmpty())
+            {
+                index.remove(key);
+            }
+        }
+    }
+}
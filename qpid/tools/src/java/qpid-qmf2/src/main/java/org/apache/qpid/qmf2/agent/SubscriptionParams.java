@@ -27,6 +27,7 @@ import org.apache.qpid.qmf2.common.Handle;
 import org.apache.qpid.qmf2.common.QmfData;
 import org.apache.qpid.qmf2.common.QmfException;
 import org.apache.qpid.qmf2.common.QmfQuery;
+import org.apache.qpid.qmf2.common.SubscriptionFilter;
 
 /**
  * Holds the information contained in a subscription request made by a Console to an Agent
@@ -69,6 +70,15 @@ public final class SubscriptionParams extends QmfData
         return new QmfQuery((Map)getValue("_query"));
     }
 
+    /**
+     * Return the SubscriptionFilter described by the "_deadband" and "_threshold" values of the request.
+     * @return the SubscriptionFilter, or null if the request has neither a "_deadband" nor a "_threshold".
+     */
+    public SubscriptionFilter getFilter() throws QmfException
+    {
+        return SubscriptionFilter.create(this, "_deadband", "_threshold");
+    }
+
     /**
      * Return the requested time interval in seconds for updates.
      * @return the requested time interval in seconds for updates. Zero if the Agent's default interval should be used.
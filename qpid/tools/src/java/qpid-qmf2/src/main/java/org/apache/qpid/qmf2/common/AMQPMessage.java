@@ -29,11 +29,19 @@ import javax.jms.MessageFormatException;
 import javax.jms.Session;
 
 // Misc Imports
+import java.io.ByteArrayOutputStream;
+import java.io.Serializable;
+import java.util.AbstractMap;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Enumeration;
 import java.util.List;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.Set;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
 
 // Need the following to decode and encode amqp/list messages
 import java.nio.ByteBuffer;
@@ -54,11 +62,107 @@ import org.apache.qpid.qmf2.common.QmfData;
  * Whilst amqp/map messages are encoded as JMS MapMessage this isn't necessarily the most useful format as
  * MapMessage does not conform to the java.util.Map interface. As QMF methods returning lists return lists
  * of java.util.Map there's a bit of an inconsistency of type that getMap() resolves.
+ *<p>
+ * Large amqp/list bodies may be sent deflate compressed, in which case the Message has a "qmf.compression"
+ * property of "deflate" and getList() inflates the body before decoding it. A Console advertises that it accepts
+ * compressed responses by setting a "qmf.accept_compression" property of "deflate" on its requests, so peers that
+ * don't support compression are never sent it.
  * 
  * @author Fraser Adams
  */
 public final class AMQPMessage
 {
+    /**
+     * The largest splice buffer that will be retained for reuse by a thread, larger buffers are discarded after use.
+     */
+    private static final int MAX_POOLED_BUFFER_SIZE = 4*1024*1024;
+
+    /**
+     * The Message property naming the compression applied to an amqp/list body.
+     */
+    public static final String COMPRESSION = "qmf.compression";
+
+    /**
+     * The request Message property naming the compression that the requester accepts in responses.
+     */
+    public static final String ACCEPT_COMPRESSION = "qmf.accept_compression";
+
+    /**
+     * The only compression currently supported.
+     */
+    public static final String DEFLATE = "deflate";
+
+    /**
+     * Per thread output buffer used by setList() when splicing pre-encoded list entries.
+     */
+    private static final ThreadLocal<byte[]> _spliceBuffer = new ThreadLocal<byte[]>();
+
+    /**
+     * An immutable java.util.Map that lazily caches its own amqp/list entry encoding, which allows setList() to copy
+     * the bytes straight into the Message rather than re-encoding the Map every time it is sent. This is intended
+     * for Maps that are encoded once and sent many times, such as the cached mapEncode() of QmfAgentData.
+     * <p>
+     * As the same instance is shared by every caller the Map rejects modification, any attempt to modify it
+     * throwing UnsupportedOperationException, so the encoded form can never be stale. Nested Maps aren't wrapped
+     * so callers should supply unmodifiable ones, as QmfAgentData does.
+     */
+    public static final class EncodedMap extends AbstractMap<String, Object> implements Serializable
+    {
+        private static final long serialVersionUID = 1L;
+
+        private final Map<String, Object> _map;
+        private transient volatile byte[] _encoded = null;
+
+        /**
+         * Construct an EncodedMap holding a copy of the specified Map.
+         * @param map the entries of the EncodedMap.
+         */
+        public EncodedMap(final Map<String, Object> map)
+        {
+            _map = Collections.unmodifiableMap(new HashMap<String, Object>(map));
+        }
+
+        @Override
+        public Set<Map.Entry<String, Object>> entrySet()
+        {
+            return _map.entrySet();
+        }
+
+        @Override
+        public Object get(final Object key)
+        {
+            return _map.get(key);
+        }
+
+        @Override
+        public boolean containsKey(final Object key)
+        {
+            return _map.containsKey(key);
+        }
+
+        @Override
+        public int size()
+        {
+            return _map.size();
+        }
+
+        /**
+         * Return the encoded form of this Map as an amqp/list entry, that is the type code followed by the
+         * amqp/map encoding, encoding it on the first call.
+         * @return the encoded form of this Map as an amqp/list entry.
+         */
+        public byte[] getEncoded()
+        {
+            byte[] encoded = _encoded;
+            if (encoded == null)
+            {
+                encoded = encodeListEntry(this);
+                _encoded = encoded;
+            }
+            return encoded;
+        }
+    }
+
     /**
      * Make constructor private at this class provides a set of static helper methods and doesn't need instantiated.
      */
@@ -219,6 +323,16 @@ public final class AMQPMessage
             //only handles responses up to 2^31-1 bytes long
             byte[] data = new byte[(int) msg.getBodyLength()];
             msg.readBytes(data);
+
+            String compression = msg.getStringProperty(COMPRESSION);
+            if (compression != null)
+            {
+                if (!compression.equals(DEFLATE))
+                {
+                    throw new MessageFormatException("Unsupported amqp/list compression " + compression);
+                }
+                data = inflate(data);
+            }
             BBDecoder decoder = new BBDecoder();
             decoder.init(ByteBuffer.wrap(data));
             return (List<T>)decoder.readList();
@@ -272,12 +386,28 @@ public final class AMQPMessage
      * <p>
      * This method uses the org.apache.qpid.transport.codec.BBEncoder writeList() method to encode
      * a List into a ByteBuffer then writes the bytes from the buffer into a JMS BytesMessage.
+     * <p>
+     * If the List contains any EncodedMap entries the list header is written directly and the cached encoded
+     * form of each EncodedMap is copied into a pooled buffer, so only the remaining entries need to be encoded.
      *
      * @param message amqp/list encoded JMS BytesMessage
      * @param list to encode into JMS Message
      */
-    @SuppressWarnings("unchecked")
     public static void setList(final Message message, final List list) throws JMSException
+    {
+        writeList(message, list);
+    }
+
+    /**
+     * Encodes a java.util.List on an amqp/list encoded BytesMessage in the same way as setList(), returning the size
+     * of the encoded List for callers that record message sizes.
+     *
+     * @param message amqp/list encoded JMS BytesMessage
+     * @param list to encode into JMS Message
+     * @return the size in bytes of the encoded List.
+     */
+    @SuppressWarnings("unchecked")
+    public static int writeList(final Message message, final List list) throws JMSException
     {
         String type = getContentType(message);
         if (!type.equals("amqp/list"))
@@ -290,20 +420,310 @@ public final class AMQPMessage
             throw new MessageFormatException("Attempting to do AMQPMessage.setList() on null Message");
         }
         else if (message instanceof BytesMessage)
+        {
+            if (hasEncodedMap(list))
+            {
+                return writeSplicedList((BytesMessage)message, list);
+            }
+            else
+            {
+                BBEncoder encoder = new BBEncoder(1024);
+                encoder.writeList(list);
+                ByteBuffer buf = encoder.segment();
+                byte[] data = new byte[buf.limit()];
+                buf.get(data);
+                ((BytesMessage)message).writeBytes(data);
+                return data.length;
+            }
+        }
+        else
+        {
+            throw new MessageFormatException("Attempting to do setList() on " + message.getClass().getCanonicalName());
+        }
+    }
+
+    /**
+     * Encodes a java.util.List as amqp/list into a new byte array, for a body that is to be sent several times
+     * via setEncodedList(). As with setList() the cached encoded form of any EncodedMap entries is spliced in.
+     *
+     * @param list the List to encode.
+     * @return the amqp/list encoding of the List.
+     */
+    public static byte[] encodeList(final List list)
+    {
+        if (hasEncodedMap(list))
+        {
+            byte[][] entries = encodeEntries(list);
+            byte[] data = new byte[getSplicedLength(entries)];
+            spliceEntries(data, entries);
+            return data;
+        }
+        else
         {
             BBEncoder encoder = new BBEncoder(1024);
             encoder.writeList(list);
             ByteBuffer buf = encoder.segment();
             byte[] data = new byte[buf.limit()];
             buf.get(data);
-            ((BytesMessage)message).writeBytes(data);
+            return data;
+        }
+    }
+
+    /**
+     * Writes a List previously encoded by encodeList() to an amqp/list encoded BytesMessage.
+     *
+     * @param message amqp/list encoded JMS BytesMessage.
+     * @param encoded the amqp/list encoding returned by encodeList().
+     * @return the size in bytes of the encoded List.
+     */
+    public static int setEncodedList(final Message message, final byte[] encoded) throws JMSException
+    {
+        if (message instanceof BytesMessage && getContentType(message).equals("amqp/list"))
+        {
+            ((BytesMessage)message).writeBytes(encoded);
+            return encoded.length;
         }
         else
         {
-            throw new MessageFormatException("Attempting to do setList() on " + message.getClass().getCanonicalName());
+            throw new MessageFormatException("Can only do setEncodedList() on amqp/list encoded BytesMessage");
         }
     }
-}
 
+    /**
+     * Write an already encoded List on an amqp/list message, deflate compressing it if it is at least threshold
+     * bytes long and compressing makes it smaller.
+     * <p>
+     * Only call this with a non-zero threshold if the recipient of the message has advertised that it accepts
+     * deflate compression, as peers that don't will fail to decode the compressed body.
+     *
+     * @param message the amqp/list encoded JMS Message.
+     * @param encoded the amqp/list encoding of the List, as returned by encodeList().
+     * @param threshold the size in bytes from which to compress the body, zero or less disables compression.
+     * @return the size in bytes of the body written.
+     */
+    public static int setEncodedList(final Message message, final byte[] encoded, final int threshold)
+        throws JMSException
+    {
+        if (threshold > 0 && encoded.length >= threshold)
+        {
+            byte[] compressed = deflateList(encoded);
+            if (compressed != null)
+            {
+                return setDeflatedList(message, compressed);
+            }
+        }
+        return setEncodedList(message, encoded);
+    }
+
+    /**
+     * Deflate compress an already encoded List, for a body that is to be sent compressed several times via
+     * setDeflatedList().
+     *
+     * @param encoded the amqp/list encoding of the List, as returned by encodeList().
+     * @return the compressed encoding, or null if compressing doesn't make it any smaller.
+     */
+    public static byte[] deflateList(final byte[] encoded)
+    {
+        byte[] compressed = deflate(encoded);
+        return (compressed.length < encoded.length) ? compressed : null;
+    }
+
+    /**
+     * Write a List compressed by deflateList() on an amqp/list message.
+     * <p>
+     * As with setEncodedList() only do this if the recipient of the message accepts deflate compression.
+     *
+     * @param message the amqp/list encoded JMS Message.
+     * @param compressed the compressed encoding of the List, as returned by deflateList().
+     * @return the size in bytes of the body written.
+     */
+    public static int setDeflatedList(final Message message, final byte[] compressed) throws JMSException
+    {
+        int bytes = setEncodedList(message, compressed);
+        message.setStringProperty(COMPRESSION, DEFLATE);
+        return bytes;
+    }
+
+    /**
+     * Deflate compress a message body.
+     * @param data the body to compress.
+     * @return the compressed body.
+     */
+    private static byte[] deflate(final byte[] data)
+    {
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try
+        {
+            deflater.setInput(data);
+            deflater.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(data.length/4 + 64);
+            byte[] buffer = new byte[8192];
+            while (!deflater.finished())
+            {
+                out.write(buffer, 0, deflater.deflate(buffer));
+            }
+            return out.toByteArray();
+        }
+        finally
+        {
+            deflater.end();
+        }
+    }
 
+    /**
+     * Inflate a deflate compressed message body.
+     * @param data the compressed body.
+     * @return the uncompressed body.
+     */
+    private static byte[] inflate(final byte[] data) throws JMSException
+    {
+        Inflater inflater = new Inflater();
+        try
+        {
+            inflater.setInput(data);
+            ByteArrayOutputStream out = new ByteArrayOutputStream(data.length*4);
+            byte[] buffer = new byte[8192];
+            while (!inflater.finished())
+            {
+                int length = inflater.inflate(buffer);
+                if (length == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+                {
+                    throw new MessageFormatException("Truncated deflate compressed amqp/list body");
+                }
+                out.write(buffer, 0, length);
+            }
+            return out.toByteArray();
+        }
+        catch (DataFormatException dfe)
+        {
+            throw new MessageFormatException("Invalid deflate compressed amqp/list body: " + dfe.getMessage());
+        }
+        finally
+        {
+            inflater.end();
+        }
+    }
 
+    /**
+     * Check whether a List contains any EncodedMap entries that are worth splicing.
+     * @param list the List to check.
+     * @return true if the List contains at least one EncodedMap.
+     */
+    private static boolean hasEncodedMap(final List list)
+    {
+        for (Object entry : list)
+        {
+            if (entry instanceof EncodedMap)
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Encode a single Object as an amqp/list entry, that is the type code followed by the encoded value. This is
+     * done by encoding a single element List and stripping the List's size and count header.
+     * @param value the Object to encode.
+     * @return the encoded amqp/list entry.
+     */
+    private static byte[] encodeListEntry(final Object value)
+    {
+        BBEncoder encoder = new BBEncoder(1024);
+        encoder.writeList(Collections.singletonList(value));
+        ByteBuffer buf = encoder.segment();
+        buf.position(buf.position() + 8); // Skip the uint32 size and uint32 count of the List.
+        byte[] data = new byte[buf.remaining()];
+        buf.get(data);
+        return data;
+    }
+
+    /**
+     * Write a big-endian uint32 into a byte array.
+     * @param buffer the byte array to write to.
+     * @param offset the offset to write the value at.
+     * @param value the value to write.
+     */
+    private static void putUint32(final byte[] buffer, final int offset, final long value)
+    {
+        buffer[offset]     = (byte)(value >>> 24);
+        buffer[offset + 1] = (byte)(value >>> 16);
+        buffer[offset + 2] = (byte)(value >>> 8);
+        buffer[offset + 3] = (byte)value;
+    }
+
+    /**
+     * Return the amqp/list entry encoding of each entry of a List, EncodedMap entries supply their cached form.
+     * @param list the List to encode.
+     * @return the encoded entries.
+     */
+    private static byte[][] encodeEntries(final List list)
+    {
+        byte[][] entries = new byte[list.size()][];
+        int i = 0;
+        for (Object entry : list)
+        {
+            entries[i++] = (entry instanceof EncodedMap) ? ((EncodedMap)entry).getEncoded() : encodeListEntry(entry);
+        }
+        return entries;
+    }
+
+    /**
+     * Return the length of the amqp/list encoding of a List from the encoding of its entries.
+     * @param entries the encoded entries.
+     * @return the length of the List header and entries.
+     */
+    private static int getSplicedLength(final byte[][] entries)
+    {
+        int length = 8; // The uint32 size and uint32 count of the List.
+        for (byte[] encoded : entries)
+        {
+            length += encoded.length;
+        }
+        return length;
+    }
+
+    /**
+     * Write the List header followed by the encoded entries into a buffer.
+     * @param buffer the buffer to write to, at least getSplicedLength() long.
+     * @param entries the encoded entries.
+     */
+    private static void spliceEntries(final byte[] buffer, final byte[][] entries)
+    {
+        int length = getSplicedLength(entries);
+        putUint32(buffer, 0, length - 4); // The List size includes the uint32 count but not the uint32 size itself.
+        putUint32(buffer, 4, entries.length);
+        int offset = 8;
+        for (byte[] encoded : entries)
+        {
+            System.arraycopy(encoded, 0, buffer, offset, encoded.length);
+            offset += encoded.length;
+        }
+    }
+
+    /**
+     * Encode a List as amqp/list by writing the List header followed by the encoded form of each entry into a
+     * pooled per thread buffer. EncodedMap entries supply their cached encoded form so are simply copied.
+     * @param message amqp/list encoded JMS BytesMessage.
+     * @param list to encode into JMS Message.
+     * @return the size in bytes of the encoded List.
+     */
+    private static int writeSplicedList(final BytesMessage message, final List list) throws JMSException
+    {
+        byte[][] entries = encodeEntries(list);
+        int length = getSplicedLength(entries);
+        byte[] buffer = _spliceBuffer.get();
+        if (buffer == null || buffer.length < length)
+        {
+            buffer = new byte[length];
+            if (length <= MAX_POOLED_BUFFER_SIZE)
+            {
+                _spliceBuffer.set(buffer);
+            }
+        }
+
+        spliceEntries(buffer, entries);
+        message.writeBytes(buffer, 0, length);
+        return length;
+    }
+}
@@ -0,0 +1,396 @@
+/*
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *
+ */
+package org.apache.qpid.qmf2.common;
+
+// Misc Imports
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Converts the list of mapEncoded objects in an OBJECT _query_response or _data_indication to and from a columnar
+ * form, which a Console may request by setting the "_format" option of its QmfQuery, see QmfQuery.setColumnar().
+ * <p>
+ * In the usual form every object repeats its property names and the "_values", "_schema_id" and "_object_id"
+ * keys, which for a listing of thousands of queues is most of the message. In the columnar form each run of
+ * objects of the same class is replaced by a single table Map holding the SchemaClassId and property names once,
+ * followed by a List of values for each property:
+ * <pre>
+ * {"_columnar": 1,
+ *  "_schema_id": {...}, "_agent_name": "broker", "_agent_epoch": 1, "_object_names": [...],
+ *  "_names": ["name", "msgDepth", ...], "_columns": [[...], [...], ...],
+ *  "_header_names": ["_update_ts", "_create_ts", "_delete_ts"], "_headers": [[...], [...], [...]]}
+ * </pre>
+ * A value that an object doesn't have is null in its column. A String column with many repeated values is
+ * dictionary encoded as a Map of the form {"_dictionary": [distinct values], "_indexes": [index per object]}. If
+ * the objects of a table don't share an Agent name and epoch their "_object_id" Maps are sent as a header column
+ * instead of "_object_names". Anything that isn't an object, such as the rows of an "_aggregate" query, is left
+ * as it is.
+ * <p>
+ * Tables are recognised by their "_columnar" key, so decode() may be applied to any list of results and leaves
+ * those of Agents that don't support the option unchanged.
+ */
+public final class ColumnarResults
+{
+    /**
+     * The value of the "_format" query option requesting columnar results.
+     */
+    public static final String FORMAT = "columnar";
+
+    /**
+     * The version of the table encoding, held as the value of the "_columnar" key of each table.
+     */
+    private static final int VERSION = 1;
+
+    /**
+     * Columns with fewer values than this aren't worth dictionary encoding.
+     */
+    private static final int MIN_DICTIONARY_SIZE = 8;
+
+    /**
+     * Prevent instantiation, this class only has static methods.
+     */
+    private ColumnarResults()
+    {
+    }
+
+    /**
+     * Convert a list of mapEncoded objects into columnar form.
+     * @param results the list of mapEncoded objects.
+     * @return the list of tables, with anything that isn't an object left as it is.
+     */
+    public static List<Map> encode(final List<Map> results)
+    {
+        List<Map> encoded = new ArrayList<Map>();
+        int start = 0;
+        while (start < results.size())
+        {
+            Object schemaId = getSchemaId(results.get(start));
+            if (schemaId == null)
+            {
+                encoded.add(results.get(start++));
+                continue;
+            }
+
+            int end = start + 1;
+            while (end < results.size() && schemaId.equals(getSchemaId(results.get(end))))
+            {
+                end++;
+            }
+            encoded.add(encodeTable(schemaId, results.subList(start, end)));
+            start = end;
+        }
+        return encoded;
+    }
+
+    /**
+     * Return the SchemaClassId of a mapEncoded object.
+     * @param result the mapEncoded object.
+     * @return the "_schema_id" Map, or null if result isn't an object.
+     */
+    private static Object getSchemaId(final Map result)
+    {
+        return (result.get("_values") instanceof Map) ? result.get("_schema_id") : null;
+    }
+
+    /**
+     * Convert a run of mapEncoded objects of the same class into a table.
+     * @param schemaId the "_schema_id" Map of the objects.
+     * @param objects the mapEncoded objects.
+     * @return the table.
+     */
+    private static Map<String, Object> encodeTable(final Object schemaId, final List<Map> objects)
+    {
+        int size = objects.size();
+        Map<String, Object> table = new HashMap<String, Object>();
+        table.put("_columnar", VERSION);
+        table.put("_schema_id", schemaId);
+
+        // The ObjectIds are reduced to their object names if the objects share an Agent name and epoch.
+        String agentName = null;
+        long agentEpoch = 0;
+        List<Object> objectNames = new ArrayList<Object>(size);
+        for (Map object : objects)
+        {
+            Object value = object.get("_object_id");
+            if (!(value instanceof Map))
+            {
+                objectNames = null;
+                break;
+            }
+
+            Map objectId = (Map)value;
+            String name = QmfData.getString(objectId.get("_agent_name"));
+            long epoch = QmfData.getLong(objectId.get("_agent_epoch"));
+            if (objectNames.size() == 0)
+            {
+                agentName = name;
+                agentEpoch = epoch;
+            }
+            else if (epoch != agentEpoch || (name == null ? agentName != null : !name.equals(agentName)))
+            {
+                objectNames = null;
+                break;
+            }
+            objectNames.add(objectId.get("_object_name"));
+        }
+
+        if (objectNames != null)
+        {
+            table.put("_agent_name", agentName);
+            table.put("_agent_epoch", agentEpoch);
+            table.put("_object_names", objectNames);
+        }
+
+        Map<String, List<Object>> columns = new LinkedHashMap<String, List<Object>>();
+        Map<String, List<Object>> headers = new LinkedHashMap<String, List<Object>>();
+        for (int i = 0; i < size; i++)
+        {
+            Map object = objects.get(i);
+            for (Object e : object.entrySet())
+            {
+                Map.Entry entry = (Map.Entry)e;
+                String key = QmfData.getString(entry.getKey());
+                if (key.equals("_values"))
+                {
+                    for (Object v : ((Map)entry.getValue()).entrySet())
+                    {
+                        Map.Entry value = (Map.Entry)v;
+                        setCell(columns, QmfData.getString(value.getKey()), i, size, value.getValue());
+                    }
+                }
+                else if (!key.equals("_schema_id") && !(key.equals("_object_id") && objectNames != null))
+                {
+                    setCell(headers, key, i, size, entry.getValue());
+                }
+            }
+        }
+
+        List<Object> encodedColumns = new ArrayList<Object>(columns.size());
+        for (List<Object> column : columns.values())
+        {
+            encodedColumns.add(encodeColumn(column));
+        }
+        table.put("_names", new ArrayList<String>(columns.keySet()));
+        table.put("_columns", encodedColumns);
+        table.put("_header_names", new ArrayList<String>(headers.keySet()));
+        table.put("_headers", new ArrayList<Object>(headers.values()));
+        return table;
+    }
+
+    /**
+     * Set the value of an object in a column, creating the column if necessary.
+     * @param columns the columns keyed by name.
+     * @param name the name of the column.
+     * @param row the index of the object.
+     * @param size the number of objects in the table.
+     * @param value the value.
+     */
+    private static void setCell(final Map<String, List<Object>> columns, final String name, final int row,
+                                final int size, final Object value)
+    {
+        List<Object> column = columns.get(name);
+        if (column == null)
+        {
+            column = Arrays.asList(new Object[size]);
+            columns.put(name, column);
+        }
+        column.set(row, value);
+    }
+
+    /**
+     * Dictionary encode a column if it only holds Strings and enough of them are repeated for it to be worthwhile.
+     * @param column the column.
+     * @return the column, or its dictionary encoded form.
+     */
+    private static Object encodeColumn(final List<Object> column)
+    {
+        int size = column.size();
+        if (size < MIN_DICTIONARY_SIZE)
+        {
+            return column;
+        }
+
+        Map<String, Integer> indexes = new HashMap<String, Integer>();
+        List<Object> dictionary = new ArrayList<Object>();
+        List<Integer> encoded = new ArrayList<Integer>(size);
+        for (Object value : column)
+        {
+            if (value == null)
+            {
+                encoded.add(-1);
+            }
+            else if (value instanceof String)
+            {
+                Integer index = indexes.get(value);
+                if (index == null)
+                {
+                    index = dictionary.size();
+                    if (index > size/2)
+                    { // Too few repeated values to be worth it.
+                        return column;
+                    }
+                    indexes.put((String)value, index);
+                    dictionary.add(value);
+                }
+                encoded.add(index);
+            }
+            else
+            {
+                return column;
+            }
+        }
+
+        Map<String, Object> dictionaryColumn = new HashMap<String, Object>();
+        dictionaryColumn.put("_dictionary", dictionary);
+        dictionaryColumn.put("_indexes", encoded);
+        return dictionaryColumn;
+    }
+
+    /**
+     * Convert a list of results that may hold tables back into a list of mapEncoded objects.
+     * @param results the list of results from a _query_response or _data_indication.
+     * @return the list of mapEncoded objects, which is results itself if it holds no tables.
+     */
+    public static List<Map> decode(final List<Map> results)
+    {
+        boolean columnar = false;
+        for (Map result : results)
+        {
+            if (result.containsKey("_columnar"))
+            {
+                columnar = true;
+                break;
+            }
+        }
+
+        if (!columnar)
+        {
+            return results;
+        }
+
+        List<Map> decoded = new ArrayList<Map>();
+        for (Map result : results)
+        {
+            if (result.containsKey("_columnar"))
+            {
+                decodeTable(result, decoded);
+            }
+            else
+            {
+                decoded.add(result);
+            }
+        }
+        return decoded;
+    }
+
+    /**
+     * Convert a table back into mapEncoded objects.
+     * @param table the table.
+     * @param decoded the list that the mapEncoded objects are added to.
+     */
+    private static void decodeTable(final Map table, final List<Map> decoded)
+    {
+        Object schemaId = table.get("_schema_id");
+        List names = (List)table.get("_names");
+        List<List> columns = decodeColumns((List)table.get("_columns"));
+        List headerNames = (List)table.get("_header_names");
+        List<List> headers = decodeColumns((List)table.get("_headers"));
+        List objectNames = (List)table.get("_object_names");
+        Object agentName = table.get("_agent_name");
+        Object agentEpoch = table.get("_agent_epoch");
+
+        int size = (objectNames != null) ? objectNames.size() :
+                   (headers.size() > 0) ? headers.get(0).size() : (columns.size() > 0) ? columns.get(0).size() : 0;
+        for (int i = 0; i < size; i++)
+        {
+            Map<String, Object> object = new HashMap<String, Object>();
+            object.put("_schema_id", schemaId);
+            if (objectNames != null)
+            {
+                Map<String, Object> objectId = new HashMap<String, Object>();
+                objectId.put("_agent_name", agentName);
+                objectId.put("_agent_epoch", agentEpoch);
+                objectId.put("_object_name", objectNames.get(i));
+                object.put("_object_id", objectId);
+            }
+            putCells(object, headerNames, headers, i);
+
+            Map<String, Object> values = new HashMap<String, Object>();
+            putCells(values, names, columns, i);
+            object.put("_values", values);
+            decoded.add(object);
+        }
+    }
+
+    /**
+     * Put the non-null values of an object from a set of columns into a Map.
+     * @param map the Map that the values are put into.
+     * @param names the names of the columns.
+     * @param columns the decoded columns.
+     * @param row the index of the object.
+     */
+    private static void putCells(final Map<String, Object> map, final List names, final List<List> columns,
+                                 final int row)
+    {
+        for (int j = 0; j < columns.size(); j++)
+        {
+            Object value = columns.get(j).get(row);
+            if (value != null)
+            {
+                map.put(QmfData.getString(names.get(j)), value);
+            }
+        }
+    }
+
+    /**
+     * Expand any dictionary encoded columns.
+     * @param columns the columns from a table.
+     * @return the columns as Lists of values.
+     */
+    private static List<List> decodeColumns(final List columns)
+    {
+        List<List> decoded = new ArrayList<List>(columns.size());
+        for (Object column : columns)
+        {
+            if (column instanceof Map)
+            {
+                List dictionary = (List)((Map)column).get("_dictionary");
+                List indexes = (List)((Map)column).get("_indexes");
+                List<Object> values = new ArrayList<Object>(indexes.size());
+                for (Object index : indexes)
+                {
+                    int i = ((Number)index).intValue();
+                    values.add((i < 0) ? null : dictionary.get(i));
+                }
+                decoded.add(values);
+            }
+            else
+            {
+                decoded.add((List)column);
+            }
+        }
+        return decoded;
+    }
+}
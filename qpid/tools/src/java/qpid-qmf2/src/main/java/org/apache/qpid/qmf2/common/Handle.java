@@ -33,6 +33,7 @@ public final class Handle
 {
     private final String _correlationId;
     private final Destination _replyTo;
+    private final String _compression;
 
     /**
      * Construct a Handle containing only a correlationId 
@@ -43,6 +44,7 @@ public final class Handle
     {
         _correlationId = correlationId;
         _replyTo = null;
+        _compression = null;
     }
 
     /**
@@ -55,6 +57,21 @@ public final class Handle
     {
         _correlationId = correlationId;
         _replyTo = replyTo;
+        _compression = null;
+    }
+
+    /**
+     * Construct a Handle containing a correlationId, a replyTo and the compression accepted by the requester.
+     *
+     * @param correlationId - a String used to tie together requests and responses
+     * @param replyTo - the JMS replyTo
+     * @param compression - the compression that the requester accepts in responses, may be null
+     */
+    public Handle(final String correlationId, final Destination replyTo, final String compression)
+    {
+        _correlationId = correlationId;
+        _replyTo = replyTo;
+        _compression = compression;
     }
 
     /**
@@ -66,6 +83,15 @@ public final class Handle
         return _correlationId;
     }
 
+    /**
+     * Return the compression that the requester accepts in responses, see AMQPMessage.
+     * @return the compression that the requester accepts in responses, or null if it doesn't accept any
+     */
+    public String getCompression()
+    {
+        return _compression;
+    }
+
     /**
      * Return the replyTo Destination.
      * @return the replyTo Destination
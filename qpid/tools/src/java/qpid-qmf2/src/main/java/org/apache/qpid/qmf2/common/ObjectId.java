@@ -21,7 +21,16 @@
 package org.apache.qpid.qmf2.common;
 
 // Misc Imports
+import java.lang.ref.WeakReference;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
 
 /**
  * This class provides a wrapper for QMF Object IDs to enable easier comparisons.
@@ -30,7 +39,15 @@ import java.util.Map;
  * as byte[] due to inconsistent binary and UTF-8 encodings being used and byte[].equals() compares the address not a
  * bytewise comparison.
  * <p>
- * This class creates a String from the internal ObjectId state information to enable easier comparison and rendering.
+ * This class creates a String from the internal ObjectId state information to enable easier rendering. As ObjectIds
+ * are the keys of the Agent's object store and of the Console's caches, equals() compares the fields directly and
+ * the hashCode is computed once on construction rather than building the String for every lookup.
+ * <p>
+ * ObjectIds are immutable and, as there is one for every managed object and every reference property, compact.
+ * Rather than holding a HashMap of its properties like other QmfData an ObjectId holds only its fields, its Map
+ * encoding being a read-only view of them. The ObjectIds of the objects received by a Console are interned, see
+ * intern(), so repeated query results and updates for the same object share a single instance. Interning takes a
+ * global lock, so it's only done on that decode path, and getRefValue() returns a new ObjectId each time.
  *
  * @author Fraser Adams
  */
@@ -39,6 +56,75 @@ public final class ObjectId extends QmfData
     private final String _agentName;
     private final String _objectName;
     private final long   _agentEpoch;
+    private final int    _hash;
+    private String       _string;
+
+    /**
+     * The interned ObjectIds, weakly referenced so that ObjectIds no longer in use anywhere else are collected.
+     */
+    private static final Map<ObjectId, WeakReference<ObjectId>> _interned =
+        new WeakHashMap<ObjectId, WeakReference<ObjectId>>();
+
+    /**
+     * A read-only Map view of the fields of an ObjectId, which is its Map encoding.
+     */
+    private final class Fields extends AbstractMap<String, Object>
+    {
+        @Override
+        public Object get(final Object key)
+        {
+            if ("_object_name".equals(key))
+            {
+                return _objectName;
+            }
+            else if ("_agent_name".equals(key))
+            {
+                return _agentName;
+            }
+            else if ("_agent_epoch".equals(key))
+            {
+                return _agentEpoch;
+            }
+            return null;
+        }
+
+        @Override
+        public boolean containsKey(final Object key)
+        {
+            return "_object_name".equals(key) || "_agent_name".equals(key) || "_agent_epoch".equals(key);
+        }
+
+        @Override
+        public int size()
+        {
+            return 3;
+        }
+
+        @Override
+        public Set<Map.Entry<String, Object>> entrySet()
+        {
+            final List<Map.Entry<String, Object>> entries = Arrays.<Map.Entry<String, Object>>asList(
+                new SimpleImmutableEntry<String, Object>("_agent_name", _agentName),
+                new SimpleImmutableEntry<String, Object>("_object_name", _objectName),
+                new SimpleImmutableEntry<String, Object>("_agent_epoch", _agentEpoch)
+            );
+
+            return new AbstractSet<Map.Entry<String, Object>>()
+            {
+                @Override
+                public Iterator<Map.Entry<String, Object>> iterator()
+                {
+                    return entries.iterator();
+                }
+
+                @Override
+                public int size()
+                {
+                    return entries.size();
+                }
+            };
+        }
+    }
 
     /**
      * Create an ObjectId given the ID created via ObjectId.toString().
@@ -46,15 +132,14 @@ public final class ObjectId extends QmfData
      */
     public ObjectId(String oid)
     {
+        super(Collections.EMPTY_MAP); // Avoids QmfData allocating a HashMap that would be replaced by the view.
         String[] split = oid.split("@");
 
         _agentName  = split.length == 3 ? split[0] : "";
         _agentEpoch = split.length == 3 ? Long.parseLong(split[1]) : 0;
         _objectName = split.length == 3 ? split[2] : "";
-
-        setValue("_agent_name", _agentName);
-        setValue("_agent_epoch", _agentEpoch);
-        setValue("_object_name", _objectName);
+        _values = new Fields();
+        _hash = hash(_agentName, _objectName, _agentEpoch);
     }
 
     /**
@@ -65,12 +150,12 @@ public final class ObjectId extends QmfData
      */
     public ObjectId(String agentName, String objectName, long agentEpoch)
     {
+        super(Collections.EMPTY_MAP);
         _agentName = agentName;
         _objectName = objectName;
         _agentEpoch = agentEpoch;
-        setValue("_agent_name", _agentName);
-        setValue("_object_name", _objectName);
-        setValue("_agent_epoch", _agentEpoch);
+        _values = new Fields();
+        _hash = hash(_agentName, _objectName, _agentEpoch);
     }
 
     /**
@@ -79,10 +164,13 @@ public final class ObjectId extends QmfData
      */
     public ObjectId(Map m)
     {
-        super(m);
-        _agentName = getStringValue("_agent_name");
-        _objectName = getStringValue("_object_name");
-        _agentEpoch = getLongValue("_agent_epoch");
+        super(Collections.EMPTY_MAP);
+        Map values = (m != null && m.get("_values") instanceof Map) ? (Map)m.get("_values") : m;
+        _agentName = (values == null) ? null : StringCache.intern(getString(values.get("_agent_name")));
+        _objectName = (values == null) ? null : getString(values.get("_object_name"));
+        _agentEpoch = (values == null) ? 0 : getLong(values.get("_agent_epoch"));
+        _values = new Fields();
+        _hash = hash(_agentName, _objectName, _agentEpoch);
     }
 
     /**
@@ -94,6 +182,61 @@ public final class ObjectId extends QmfData
         this(qmfd.mapEncode());
     }
 
+    /**
+     * Create an ObjectId from a Map, returning the interned instance for it, see intern().
+     * @param m the Map the Object is retrieving its state from.
+     * @return the interned ObjectId.
+     */
+    public static ObjectId valueOf(final Map m)
+    {
+        return new ObjectId(m).intern();
+    }
+
+    /**
+     * Return the canonical instance of this ObjectId, so that equal ObjectIds decoded from different messages may
+     * share a single instance. Interned ObjectIds are only weakly held, so are collected once no longer in use.
+     * @return an ObjectId equal to this one, which is this ObjectId if no equal ObjectId has been interned.
+     */
+    public ObjectId intern()
+    {
+        synchronized (_interned)
+        {
+            WeakReference<ObjectId> ref = _interned.get(this);
+            ObjectId interned = (ref == null) ? null : ref.get();
+            if (interned == null)
+            {
+                _interned.put(this, new WeakReference<ObjectId>(this));
+                interned = this;
+            }
+            return interned;
+        }
+    }
+
+    /**
+     * Compute the hashCode of an ObjectId from its fields.
+     * @param agentName the name of the Agent managing the object.
+     * @param objectName the name of the managed object.
+     * @param agentEpoch a count used to identify if an Agent has been restarted.
+     * @return the hashCode of the ObjectId.
+     */
+    private static int hash(final String agentName, final String objectName, final long agentEpoch)
+    {
+        int hash = (objectName == null) ? 0 : objectName.hashCode();
+        hash = 31*hash + ((agentName == null) ? 0 : agentName.hashCode());
+        return 31*hash + (int)(agentEpoch ^ (agentEpoch >>> 32));
+    }
+
+    /**
+     * Compare two possibly null Strings for equality.
+     * @param lhs the left hand side String in the comparison.
+     * @param rhs the right hand side String in the comparison.
+     * @return true if both Strings are null or they are equal.
+     */
+    private static boolean equal(final String lhs, final String rhs)
+    {
+        return (lhs == null) ? rhs == null : lhs.equals(rhs);
+    }
+
     /**
      * Returns the name of the Agent managing the object.
      * @return the name of the Agent managing the object.
@@ -129,9 +272,17 @@ public final class ObjectId extends QmfData
     @Override
     public boolean equals(Object rhs)
     {
+        if (rhs == this)
+        {
+            return true;
+        }
+
         if (rhs instanceof ObjectId)
         {
-            return toString().equals(rhs.toString());
+            // The object name is compared first as it is the field most likely to differ.
+            ObjectId oid = (ObjectId)rhs;
+            return _hash == oid._hash && _agentEpoch == oid._agentEpoch &&
+                   equal(_objectName, oid._objectName) && equal(_agentName, oid._agentName);
         }
         return false;
     }
@@ -143,7 +294,7 @@ public final class ObjectId extends QmfData
     @Override
     public int hashCode()
     {
-        return toString().hashCode();
+        return _hash;
     }
 
     /**
@@ -153,7 +304,14 @@ public final class ObjectId extends QmfData
     @Override
     public String toString()
     {
-        return _agentName + "@" +  _agentEpoch + "@" + _objectName;
+        // Benign race, at worst two threads build equal Strings.
+        String string = _string;
+        if (string == null)
+        {
+            string = _agentName + "@" +  _agentEpoch + "@" + _objectName;
+            _string = string;
+        }
+        return string;
     }
 }
 
@@ -102,7 +102,34 @@ public class QmfData
     @SuppressWarnings("unchecked")
     public void setSubtypes(Map subtypes)
     {
-        _subtypes = subtypes;
+        boolean batched = Thread.holdsLock(this);
+        synchronized (this)
+        {
+            _subtypes = subtypes;
+            valueChanged();
+            if (!batched)
+            {
+                changeComplete();
+            }
+        }
+    }
+
+    /**
+     * Called whenever the state of this QmfData is modified via one of its mutator methods. This does nothing
+     * here but allows subclasses (QmfAgentData in particular) to track changes, for example to invalidate any
+     * cached encoding. Setting a property to a value equal to its current value is not considered a change.
+     */
+    protected void valueChanged()
+    {
+    }
+
+    /**
+     * Called, whilst holding the lock on this QmfData, at the end of a mutator method unless the calling thread
+     * was already synchronized on this QmfData, in which case it is making several changes as a batch. This does
+     * nothing here but allows QmfAgentData to publish changes as soon as they're complete.
+     */
+    protected void changeComplete()
+    {
     }
 
     /**
@@ -114,7 +141,8 @@ public class QmfData
      * is clearly unfortunate.
      * <p>
      * This is basically a helper method to check the type of a property and return the most "appropriate"
-     * String representation for it.
+     * String representation for it. Binary strings are decoded as UTF-8 via StringCache, so repeated values share
+     * a single String instance and are only decoded once.
      *
      * @param p a property in Object form
      * @return the most appropriate String representation of the property
@@ -131,7 +159,7 @@ public class QmfData
         }
         else if (p instanceof byte[])
         {
-            return new String((byte[])p);
+            return StringCache.decode((byte[])p);
         }
         else return p.toString();
     }
@@ -264,13 +292,29 @@ public class QmfData
 
     /**
      * Mutator method to set a named Object property.
+     * <p>
+     * The mutator methods synchronize on this QmfData, so a subclass (QmfAgentData in particular) may take a
+     * consistent copy of its state by doing so in a block synchronized on itself. Changes made in a block
+     * synchronized on this QmfData are treated as a batch, see changeComplete().
      *
      * @param name the name of the property to set.
      * @param value the value of the property to set.
      */
     public final void setValue(final String name, final Object value)
     {
-        _values.put(name, value);
+        boolean batched = Thread.holdsLock(this);
+        synchronized (this)
+        {
+            Object oldValue = _values.put(name, value);
+            if (oldValue != value && (oldValue == null || !oldValue.equals(value)))
+            {
+                valueChanged();
+                if (!batched)
+                {
+                    changeComplete();
+                }
+            }
+        }
     }
 
     /**
@@ -294,11 +338,23 @@ public class QmfData
      */
     public final void setSubtype(final String name, final String subtype)
     {
-        if (_subtypes == null)
+        boolean batched = Thread.holdsLock(this);
+        synchronized (this)
         {
-            _subtypes = new HashMap<String, String>();
+            if (_subtypes == null)
+            {
+                _subtypes = new HashMap<String, String>();
+            }
+            String oldSubtype = _subtypes.put(name, subtype);
+            if (oldSubtype == null ? subtype != null : !oldSubtype.equals(subtype))
+            {
+                valueChanged();
+                if (!batched)
+                {
+                    changeComplete();
+                }
+            }
         }
-        _subtypes.put(name, subtype);
     }
 
     /**
@@ -69,6 +69,7 @@ public class QmfDescribed extends QmfData
     public final void setSchemaClassId(final SchemaClassId schema_id)
     {
         _schema_id = schema_id;
+        valueChanged();
     }
 
     /**
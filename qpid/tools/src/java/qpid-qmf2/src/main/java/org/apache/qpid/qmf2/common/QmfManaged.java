@@ -68,6 +68,7 @@ public class QmfManaged extends QmfDescribed
     public final void setObjectId(final ObjectId object_id)
     {
         _object_id = object_id;
+        valueChanged();
     }
 
     /**
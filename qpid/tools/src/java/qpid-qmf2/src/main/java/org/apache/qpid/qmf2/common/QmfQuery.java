@@ -22,10 +22,14 @@ package org.apache.qpid.qmf2.common;
 
 // Misc Imports
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.PriorityQueue;
 
 // Reuse this class as it provides a handy mechanism to parse an predicate String into a Map
 import org.apache.qpid.messaging.util.AddressParser;
@@ -81,9 +85,47 @@ import org.apache.qpid.messaging.util.AddressParser;
  *        ]
  * ]
  * </pre>
+ * A predicate may be combined with a SchemaClassId, in which case only instances of that class that match the
+ * predicate are selected, for example a query for the queue called "test" would have a SchemaClassId for the
+ * queue class and the predicate ["eq" "name" ["quote" "test"]].
  * <p>
  * The Expression structure is illustrated below in the context of its relationship with QmfQuery. 
  * <img alt="" src="doc-files/QmfQuery.png">
+ * <p>
+ * <b>Top-K and aggregate queries</b>
+ * <p>
+ * As an extension to the QMF2 protocol an OBJECT query may also carry a "_top" or an "_aggregate" option, which
+ * are evaluated by the Agent over the objects matching the query so that a Console needn't retrieve every object
+ * in order to find the few that it is interested in.
+ * <p>
+ * A "_top" option, set via setTop(), is a Map of the form {"count": 20, "order_by": "msgDepth", "ascending": false}
+ * and causes only the count objects with the highest (or lowest if ascending is true) order_by values to be
+ * returned, in that order. Objects without an order_by value are ordered after those that have one.
+ * <p>
+ * An "_aggregate" option, set via setAggregate(), is a Map of the form
+ * {"group_by": "vhostRef", "properties": ["msgDepth", "byteDepth"]} and causes a summary row to be returned for
+ * each distinct group_by value instead of the objects themselves. Each row holds the group_by value, a "count" of
+ * the matching objects in the group and {@literal <property>Sum, <property>Min, <property>Max and <property>Avg}
+ * values for each of the numeric properties. If group_by is omitted a single row summarises all of the objects.
+ * Rows aren't objects so have no "_schema_id" or "_object_id", and a QmfConsoleData holding a row has a null
+ * SchemaClassId and ObjectId; only its property values are meaningful.
+ * If both options are present "_aggregate" takes precedence. Agents that don't support the options ignore them
+ * and return the matching objects as usual.
+ * <p>
+ * <b>Reference expansion</b>
+ * <p>
+ * An OBJECT query may also carry an "_expand" option, set via setExpand(), which is a List of reference property
+ * paths such as ["queueRef", "sessionRef.connectionRef"]. For each path the Agent inlines the object referenced
+ * by each result in an "_expanded" Map keyed by the reference property name, each inlined object carrying its own
+ * "_expanded" Map for the rest of the path, so a Console needn't make a round trip per reference to look them up.
+ * The inlined objects are retrieved via QmfConsoleData.getExpandedValue(). References that can't be resolved
+ * are omitted, as is the whole "_expanded" Map by Agents that don't support the option.
+ * <p>
+ * <b>Columnar results</b>
+ * <p>
+ * Setting the "_format" option of an OBJECT query to "columnar", via setColumnar(), asks the Agent to send the
+ * results of the query, or the data indications of a Subscription to it, in the more compact columnar form
+ * described by ColumnarResults. The Console converts them back so the option doesn't change what the caller sees.
  *
  *
  * @author Fraser Adams
@@ -100,6 +142,13 @@ public final class QmfQuery extends QmfData
     private ObjectId       _objectId;
     private List           _predicate;
     private Expression     _expression;
+    private int            _topCount;
+    private String         _topOrderBy;
+    private boolean        _topAscending;
+    private String         _groupBy;
+    private List<String>   _aggregateProperties;
+    private List<String>   _expand;
+    private boolean        _columnar;
 
     /**
      * This Constructor is only used to construct the ID and PREDICATE objects
@@ -170,6 +219,26 @@ public final class QmfQuery extends QmfData
         setValue("_where", _predicate);
     }
 
+    /**
+     * Construct a PREDICATE QmfQuery from a QmfQueryTarget, a SchemaClassId and a predicate
+     * @param target the query target
+     * @param classId the SchemaClassId that matching objects must belong to
+     * @param predicate the predicate List to evaluate against, e.g. [eq, name, [quote, test]]
+     */
+    public QmfQuery(final QmfQueryTarget target, final SchemaClassId classId, final List predicate)
+        throws QmfException
+    {
+        _target = target;
+        _classId = classId;
+        _packageName = _classId.getPackageName();
+        _className = _classId.getClassName();
+        _predicate = predicate;
+        _expression = Expression.createExpression(_predicate);
+        setValue("_what", _target.toString());
+        setValue("_schema_id", _classId.mapEncode());
+        setValue("_where", _predicate);
+    }
+
     /**
      * Construct a QmfQuery from a Map encoding
      * @param m encoding the query
@@ -197,6 +266,48 @@ public final class QmfQuery extends QmfData
             _predicate = (List)getValue("_where");
             _expression = Expression.createExpression(_predicate);
         }
+
+        if (hasValue("_top"))
+        {
+            Map top = (Map)getValue("_top");
+            _topCount = (int)getLong(top.get("count"));
+            _topOrderBy = (String)top.get("order_by");
+            _topAscending = getBoolean(top.get("ascending"));
+            if (_topOrderBy == null)
+            {
+                throw new QmfException("Invalid _top format, order_by must be specified");
+            }
+        }
+
+        if (hasValue("_aggregate"))
+        {
+            Map aggregate = (Map)getValue("_aggregate");
+            _groupBy = (String)aggregate.get("group_by");
+            List properties = (List)aggregate.get("properties");
+            _aggregateProperties = new ArrayList<String>();
+            if (properties != null)
+            {
+                for (Object property : properties)
+                {
+                    _aggregateProperties.add(property.toString());
+                }
+            }
+        }
+
+        if (hasValue("_format"))
+        {
+            _columnar = ColumnarResults.FORMAT.equals(getStringValue("_format"));
+        }
+
+        if (hasValue("_expand"))
+        {
+            List paths = (List)getValue("_expand");
+            _expand = new ArrayList<String>(paths.size());
+            for (Object path : paths)
+            {
+                _expand.add(getString(path));
+            }
+        }
     }
 
     /**
@@ -264,6 +375,353 @@ public final class QmfQuery extends QmfData
         return _objectId;
     }
 
+    /**
+     * Request that only the count objects with the highest, or lowest, values of a property are returned.
+     * @param count the maximum number of objects to return.
+     * @param orderBy the name of the property to order the objects by.
+     * @param ascending if true the objects with the lowest values are returned, otherwise those with the highest.
+     */
+    public void setTop(final int count, final String orderBy, final boolean ascending)
+    {
+        _topCount = count;
+        _topOrderBy = orderBy;
+        _topAscending = ascending;
+
+        Map<String, Object> top = new HashMap<String, Object>();
+        top.put("count", count);
+        top.put("order_by", orderBy);
+        top.put("ascending", ascending);
+        setValue("_top", top);
+    }
+
+    /**
+     * Return the maximum number of objects requested by a "_top" option.
+     * @return the maximum number of objects requested by a "_top" option, or zero if there is no "_top" option.
+     */
+    public int getTopCount()
+    {
+        return _topCount;
+    }
+
+    /**
+     * Return the name of the property that a "_top" option orders the objects by.
+     * @return the name of the property that a "_top" option orders the objects by.
+     */
+    public String getTopOrderBy()
+    {
+        return _topOrderBy;
+    }
+
+    /**
+     * Return true if a "_top" option selects the objects with the lowest values.
+     * @return true if a "_top" option selects the objects with the lowest values.
+     */
+    public boolean isTopAscending()
+    {
+        return _topAscending;
+    }
+
+    /**
+     * Request that summary rows of the matching objects are returned instead of the objects themselves.
+     * @param groupBy the name of the property to group the objects by, or null to summarise all of the objects
+     *        in a single row.
+     * @param properties the names of the numeric properties to summarise.
+     */
+    public void setAggregate(final String groupBy, final String... properties)
+    {
+        _groupBy = groupBy;
+        _aggregateProperties = new ArrayList<String>(properties.length);
+        Collections.addAll(_aggregateProperties, properties);
+
+        Map<String, Object> aggregate = new HashMap<String, Object>();
+        if (groupBy != null)
+        {
+            aggregate.put("group_by", groupBy);
+        }
+        aggregate.put("properties", _aggregateProperties);
+        setValue("_aggregate", aggregate);
+    }
+
+    /**
+     * Return true if this query has an "_aggregate" option.
+     * @return true if this query has an "_aggregate" option.
+     */
+    public boolean isAggregate()
+    {
+        return _aggregateProperties != null;
+    }
+
+    /**
+     * Return the name of the property that an "_aggregate" option groups the objects by.
+     * @return the name of the property that an "_aggregate" option groups the objects by, may be null.
+     */
+    public String getAggregateGroupBy()
+    {
+        return _groupBy;
+    }
+
+    /**
+     * Return the names of the properties that an "_aggregate" option summarises.
+     * @return the names of the properties that an "_aggregate" option summarises, or null if there is no
+     *         "_aggregate" option.
+     */
+    public List<String> getAggregateProperties()
+    {
+        return _aggregateProperties;
+    }
+
+    /**
+     * Request that the objects referenced by the results are inlined in the response.
+     * @param paths the reference property paths to expand, each a reference property name optionally followed by
+     *        further reference property names of the referenced object separated by ".", e.g.
+     *        "sessionRef.connectionRef".
+     */
+    public void setExpand(final String... paths)
+    {
+        _expand = new ArrayList<String>(paths.length);
+        Collections.addAll(_expand, paths);
+        setValue("_expand", _expand);
+    }
+
+    /**
+     * Return the reference property paths that an "_expand" option inlines.
+     * @return the reference property paths that an "_expand" option inlines, or null if there is no "_expand"
+     *         option.
+     */
+    public List<String> getExpand()
+    {
+        return _expand;
+    }
+
+    /**
+     * Request that the results are sent in columnar form, see ColumnarResults.
+     * @param columnar true to request columnar results.
+     */
+    public void setColumnar(final boolean columnar)
+    {
+        _columnar = columnar;
+        if (columnar)
+        {
+            setValue("_format", ColumnarResults.FORMAT);
+        }
+        else
+        {
+            _values.remove("_format");
+        }
+    }
+
+    /**
+     * Return true if this query requests columnar results.
+     * @return true if this query requests columnar results.
+     */
+    public boolean isColumnar()
+    {
+        return _columnar;
+    }
+
+    /**
+     * Compare two property values for a "_top" option. Numbers are compared numerically and anything else by its
+     * String form, null values always being ordered last.
+     * @param lhs the first value.
+     * @param rhs the second value.
+     * @return a negative integer, zero, or a positive integer as lhs should be returned before, along with, or
+     *         after rhs.
+     */
+    private int compareTopValues(final Object lhs, final Object rhs)
+    {
+        if (lhs == null || rhs == null)
+        {
+            return (lhs == null) ? ((rhs == null) ? 0 : 1) : -1;
+        }
+
+        int result;
+        if (lhs instanceof Number && rhs instanceof Number)
+        {
+            result = Double.compare(((Number)lhs).doubleValue(), ((Number)rhs).doubleValue());
+        }
+        else
+        {
+            result = lhs.toString().compareTo(rhs.toString());
+        }
+        return _topAscending ? result : -result;
+    }
+
+    /**
+     * Selects the QmfData to return for a "_top" option as they are offered one at a time, so that an Agent can
+     * apply the option while scanning its objects rather than first collecting every match.
+     * <p>
+     * A bounded heap of getTopCount() entries is used, so selecting the top k of n objects takes O(n log k) time
+     * and only O(k) space.
+     */
+    public final class TopSelector<T extends QmfData>
+    {
+        // The head of the heap is the entry that would be returned last, so is the one evicted on overflow.
+        private final Comparator<T> _order = new Comparator<T>()
+        {
+            public int compare(final T lhs, final T rhs)
+            {
+                return compareTopValues(lhs.getValue(_topOrderBy), rhs.getValue(_topOrderBy));
+            }
+        };
+        private final PriorityQueue<T> _heap =
+            new PriorityQueue<T>(Math.min(_topCount, 1024) + 1, Collections.reverseOrder(_order));
+
+        /**
+         * Offer some QmfData matching the query, which is kept if it's amongst the getTopCount() best so far.
+         * @param item the QmfData matching the query.
+         */
+        public void add(final T item)
+        {
+            if (_heap.size() < _topCount)
+            {
+                _heap.add(item);
+            }
+            else if (_order.compare(item, _heap.peek()) < 0)
+            {
+                _heap.poll();
+                _heap.add(item);
+            }
+        }
+
+        /**
+         * Return the selected QmfData.
+         * @return the selected QmfData, in "_top" order.
+         */
+        public List<T> getResults()
+        {
+            List<T> results = new ArrayList<T>(_heap);
+            Collections.sort(results, _order);
+            return results;
+        }
+    }
+
+    /**
+     * Create a TopSelector for this query's "_top" option.
+     * @return a TopSelector, or null if this query has no "_top" option.
+     */
+    public <T extends QmfData> TopSelector<T> createTopSelector()
+    {
+        return (_topCount <= 0) ? null : new TopSelector<T>();
+    }
+
+    /**
+     * Apply this query's "_top" option to some QmfData that matches the query, see TopSelector.
+     * @param data the QmfData matching this query.
+     * @return the selected QmfData, in "_top" order.
+     */
+    public <T extends QmfData> List<T> selectTop(final Iterable<T> data)
+    {
+        TopSelector<T> selector = createTopSelector();
+        if (selector == null)
+        {
+            List<T> results = new ArrayList<T>();
+            for (T item : data)
+            {
+                results.add(item);
+            }
+            return results;
+        }
+
+        for (T item : data)
+        {
+            selector.add(item);
+        }
+        return selector.getResults();
+    }
+
+    /**
+     * Accumulates the values of one property for an "_aggregate" row.
+     */
+    private static final class Accumulator
+    {
+        private long _count;
+        private boolean _integral = true;
+        private long _longSum;
+        private double _sum;
+        private double _min = Double.MAX_VALUE;
+        private double _max = -Double.MAX_VALUE;
+
+        private void add(final Object value)
+        {
+            if (value instanceof Number)
+            {
+                double d = ((Number)value).doubleValue();
+                if (value instanceof Double || value instanceof Float)
+                {
+                    _integral = false;
+                }
+                else
+                {
+                    _longSum += ((Number)value).longValue();
+                }
+                _count++;
+                _sum += d;
+                _min = Math.min(_min, d);
+                _max = Math.max(_max, d);
+            }
+        }
+
+        private void populate(final QmfData row, final String property)
+        {
+            if (_count > 0)
+            {
+                row.setValue(property + "Sum", _integral ? (Object)_longSum : (Object)_sum);
+                row.setValue(property + "Min", _integral ? (Object)(long)_min : (Object)_min);
+                row.setValue(property + "Max", _integral ? (Object)(long)_max : (Object)_max);
+                row.setValue(property + "Avg", _sum/_count);
+            }
+        }
+    }
+
+    /**
+     * Apply this query's "_aggregate" option to some QmfData that matches the query.
+     * @param data the QmfData matching this query.
+     * @return the summary rows in Map encoded form, one per distinct group_by value in the order that the values
+     *         were first seen.
+     */
+    public List<Map> aggregate(final Iterable<? extends QmfData> data)
+    {
+        int propertyCount = _aggregateProperties.size();
+        Map<Object, Accumulator[]> groups = new LinkedHashMap<Object, Accumulator[]>();
+        for (QmfData item : data)
+        {
+            Object group = (_groupBy == null) ? null : item.getValue(_groupBy);
+            Accumulator[] accumulators = groups.get(group);
+            if (accumulators == null)
+            { // The extra Accumulator at the end just counts the objects in the group.
+                accumulators = new Accumulator[propertyCount + 1];
+                for (int i = 0; i <= propertyCount; i++)
+                {
+                    accumulators[i] = new Accumulator();
+                }
+                groups.put(group, accumulators);
+            }
+
+            for (int i = 0; i < propertyCount; i++)
+            {
+                accumulators[i].add(item.getValue(_aggregateProperties.get(i)));
+            }
+            accumulators[propertyCount].add(0);
+        }
+
+        List<Map> results = new ArrayList<Map>(groups.size());
+        for (Map.Entry<Object, Accumulator[]> entry : groups.entrySet())
+        {
+            QmfData row = new QmfData();
+            if (_groupBy != null)
+            {
+                row.setValue(_groupBy, entry.getKey());
+            }
+            row.setValue("count", entry.getValue()[propertyCount]._count);
+            for (int i = 0; i < propertyCount; i++)
+            {
+                entry.getValue()[i].populate(row, _aggregateProperties.get(i));
+            }
+            results.add(row.mapEncode());
+        }
+        return results;
+    }
+
     /**
      * Evaluate query against a QmfData instance.
      * @return true if query matches the QmfData instance, else false.
@@ -282,29 +740,20 @@ public final class QmfQuery extends QmfData
                 }
                 else if (_classId != null)
                 {
-                    SchemaClassId dataClassId = managedData.getSchemaClassId();
-                    String dataClassName = dataClassId.getClassName();
-                    String dataPackageName = dataClassId.getPackageName();
-
-                    // Wildcard the package name if it hasn't been specified when checking class name
-                    if (_className.equals(dataClassName) &&
-                        (_packageName.length() == 0 || _packageName.equals(dataPackageName)))
-                    {
-                        return true;
-                    }
-
-                    // Wildcard the class name if it hasn't been specified when checking package name
-                    if (_packageName.equals(dataPackageName) &&
-                        (_className.length() == 0 || _className.equals(dataClassName)))
-                    {
-                        return true;
-                    }
+                    return matchesSchemaClassId(managedData.getSchemaClassId());
                 }
             }
             return false;
         }
         else
         {
+            // A SchemaClassId alongside the predicate restricts the query to managed data of that class
+            if (_classId != null && data instanceof QmfManaged &&
+                !matchesSchemaClassId(((QmfManaged)data).getSchemaClassId()))
+            {
+                return false;
+            }
+
             // Evaluate a PREDICATE query by evaluating against the expression created from the predicate
             if (_predicate.size() == 0)
             {
@@ -315,6 +764,38 @@ public final class QmfQuery extends QmfData
         }
     }
 
+    /**
+     * Evaluate the SchemaClassId part of an ID query against the SchemaClassId of some managed data. An empty
+     * package name or class name in the query acts as a wildcard.
+     * @param dataClassId the SchemaClassId of the data being checked.
+     * @return true if this query has a SchemaClassId and it matches dataClassId, else false.
+     */
+    public boolean matchesSchemaClassId(final SchemaClassId dataClassId)
+    {
+        if (_classId == null || dataClassId == null)
+        {
+            return false;
+        }
+
+        String dataClassName = dataClassId.getClassName();
+        String dataPackageName = dataClassId.getPackageName();
+
+        // Wildcard the package name if it hasn't been specified when checking class name
+        if (_className.equals(dataClassName) &&
+            (_packageName.length() == 0 || _packageName.equals(dataPackageName)))
+        {
+            return true;
+        }
+
+        // Wildcard the class name if it hasn't been specified when checking package name
+        if (_packageName.equals(dataPackageName) &&
+            (_className.length() == 0 || _className.equals(dataClassName)))
+        {
+            return true;
+        }
+        return false;
+    }
+
     /**
      * Helper/debug method to list the QMF Object properties and their type.
      */
@@ -338,6 +819,15 @@ public final class QmfQuery extends QmfData
             System.out.println("selector: QmfQuery.ID");
             System.out.println(_objectId);
         }
+
+        if (_aggregateProperties != null)
+        {
+            System.out.println("aggregate: " + _aggregateProperties + " group_by " + _groupBy);
+        }
+        else if (_topCount > 0)
+        {
+            System.out.println("top: " + _topCount + " order_by " + _topOrderBy + (_topAscending ? " asc" : " desc"));
+        }
     }
 }
 
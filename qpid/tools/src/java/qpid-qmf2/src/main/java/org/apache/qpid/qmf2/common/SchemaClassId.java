@@ -48,9 +48,9 @@ public final class SchemaClassId extends QmfData
     public SchemaClassId(final Map m)
     {
         super(m);
-        _packageName =  getStringValue("_package_name");
-        _className = getStringValue("_class_name");
-        _type = getStringValue("_type");
+        _packageName = StringCache.intern(getStringValue("_package_name"));
+        _className = StringCache.intern(getStringValue("_class_name"));
+        _type = StringCache.intern(getStringValue("_type"));
         _hash = hasValue("_hash") ? (UUID)getValue("_hash") : null;
     }
 
@@ -0,0 +1,257 @@
+/*
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *
+ */
+package org.apache.qpid.qmf2.common;
+
+// Misc Imports
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A bounded cache of canonical String instances, used to deduplicate the Strings of decoded QMF data.
+ * <p>
+ * Every object received by a Console repeats the same property names and many of the same values, such as Virtual
+ * Host names, exchange types and "org.apache.qpid.broker", and decoding gives each object its own copies of them.
+ * A long running Console holding many objects can save a lot of memory by sharing a single instance of each, so
+ * QmfConsoleData passes its properties through canonicalise() and QmfData.getString() decodes binary strings via
+ * decode(), which caches the result so that each distinct value is only decoded once.
+ * <p>
+ * Only Strings of up to MAX_LENGTH characters are cached, as longer ones are rarely repeated, and canonicalise()
+ * leaves the values of high cardinality properties such as object names alone. The cache is split into two
+ * generations. New Strings go into the young generation and when that fills up it replaces the old generation,
+ * whose entries are discarded unless they are looked up again before the next rotation, in which case they are
+ * moved back into the young generation. So a burst of unique values, such as the names of a large number of new
+ * queues decoded via getString(), only holds at most two generations in memory and doesn't evict the values that
+ * are actually being repeated.
+ */
+public final class StringCache
+{
+    /**
+     * The maximum number of Strings, and separately of binary strings, held in each generation of the cache.
+     */
+    private static final int MAX_ENTRIES = 8192;
+
+    /**
+     * The length of the longest String that is cached.
+     */
+    private static final int MAX_LENGTH = 64;
+
+    /**
+     * QMF strings are UTF-8 encoded, so binary strings are decoded as UTF-8 rather than the platform charset.
+     */
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /**
+     * The names of properties whose values are rarely repeated, so aren't worth caching.
+     */
+    private static final Set<String> UNCACHED_PROPERTIES = new HashSet<String>(Arrays.asList("name", "_object_name"));
+
+    /**
+     * A two generation cache of canonical Strings.
+     */
+    private static class Generations<K>
+    {
+        private volatile ConcurrentMap<K, String> _young = new ConcurrentHashMap<K, String>();
+        private volatile ConcurrentMap<K, String> _old = new ConcurrentHashMap<K, String>();
+        private final AtomicInteger _count = new AtomicInteger();
+
+        /**
+         * Return the key to store when an entry is moved from the old generation to the young one.
+         * @param key the key that was looked up.
+         * @return a key that may safely be retained by the cache.
+         */
+        protected K retainedKey(final K key)
+        {
+            return key;
+        }
+
+        /**
+         * Look up a cached String, moving it into the young generation if it was found in the old one.
+         * @param key the key to look up.
+         * @return the cached String or null if there isn't one.
+         */
+        public String get(final K key)
+        {
+            String value = _young.get(key);
+            if (value == null)
+            {
+                value = _old.get(key);
+                if (value != null)
+                {
+                    value = putIfAbsent(retainedKey(key), value);
+                }
+            }
+            return value;
+        }
+
+        /**
+         * Add a String to the young generation unless there's already one for its key.
+         * @param key the key, which is retained by the cache.
+         * @param value the String.
+         * @return the String now cached for key, which is value unless another thread got there first.
+         */
+        public String putIfAbsent(final K key, final String value)
+        {
+            String existing = _young.putIfAbsent(key, value);
+            if (existing != null)
+            {
+                return existing;
+            }
+
+            if (_count.incrementAndGet() >= MAX_ENTRIES)
+            {
+                rotate();
+            }
+            return value;
+        }
+
+        /**
+         * Replace the old generation with the young one if it's full.
+         */
+        private synchronized void rotate()
+        {
+            if (_count.get() >= MAX_ENTRIES)
+            {
+                _old = _young;
+                _young = new ConcurrentHashMap<K, String>();
+                _count.set(0);
+            }
+        }
+    }
+
+    private static final Generations<String> _strings = new Generations<String>();
+
+    private static final Generations<ByteBuffer> _decoded = new Generations<ByteBuffer>()
+    {
+        @Override
+        protected ByteBuffer retainedKey(final ByteBuffer key)
+        {
+            // The key wraps the caller's array, so the retained key is a copy that later changes can't corrupt.
+            return ByteBuffer.wrap(key.array().clone());
+        }
+    };
+
+    /**
+     * Prevent instantiation, this class only has static methods.
+     */
+    private StringCache()
+    {
+    }
+
+    /**
+     * Return the canonical instance of a String.
+     * @param string the String.
+     * @return a String equal to string, which is string itself if it is too long to cache.
+     */
+    public static String intern(final String string)
+    {
+        if (string == null || string.length() > MAX_LENGTH)
+        {
+            return string;
+        }
+
+        String canonical = _strings.get(string);
+        if (canonical == null)
+        {
+            canonical = _strings.putIfAbsent(string, string);
+        }
+        return canonical;
+    }
+
+    /**
+     * Decode a UTF-8 binary string, returning the canonical instance of the result.
+     * @param bytes the binary string.
+     * @return the decoded String.
+     */
+    public static String decode(final byte[] bytes)
+    {
+        if (bytes.length > MAX_LENGTH)
+        {
+            return new String(bytes, UTF8);
+        }
+
+        String decoded = _decoded.get(ByteBuffer.wrap(bytes));
+        if (decoded == null)
+        {
+            // The key is a copy so that later changes to bytes can't corrupt the cache.
+            decoded = _decoded.putIfAbsent(ByteBuffer.wrap(bytes.clone()), intern(new String(bytes, UTF8)));
+        }
+        return decoded;
+    }
+
+    /**
+     * Copy a decoded Map replacing its keys, and any String values short enough to cache, with their canonical
+     * instances. Nested Maps and Lists, including object references, are copied in the same way. The values of
+     * the name and _object_name properties are copied unchanged as they are rarely repeated.
+     * @param map the decoded Map.
+     * @return the canonicalised copy of map.
+     */
+    public static Map<String, Object> canonicalise(final Map map)
+    {
+        Map<String, Object> canonical = new HashMap<String, Object>(Math.max(16, (int)(map.size()/0.75f) + 1));
+        for (Object e : map.entrySet())
+        {
+            Map.Entry entry = (Map.Entry)e;
+            Object key = entry.getKey();
+            String name = (key instanceof byte[]) ? decode((byte[])key) : intern(key.toString());
+            Object value = entry.getValue();
+            canonical.put(name, UNCACHED_PROPERTIES.contains(name) ? value : canonicaliseValue(value));
+        }
+        return canonical;
+    }
+
+    /**
+     * Return the canonical form of a decoded value.
+     * @param value the decoded value.
+     * @return the canonical instance of a String, a canonicalised copy of a Map or List or otherwise value itself.
+     */
+    private static Object canonicaliseValue(final Object value)
+    {
+        if (value instanceof String)
+        {
+            return intern((String)value);
+        }
+        else if (value instanceof Map)
+        {
+            return canonicalise((Map)value);
+        }
+        else if (value instanceof List)
+        {
+            List list = (List)value;
+            List<Object> canonical = new ArrayList<Object>(list.size());
+            for (Object entry : list)
+            {
+                canonical.add(canonicaliseValue(entry));
+            }
+            return canonical;
+        }
+        return value;
+    }
+}
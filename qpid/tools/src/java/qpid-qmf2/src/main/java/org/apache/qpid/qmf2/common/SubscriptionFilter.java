@@ -0,0 +1,320 @@
+/*
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *
+ */
+package org.apache.qpid.qmf2.common;
+
+// Misc Imports
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A SubscriptionFilter decides which of the changed objects matching a Subscription's query are actually worth
+ * publishing, so that consumers that only act on significant changes needn't receive every sample of every object.
+ * <p>
+ * As an extension to the QMF2 protocol a _subscribe_request may carry a "_deadband" Map and/or a "_threshold"
+ * predicate, which a Console sets from the "deadband" and "threshold" createSubscription() options:
+ * <pre>
+ * "_deadband": {"absolute": {"msgDepth": 100}, "relative": {"byteDepth": 0.1}}
+ * "_threshold": ["gt", "msgDepth", 10000]
+ * </pre>
+ * An object is published if any of its deadband properties differs from the value last published for it by more
+ * than the absolute amount, or by more than the relative fraction of the last published value, or if the
+ * threshold predicate has become true or false since it was last published. An object seen for the first time is
+ * published if there are deadband properties, to give consumers a baseline, or if the threshold predicate is
+ * true. Deleted objects are always published.
+ * <p>
+ * The filter keeps the last published state of each object by ObjectId, so a separate instance is needed for each
+ * Subscription. The same filter is evaluated by Agents and by the Console, the latter both to emulate Subscriptions
+ * to Agents that don't support them and to cater for Agents that ignore the filter. As the filter only compares
+ * against what was last published, applying it on both sides gives the same results as applying it once.
+ * <p>
+ * States are removed when an object is published as deleted, but objects can also disappear without a delete
+ * being seen, so the owner of the filter must prune it periodically. An Agent evaluates the whole query on every
+ * publish interval so it calls retainAll() with the ObjectIds that currently match. A Console only sees the
+ * objects that changed so it calls expire() instead, which removes the states of objects that haven't been seen
+ * for a while and of objects from earlier Agent epochs. The state of an object that is above its threshold is
+ * kept until it is deleted or its Agent restarts, as dropping it would lose the publish when it falls back below.
+ */
+public final class SubscriptionFilter
+{
+    /**
+     * The last published state of an object.
+     */
+    private static final class State
+    {
+        private final double[] _values;
+        private boolean _exceeded;
+        private long _lastSeen;
+
+        private State(final int size)
+        {
+            _values = new double[size];
+        }
+    }
+
+    private final String[] _properties;
+    private final double[] _absolute;
+    private final double[] _relative;
+    private final List _threshold;
+    private final Expression _expression;
+    private final Map<ObjectId, State> _states = new HashMap<ObjectId, State>();
+    private long _epoch = 0;
+
+    /**
+     * Create a SubscriptionFilter from the deadband and threshold encodings.
+     * @param deadband the "_deadband" Map, may be null.
+     * @param threshold the "_threshold" predicate, may be null.
+     * @throws QmfException if the threshold predicate is invalid.
+     */
+    public SubscriptionFilter(final Map deadband, final List threshold) throws QmfException
+    {
+        Map absolute = (deadband == null) ? null : (Map)deadband.get("absolute");
+        Map relative = (deadband == null) ? null : (Map)deadband.get("relative");
+        Map<String, double[]> bands = new HashMap<String, double[]>();
+        addBands(bands, absolute, 0);
+        addBands(bands, relative, 1);
+
+        int size = bands.size();
+        _properties = new String[size];
+        _absolute = new double[size];
+        _relative = new double[size];
+        int i = 0;
+        for (Map.Entry<String, double[]> entry : bands.entrySet())
+        {
+            _properties[i] = entry.getKey();
+            _absolute[i] = entry.getValue()[0];
+            _relative[i] = entry.getValue()[1];
+            i++;
+        }
+
+        _threshold = threshold;
+        _expression = (threshold == null || threshold.size() == 0) ? null : Expression.createExpression(threshold);
+    }
+
+    /**
+     * Add the deadbands of one type to the Map of deadbands keyed by property name. A property without a deadband
+     * of a type has a value of Double.MAX_VALUE for it, so never exceeds it.
+     * @param bands the deadbands being built, each value being a {absolute, relative} pair.
+     * @param encoded the "absolute" or "relative" Map from the "_deadband" Map.
+     * @param index 0 for absolute deadbands, 1 for relative deadbands.
+     */
+    private static void addBands(final Map<String, double[]> bands, final Map encoded, final int index)
+    {
+        if (encoded != null)
+        {
+            for (Object entry : encoded.entrySet())
+            {
+                Map.Entry band = (Map.Entry)entry;
+                String name = band.getKey().toString();
+                double[] pair = bands.get(name);
+                if (pair == null)
+                {
+                    pair = new double[] {Double.MAX_VALUE, Double.MAX_VALUE};
+                    bands.put(name, pair);
+                }
+                pair[index] = toDouble(band.getValue());
+            }
+        }
+    }
+
+    /**
+     * Return the numeric value of a property or deadband value.
+     * @param value the value, which should be a Number or a String representation of a Number.
+     * @return the numeric value, or zero if value isn't numeric.
+     */
+    private static double toDouble(final Object value)
+    {
+        if (value instanceof Number)
+        {
+            return ((Number)value).doubleValue();
+        }
+        else if (value instanceof String)
+        {
+            try
+            {
+                return Double.parseDouble((String)value);
+            }
+            catch (NumberFormatException nfe)
+            {
+                return 0.0d;
+            }
+        }
+        return 0.0d;
+    }
+
+    /**
+     * Create a SubscriptionFilter from a _subscribe_request if it has a "_deadband" or "_threshold".
+     * @param request the QmfData holding the _subscribe_request or createSubscription() options.
+     * @param deadbandName the name of the deadband value in request.
+     * @param thresholdName the name of the threshold value in request.
+     * @return a SubscriptionFilter, or null if the request has neither a deadband nor a threshold.
+     * @throws QmfException if the threshold predicate is invalid.
+     */
+    public static SubscriptionFilter create(final QmfData request, final String deadbandName,
+                                            final String thresholdName) throws QmfException
+    {
+        Map deadband = request.hasValue(deadbandName) ? (Map)request.getValue(deadbandName) : null;
+        List threshold = request.hasValue(thresholdName) ? (List)request.getValue(thresholdName) : null;
+        if (deadband == null && threshold == null)
+        {
+            return null;
+        }
+        return new SubscriptionFilter(deadband, threshold);
+    }
+
+    /**
+     * Return the "_deadband" Map encoding of this filter.
+     * @return the "_deadband" Map encoding of this filter, or null if it has no deadband properties.
+     */
+    public Map<String, Object> getDeadband()
+    {
+        if (_properties.length == 0)
+        {
+            return null;
+        }
+
+        Map<String, Object> absolute = new HashMap<String, Object>();
+        Map<String, Object> relative = new HashMap<String, Object>();
+        for (int i = 0; i < _properties.length; i++)
+        {
+            if (_absolute[i] != Double.MAX_VALUE)
+            {
+                absolute.put(_properties[i], _absolute[i]);
+            }
+
+            if (_relative[i] != Double.MAX_VALUE)
+            {
+                relative.put(_properties[i], _relative[i]);
+            }
+        }
+
+        Map<String, Object> deadband = new HashMap<String, Object>();
+        deadband.put("absolute", absolute);
+        deadband.put("relative", relative);
+        return deadband;
+    }
+
+    /**
+     * Return the "_threshold" predicate of this filter.
+     * @return the "_threshold" predicate of this filter, or null if it has no threshold.
+     */
+    public List getThreshold()
+    {
+        return _threshold;
+    }
+
+    /**
+     * Decide whether a changed object should be published, recording its state if it should.
+     * @param data the changed object.
+     * @param deleted true if the object has been deleted.
+     * @return true if the object should be published.
+     */
+    public boolean accept(final QmfManaged data, final boolean deleted)
+    {
+        return accept(data.getObjectId(), data, deleted);
+    }
+
+    /**
+     * Decide whether a changed object should be published, recording its state if it should.
+     * @param objectId the ObjectId of the changed object.
+     * @param data the properties of the changed object.
+     * @param deleted true if the object has been deleted.
+     * @return true if the object should be published.
+     */
+    public synchronized boolean accept(final ObjectId objectId, final QmfData data, final boolean deleted)
+    {
+        if (deleted || objectId == null)
+        {
+            if (objectId != null)
+            {
+                _states.remove(objectId);
+            }
+            return true;
+        }
+
+        boolean exceeded = (_expression == null) ? false : _expression.evaluate(data);
+        _epoch = Math.max(_epoch, objectId.getAgentEpoch());
+        State state = _states.get(objectId);
+        boolean publish;
+        if (state == null)
+        {
+            state = new State(_properties.length);
+            _states.put(objectId, state);
+            publish = _properties.length > 0 || exceeded;
+        }
+        else
+        {
+            publish = exceeded != state._exceeded;
+            for (int i = 0; i < _properties.length && !publish; i++)
+            {
+                double delta = Math.abs(toDouble(data.getValue(_properties[i])) - state._values[i]);
+                publish = delta > _absolute[i] ||
+                          (_relative[i] != Double.MAX_VALUE && delta > _relative[i]*Math.abs(state._values[i]));
+            }
+        }
+
+        state._lastSeen = System.currentTimeMillis();
+        if (publish)
+        {
+            state._exceeded = exceeded;
+            for (int i = 0; i < _properties.length; i++)
+            {
+                state._values[i] = toDouble(data.getValue(_properties[i]));
+            }
+        }
+        return publish;
+    }
+
+    /**
+     * Remove the states of all objects other than those given, used where every object that currently matches
+     * the Subscription's query is known.
+     * @param objectIds the ObjectIds of the objects that currently match the Subscription's query.
+     */
+    public synchronized void retainAll(final Collection<ObjectId> objectIds)
+    {
+        if (_states.size() > 0)
+        {
+            _states.keySet().retainAll(new HashSet<ObjectId>(objectIds));
+        }
+    }
+
+    /**
+     * Remove the states of objects that haven't been seen for longer than idleTime, other than those above their
+     * threshold, and the states of objects from Agent epochs earlier than the latest one seen.
+     * @param idleTime the time in milliseconds after which the state of an object that hasn't been seen is removed.
+     */
+    public synchronized void expire(final long idleTime)
+    {
+        long cutoff = System.currentTimeMillis() - idleTime;
+        for (Iterator<Map.Entry<ObjectId, State>> i = _states.entrySet().iterator(); i.hasNext();)
+        {
+            Map.Entry<ObjectId, State> entry = i.next();
+            State state = entry.getValue();
+            if (entry.getKey().getAgentEpoch() < _epoch || (!state._exceeded && state._lastSeen < cutoff))
+            {
+                i.remove();
+            }
+        }
+    }
+}
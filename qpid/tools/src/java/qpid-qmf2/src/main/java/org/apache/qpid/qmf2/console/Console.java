@@ -40,6 +40,7 @@ import org.slf4j.LoggerFactory;
 
 // Misc Imports
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
@@ -48,9 +49,11 @@ import java.util.Map;
 import java.util.Timer;
 import java.util.UUID;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 // QMF2 Imports
 import org.apache.qpid.qmf2.common.AMQPMessage;
+import org.apache.qpid.qmf2.common.ColumnarResults;
 import org.apache.qpid.qmf2.common.Handle;
 import org.apache.qpid.qmf2.common.Notifier;
 import org.apache.qpid.qmf2.common.NotifierWrapper;
@@ -67,6 +70,7 @@ import org.apache.qpid.qmf2.common.SchemaClass;
 import org.apache.qpid.qmf2.common.SchemaClassId;
 import org.apache.qpid.qmf2.common.SchemaEventClass;
 import org.apache.qpid.qmf2.common.SchemaObjectClass;
+import org.apache.qpid.qmf2.common.SubscriptionFilter;
 import org.apache.qpid.qmf2.common.WorkItem;
 import org.apache.qpid.qmf2.common.WorkQueue;
 
@@ -94,6 +98,15 @@ import org.apache.qpid.messaging.util.AddressParser;
  * All blocking calls are considered thread safe - it is possible to have a multi-threaded implementation
  * have multiple blocking calls in flight simultaneously.
  * <p>
+ * Identical blocking getObjects() calls made concurrently by different threads are coalesced, so the first call
+ * sends the query to the Agent and later calls made before its response arrives wait for that response rather
+ * than sending a query of their own. Each waiting caller receives its own List of copies of the QmfConsoleData,
+ * so callers may refresh or modify the objects they receive independently of each other.
+ * <p>
+ * Query, subscription and method requests advertise that deflate compressed responses are accepted, so Agents
+ * that support it may compress large responses, see AMQPMessage. The System Property "disable_qmf_compression" may be
+ * set to true to stop the Console advertising this.
+ * <p>
  * <h3>Subscriptions</h3>
  * This implementation of the QMF2 API has full support for QMF2 Subscriptions where they are supported by an Agent.
  * <p>
@@ -221,6 +234,89 @@ public final class Console implements MessageListener, AgentProxy
      */
     private Map<String, SubscriptionManager> _subscriptionById = new ConcurrentHashMap<String, SubscriptionManager>();
 
+    /**
+     * A blocking getObjects() query that has been sent to an Agent, which identical queries made while it is in
+     * flight wait on rather than sending their own. The thread that sent the query keeps the QmfConsoleData it
+     * decoded and each waiting thread is given its own copies, made before the sending thread returns.
+     */
+    private static final class PendingQuery
+    {
+        private boolean _completed = false;
+        private int _waiters = 0;
+        private final List<List<QmfConsoleData>> _copies = new ArrayList<List<QmfConsoleData>>();
+
+        /**
+         * Register a thread that will wait for the results of the query.
+         * @return false if the query has already completed, in which case the thread must send its own query.
+         */
+        public synchronized boolean join()
+        {
+            if (_completed)
+            {
+                return false;
+            }
+            _waiters++;
+            return true;
+        }
+
+        /**
+         * Record the results of the query, copying them for each waiting thread, and wake the waiting threads up.
+         * @param results the results of the query.
+         */
+        public synchronized void complete(final List<QmfConsoleData> results)
+        {
+            _completed = true;
+            for (int i = 0; i < _waiters; i++)
+            {
+                List<QmfConsoleData> copy = new ArrayList<QmfConsoleData>(results.size());
+                for (QmfConsoleData object : results)
+                {
+                    copy.add(new QmfConsoleData(object));
+                }
+                _copies.add(copy);
+            }
+            notifyAll();
+        }
+
+        /**
+         * Wait for the results of the query, after a successful call to join().
+         * @param timeout the maximum time to wait in milliseconds.
+         * @return this thread's copy of the results of the query, or an empty List if they didn't arrive within
+         * the timeout.
+         */
+        public synchronized List<QmfConsoleData> await(final long timeout)
+        {
+            long deadline = System.currentTimeMillis() + timeout;
+            long remaining = timeout;
+            while (!_completed && remaining > 0)
+            {
+                try
+                {
+                    wait(remaining);
+                }
+                catch (InterruptedException ie)
+                {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+                remaining = deadline - System.currentTimeMillis();
+            }
+
+            if (!_completed)
+            { // Timed out, so no copy of the results is needed for this thread.
+                _waiters--;
+                return new ArrayList<QmfConsoleData>();
+            }
+            return _copies.remove(_copies.size() - 1);
+        }
+    }
+
+    /**
+     * This Map holds the blocking getObjects() queries currently in flight, keyed by Agent name and query.
+     */
+    private ConcurrentMap<List<Object>, PendingQuery> _pendingQueries =
+        new ConcurrentHashMap<List<Object>, PendingQuery>();
+
     /**
      * Used to implement a thread safe queue of WorkItem objects used to implement the Notifier API
      */
@@ -274,6 +370,17 @@ public final class Console implements MessageListener, AgentProxy
      */
     private boolean _subscriptionEmulationEnabled = !Boolean.getBoolean("disable_subscription_emulation");
 
+    /**
+     * Unless the "disable_qmf_compression" System Property is set requests advertise that compressed responses
+     * are accepted, see AMQPMessage.
+     */
+    private boolean _compressionEnabled = !Boolean.getBoolean("disable_qmf_compression");
+
+    /**
+     * If set, object queries sent by getObjects() ask the Agent for columnar results, see ColumnarResults.
+     */
+    private boolean _columnarResults = false;
+
     /**
      * Various timeouts used internally.
      * replyTimeout is the default maximum time we wait for synchronous responses
@@ -479,10 +586,10 @@ public final class Console implements MessageListener, AgentProxy
             Handle handle = new Handle(message.getJMSCorrelationID());
             if (opcode.equals("_method_response") || opcode.equals("_exception"))
             {
-                if (AMQPMessage.isAMQPMap(message))
+                if (AMQPMessage.isAMQPMap(message) || AMQPMessage.isAMQPList(message))
                 {
                     _eventListener.onEvent(
-                        new MethodResponseWorkItem(handle, new MethodResult(AMQPMessage.getMap(message)))
+                        new MethodResponseWorkItem(handle, new MethodResult(getMethodResponse(message)))
                     );
                 }
                 else
@@ -497,7 +604,7 @@ public final class Console implements MessageListener, AgentProxy
             {
                 if (AMQPMessage.isAMQPList(message))
                 {
-                    List<Map> list = AMQPMessage.getList(message);
+                    List<Map> list = ColumnarResults.decode(AMQPMessage.getList(message));
                     for (Map m : list)
                     {
                         _eventListener.onEvent(new ObjectUpdateWorkItem(handle, new QmfConsoleData(m, agent)));
@@ -561,17 +668,29 @@ public final class Console implements MessageListener, AgentProxy
                 if (AMQPMessage.isAMQPList(message))
                 {
                     String consoleHandle = handle.getCorrelationId();
-                    if (consoleHandle != null && _subscriptionByHandle.containsKey(consoleHandle))
+                    SubscriptionManager target = (consoleHandle == null) ? null :
+                                                 _subscriptionByHandle.get(consoleHandle);
+                    if (target != null)
                     { // If we have a valid consoleHandle the data has come from a "real" Subscription.
-                        List<Map> list = AMQPMessage.getList(message);
+                        // The Subscription's filter, if any, is applied here too in case the Agent ignored it.
+                        SubscriptionFilter filter = target.getFilter();
+                        List<Map> list = ColumnarResults.decode(AMQPMessage.getList(message));
                         List<QmfConsoleData> resultList = new ArrayList<QmfConsoleData>(list.size());
                         for (Map m : list)
                         {
-                            resultList.add(new QmfConsoleData(m, agent));
+                            QmfConsoleData object = new QmfConsoleData(m, agent);
+                            if (filter == null || filter.accept(object, object.isDeleted()))
+                            {
+                                resultList.add(object);
+                            }
+                        }
+
+                        if (resultList.size() > 0)
+                        {
+                            _eventListener.onEvent(
+                                new SubscriptionIndicationWorkItem(new SubscribeIndication(consoleHandle, resultList))
+                            );
                         }
-                        _eventListener.onEvent(
-                            new SubscriptionIndicationWorkItem(new SubscribeIndication(consoleHandle, resultList))
-                        );
                     }
                     else if (_subscriptionEmulationEnabled && agentName.equals(_brokerAgentName))
                     { // If the data has come from is the broker Agent we emulate a Subscription on the Console
@@ -581,14 +700,16 @@ public final class Console implements MessageListener, AgentProxy
                             if (subscription.getAgent().getName().equals(_brokerAgentName) &&
                                 query.getTarget() == QmfQueryTarget.OBJECT)
                             { // Only evaluate broker Agent subscriptions with QueryTarget == OBJECT on the Console.
+                                SubscriptionFilter filter = subscription.getFilter();
                                 long objectEpoch = 0;
                                 consoleHandle = subscription.getConsoleHandle();
-                                List<Map> list = AMQPMessage.getList(message);
+                                List<Map> list = ColumnarResults.decode(AMQPMessage.getList(message));
                                 List<QmfConsoleData> resultList = new ArrayList<QmfConsoleData>(list.size());
                                 for (Map m : list)
                                 { // Evaluate the QmfConsoleData object against the query
                                     QmfConsoleData object = new QmfConsoleData(m, agent);
-                                    if (query.evaluate(object))
+                                    if (query.evaluate(object) &&
+                                        (filter == null || filter.accept(object, object.isDeleted())))
                                     {
                                         long epoch = object.getObjectId().getAgentEpoch();
                                         objectEpoch = (epoch > objectEpoch && !object.isDeleted()) ? epoch : objectEpoch;
@@ -687,6 +808,9 @@ public final class Console implements MessageListener, AgentProxy
      * If replyHandle is null this method will block until the agent replies, or the timeout expires.
      * Once the timeout expires, all data retrieved to date is returned. If replyHandle is non-null an
      * asynchronous request is performed
+     * <p>
+     * A blocking query that is identical to one already in flight to the same Agent isn't sent, instead this
+     * method waits for and returns a copy of the results of the query in flight.
      * 
      * @param agent the Agent being queried
      * @param query the ObjectId or SchemaClassId being queried for.
@@ -695,11 +819,154 @@ public final class Console implements MessageListener, AgentProxy
      * @return a List of QMF Objects describing that class
      */
     private List<QmfConsoleData> getObjects(final Agent agent, final QmfData query,
-                                            final String replyHandle, int timeout)
+                                            final String replyHandle, final int timeout)
+    {
+        if (replyHandle != null)
+        { // Asynchronous responses are delivered with the caller's own replyHandle so can't be shared.
+            return sendQuery(agent, query, replyHandle, timeout);
+        }
+
+        List<Object> key = Arrays.<Object>asList(agent.getName(), query.getClass(),
+                                                 new HashMap<String, Object>(query.mapEncode()));
+        PendingQuery pending = new PendingQuery();
+        PendingQuery inFlight = _pendingQueries.putIfAbsent(key, pending);
+        if (inFlight != null)
+        {
+            if (inFlight.join())
+            {
+                return inFlight.await(((timeout < 1) ? _replyTimeout : timeout)*1000l);
+            }
+            // The query in flight has already completed, so this call sends its own.
+            return sendQuery(agent, query, null, timeout);
+        }
+
+        List<QmfConsoleData> results = new ArrayList<QmfConsoleData>();
+        try
+        {
+            results = sendQuery(agent, query, null, timeout);
+        }
+        finally
+        {
+            _pendingQueries.remove(key, pending);
+            pending.complete(results);
+        }
+        return results;
+    }
+
+    /**
+     * Send a query for QmfConsoleData objects to an Agent, see getObjects().
+     * 
+     * @param agent the Agent being queried
+     * @param query the ObjectId, SchemaClassId or QmfQuery being queried for.
+     * @param replyHandle the correlation handle used to tie asynchronous method requests with responses
+     * @param timeout the time to wait for a reply from the Agent, a value of -1 means use the default timeout
+     * @return a List of QMF Objects describing that class
+     */
+    private List<QmfConsoleData> sendQuery(final Agent agent, final QmfData query,
+                                           final String replyHandle, final int timeout)
+    {
+        final List<QmfConsoleData> results = new ArrayList<QmfConsoleData>();
+        sendQuery(agent, query, replyHandle, timeout, new QueryResultListener()
+        {
+            public void onResults(final Agent agent, final List<QmfConsoleData> batch)
+            {
+                results.addAll(batch);
+            }
+        });
+        return results;
+    }
+
+    /**
+     * Send a query for QmfConsoleData objects to an Agent, passing each batch of results to a QueryResultListener
+     * once all of the responses have arrived.
+     * <p>
+     * If the query is a QmfQuery with a predicate that the Agent responds to with an exception, for example because
+     * it doesn't support predicates, the query is resent without the predicate and the results are filtered on the
+     * Console, "_aggregate" summary rows also being computed on the Console in that case. The results of a query
+     * that the Agent accepted aren't filtered again, as they may be summary rows which don't have the properties or
+     * SchemaClassId that the predicate refers to.
+     * 
+     * @param agent the Agent being queried
+     * @param query the ObjectId, SchemaClassId or QmfQuery being queried for.
+     * @param replyHandle the correlation handle used to tie asynchronous method requests with responses
+     * @param timeout the time to wait for a reply from the Agent, a value of -1 means use the default timeout
+     * @param listener the QueryResultListener that the results are passed to
+     * @return the number of QmfConsoleData passed to the listener
+     */
+    private int sendQuery(final Agent agent, final QmfData query, final String replyHandle, final int timeout,
+                          final QueryResultListener listener)
+    {
+        QmfQuery filter = (query instanceof QmfQuery && ((QmfQuery)query).getPredicate() != null) ?
+                          (QmfQuery)query : null;
+        int count = sendQuery(agent, query, null, replyHandle, timeout, listener);
+        if (count < 0 && filter != null)
+        {
+            _log.debug("Agent {} rejected predicate query, filtering on the Console instead", agent.getName());
+            SchemaClassId classId = filter.getSchemaClassId();
+            QmfQuery unfiltered = (classId == null) ? new QmfQuery(QmfQueryTarget.OBJECT) :
+                                                      new QmfQuery(QmfQueryTarget.OBJECT, classId);
+            List<String> expand = filter.getExpand();
+            if (expand != null)
+            {
+                unfiltered.setExpand(expand.toArray(new String[expand.size()]));
+            }
+
+            if (filter.isAggregate())
+            { // The summary rows are computed over all of the matching objects, so collect them all first.
+                final List<QmfConsoleData> matches = new ArrayList<QmfConsoleData>();
+                count = sendQuery(agent, unfiltered, filter, replyHandle, timeout, new QueryResultListener()
+                {
+                    public void onResults(final Agent agent, final List<QmfConsoleData> batch)
+                    {
+                        matches.addAll(batch);
+                    }
+                });
+
+                if (count >= 0)
+                {
+                    List<QmfConsoleData> summary = new ArrayList<QmfConsoleData>();
+                    for (Map row : filter.aggregate(matches))
+                    {
+                        summary.add(new QmfConsoleData(row, agent));
+                    }
+
+                    count = summary.size();
+                    if (count > 0)
+                    {
+                        listener.onResults(agent, summary);
+                    }
+                }
+            }
+            else
+            {
+                count = sendQuery(agent, unfiltered, filter, replyHandle, timeout, listener);
+            }
+        }
+        return (count < 0) ? 0 : count;
+    }
+
+    /**
+     * Send a query for QmfConsoleData objects to an Agent, passing each batch of results that passes the filter
+     * to a QueryResultListener once all of the responses have arrived.
+     * 
+     * @param agent the Agent being queried
+     * @param query the ObjectId, SchemaClassId or QmfQuery being queried for.
+     * @param filter a QmfQuery that the results must also match, may be null
+     * @param replyHandle the correlation handle used to tie asynchronous method requests with responses
+     * @param timeout the time to wait for a reply from the Agent, a value of -1 means use the default timeout
+     * @param listener the QueryResultListener that the results are passed to
+     * @return the number of QmfConsoleData passed to the listener, or -1 if the Agent responded with an exception
+     */
+    private int sendQuery(final Agent agent, final QmfData query, final QmfQuery filter,
+                          final String replyHandle, int timeout, final QueryResultListener listener)
     {
         String agentName = agent.getName();
         timeout = (timeout < 1) ? _replyTimeout : timeout;
-        List<QmfConsoleData> results = Collections.emptyList();
+        int count = 0;
+        boolean rejected = false;
+        // The batches are passed to the listener once the lock below is released, so that a slow listener doesn't
+        // hold up other requests and a listener may itself call the Console.
+        List<List<QmfConsoleData>> batches = new ArrayList<List<QmfConsoleData>>();
         try
         {
             Destination destination = (replyHandle == null) ? _replyAddress : _asyncReplyAddress;
@@ -709,12 +976,27 @@ public final class Console implements MessageListener, AgentProxy
             request.setStringProperty("x-amqp-0-10.app-id", "qmf2");
             request.setStringProperty("method", "request");
             request.setStringProperty("qmf.opcode", "_query_request");
+            acceptCompression(request);
             request.setStringProperty("qpid.subject", agentName);
 
-            // Create a QMF Query for an "OBJECT" target using either a schema ID or object ID
-            String queryType = (query instanceof SchemaClassId) ? "_schema_id" : "_object_id";
-            request.setObject("_what", "OBJECT");
-            request.setObject(queryType, query.mapEncode());
+            if (query instanceof QmfQuery)
+            { // Send the whole query, including any "_where" predicate, so that it gets evaluated by the Agent.
+                for (Map.Entry<String, Object> entry : query.mapEncode().entrySet())
+                {
+                    request.setObject(entry.getKey(), entry.getValue());
+                }
+            }
+            else
+            { // Create a QMF Query for an "OBJECT" target using either a schema ID or object ID
+                String queryType = (query instanceof SchemaClassId) ? "_schema_id" : "_object_id";
+                request.setObject("_what", "OBJECT");
+                request.setObject(queryType, query.mapEncode());
+            }
+
+            if (_columnarResults && !request.itemExists("_format"))
+            {
+                request.setObject("_format", ColumnarResults.FORMAT);
+            }
 
             // Wrap request & response in synchronized block in case any other threads invoke a request
             // it would be somewhat unfortunate if their response got interleaved with ours!!
@@ -724,39 +1006,49 @@ public final class Console implements MessageListener, AgentProxy
                 if (replyHandle == null)
                 {
                     boolean lastResult = true;
-                    ArrayList<QmfConsoleData> partials = new ArrayList<QmfConsoleData>();
                     do
                     { // Wrap in a do/while loop to cater for the case where the Agent may send partial results.
                         Message response = _responder.receive(timeout*1000);
                         if (response == null)
                         {
                             _log.info("No response received in getObjects()");
-                            return partials;
+                            break;
                         }
 
                         lastResult = !response.propertyExists("partial");
 
                         if (AMQPMessage.isAMQPList(response))
                         {
-                            List<Map> mapResults = AMQPMessage.getList(response);
-                            partials.ensureCapacity(partials.size() + mapResults.size());
+                            List<Map> mapResults = ColumnarResults.decode(AMQPMessage.getList(response));
+                            List<QmfConsoleData> batch = new ArrayList<QmfConsoleData>(mapResults.size());
                             for (Map content : mapResults)
                             {
-                                partials.add(new QmfConsoleData(content, agent));
+                                QmfConsoleData object = new QmfConsoleData(content, agent);
+                                if (filter == null || filter.evaluate(object))
+                                {
+                                    batch.add(object);
+                                }
+                            }
+
+                            if (batch.size() > 0)
+                            {
+                                count += batch.size();
+                                batches.add(batch);
                             }
                         }
                         else if (AMQPMessage.isAMQPMap(response))
                         {
-                            // Error responses are returned as MapMessages, though they are being ignored here.
+                            // Error responses are returned as MapMessages, they are only used to trigger the
+                            // fallback for Agents that reject predicates.
                             //QmfData exception = new QmfData(AMQPMessage.getMap(response));
                             //System.out.println(agentName + " " + exception.getStringValue("error_text"));
+                            rejected = true;
                         }
                         else
                         {
                             _log.info("getObjects() Received response message in incorrect format");
                         }
                     } while (!lastResult);
-                    results = partials;
                 }
             }
         }
@@ -764,7 +1056,12 @@ public final class Console implements MessageListener, AgentProxy
         {
             _log.info("JMSException {} caught in getObjects()", jmse.getMessage());
         }
-        return results;
+
+        for (List<QmfConsoleData> batch : batches)
+        {
+            listener.onResults(agent, batch);
+        }
+        return (rejected && count == 0) ? -1 : count;
     }
 
     //                                methods implementing AgentProxy interface
@@ -830,6 +1127,7 @@ public final class Console implements MessageListener, AgentProxy
             request.setStringProperty("method", "request");
             request.setStringProperty("qmf.opcode", "_method_request");
             request.setStringProperty("qpid.subject", agentName);
+            acceptCompression(request);
 
             for (Map.Entry<String, Object> entry : content.entrySet())
             {
@@ -849,7 +1147,7 @@ public final class Console implements MessageListener, AgentProxy
                         _log.info("No response received in invokeMethod()");
                         throw new QmfException("No response received for Console.invokeMethod()");
                     }
-                    MethodResult result = new MethodResult(AMQPMessage.getMap(response));
+                    MethodResult result = new MethodResult(getMethodResponse(response));
                     QmfException exception = result.getQmfException();
                     if (exception != null)
                     {
@@ -868,6 +1166,24 @@ public final class Console implements MessageListener, AgentProxy
         }
     }
 
+    /**
+     * Return the content of a _method_response or _exception message. Agents send large method responses that
+     * a Console accepts compressed as a deflate compressed amqp/list whose single entry is the Map that is otherwise
+     * sent as the amqp/map body.
+     * @param response the response Message.
+     * @return the content of the response.
+     */
+    private static Map<String, Object> getMethodResponse(final Message response) throws JMSException
+    {
+        if (AMQPMessage.isAMQPMap(response))
+        {
+            return AMQPMessage.getMap(response);
+        }
+
+        List<Map<String, Object>> list = AMQPMessage.getList(response);
+        return list.isEmpty() ? Collections.<String, Object>emptyMap() : list.get(0);
+    }
+
     /**
      * Remove a Subscription.
      *
@@ -1324,6 +1640,32 @@ public final class Console implements MessageListener, AgentProxy
         _agentQuery = null;
     }
 
+    /**
+     * Advertise on a request that compressed responses are accepted, unless compression has been disabled.
+     * @param request the request Message.
+     */
+    private void acceptCompression(final Message request) throws JMSException
+    {
+        if (_compressionEnabled)
+        {
+            request.setStringProperty(AMQPMessage.ACCEPT_COMPRESSION, AMQPMessage.DEFLATE);
+        }
+    }
+
+    /**
+     * Called to ask Agents to send the results of getObjects() in the columnar form described by ColumnarResults,
+     * which is much more compact for queries returning many objects. The results are converted back so this
+     * doesn't change what getObjects() returns, and Agents that don't support the columnar form ignore it.
+     * <p>
+     * Subscriptions may also request columnar data indications via QmfQuery.setColumnar().
+     *
+     * @param columnar true to request columnar results.
+     */
+    public void setColumnarResults(final boolean columnar)
+    {
+        _columnarResults = columnar;
+    }
+
     /**
      * Called to disable asynchronous behaviour such as QMF Events, Agent discovery etc. useful in simple
      * Use Cases such as getObjects() on the broker. Note that asynchronous behaviour enabled by default.
@@ -1536,6 +1878,7 @@ public final class Console implements MessageListener, AgentProxy
             request.setStringProperty("x-amqp-0-10.app-id", "qmf2");
             request.setStringProperty("method", "request");
             request.setStringProperty("qmf.opcode", "_query_request");
+            acceptCompression(request);
             request.setStringProperty("qpid.subject", agentName);
 
             // Create a QMF Query for an "SCHEMA_ID" target
@@ -1632,6 +1975,7 @@ public final class Console implements MessageListener, AgentProxy
             request.setStringProperty("x-amqp-0-10.app-id", "qmf2");
             request.setStringProperty("method", "request");
             request.setStringProperty("qmf.opcode", "_query_request");
+            acceptCompression(request);
             request.setStringProperty("qpid.subject", agentName);
 
             // Create a QMF Query for an "SCHEMA" target
@@ -1863,6 +2207,97 @@ public final class Console implements MessageListener, AgentProxy
         return results;
     }
 
+    /**
+     * Perform a blocking query for the QmfConsoleData objects of an Agent that match a QmfQuery. Returns a list
+     * (possibly empty) of matching objects. This method will block until the Agent replies, or the default
+     * replyTimeout expires.
+     * <p>
+     * Unlike the SchemaClassId and ObjectId variants of getObjects() the whole query is sent to the Agent,
+     * including any "_where" predicate, so only the matching objects are returned by the Agent rather than every
+     * object of the class being retrieved and filtered on the Console. Agents that don't support predicates are
+     * catered for by filtering on the Console.
+     *
+     * @param agent the Agent being queried.
+     * @param query the QmfQuery, which must have a target of OBJECT.
+     * @return a List of QMF Objects matching the query.
+     */
+    public List<QmfConsoleData> getObjects(final Agent agent, final QmfQuery query) throws QmfException
+    {
+        return getObjects(agent, query, -1);
+    }
+
+    /**
+     * Perform a blocking query for the QmfConsoleData objects of an Agent that match a QmfQuery, see
+     * getObjects(Agent, QmfQuery).
+     *
+     * @param agent the Agent being queried.
+     * @param query the QmfQuery, which must have a target of OBJECT.
+     * @param timeout overrides the default replyTimeout.
+     * @return a List of QMF Objects matching the query.
+     */
+    public List<QmfConsoleData> getObjects(final Agent agent, final QmfQuery query, final int timeout)
+        throws QmfException
+    {
+        checkObjectQuery(agent, query);
+        return getObjects(agent, query, null, timeout);
+    }
+
+    /**
+     * Perform a blocking query for the QmfConsoleData objects of an Agent that match a QmfQuery, passing the
+     * results to a QueryResultListener a batch per response from the Agent rather than returning them as a single
+     * List, see getObjects(Agent, QmfQuery). The listener is called once all of the responses have arrived, by
+     * the calling thread without holding any Console locks, so it may itself call the Console.
+     *
+     * @param agent the Agent being queried.
+     * @param query the QmfQuery, which must have a target of OBJECT.
+     * @param listener the QueryResultListener that the results are passed to.
+     * @return the number of QMF Objects passed to the listener.
+     */
+    public int getObjects(final Agent agent, final QmfQuery query, final QueryResultListener listener)
+        throws QmfException
+    {
+        return getObjects(agent, query, -1, listener);
+    }
+
+    /**
+     * Perform a blocking query for the QmfConsoleData objects of an Agent that match a QmfQuery, passing the
+     * results to a QueryResultListener a batch per response from the Agent, see getObjects(Agent, QmfQuery,
+     * QueryResultListener).
+     *
+     * @param agent the Agent being queried.
+     * @param query the QmfQuery, which must have a target of OBJECT.
+     * @param timeout overrides the default replyTimeout.
+     * @param listener the QueryResultListener that the results are passed to.
+     * @return the number of QMF Objects passed to the listener.
+     */
+    public int getObjects(final Agent agent, final QmfQuery query, final int timeout,
+                          final QueryResultListener listener) throws QmfException
+    {
+        checkObjectQuery(agent, query);
+        if (listener == null)
+        {
+            throw new QmfException("Called getObjects() with null listener");
+        }
+        return sendQuery(agent, query, null, timeout, listener);
+    }
+
+    /**
+     * Check the arguments of the QmfQuery variants of getObjects().
+     * @param agent the Agent being queried.
+     * @param query the QmfQuery being sent.
+     */
+    private void checkObjectQuery(final Agent agent, final QmfQuery query) throws QmfException
+    {
+        if (agent == null)
+        {
+            throw new QmfException("Called getObjects() with null agent");
+        }
+        if (query == null || query.getTarget() != QmfQueryTarget.OBJECT)
+        {
+            throw new QmfException("Called getObjects() with a query whose target isn't OBJECT");
+        }
+    }
+
     /**
      * Creates a subscription to the agent using the given Query.
      * <p>
@@ -1906,13 +2341,18 @@ public final class Console implements MessageListener, AgentProxy
      * @param consoleHandle an application-provided handle that will accompany each subscription update sent
      *        from the Agent.
      * @param options a String representation of a Map containing the options in the form
-     *        <pre>"{lifetime:&lt;value&gt;, publishInterval:&lt;value&gt;, replyHandle:&lt;value&gt;, timeout:&lt;value&gt;}"</pre>
+     *        <pre>"{lifetime:&lt;value&gt;, publishInterval:&lt;value&gt;, replyHandle:&lt;value&gt;, timeout:&lt;value&gt;,
+     *          deadband:&lt;value&gt;, threshold:&lt;value&gt;}"</pre>
      *        they are optional and may appear in any order.
      * <pre>
      *        <b>lifetime</b> the requested time interval in seconds for which this subscription should remain in effect.
      *        <b>publishInterval</b> the requested time interval in seconds on which the Agent should publish updates
      *        <b>replyHandle</b> the correlation handle used to tie asynchronous method requests with responses.
      *        <b>timeout</b> the time to wait for a reply from the Agent.
+     *        <b>deadband</b> a Map of the form {absolute: {msgDepth: 100}, relative: {byteDepth: 0.1}} such that
+     *        an object is only published when one of the properties changes by more than its deadband.
+     *        <b>threshold</b> a predicate such as [gt, msgDepth, 10000] such that an object is only published
+     *        when the predicate becomes true or false, see SubscriptionFilter.
      * </pre>
      */
     public synchronized SubscribeParams createSubscription(final Agent agent, final QmfQuery query,
@@ -1941,6 +2381,7 @@ public final class Console implements MessageListener, AgentProxy
         long publishInterval = 10000;
         long timeout = _replyTimeout;
         String replyHandle = null;
+        SubscriptionFilter filter = null;
 
         if (options != null)
         { // We wrap the Map in a QmfData object to avoid potential class cast issues with the parsed options
@@ -1950,6 +2391,13 @@ public final class Console implements MessageListener, AgentProxy
                 lifetime = optMap.getLongValue("lifetime");
             }
 
+            if (optMap.getValue("threshold") instanceof String)
+            { // Allow the threshold predicate to be supplied as a quoted String as it is for a QmfQuery.
+                String threshold = optMap.getStringValue("threshold");
+                optMap.setValue("threshold", new QmfQuery(QmfQueryTarget.OBJECT, threshold).getPredicate());
+            }
+            filter = SubscriptionFilter.create(optMap, "deadband", "threshold");
+
             if (optMap.hasValue("publishInterval"))
             { // Multiply publishInterval by 1000 because the QMF2 protocol spec says interval is
               // "The request time (in milliseconds) between periodic updates of data in this subscription"
@@ -1975,14 +2423,27 @@ public final class Console implements MessageListener, AgentProxy
             request.setStringProperty("x-amqp-0-10.app-id", "qmf2");
             request.setStringProperty("method", "request");
             request.setStringProperty("qmf.opcode", "_subscribe_request");
+            acceptCompression(request);
             request.setStringProperty("qpid.subject", agentName);
 
             request.setObject("_query", query.mapEncode());
             request.setObject("_interval", publishInterval);
             request.setObject("_duration", lifetime);
+            if (filter != null)
+            {
+                if (filter.getDeadband() != null)
+                {
+                    request.setObject("_deadband", filter.getDeadband());
+                }
 
-            SubscriptionManager subscription =
-                new SubscriptionManager(agent, query, consoleHandle, replyHandle, publishInterval, lifetime);
+                if (filter.getThreshold() != null)
+                {
+                    request.setObject("_threshold", filter.getThreshold());
+                }
+            }
+
+            SubscriptionManager subscription = new SubscriptionManager(agent, query, filter, consoleHandle,
+                                                                       replyHandle, publishInterval, lifetime);
             _subscriptionByHandle.put(consoleHandle, subscription);
             _timer.schedule(subscription, 0, publishInterval);
 
@@ -2058,13 +2519,17 @@ public final class Console implements MessageListener, AgentProxy
      *
      * @param subscriptionId the ID of the subscription to be refreshed
      * @param options a String representation of a Map containing the options in the form
-     *        <pre>"{lifetime:&lt;value&gt;, replyHandle:&lt;value&gt;, timeout:&lt;value&gt;}"</pre>
+     *        <pre>"{lifetime:&lt;value&gt;, replyHandle:&lt;value&gt;, timeout:&lt;value&gt;, deadband:&lt;value&gt;,
+     *          threshold:&lt;value&gt;}"</pre>
      *        they are optional and may appear in any order.
      * <pre>
      *        <b>lifetime</b> requests a new subscription duration.
      *        <b>replyHandle</b> the correlation handle used to tie asynchronous method requests with responses.
      *        <b>timeout</b> the time to wait for a reply from the Agent.
+     *        <b>deadband</b> replaces the subscription's deadband, see createSubscription().
+     *        <b>threshold</b> replaces the subscription's threshold predicate, see createSubscription().
      * </pre>
+     * If neither deadband nor threshold is supplied the subscription keeps its existing SubscriptionFilter.
      */
     public SubscribeParams refreshSubscription(String subscriptionId, final String options) throws QmfException
     {
@@ -2089,6 +2554,7 @@ public final class Console implements MessageListener, AgentProxy
         long lifetime = 0;
         long timeout = _replyTimeout;
         String replyHandle = null;
+        SubscriptionFilter filter = null;
 
         if (options != null)
         { // We wrap the Map in a QmfData object to avoid potential class cast issues with the parsed options
@@ -2098,6 +2564,13 @@ public final class Console implements MessageListener, AgentProxy
                 lifetime = optMap.getLongValue("lifetime");
             }
 
+            if (optMap.getValue("threshold") instanceof String)
+            { // Allow the threshold predicate to be supplied as a quoted String as it is for a QmfQuery.
+                String threshold = optMap.getStringValue("threshold");
+                optMap.setValue("threshold", new QmfQuery(QmfQueryTarget.OBJECT, threshold).getPredicate());
+            }
+            filter = SubscriptionFilter.create(optMap, "deadband", "threshold");
+
             if (optMap.hasValue("timeout"))
             {
                 timeout = optMap.getLongValue("timeout");
@@ -2109,6 +2582,11 @@ public final class Console implements MessageListener, AgentProxy
             }
         }
 
+        if (filter != null)
+        {
+            subscription.setFilter(filter);
+        }
+
         try
         {
             Destination destination = (replyHandle == null) ? _replyAddress : _asyncReplyAddress;
@@ -2126,6 +2604,19 @@ public final class Console implements MessageListener, AgentProxy
                 request.setObject("_duration", lifetime);
             }
 
+            if (filter != null)
+            { // Pass the new filter to the Agent too, it is still applied on the Console for Agents that ignore it.
+                if (filter.getDeadband() != null)
+                {
+                    request.setObject("_deadband", filter.getDeadband());
+                }
+
+                if (filter.getThreshold() != null)
+                {
+                    request.setObject("_threshold", filter.getThreshold());
+                }
+            }
+
             // Wrap request & response in synchronized block in case any other threads invoke a request
             // it would be somewhat unfortunate if their response got interleaved with ours!!
             synchronized(this)
@@ -31,6 +31,7 @@ import org.apache.qpid.qmf2.common.QmfData;
 import org.apache.qpid.qmf2.common.QmfException;
 import org.apache.qpid.qmf2.common.QmfManaged;
 import org.apache.qpid.qmf2.common.SchemaClassId;
+import org.apache.qpid.qmf2.common.StringCache;
 
 /**
  * Subclass of QmfManaged to provide a Console specific representation of management data.
@@ -54,6 +55,7 @@ public class QmfConsoleData extends QmfManaged
     private long _updateTimestamp;
     private long _createTimestamp;
     private long _deleteTimestamp;
+    private Map _expanded;
 
     /**
      * The main constructor, taking a java.util.Map as a parameter. In essence it "deserialises" its state from the Map.
@@ -64,13 +66,37 @@ public class QmfConsoleData extends QmfManaged
     public QmfConsoleData(final Map m, final Agent a)
     {
         super(m);
+        _values = StringCache.canonicalise(_values);
+        ObjectId objectId = getObjectId();
+        if (objectId != null)
+        {
+            setObjectId(objectId.intern());
+        }
         long currentTime = System.currentTimeMillis()*1000000l;
         _updateTimestamp = m.containsKey("_update_ts") ? getLong(m.get("_update_ts")) : currentTime;
         _createTimestamp = m.containsKey("_create_ts") ? getLong(m.get("_create_ts")) : currentTime;
         _deleteTimestamp = m.containsKey("_delete_ts") ? getLong(m.get("_delete_ts")) : currentTime;
+        _expanded = (Map)m.get("_expanded");
         _agent = a;
     }
 
+    /**
+     * Copy constructor. The copy has its own property Map, so it may be refreshed or modified independently of
+     * the original.
+     *
+     * @param rhs the QmfConsoleData to copy.
+     */
+    public QmfConsoleData(final QmfConsoleData rhs)
+    {
+        _agent = rhs._agent;
+        initialise(rhs);
+        _values = new HashMap<String, Object>(rhs._values);
+        if (rhs._subtypes != null)
+        {
+            _subtypes = new HashMap<String, String>(rhs._subtypes);
+        }
+    }
+
     /**
      * Sets the state of the QmfConsoleData, used as an assignment operator.
      * 
@@ -80,18 +106,19 @@ public class QmfConsoleData extends QmfManaged
     public void initialise(final Map m)
     {
         Map<String, Object> values = (Map<String, Object>)m.get("_values");
-        _values = (values == null) ? m : values;
+        _values = StringCache.canonicalise((values == null) ? m : values);
 
         Map<String, String> subtypes = (Map<String, String>)m.get("_subtypes");
         _subtypes = subtypes;
 
         setSchemaClassId(new SchemaClassId((Map)m.get("_schema_id")));
-        setObjectId(new ObjectId((Map)m.get("_object_id")));
+        setObjectId(ObjectId.valueOf((Map)m.get("_object_id")));
 
         long currentTime = System.currentTimeMillis()*1000000l;
         _updateTimestamp = m.containsKey("_update_ts") ? getLong(m.get("_update_ts")) : currentTime;
         _createTimestamp = m.containsKey("_create_ts") ? getLong(m.get("_create_ts")) : currentTime;
         _deleteTimestamp = m.containsKey("_delete_ts") ? getLong(m.get("_delete_ts")) : currentTime;
+        _expanded = (Map)m.get("_expanded");
     }
 
     /**
@@ -108,6 +135,23 @@ public class QmfConsoleData extends QmfManaged
         _updateTimestamp = rhs._updateTimestamp;
         _createTimestamp = rhs._createTimestamp;
         _deleteTimestamp = rhs._deleteTimestamp;
+        _expanded = rhs._expanded;
+    }
+
+    /**
+     * Return the object referenced by a reference property if the Agent inlined it in response to a query with
+     * an "_expand" option, see QmfQuery.setExpand().
+     * <p>
+     * Agents that don't support the option, or that couldn't resolve the reference, don't inline the object so
+     * callers should fall back to retrieving it by the ObjectId returned by getRefValue().
+     *
+     * @param name the name of the reference property.
+     * @return the referenced object, or null if it wasn't inlined.
+     */
+    public final QmfConsoleData getExpandedValue(final String name)
+    {
+        Map expanded = (_expanded == null) ? null : (Map)_expanded.get(name);
+        return (expanded == null) ? null : new QmfConsoleData(expanded, _agent);
     }
 
     /**
@@ -0,0 +1,45 @@
+/*
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *
+ */
+package org.apache.qpid.qmf2.console;
+
+// Misc Imports
+import java.util.List;
+
+/**
+ * This interface is implemented by applications that want to process the results of a Console.getObjects() query
+ * a batch at a time, rather than as a single List of results.
+ * <p>
+ * Agents may send the results of a query as several partial responses, and each one is passed to the listener as a
+ * separate batch. The batches are delivered once the last response has arrived, as responses are received whilst
+ * holding the Console's request lock and the listener is only called once that has been released. A listener may
+ * therefore take its time and may call the Console, for example to refresh or query other objects.
+ */
+public interface QueryResultListener
+{
+    /**
+     * Called by the thread that called Console.getObjects() for each batch of QmfConsoleData received, without
+     * any Console locks held.
+     *
+     * @param agent the Agent that sent the results.
+     * @param results the QmfConsoleData from a single response message that match the query.
+     */
+    public void onResults(Agent agent, List<QmfConsoleData> results);
+}
@@ -31,6 +31,7 @@ import java.util.TimerTask;
 
 // QMF2 Imports
 import org.apache.qpid.qmf2.common.QmfQuery;
+import org.apache.qpid.qmf2.common.SubscriptionFilter;
 
 /** 
  * A SubscriptionManager represents a running Subscription on the Console.
@@ -48,7 +49,8 @@ import org.apache.qpid.qmf2.common.QmfQuery;
  * To emulate Subscriptions the Console receives the periodic _data indications pushed by the ManagementAgent. The
  * Console then iterates through Subscriptions referencing the broker Agent and evaluates their queries against
  * the QmfConsoleData returned by the _data indication. Any QmfConsoleData that match the query are passed to the
- * client application with the consoleHandle of the matching Subscription.
+ * client application with the consoleHandle of the matching Subscription. If the Subscription was created with
+ * "deadband" or "threshold" options only the QmfConsoleData passed by its SubscriptionFilter are delivered.
  * <p>
  * The following diagram illustrates the Subscription relationships with the Console and local Agent proxy.
  * <p>
@@ -60,12 +62,19 @@ public final class SubscriptionManager extends TimerTask
 {
     private static final Logger _log = LoggerFactory.getLogger(SubscriptionManager.class);
 
+    /**
+     * The number of publish intervals after which the SubscriptionFilter state of an object that hasn't been seen
+     * is removed.
+     */
+    private static final int FILTER_IDLE_INTERVALS = 10;
+
     private final Agent _agent;
     private long     _startTime = System.currentTimeMillis();
     private String   _subscriptionId;
     private String   _consoleHandle;
     private String   _replyHandle;
     private QmfQuery _query;
+    private volatile SubscriptionFilter _filter;
     private long     _duration = 0;
     private long     _interval = 0;
     private boolean  _waiting = true;
@@ -75,15 +84,17 @@ public final class SubscriptionManager extends TimerTask
      *
      * @param agent the Agent from which the Subscription has been requested
      * @param query the QmfQuery that the Subscription will run
+     * @param filter the SubscriptionFilter applied to the Subscription's results, may be null
      * @param consoleHandle the handle that uniquely identifies the Subscription
      * @param interval the interval between subscription updates
      * @param duration the duration of the subscription (assuming it doesn't get refreshed)
      */
-    SubscriptionManager(final Agent agent, final QmfQuery query, final String consoleHandle,
-                        final String replyHandle, final long interval, final long duration)
+    SubscriptionManager(final Agent agent, final QmfQuery query, final SubscriptionFilter filter,
+                        final String consoleHandle, final String replyHandle, final long interval, final long duration)
     {
         _agent = agent;
         _query = query;
+        _filter = filter;
         _consoleHandle = consoleHandle;
         _replyHandle = replyHandle;
         _interval = interval;
@@ -95,6 +106,10 @@ public final class SubscriptionManager extends TimerTask
      * This method gets called periodically by the Timer scheduling this TimerTask.
      * <p>
      * First a check is made to see if the Subscription has expired, if it has then it is cancelled.
+     * <p>
+     * If the Subscription isn't cancelled the state its SubscriptionFilter holds for objects that haven't been
+     * seen for FILTER_IDLE_INTERVALS publish intervals is removed, as the Console only sees changed objects and
+     * so can't tell when an object has gone away without being deleted.
      */
     public void run()
     {
@@ -105,6 +120,14 @@ public final class SubscriptionManager extends TimerTask
             // The Subscription has expired so cancel it
             cancel();
         }
+        else
+        {
+            SubscriptionFilter filter = _filter;
+            if (filter != null)
+            {
+                filter.expire(FILTER_IDLE_INTERVALS*_interval);
+            }
+        }
     }
 
     /**
@@ -236,6 +259,25 @@ public final class SubscriptionManager extends TimerTask
         return _query;
     }
 
+    /**
+     * Return The Subscription's SubscriptionFilter.
+     * @return The Subscription's SubscriptionFilter, or null if it doesn't have one.
+     */
+    public SubscriptionFilter getFilter()
+    {
+        return _filter;
+    }
+
+    /**
+     * Replace the Subscription's SubscriptionFilter, used when the Subscription is refreshed with new "deadband"
+     * or "threshold" options.
+     * @param filter the new SubscriptionFilter.
+     */
+    public void setFilter(final SubscriptionFilter filter)
+    {
+        _filter = filter;
+    }
+
     /**
      * Create a Map encoded version.
      * <p>